@@ -0,0 +1,779 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import eu.credential.app.patient.integration.codec.RecordAccessControlPoint;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for the BleService with a fleet of SimulatedPeripherals, so that the collection can
+ * be load and fault tested with many devices and records without hardware. Like a real GATT
+ * client, the operations of a device are answered one after the other, connections take their
+ * time and may fail with GATT_ERROR 133, established connections are lost at random and stored
+ * records arrive as notifications at the configured rate. Everything runs on one scheduler
+ * thread, the random faults are reproducible by the seed. Only part of debug builds.
+ */
+public class SimulatedGattClient implements GattClient {
+
+    // status of a failed connection attempt, which Android reports as 133
+    public final static int STATUS_GATT_ERROR = 0x85;
+
+    private static class Registration {
+        final GattEventListener listener;
+        final Executor executor;
+        final NotificationRingBuffer notifications;
+
+        Registration(GattEventListener listener, Executor executor,
+                     NotificationRingBuffer.OverflowPolicy policy) {
+            this.listener = listener;
+            this.executor = executor;
+            this.notifications = new NotificationRingBuffer(policy);
+        }
+    }
+
+    /**
+     * Connection of one peripheral, only touched on the scheduler thread.
+     */
+    private static class Session {
+        final SimulatedPeripheral peripheral;
+        volatile boolean connected;
+        // counts the connections, tasks of an older connection are skipped
+        int generation;
+        ScheduledFuture<?> connecting;
+        ScheduledFuture<?> dropping;
+        ScheduledFuture<?> streaming;
+        // the device answers the next operation not before this time
+        long busyUntil;
+        final List<CompletableFuture<byte[]>> operations;
+        volatile TransferStats transfer;
+
+        Session(SimulatedPeripheral peripheral) {
+            this.peripheral = peripheral;
+            this.operations = new ArrayList<>();
+        }
+    }
+
+    private final Map<String, Session> sessions;
+    private final Map<String, List<Registration>> listeners;
+    private final Map<String, ReconnectPolicy> reconnectPolicies;
+    private final Map<String, NotificationRingBuffer.OverflowPolicy> overflowPolicies;
+    private final Map<String, ConnectionHistory> connectionHistories;
+    private final ScheduledExecutorService scheduler;
+    private final Random random;
+
+    // configuration, see the setters
+    private volatile long minConnectLatency;
+    private volatile long maxConnectLatency;
+    private volatile double connectErrorRate;
+    private volatile long meanConnectionTime;
+    private volatile long operationLatency;
+    private volatile long recordInterval;
+
+    // figures of the simulation
+    private final AtomicInteger connects;
+    private final AtomicInteger connectErrors;
+    private final AtomicInteger drops;
+    private final AtomicInteger operations;
+    private final AtomicInteger notifications;
+
+    /**
+     * @param seed seed of the random faults and values
+     */
+    public SimulatedGattClient(long seed) {
+        this.sessions = new ConcurrentHashMap<>();
+        this.listeners = new ConcurrentHashMap<>();
+        this.reconnectPolicies = new ConcurrentHashMap<>();
+        this.overflowPolicies = new ConcurrentHashMap<>();
+        this.connectionHistories = new HashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gatt-simulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.random = new Random(seed);
+        this.minConnectLatency = 100;
+        this.maxConnectLatency = 500;
+        this.connectErrorRate = 0;
+        this.meanConnectionTime = 0;
+        this.operationLatency = 15;
+        this.recordInterval = 8;
+        this.connects = new AtomicInteger();
+        this.connectErrors = new AtomicInteger();
+        this.drops = new AtomicInteger();
+        this.operations = new AtomicInteger();
+        this.notifications = new AtomicInteger();
+    }
+
+    /**
+     * Creates a fleet of glucose meters, scales and heart rate sensors with consecutive
+     * addresses.
+     *
+     * @param records stored records of every meter and scale
+     */
+    public static SimulatedGattClient createFleet(int glucoseMeters, int weightScales,
+                                                  int heartRateSensors, int records,
+                                                  long seed) {
+        SimulatedGattClient client = new SimulatedGattClient(seed);
+        int index = 0;
+        for (int i = 0; i < glucoseMeters; i++) {
+            client.addPeripheral(new SimulatedPeripheral(address(index++),
+                    SimulatedPeripheral.Kind.GLUCOSE_METER, records, 0));
+        }
+        for (int i = 0; i < weightScales; i++) {
+            client.addPeripheral(new SimulatedPeripheral(address(index++),
+                    SimulatedPeripheral.Kind.WEIGHT_SCALE, records, 0));
+        }
+        for (int i = 0; i < heartRateSensors; i++) {
+            client.addPeripheral(new SimulatedPeripheral(address(index++),
+                    SimulatedPeripheral.Kind.HEART_RATE_SENSOR, 0, 1000));
+        }
+        return client;
+    }
+
+    private static String address(int index) {
+        return String.format(Locale.ROOT, "5E:00:00:00:%02X:%02X", index >> 8 & 0xFF,
+                index & 0xFF);
+    }
+
+    public void addPeripheral(SimulatedPeripheral peripheral) {
+        sessions.put(peripheral.getAddress(), new Session(peripheral));
+    }
+
+    public Collection<SimulatedPeripheral> getPeripherals() {
+        List<SimulatedPeripheral> peripherals = new ArrayList<>();
+        for (Session session : sessions.values()) peripherals.add(session.peripheral);
+        return peripherals;
+    }
+
+    /**
+     * Returns the service the collection looks for by the address of every peripheral, as
+     * CollectorService.startSimulation expects them.
+     */
+    public Map<String, UUID> getDeviceServices() {
+        Map<String, UUID> services = new LinkedHashMap<>();
+        for (Session session : sessions.values()) {
+            services.put(session.peripheral.getAddress(), session.peripheral.getServiceUuid());
+        }
+        return services;
+    }
+
+    /**
+     * Sets the range, in which the time in ms to connect is picked at random.
+     */
+    public void setConnectLatency(long min, long max) {
+        this.minConnectLatency = min;
+        this.maxConnectLatency = Math.max(min, max);
+    }
+
+    /**
+     * Sets the share of connection attempts, which fail with GATT_ERROR 133.
+     */
+    public void setConnectErrorRate(double rate) {
+        this.connectErrorRate = rate;
+    }
+
+    /**
+     * Sets the mean time in ms, after which an established connection is lost at random,
+     * 0 to keep connections until they are closed.
+     */
+    public void setMeanConnectionTime(long millis) {
+        this.meanConnectionTime = millis;
+    }
+
+    /**
+     * Sets the time in ms a device takes to answer an operation.
+     */
+    public void setOperationLatency(long millis) {
+        this.operationLatency = millis;
+    }
+
+    /**
+     * Sets the time in ms between two notifications of a record transfer, 0 to send them as
+     * fast as the scheduler can.
+     */
+    public void setRecordInterval(long millis) {
+        this.recordInterval = millis;
+    }
+
+    /**
+     * Stops all connections, the client cannot be used afterwards.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void execute(Runnable task) {
+        schedule(task, 0);
+    }
+
+    private ScheduledFuture<?> schedule(Runnable task, long delay) {
+        try {
+            return scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // shut down, nothing happens anymore
+            return null;
+        }
+    }
+
+    private static void cancel(ScheduledFuture<?> task) {
+        if (task != null) task.cancel(false);
+    }
+
+    private ConnectionHistory getConnectionHistory(String deviceAddress) {
+        synchronized (connectionHistories) {
+            ConnectionHistory history = connectionHistories.get(deviceAddress);
+            if (history == null) {
+                history = new ConnectionHistory();
+                connectionHistories.put(deviceAddress, history);
+            }
+            return history;
+        }
+    }
+
+    private ReconnectPolicy getReconnectPolicy(String deviceAddress) {
+        ReconnectPolicy policy = reconnectPolicies.get(deviceAddress);
+        return policy != null ? policy : ReconnectPolicy.DEFAULT;
+    }
+
+    private void deliver(String deviceAddress, GattTraceEvent.Type type, UUID characteristicUuid,
+                         byte[] value) {
+        List<Registration> registrations = listeners.get(deviceAddress);
+        if (registrations == null) return;
+        GattTraceEvent event = new GattTraceEvent(type, 0, deviceAddress, characteristicUuid,
+                value);
+        for (Registration registration : registrations) {
+            try {
+                registration.executor.execute(() -> event.deliver(registration.listener));
+            } catch (RejectedExecutionException ex) {
+                // the listener has been shut down
+            }
+        }
+    }
+
+    /**
+     * Passes the notification through the notification buffers of the listeners like the
+     * BleService, so that overflows show up under load.
+     */
+    private void sendNotification(Session session, UUID characteristicUuid, byte[] value) {
+        notifications.incrementAndGet();
+        if (session.transfer != null && !session.transfer.isFinished()) {
+            session.transfer.addNotification(value.length);
+        }
+        String deviceAddress = session.peripheral.getAddress();
+        List<Registration> registrations = listeners.get(deviceAddress);
+        if (registrations == null) return;
+        for (Registration registration : registrations) {
+            NotificationRingBuffer buffer = registration.notifications;
+            if (!buffer.offer(characteristicUuid, value)) continue;
+            try {
+                registration.executor.execute(() -> buffer.drain((uuid, data) ->
+                        registration.listener.onCharacteristicChanged(deviceAddress, uuid, data)));
+            } catch (RejectedExecutionException ex) {
+                buffer.clear();
+            }
+        }
+    }
+
+    @Override
+    public void registerListener(String deviceAddress, GattEventListener listener,
+                                 Executor executor) {
+        NotificationRingBuffer.OverflowPolicy policy = overflowPolicies.getOrDefault(
+                deviceAddress, NotificationRingBuffer.OverflowPolicy.GROW);
+        listeners.computeIfAbsent(deviceAddress, address -> new CopyOnWriteArrayList<>())
+                .add(new Registration(listener, executor, policy));
+    }
+
+    @Override
+    public void unregisterListener(String deviceAddress, GattEventListener listener) {
+        List<Registration> registrations = listeners.get(deviceAddress);
+        if (registrations == null) return;
+        registrations.removeIf(registration -> registration.listener == listener);
+    }
+
+    /**
+     * Connects after the connect latency, unless the attempt fails with GATT_ERROR 133.
+     */
+    @Override
+    public boolean startConnect(String deviceAddress) {
+        Session session = sessions.get(deviceAddress);
+        if (session == null) return false;
+        ConnectionHistory history = getConnectionHistory(deviceAddress);
+        if (history.isOpen()) return false;
+        execute(() -> {
+            if (session.connected || session.connecting != null) return;
+            history.attemptStarted(false);
+            long latency = minConnectLatency
+                    + (long) (random.nextDouble() * (maxConnectLatency - minConnectLatency));
+            session.connecting = schedule(() -> connect(session), latency);
+        });
+        return true;
+    }
+
+    private void connect(Session session) {
+        String deviceAddress = session.peripheral.getAddress();
+        ConnectionHistory history = getConnectionHistory(deviceAddress);
+        session.connecting = null;
+        if (random.nextDouble() < connectErrorRate) {
+            connectErrors.incrementAndGet();
+            history.failed(ReconnectPolicy.Failure.classify(STATUS_GATT_ERROR),
+                    getReconnectPolicy(deviceAddress));
+            deliver(deviceAddress, GattTraceEvent.Type.DISCONNECTED, null, null);
+            return;
+        }
+        connects.incrementAndGet();
+        history.connected();
+        session.connected = true;
+        session.generation++;
+        session.busyUntil = 0;
+        if (meanConnectionTime > 0) {
+            // exponentially distributed, like independent losses of the link
+            long lifetime = (long) (-Math.log(1 - random.nextDouble()) * meanConnectionTime);
+            session.dropping = schedule(() -> {
+                drops.incrementAndGet();
+                disconnect(session, ReconnectPolicy.Failure.PEER_TERMINATED);
+            }, lifetime);
+        }
+        deliver(deviceAddress, GattTraceEvent.Type.CONNECTED, null, null);
+    }
+
+    /**
+     * Ends the connection, fails the pending operations and stops the notifications.
+     */
+    private void disconnect(Session session, ReconnectPolicy.Failure failure) {
+        if (!session.connected) return;
+        String deviceAddress = session.peripheral.getAddress();
+        session.connected = false;
+        session.generation++;
+        cancel(session.dropping);
+        cancel(session.streaming);
+        session.dropping = null;
+        session.streaming = null;
+        if (session.transfer != null) session.transfer.finish();
+        getConnectionHistory(deviceAddress).lost(failure);
+
+        List<CompletableFuture<byte[]>> failed = new ArrayList<>(session.operations);
+        session.operations.clear();
+        for (CompletableFuture<byte[]> operation : failed) {
+            operation.completeExceptionally(new GattException("Disconnected from "
+                    + deviceAddress, GattException.STATUS_DISCONNECTED));
+        }
+        deliver(deviceAddress, GattTraceEvent.Type.DISCONNECTED, null, null);
+    }
+
+    /**
+     * Gives up a pending attempt, which counts as failure like a device out of range.
+     */
+    @Override
+    public void cancelConnect(String deviceAddress) {
+        Session session = sessions.get(deviceAddress);
+        if (session == null) return;
+        execute(() -> {
+            if (session.connecting == null) return;
+            cancel(session.connecting);
+            session.connecting = null;
+            getConnectionHistory(deviceAddress).failed(ReconnectPolicy.Failure.OUT_OF_RANGE,
+                    getReconnectPolicy(deviceAddress));
+        });
+    }
+
+    /**
+     * The simulated attempts are always direct.
+     */
+    @Override
+    public boolean isConnectingInBackground(String deviceAddress) {
+        return false;
+    }
+
+    @Override
+    public void onAdvertising(String deviceAddress) {
+        getConnectionHistory(deviceAddress).reset();
+    }
+
+    @Override
+    public void startDisconnect(String deviceAddress) {
+        Session session = sessions.get(deviceAddress);
+        if (session == null) return;
+        execute(() -> disconnect(session, ReconnectPolicy.Failure.NONE));
+    }
+
+    /**
+     * Tells, whether the simulated link is up. The state changes on the scheduler thread, so
+     * the answer may lag behind by an event.
+     */
+    @Override
+    public boolean isConnected(String deviceAddress) {
+        Session session = sessions.get(deviceAddress);
+        return session != null && session.connected;
+    }
+
+    @Override
+    public String getDeviceName(String deviceAddress) {
+        Session session = sessions.get(deviceAddress);
+        return session != null ? session.peripheral.getName() : "";
+    }
+
+    @Override
+    public void startDeviceServiceDiscovery(String deviceAddress) {
+        Session session = sessions.get(deviceAddress);
+        if (session == null) return;
+        execute(() -> {
+            if (!session.connected) return;
+            int generation = session.generation;
+            schedule(() -> {
+                if (session.generation != generation) return;
+                deliver(deviceAddress, GattTraceEvent.Type.SERVICES_DISCOVERED, null, null);
+            }, reserve(session));
+        });
+    }
+
+    /**
+     * Takes the next slot, in which the device answers an operation.
+     *
+     * @return delay in ms until the slot
+     */
+    private long reserve(Session session) {
+        long now = System.currentTimeMillis();
+        session.busyUntil = Math.max(now, session.busyUntil) + operationLatency;
+        return session.busyUntil - now;
+    }
+
+    @Override
+    public boolean supportsCharacteristic(String deviceAddress, UUID serviceId,
+                                          UUID characteristicId) {
+        Session session = sessions.get(deviceAddress);
+        return session != null && session.peripheral.supports(serviceId, characteristicId);
+    }
+
+    /**
+     * Queues the operation behind the other operations of the device. The answer completes the
+     * future and is delivered as event of the given type, the follow-up runs afterwards on the
+     * scheduler thread.
+     */
+    private CompletableFuture<byte[]> enqueue(String deviceAddress, UUID serviceId,
+                                              UUID characteristicId, GattTraceEvent.Type type,
+                                              byte[] answer, Runnable followUp) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        Session session = sessions.get(deviceAddress);
+        if (session == null || !session.peripheral.supports(serviceId, characteristicId)) {
+            future.completeExceptionally(new GattException("Characteristic " + characteristicId
+                    + " not found", GattException.STATUS_NOT_SENT));
+            return future;
+        }
+        execute(() -> {
+            if (!session.connected) {
+                future.completeExceptionally(new GattException("Not connected to "
+                        + deviceAddress, GattException.STATUS_NOT_SENT));
+                return;
+            }
+            session.operations.add(future);
+            int generation = session.generation;
+            schedule(() -> {
+                if (session.generation != generation || !session.operations.remove(future)) {
+                    return;
+                }
+                operations.incrementAndGet();
+                deliver(deviceAddress, type, characteristicId, answer);
+                future.complete(answer.clone());
+                if (followUp != null) followUp.run();
+            }, reserve(session));
+        });
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readCharacteristic(UUID serviceId, UUID characteristicId,
+                                                        String deviceAddress) {
+        Session session = sessions.get(deviceAddress);
+        byte[] value = session != null ? session.peripheral.read(characteristicId) : null;
+        if (value == null) {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            future.completeExceptionally(new GattException("Characteristic " + characteristicId
+                    + " not readable", GattException.STATUS_NOT_SENT));
+            return future;
+        }
+        return enqueue(deviceAddress, serviceId, characteristicId,
+                GattTraceEvent.Type.CHARACTERISTIC_READ, value, null);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> enableNotification(UUID serviceId, UUID characteristicId,
+                                                        String deviceAddress) {
+        return enableNotifications(serviceId, characteristicId, deviceAddress,
+                new byte[]{0x01, 0x00});
+    }
+
+    @Override
+    public CompletableFuture<byte[]> enableIndication(UUID serviceId, UUID characteristicId,
+                                                      String deviceAddress) {
+        return enableNotifications(serviceId, characteristicId, deviceAddress,
+                new byte[]{0x02, 0x00});
+    }
+
+    /**
+     * Writes the client characteristic configuration. Once the measurement is enabled, heart
+     * rate sensors start notifying and scales indicate their stored measurements.
+     */
+    private CompletableFuture<byte[]> enableNotifications(UUID serviceId, UUID characteristicId,
+                                                          String deviceAddress,
+                                                          byte[] descriptor) {
+        Session session = sessions.get(deviceAddress);
+        Runnable followUp = null;
+        if (session != null && characteristicId.equals(session.peripheral.getMeasurementUuid())) {
+            switch (session.peripheral.getKind()) {
+                case HEART_RATE_SENSOR:
+                    followUp = () -> startHeartRate(session);
+                    break;
+                case WEIGHT_SCALE:
+                    followUp = () -> stream(session, session.peripheral.takeRecords(), null);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return enqueue(deviceAddress, serviceId, characteristicId,
+                GattTraceEvent.Type.DESCRIPTOR_WRITTEN, descriptor, followUp);
+    }
+
+    private void startHeartRate(Session session) {
+        cancel(session.streaming);
+        long interval = Math.max(1, session.peripheral.getNotificationInterval());
+        int generation = session.generation;
+        session.streaming = scheduler.scheduleAtFixedRate(() -> {
+            if (session.generation != generation) return;
+            int heartRate = 60 + random.nextInt(40);
+            sendNotification(session, session.peripheral.getMeasurementUuid(),
+                    session.peripheral.heartRateNotification(heartRate));
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the records one after the other at the record interval, followed by the response.
+     */
+    private void stream(Session session, List<byte[]> records, byte[] response) {
+        Iterator<byte[]> iterator = records.iterator();
+        int generation = session.generation;
+        Runnable next = new Runnable() {
+            @Override
+            public void run() {
+                if (session.generation != generation) return;
+                if (iterator.hasNext()) {
+                    sendNotification(session, session.peripheral.getMeasurementUuid(),
+                            iterator.next());
+                    session.streaming = schedule(this, recordInterval);
+                } else {
+                    session.streaming = null;
+                    if (response != null) {
+                        sendNotification(session,
+                                SimulatedPeripheral.UUID_RECORD_ACCESS_CONTROL_POINT, response);
+                    }
+                }
+            }
+        };
+        cancel(session.streaming);
+        session.streaming = schedule(next, recordInterval);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> requestAllRecords(UUID serviceId, UUID characteristicId,
+                                                       String deviceAddress) {
+        return writeRecordAccessControlPoint(serviceId, characteristicId, deviceAddress,
+                RecordAccessControlPoint.reportAllRecords());
+    }
+
+    /**
+     * Answers record and number requests like a glucose meter, which filters by sequence
+     * number only.
+     */
+    @Override
+    public CompletableFuture<byte[]> writeRecordAccessControlPoint(
+            UUID serviceId, UUID characteristicId, String deviceAddress, byte[] request) {
+        Session session = sessions.get(deviceAddress);
+        Runnable followUp = session != null && request.length > 0
+                ? () -> processRacpRequest(session, request) : null;
+        return enqueue(deviceAddress, serviceId, characteristicId,
+                GattTraceEvent.Type.CHARACTERISTIC_WRITTEN, request.clone(), followUp);
+    }
+
+    private void processRacpRequest(Session session, byte[] request) {
+        int opCode = RecordAccessControlPoint.opCode(request, 0);
+        List<byte[]> records;
+        switch (opCode) {
+            case RecordAccessControlPoint.OP_REPORT_NUMBER_OF_RECORDS:
+                records = session.peripheral.selectRecords(request);
+                if (records == null) {
+                    respond(session, opCode,
+                            RecordAccessControlPoint.RESPONSE_OPERATOR_NOT_SUPPORTED);
+                } else {
+                    int count = records.size();
+                    sendNotification(session, SimulatedPeripheral.UUID_RECORD_ACCESS_CONTROL_POINT,
+                            new byte[]{RecordAccessControlPoint.OP_NUMBER_OF_RECORDS_RESPONSE,
+                                    RecordAccessControlPoint.OPERATOR_NULL, (byte) count,
+                                    (byte) (count >> 8)});
+                }
+                break;
+            case RecordAccessControlPoint.OP_REPORT_STORED_RECORDS:
+                records = session.peripheral.selectRecords(request);
+                if (records == null) {
+                    respond(session, opCode,
+                            RecordAccessControlPoint.RESPONSE_OPERATOR_NOT_SUPPORTED);
+                } else if (records.isEmpty()) {
+                    respond(session, opCode, RecordAccessControlPoint.RESPONSE_NO_RECORDS_FOUND);
+                } else {
+                    stream(session, records, response(opCode,
+                            RecordAccessControlPoint.RESPONSE_SUCCESS));
+                }
+                break;
+            case RecordAccessControlPoint.OP_ABORT:
+                cancel(session.streaming);
+                session.streaming = null;
+                respond(session, opCode, RecordAccessControlPoint.RESPONSE_SUCCESS);
+                break;
+            default:
+                respond(session, opCode, RecordAccessControlPoint.RESPONSE_OP_CODE_NOT_SUPPORTED);
+                break;
+        }
+    }
+
+    private void respond(Session session, int opCode, int responseCode) {
+        sendNotification(session, SimulatedPeripheral.UUID_RECORD_ACCESS_CONTROL_POINT,
+                response(opCode, responseCode));
+    }
+
+    private static byte[] response(int opCode, int responseCode) {
+        return new byte[]{RecordAccessControlPoint.OP_RESPONSE_CODE,
+                RecordAccessControlPoint.OPERATOR_NULL, (byte) opCode, (byte) responseCode};
+    }
+
+    /**
+     * Counts the notifications until the end of the transfer, the large MTU is always granted.
+     */
+    @Override
+    public CompletableFuture<Integer> beginBulkTransfer(String deviceAddress) {
+        Session session = sessions.get(deviceAddress);
+        if (session == null) {
+            return CompletableFuture.completedFuture(DEFAULT_MTU);
+        }
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        execute(() -> {
+            session.transfer = new TransferStats(deviceAddress, BleService.BULK_TRANSFER_MTU,
+                    true);
+            future.complete(BleService.BULK_TRANSFER_MTU);
+        });
+        return future;
+    }
+
+    @Override
+    public TransferStats endBulkTransfer(String deviceAddress) {
+        Session session = sessions.get(deviceAddress);
+        TransferStats stats = session != null ? session.transfer : null;
+        if (stats == null || stats.isFinished()) return null;
+        stats.finish();
+        return stats;
+    }
+
+    @Override
+    public void setCollecting(String deviceAddress) {
+    }
+
+    @Override
+    public void setReconnectPolicy(String deviceAddress, ReconnectPolicy policy) {
+        reconnectPolicies.put(deviceAddress, policy);
+    }
+
+    /**
+     * Takes effect for listeners registered afterwards.
+     */
+    @Override
+    public void setOverflowPolicy(String deviceAddress,
+                                  NotificationRingBuffer.OverflowPolicy policy) {
+        overflowPolicies.put(deviceAddress, policy);
+    }
+
+    /**
+     * Returns the notification buffers of the listeners of the device, to watch their
+     * counters.
+     */
+    public List<NotificationRingBuffer> getNotificationBuffers(String deviceAddress) {
+        List<NotificationRingBuffer> buffers = new ArrayList<>();
+        List<Registration> registrations = listeners.get(deviceAddress);
+        if (registrations == null) return buffers;
+        for (Registration registration : registrations) buffers.add(registration.notifications);
+        return buffers;
+    }
+
+    /**
+     * Backs off like the BleService, so that the simulated faults have the real consequences.
+     */
+    @Override
+    public long getReconnectDelay(String deviceAddress) {
+        ConnectionHistory history = getConnectionHistory(deviceAddress);
+        long backoff = getReconnectPolicy(deviceAddress)
+                .backoffDelay(history.getConsecutiveFailures(), random);
+        return Math.max(backoff, history.getOpenRemaining());
+    }
+
+    /**
+     * Returns the number of established connections.
+     */
+    public int getConnects() {
+        return connects.get();
+    }
+
+    /**
+     * Returns the number of attempts, which failed with GATT_ERROR 133.
+     */
+    public int getConnectErrors() {
+        return connectErrors.get();
+    }
+
+    /**
+     * Returns the number of connections, which have been lost at random.
+     */
+    public int getDrops() {
+        return drops.get();
+    }
+
+    public int getOperations() {
+        return operations.get();
+    }
+
+    public int getNotifications() {
+        return notifications.get();
+    }
+
+    /**
+     * Returns the number of peripherals, which are connected right now.
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (Session session : sessions.values()) {
+            if (session.connected) count++;
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return sessions.size() + " peripherals, " + connects + " connects, " + connectErrors
+                + " errors, " + drops + " drops, " + operations + " operations, "
+                + notifications + " notifications";
+    }
+}
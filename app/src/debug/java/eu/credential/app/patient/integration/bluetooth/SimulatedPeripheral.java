@@ -0,0 +1,300 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import eu.credential.app.patient.integration.codec.GlucoseFrameDecoder;
+import eu.credential.app.patient.integration.codec.HeartRateFrameDecoder;
+import eu.credential.app.patient.integration.codec.Ieee11073Float;
+import eu.credential.app.patient.integration.codec.RecordAccessControlPoint;
+import eu.credential.app.patient.integration.codec.WeightFrameDecoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A device of the SimulatedGattClient with the services of a real one. Glucose meters store
+ * records with sequence numbers, which are transferred over the record access control point,
+ * scales indicate their stored measurements as soon as the indication has been enabled, heart
+ * rate sensors notify continuously while connected. All of them have a device information
+ * service.
+ */
+public class SimulatedPeripheral {
+
+    /**
+     * Kind of device, which decides the services.
+     */
+    public enum Kind {
+        GLUCOSE_METER, WEIGHT_SCALE, HEART_RATE_SENSOR
+    }
+
+    final static UUID UUID_DEVICE_INFORMATION = uuid("180a");
+    final static UUID UUID_GLUCOSE = uuid("1808");
+    final static UUID UUID_GLUCOSE_MEASUREMENT = uuid("2a18");
+    final static UUID UUID_GLUCOSE_CONTEXT = uuid("2a34");
+    final static UUID UUID_GLUCOSE_FEATURE = uuid("2a51");
+    final static UUID UUID_RECORD_ACCESS_CONTROL_POINT = uuid("2a52");
+    final static UUID UUID_WEIGHT_SCALE = uuid("181d");
+    final static UUID UUID_WEIGHT_MEASUREMENT = uuid("2a9d");
+    final static UUID UUID_WEIGHT_FEATURE = uuid("2a9e");
+    final static UUID UUID_HEART_RATE = uuid("180d");
+    final static UUID UUID_HEART_RATE_MEASUREMENT = uuid("2a37");
+
+    // 100 mg/dL are 0.001 kg/L, the concentration is sent in units of 10^-5 kg/L
+    private final static int CONCENTRATION_EXPONENT = -5;
+    // capillary whole blood from the finger
+    private final static int TYPE_SAMPLE_LOCATION = 0x11;
+    // time between two stored records
+    private final static long RECORD_SPACING = 60 * 60 * 1000;
+
+    private final String address;
+    private final String name;
+    private final Kind kind;
+    private final long notificationInterval;
+    // characteristics by service
+    private final Map<UUID, Map<UUID, byte[]>> services;
+    private final List<byte[]> records;
+    private int nextSequence;
+
+    /**
+     * @param records              number of stored records the device starts with
+     * @param notificationInterval time in ms between two notifications of a heart rate sensor
+     */
+    public SimulatedPeripheral(String address, Kind kind, int records,
+                               long notificationInterval) {
+        this(address, kind, records, notificationInterval, 0);
+    }
+
+    /**
+     * @param firstSequence sequence number of the first stored record, to test the wrap around
+     */
+    public SimulatedPeripheral(String address, Kind kind, int records, long notificationInterval,
+                               int firstSequence) {
+        this.address = address;
+        this.kind = kind;
+        this.name = "SIM-" + kind.name().replace("_", "-") + "-" + address.replace(":", "");
+        this.notificationInterval = notificationInterval;
+        this.services = new HashMap<>();
+        this.records = new ArrayList<>();
+        this.nextSequence = firstSequence;
+
+        Map<UUID, byte[]> information = new HashMap<>();
+        information.put(uuid("2a29"), utf8("Simulated Devices"));
+        information.put(uuid("2a24"), utf8(kind.name()));
+        information.put(uuid("2a25"), utf8(address));
+        information.put(uuid("2a26"), utf8("1.0"));
+        services.put(UUID_DEVICE_INFORMATION, information);
+
+        Map<UUID, byte[]> profile = new HashMap<>();
+        switch (kind) {
+            case GLUCOSE_METER:
+                profile.put(UUID_GLUCOSE_MEASUREMENT, null);
+                profile.put(UUID_GLUCOSE_CONTEXT, null);
+                profile.put(UUID_GLUCOSE_FEATURE, new byte[]{0, 0});
+                profile.put(UUID_RECORD_ACCESS_CONTROL_POINT, null);
+                services.put(UUID_GLUCOSE, profile);
+                break;
+            case WEIGHT_SCALE:
+                profile.put(UUID_WEIGHT_MEASUREMENT, null);
+                profile.put(UUID_WEIGHT_FEATURE, new byte[]{0, 0, 0, 0});
+                services.put(UUID_WEIGHT_SCALE, profile);
+                break;
+            case HEART_RATE_SENSOR:
+                profile.put(UUID_HEART_RATE_MEASUREMENT, null);
+                services.put(UUID_HEART_RATE, profile);
+                break;
+        }
+        addRecords(records);
+    }
+
+    private static UUID uuid(String shortId) {
+        return UUID.fromString("0000" + shortId + "-0000-1000-8000-00805f9b34fb");
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the UUID of the service the collection looks for.
+     */
+    public UUID getServiceUuid() {
+        switch (kind) {
+            case GLUCOSE_METER:
+                return UUID_GLUCOSE;
+            case WEIGHT_SCALE:
+                return UUID_WEIGHT_SCALE;
+            default:
+                return UUID_HEART_RATE;
+        }
+    }
+
+    /**
+     * Returns the characteristic, which carries the measurements.
+     */
+    public UUID getMeasurementUuid() {
+        switch (kind) {
+            case GLUCOSE_METER:
+                return UUID_GLUCOSE_MEASUREMENT;
+            case WEIGHT_SCALE:
+                return UUID_WEIGHT_MEASUREMENT;
+            default:
+                return UUID_HEART_RATE_MEASUREMENT;
+        }
+    }
+
+    public long getNotificationInterval() {
+        return notificationInterval;
+    }
+
+    /**
+     * Looks the characteristic up in the given service, in all services if null.
+     */
+    public boolean supports(UUID serviceId, UUID characteristicId) {
+        if (serviceId != null) {
+            Map<UUID, byte[]> characteristics = services.get(serviceId);
+            return characteristics != null && characteristics.containsKey(characteristicId);
+        }
+        for (Map<UUID, byte[]> characteristics : services.values()) {
+            if (characteristics.containsKey(characteristicId)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return null, if the characteristic cannot be read
+     */
+    public byte[] read(UUID characteristicId) {
+        for (Map<UUID, byte[]> characteristics : services.values()) {
+            byte[] value = characteristics.get(characteristicId);
+            if (value != null) return value.clone();
+        }
+        return null;
+    }
+
+    /**
+     * Stores new records as if measurements had been taken, the last one now. Sequence numbers
+     * continue after the last record and wrap at 16 bit.
+     */
+    public synchronized void addRecords(int count) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            long time = now - (count - 1 - i) * RECORD_SPACING;
+            if (kind == Kind.GLUCOSE_METER) {
+                records.add(glucoseRecord(nextSequence, time));
+                nextSequence = (nextSequence + 1) & 0xFFFF;
+            } else if (kind == Kind.WEIGHT_SCALE) {
+                records.add(weightRecord(records.size(), time));
+            }
+        }
+    }
+
+    public synchronized int getRecordCount() {
+        return records.size();
+    }
+
+    /**
+     * Selects the stored records a RACP request asks for. All records and records from a
+     * sequence number on are supported.
+     *
+     * @return null, if the operator or filter is not supported
+     */
+    synchronized List<byte[]> selectRecords(byte[] request) {
+        if (request.length < 2) return null;
+        int operator = request[1] & 0xFF;
+        if (operator == RecordAccessControlPoint.OPERATOR_ALL_RECORDS) {
+            return new ArrayList<>(records);
+        }
+        if (operator != RecordAccessControlPoint.OPERATOR_GREATER_OR_EQUAL || request.length < 5
+                || (request[2] & 0xFF) != RecordAccessControlPoint.FILTER_SEQUENCE_NUMBER) {
+            return null;
+        }
+        int minimum = (request[3] & 0xFF) | (request[4] & 0xFF) << 8;
+        List<byte[]> selected = new ArrayList<>();
+        for (byte[] record : records) {
+            if (GlucoseFrameDecoder.sequenceNumber(record, 0) >= minimum) selected.add(record);
+        }
+        return selected;
+    }
+
+    /**
+     * Takes the stored measurements of a scale, which forgets them once they are sent.
+     */
+    synchronized List<byte[]> takeRecords() {
+        List<byte[]> taken = new ArrayList<>(records);
+        records.clear();
+        return taken;
+    }
+
+    /**
+     * Builds a heart rate notification with one RR-interval matching the heart rate.
+     */
+    byte[] heartRateNotification(int heartRate) {
+        int rrInterval = HeartRateFrameDecoder.RR_INTERVALS_PER_SECOND * 60 / heartRate;
+        return new byte[]{(byte) (HeartRateFrameDecoder.FLAG_SENSOR_CONTACT_DETECTED
+                | HeartRateFrameDecoder.FLAG_SENSOR_CONTACT_SUPPORTED
+                | HeartRateFrameDecoder.FLAG_RR_INTERVALS),
+                (byte) heartRate, (byte) rrInterval, (byte) (rrInterval >> 8)};
+    }
+
+    private static byte[] glucoseRecord(int sequence, long time) {
+        byte[] value = new byte[13];
+        value[0] = GlucoseFrameDecoder.FLAG_CONCENTRATION;
+        value[1] = (byte) sequence;
+        value[2] = (byte) (sequence >> 8);
+        putDateTime(value, 3, time);
+        // between 80 and 179 mg/dL
+        int concentration = Ieee11073Float.encodeSfloat(80 + sequence * 37 % 100,
+                CONCENTRATION_EXPONENT);
+        value[10] = (byte) concentration;
+        value[11] = (byte) (concentration >> 8);
+        value[12] = TYPE_SAMPLE_LOCATION;
+        return value;
+    }
+
+    private static byte[] weightRecord(int index, long time) {
+        // between 70 and 79.5 kg
+        int weight = (70 * 2 + index % 20) * WeightFrameDecoder.FACTOR_SCI_WEIGHT / 2;
+        byte[] value = new byte[10];
+        value[0] = WeightFrameDecoder.FLAG_TIMESTAMP;
+        value[1] = (byte) weight;
+        value[2] = (byte) (weight >> 8);
+        putDateTime(value, 3, time);
+        return value;
+    }
+
+    /**
+     * Writes a org.bluetooth.characteristic.date_time field in the default time zone.
+     */
+    private static void putDateTime(byte[] value, int offset, long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        value[offset] = (byte) year;
+        value[offset + 1] = (byte) (year >> 8);
+        value[offset + 2] = (byte) (calendar.get(Calendar.MONTH) + 1);
+        value[offset + 3] = (byte) calendar.get(Calendar.DAY_OF_MONTH);
+        value[offset + 4] = (byte) calendar.get(Calendar.HOUR_OF_DAY);
+        value[offset + 5] = (byte) calendar.get(Calendar.MINUTE);
+        value[offset + 6] = (byte) calendar.get(Calendar.SECOND);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + address + ", " + getRecordCount() + " records)";
+    }
+}
@@ -22,7 +22,7 @@ public class BleGattCallback extends BluetoothGattCallback {
 
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-        bleService.processConnectionStateChange(newState, gatt);
+        bleService.processConnectionStateChange(status, newState, gatt);
     }
 
     @Override
@@ -57,4 +57,9 @@ public class BleGattCallback extends BluetoothGattCallback {
         bleService.processDescriptorWriteResult(status, descriptor, gatt);
     }
 
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        bleService.processMtuChanged(mtu, status, gatt);
+    }
+
 }
@@ -6,36 +6,112 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import eu.credential.app.patient.integration.codec.RecordAccessControlPoint;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Service that interacts with the GATT server on the BLE device
  */
-public class BleService extends Service {
+public class BleService extends Service implements GattClient {
     // logging indicator
     private final static String TAG = BleService.class.getSimpleName();
 
-    private LocalBroadcastManager localBroadcastManager;
-
     // bluetooth api stuff
     private BluetoothManager btManager;
     private BluetoothAdapter btAdapter;
     private Map<String, BluetoothGatt> connectedDevices;
-    private Map<String, BluetoothGatt> disconnectedDevices;
+    // clients of devices which are not connected, kept for a fast reconnect
+    private final GattClientPool clientPool;
+
+    // operations waiting for their callback, one queue per connected device
+    private final Map<String, GattOperationQueue> operationQueues;
+    // characteristics of the connected devices, resolved once per service discovery
+    private final Map<String, CharacteristicCache> characteristicCaches;
+    // readiness of the devices, advanced by the gatt callbacks only
+    private final Map<String, ConnectionState> connectionStates;
+    // delayed state transitions, which are cancelled when the connection is lost
+    private final Map<String, ScheduledFuture<?>> settleTasks;
+    // fires the timeouts of the operations and the delayed state transitions
+    private ScheduledExecutorService scheduler;
+    // writes all events into a trace, while a recording is running
+    private volatile GattTraceRecorder recorder;
+
+    // time in ms the stack needs after connecting, before the discovery can be started
+    public final static long DEFAULT_CONNECTED_SETTLE_DELAY = 1000;
+    // time in ms after the discovery, before the device is reported as ready
+    public final static long DEFAULT_DISCOVERED_SETTLE_DELAY = 0;
+    private volatile long connectedSettleDelay = DEFAULT_CONNECTED_SETTLE_DELAY;
+    private volatile long discoveredSettleDelay = DEFAULT_DISCOVERED_SETTLE_DELAY;
+
+    // time in ms between the checks for idle gatt clients to close
+    private final static long CLIENT_EXPIRY_INTERVAL = 60 * 1000;
+
+    // time in ms, after which an operation without callback fails
+    public final static long OPERATION_TIMEOUT = 10000;
+
+    // listeners, which get the events of a device
+    private final Map<String, List<ListenerRegistration>> listeners;
+
+    private static class ListenerRegistration {
+        final GattEventListener listener;
+        final Executor executor;
+        // notifications on their way to the listener, created with the first one
+        NotificationRingBuffer notifications;
+
+        ListenerRegistration(GattEventListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Delivers one event to a listener.
+     */
+    private interface Event {
+        void deliver(GattEventListener listener);
+    }
+
+    // negotiated MTU of the connected devices, absent while the default is used
+    private final Map<String, Integer> mtus;
+    // figures of the current or last bulk transfer of every device
+    private final Map<String, TransferStats> transferStats;
+
+    // how to reconnect the devices, the default policy if absent
+    private final Map<String, ReconnectPolicy> reconnectPolicies;
+    // what is lost, if a listener falls behind the notifications, GROW if absent
+    private final Map<String, NotificationRingBuffer.OverflowPolicy> overflowPolicies;
+    // outcome of the recent connection attempts of every device
+    private final Map<String, ConnectionHistory> connectionHistories;
+    // varies the backoff delays
+    private final Random random = new Random();
+
+    // MTU requested for bulk transfers, the largest one allowed by the ATT protocol
+    public final static int BULK_TRANSFER_MTU = 517;
 
     // connection status
     public final static int STATE_CONNECTING = BluetoothProfile.STATE_CONNECTING;
@@ -43,31 +119,14 @@ public class BleService extends Service {
     public final static int STATE_DISCONNECTING = BluetoothProfile.STATE_DISCONNECTING;
     public final static int STATE_DISCONNECTED = BluetoothProfile.STATE_DISCONNECTED;
 
-    // status data that the service uses for broadcasts to its users
-    public final static String ACTION_GATT_CONNECTED = "BleService.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED = "BleService.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED = "BleService.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE = "BleService.ACTION_DATA_AVAILABLE";
-    public final static String ACTION_DATA_WRITTEN = "BleService.ACTION_DATA_WRITTEN";
-    public final static String ACTION_DESCRIPTOR_WRITTEN = "BleService.ACTION_DESCRIPTOR_WRITTEN";
-
-    // the data field in the intent extra will be named like this
-    public final static String EXTRA_CHARACTERISTIC_VALUE = "BleService.EXTRA_CHARACTERISTIC_VALUE";
-    public final static String EXTRA_CHARACTERISTIC_UUID = "BleService.EXTRA_CHARACTERISTIC_UUID";
-    public final static String CHARACTERISTIC_PROPERTIES = "BleService.CHARACTERISTIC_PROPERTIES";
-    public final static String CHARACTERISTIC_PERMISSIONS = "BleService.CHARACTERISTIC_PERMISSIONS";
-
-    public final static String EXTRA_DESCRIPTOR_VALUE = "BleService.EXTRA_DESCRIPTOR_VALUE";
-    public final static String EXTRA_DESCRIPTOR_PERMISSIONS = "BleService.EXTRA_DESCRIPTOR_PERMISSIONS";
-    public final static String EXTRA_DESCRIPTOR_UUID = "BleService.EXTRA_DESCRIPTOR_UUID";
-
-    public final static String DEVICE_NAME = "BleService.DEVICE_NAME";
-    public final static String DEVICE_ADDRESS = "BleService.DEVICE_ADDRESS";
-
     // UUID characteristic configuration used for descriptors
     public final static UUID UUID_CLIENT_CHARACTERISTIC_CONFIGURATION =
             UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    // indicated by the device, when its services have changed
+    public final static UUID UUID_SERVICE_CHANGED =
+            UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+
     private final BleGattCallback gattCallback = new BleGattCallback(this);
 
     /**
@@ -77,15 +136,40 @@ public class BleService extends Service {
         // Creating a threadsafe map for deviceAddress to gatt service
         Map<String, BluetoothGatt> mapA = new HashMap<>();
         this.connectedDevices = Collections.synchronizedMap(mapA);
-        Map<String, BluetoothGatt> mapB = new HashMap<>();
-        this.disconnectedDevices = Collections.synchronizedMap(mapB);
+        this.clientPool = new GattClientPool();
+        this.operationQueues = Collections.synchronizedMap(new HashMap<>());
+        this.characteristicCaches = Collections.synchronizedMap(new HashMap<>());
+        this.mtus = Collections.synchronizedMap(new HashMap<>());
+        this.listeners = Collections.synchronizedMap(new HashMap<>());
+        this.transferStats = Collections.synchronizedMap(new HashMap<>());
+        this.reconnectPolicies = Collections.synchronizedMap(new HashMap<>());
+        this.overflowPolicies = Collections.synchronizedMap(new HashMap<>());
+        this.connectionHistories = new HashMap<>();
+        this.connectionStates = new HashMap<>();
+        this.settleTasks = new HashMap<>();
     }
 
     @Override
     public void onCreate() {
         // Bluetooth has to be initialized at this late stage, so that the context is available
         initializeBluetooth();
-        this.localBroadcastManager = LocalBroadcastManager.getInstance(this);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(clientPool::expireIdle, CLIENT_EXPIRY_INTERVAL,
+                CLIENT_EXPIRY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onDestroy() {
+        synchronized (operationQueues) {
+            for (GattOperationQueue queue : operationQueues.values()) {
+                queue.close();
+            }
+            operationQueues.clear();
+        }
+        scheduler.shutdownNow();
+        stopRecording();
+        Log.i(TAG, "Gatt client pool: " + clientPool);
+        super.onDestroy();
     }
 
     /**
@@ -93,37 +177,141 @@ public class BleService extends Service {
      * @param deviceAddress
      * @return empty string if not found
      */
+    @Override
     public String getDeviceName(String deviceAddress) {
         String result = "";
         if(this.connectedDevices.get(deviceAddress) != null) {
             result = this.connectedDevices.get(deviceAddress).getDevice().getName();
-        } else if(this.disconnectedDevices.get(deviceAddress) != null) {
-            result = this.disconnectedDevices.get(deviceAddress).getDevice().getName();
+        } else if(this.clientPool.peek(deviceAddress) != null) {
+            result = this.clientPool.peek(deviceAddress).getDevice().getName();
         }
         return result;
     }
 
+    /**
+     * Sets the delays which are waited for after connecting and after the service discovery.
+     * Some devices do not answer at once, the delays are scheduled and block no thread.
+     *
+     * @param afterConnected time in ms before the service discovery is started
+     * @param afterDiscovery time in ms before the device is reported as ready
+     */
+    public void setSettleDelays(long afterConnected, long afterDiscovery) {
+        this.connectedSettleDelay = afterConnected;
+        this.discoveredSettleDelay = afterDiscovery;
+    }
+
+    /**
+     * Returns the readiness of the connection to the given device.
+     */
+    public ConnectionState getConnectionState(String deviceAddress) {
+        synchronized (connectionStates) {
+            ConnectionState state = connectionStates.get(deviceAddress);
+            return state != null ? state : ConnectionState.DISCONNECTED;
+        }
+    }
+
+    /**
+     * Advances the connection state of the device, if the transition is allowed.
+     *
+     * @return false, if the device is in a state the new one may not follow
+     */
+    private boolean moveTo(String deviceAddress, ConnectionState next) {
+        synchronized (connectionStates) {
+            ConnectionState current = getConnectionState(deviceAddress);
+            if (!current.canMoveTo(next)) {
+                Log.w(TAG, "Ignoring transition " + current + " -> " + next + " of "
+                        + deviceAddress);
+                return false;
+            }
+            Log.d(TAG, deviceAddress + ": " + current + " -> " + next);
+            connectionStates.put(deviceAddress, next);
+            return true;
+        }
+    }
+
+    /**
+     * Runs the task after the delay, unless the connection is lost before. A pending task of
+     * the device is replaced.
+     */
+    private void scheduleSettled(String deviceAddress, Runnable task, long delay) {
+        synchronized (settleTasks) {
+            ScheduledFuture<?> previous = settleTasks.put(deviceAddress,
+                    scheduler.schedule(task, delay, TimeUnit.MILLISECONDS));
+            if (previous != null) previous.cancel(false);
+        }
+    }
+
+    private void cancelSettled(String deviceAddress) {
+        synchronized (settleTasks) {
+            ScheduledFuture<?> previous = settleTasks.remove(deviceAddress);
+            if (previous != null) previous.cancel(false);
+        }
+    }
+
+    /**
+     * Marks the device as collecting, once a handler has started to request its data.
+     */
+    @Override
+    public void setCollecting(String deviceAddress) {
+        moveTo(deviceAddress, ConnectionState.COLLECTING);
+    }
+
     /**
      * Sets the connection state (see BluetoothProfile).
      *
+     * @param status   status of the link layer or the stack, why the state has changed
      * @param newState STATE_CONNECTED, STATE_DISCONNECTED, STATE_DISCONNECTING or STATE_CONNECTING
      */
-    public void processConnectionStateChange(int newState, BluetoothGatt gatt) {
+    public void processConnectionStateChange(int status, int newState, BluetoothGatt gatt) {
         BluetoothDevice device = gatt.getDevice();
         if (newState == STATE_CONNECTED) {
             // register the new device
             if (!isConnected(device.getAddress())) {
                 Log.i(TAG, "Connected to GATT server on device " + device.getAddress());
-                this.disconnectedDevices.remove(device.getAddress());
+                getConnectionHistory(device.getAddress()).connected();
+                this.clientPool.remove(device.getAddress());
                 this.connectedDevices.put(device.getAddress(), gatt);
-                broadcastDeviceUpdate(ACTION_GATT_CONNECTED, device.getAddress());
+                this.characteristicCaches.put(device.getAddress(), new CharacteristicCache());
+                moveTo(device.getAddress(), ConnectionState.CONNECTED);
+                this.operationQueues.put(device.getAddress(),
+                        new GattOperationQueue(device.getAddress(), gatt, scheduler));
+                String address = device.getAddress();
+                if (!dispatch(address, listener -> listener.onConnected(address))) {
+                    Log.d(TAG, "No listener for the connection of " + address);
+                }
             }
         } else if (newState == STATE_DISCONNECTED) {
             // inform about the lost connection and unregister
-            Log.i(TAG, "Disconnected from GATT server");
-            this.disconnectedDevices.put(device.getAddress(), gatt);
+            Log.i(TAG, "Disconnected from GATT server with status " + status);
+            ReconnectPolicy.Failure failure = ReconnectPolicy.Failure.classify(status);
+            ConnectionHistory history = getConnectionHistory(device.getAddress());
+            if (getConnectionState(device.getAddress()) == ConnectionState.CONNECTING) {
+                history.failed(failure, getReconnectPolicy(device.getAddress()));
+            } else {
+                history.lost(failure);
+            }
+            if (failure == ReconnectPolicy.Failure.STACK_ERROR) {
+                // a client, which has run into a stack error, tends to fail again
+                this.clientPool.remove(device.getAddress());
+                gatt.close();
+            } else {
+                this.clientPool.release(device.getAddress(), gatt);
+            }
             this.connectedDevices.remove(device.getAddress());
-            broadcastDeviceUpdate(ACTION_GATT_DISCONNECTED, device.getAddress());
+            // pending operations will never get their callback
+            GattOperationQueue queue = this.operationQueues.remove(device.getAddress());
+            if (queue != null) queue.close();
+            cancelSettled(device.getAddress());
+            // handles of the lost connection must not be used anymore
+            this.characteristicCaches.remove(device.getAddress());
+            this.mtus.remove(device.getAddress());
+            TransferStats stats = this.transferStats.get(device.getAddress());
+            if (stats != null) stats.finish();
+            moveTo(device.getAddress(), ConnectionState.DISCONNECTED);
+            String address = device.getAddress();
+            if (!dispatch(address, listener -> listener.onDisconnected(address))) {
+                Log.d(TAG, "No listener for the disconnection of " + address);
+            }
         }
     }
 
@@ -134,26 +322,34 @@ public class BleService extends Service {
      * @param characteristicId
      * @return
      */
+    @Override
     public boolean supportsCharacteristic(String deviceAddress, UUID serviceId, UUID characteristicId) {
-        BluetoothGatt gatt = connectedDevices.get(deviceAddress);
-        return gatt != null && findCharacteristic(serviceId, characteristicId, gatt) != null;
+        CharacteristicCache cache = characteristicCaches.get(deviceAddress);
+        return cache != null && cache.find(serviceId, characteristicId) != null;
 
     }
 
     /**
-     * Starts an asynchronous service discovery on the given device
+     * Starts an asynchronous service discovery on the given device. A new connection first
+     * settles for the configured delay, services which are already known are reported at once.
      */
+    @Override
     public void startDeviceServiceDiscovery(String deviceAddress) {
         BluetoothGatt gatt = connectedDevices.get(deviceAddress);
         if (gatt == null) return;
+        if (!moveTo(deviceAddress, ConnectionState.DISCOVERING)) return;
 
         if (gatt.getServices().isEmpty()) {
             // start service discovery in order to get the service ready for further steps
-            Log.i(TAG, "Starting service discovery");
-            boolean startResult = gatt.discoverServices();
-            if (startResult == false) {
-                Log.e(TAG, "Service discovery could not have been started.");
-            }
+            scheduleSettled(deviceAddress, () -> {
+                if (getConnectionState(deviceAddress) != ConnectionState.DISCOVERING) return;
+                Log.i(TAG, "Starting service discovery");
+                boolean startResult = gatt.discoverServices();
+                if (startResult == false) {
+                    Log.e(TAG, "Service discovery could not have been started.");
+                    moveTo(deviceAddress, ConnectionState.CONNECTED);
+                }
+            }, connectedSettleDelay);
         } else {
             Log.d(TAG, "Services have already been discovered for " + deviceAddress);
             processServiceDiscoveryResult(BluetoothGatt.GATT_SUCCESS, gatt);
@@ -168,18 +364,27 @@ public class BleService extends Service {
      * @param status
      */
     public void processServiceDiscoveryResult(int status, BluetoothGatt gatt) {
+        String deviceAddress = gatt.getDevice().getAddress();
         if (status == BluetoothGatt.GATT_SUCCESS) {
-            broadcastDeviceUpdate(ACTION_GATT_SERVICES_DISCOVERED, gatt.getDevice().getAddress());
-            Log.w(TAG, "onServicesDiscovered OK: " + gatt.getDevice().getAddress());
+            Log.w(TAG, "onServicesDiscovered OK: " + deviceAddress);
+            CharacteristicCache cache = characteristicCaches.get(deviceAddress);
+            if (cache != null) cache.fill(gatt.getServices());
+            scheduleSettled(deviceAddress, () -> {
+                if (moveTo(deviceAddress, ConnectionState.READY) && !dispatch(deviceAddress,
+                        listener -> listener.onServicesDiscovered(deviceAddress))) {
+                    Log.d(TAG, "No listener for the services of " + deviceAddress);
+                }
+            }, discoveredSettleDelay);
         } else {
             Log.w(TAG, "onServicesDiscovered received: " + status);
+            moveTo(deviceAddress, ConnectionState.CONNECTED);
         }
     }
 
 
     /**
-     * Takes data which has been read and broadcasts it, so that the data collecting service
-     * can deal with it.
+     * Hands data which has been read to the listeners of the device, so that the data
+     * collecting service can deal with it.
      *
      * @param status
      * @param characteristic
@@ -188,9 +393,15 @@ public class BleService extends Service {
             int status,
             BluetoothGattCharacteristic characteristic,
             BluetoothGatt gatt) {
+        UUID uuid = characteristic.getUuid();
+        byte[] value = copyValue(characteristic.getValue());
+        completeOperation(gatt, GattOperation.Type.READ, uuid, status, value);
         if (status == BluetoothGatt.GATT_SUCCESS) {
             String deviceAddress = gatt.getDevice().getAddress();
-            broadcastCharacteristicUpdate(ACTION_DATA_AVAILABLE, characteristic, deviceAddress);
+            if (!dispatch(deviceAddress,
+                    listener -> listener.onCharacteristicRead(deviceAddress, uuid, value))) {
+                Log.d(TAG, "No listener for the read of " + uuid + " on " + deviceAddress);
+            }
             Log.i(TAG, "New characteristic read data available on "
                     + deviceAddress + ": " + characteristic.getUuid());
         } else {
@@ -209,9 +420,15 @@ public class BleService extends Service {
             int status,
             BluetoothGattCharacteristic characteristic,
             BluetoothGatt gatt) {
+        UUID uuid = characteristic.getUuid();
+        byte[] value = copyValue(characteristic.getValue());
+        completeOperation(gatt, GattOperation.Type.WRITE, uuid, status, value);
         if (status == BluetoothGatt.GATT_SUCCESS) {
             String deviceAddress = gatt.getDevice().getAddress();
-            broadcastCharacteristicUpdate(ACTION_DATA_WRITTEN, characteristic, deviceAddress);
+            if (!dispatch(deviceAddress,
+                    listener -> listener.onCharacteristicWritten(deviceAddress, uuid, value))) {
+                Log.d(TAG, "No listener for the write of " + uuid + " on " + deviceAddress);
+            }
             Log.i(TAG, "Characteristic has been written " + characteristic);
         } else {
             Log.w(TAG, "Characteristic  write was not successful:\n" +
@@ -229,82 +446,291 @@ public class BleService extends Service {
             BluetoothGattCharacteristic characteristic,
             BluetoothGatt gatt) {
         String deviceAddress = gatt.getDevice().getAddress();
-        broadcastCharacteristicUpdate(ACTION_DATA_AVAILABLE, characteristic, deviceAddress);
-        Log.i(TAG, "New characteristic read data available on " + characteristic);
+        UUID uuid = characteristic.getUuid();
+        if (UUID_SERVICE_CHANGED.equals(uuid)) {
+            processServiceChanged(deviceAddress, gatt);
+            return;
+        }
+        // the characteristic object is reused by the following notifications, the value is
+        // copied into the buffers of the listeners right away
+        byte[] value = characteristic.getValue();
+        TransferStats stats = transferStats.get(deviceAddress);
+        if (stats != null && !stats.isFinished() && value != null) {
+            stats.addNotification(value.length);
+        }
+        if (!dispatchNotification(deviceAddress, uuid, value)) {
+            Log.d(TAG, "No listener for the notification of " + uuid + " on " + deviceAddress);
+        }
     }
 
     /**
-     * Broadcasts the information, that a action with a certain device has happened (like new
-     * connection).
+     * Remembers the MTU negotiated with the device.
      *
-     * @param action        predefined action identifier
-     * @param deviceAddress device address
+     * @param mtu new MTU
      */
-    private void broadcastDeviceUpdate(final String action,
-                                       final String deviceAddress) {
-        final Intent intent = new Intent(action);
-        intent.putExtra(DEVICE_ADDRESS, deviceAddress);
-        this.localBroadcastManager.sendBroadcast(intent);
+    public void processMtuChanged(int mtu, int status, BluetoothGatt gatt) {
+        String deviceAddress = gatt.getDevice().getAddress();
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Log.i(TAG, "MTU of " + deviceAddress + " is now " + mtu);
+            mtus.put(deviceAddress, mtu);
+        } else {
+            Log.w(TAG, "MTU request of " + deviceAddress + " failed with " + status);
+        }
+        completeOperation(gatt, GattOperation.Type.REQUEST_MTU, null, status, null);
     }
 
     /**
-     * Broadcast method which provides information about a finished action and the related
-     * gatt characteristic.
+     * Returns the MTU of the connection to the device.
+     */
+    public int getMtu(String deviceAddress) {
+        Integer mtu = mtus.get(deviceAddress);
+        return mtu != null ? mtu : DEFAULT_MTU;
+    }
+
+    /**
+     * Returns the figures of the current or the last bulk transfer of the device.
      *
-     * @param action         descriptor which should be statically defined
-     * @param characteristic gatt characteristic which has the new action
-     * @param deviceAddress
+     * @return null, if there has not been any
      */
-    private void broadcastCharacteristicUpdate(final String action,
-                                               final BluetoothGattCharacteristic characteristic,
-                                               final String deviceAddress) {
-        Intent intent = new Intent(action);
-        intent = embedCharacteristicInIntent(characteristic, intent);
-        intent.putExtra(DEVICE_ADDRESS, deviceAddress);
-        this.localBroadcastManager.sendBroadcast(intent);
+    public TransferStats getTransferStats(String deviceAddress) {
+        return transferStats.get(deviceAddress);
     }
 
+    /**
+     * Prepares the connection for the transfer of many stored records: the high connection
+     * priority is requested and a larger MTU is negotiated once per connection. The MTU request
+     * is queued like any other operation, so that the record request can be chained on it.
+     * Call endBulkTransfer when the transfer has finished, in order to save power again.
+     *
+     * @return future of the MTU in use, it does not fail if the device refuses a larger one
+     */
+    @Override
+    public CompletableFuture<Integer> beginBulkTransfer(String deviceAddress) {
+        BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
+        GattOperationQueue queue = this.operationQueues.get(deviceAddress);
+        if (gatt == null || queue == null) {
+            return failedOperation("Not connected to " + deviceAddress);
+        }
+
+        boolean highPriority = gatt.requestConnectionPriority(
+                BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        if (!highPriority) Log.w(TAG, "High connection priority refused for " + deviceAddress);
+        TransferStats stats = new TransferStats(deviceAddress, getMtu(deviceAddress), highPriority);
+        transferStats.put(deviceAddress, stats);
+
+        if (mtus.containsKey(deviceAddress)) {
+            // the MTU can only be negotiated once per connection
+            return CompletableFuture.completedFuture(getMtu(deviceAddress));
+        }
+        return queue.enqueue(GattOperation.requestMtu(BULK_TRANSFER_MTU, OPERATION_TIMEOUT))
+                .handle((value, failure) -> {
+                    if (failure != null) {
+                        Log.w(TAG, "Keeping the MTU of " + deviceAddress + ": "
+                                + failure.getMessage());
+                    }
+                    stats.setMtu(getMtu(deviceAddress));
+                    return getMtu(deviceAddress);
+                });
+    }
 
     /**
-     * Broadcast method which provides information about a finished action and the related
-     * gatt characteristic.
+     * Finishes the bulk transfer of the device and drops back to the low power connection
+     * priority.
      *
-     * @param action         descriptor which should be statically defined
-     * @param descriptor gatt descriptor
-     * @param deviceAddress
+     * @return figures of the transfer, null if none is running
+     */
+    @Override
+    public TransferStats endBulkTransfer(String deviceAddress) {
+        TransferStats stats = transferStats.get(deviceAddress);
+        if (stats == null || stats.isFinished()) return null;
+        stats.finish();
+        Log.i(TAG, "Bulk transfer of " + deviceAddress + ": " + stats);
+
+        BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
+        if (gatt != null) {
+            gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+        }
+        return stats;
+    }
+
+    /**
+     * Drops the resolved characteristics and discovers the services again, since the handles
+     * of the device are no longer valid. The handlers set up again, when the device is ready.
      */
-    private void broadcastDescriptorUpdate(final String action,
-                                           final BluetoothGattDescriptor descriptor,
-                                           final String deviceAddress) {
-        Intent intent = new Intent(action);
-        intent.putExtra(EXTRA_DESCRIPTOR_UUID, descriptor.getUuid().toString());
-        intent.putExtra(EXTRA_DESCRIPTOR_VALUE, descriptor.getValue());
-        intent.putExtra(EXTRA_DESCRIPTOR_PERMISSIONS, descriptor.getPermissions());
-        intent.putExtra(DEVICE_ADDRESS, deviceAddress);
-        this.localBroadcastManager.sendBroadcast(intent);
+    private void processServiceChanged(String deviceAddress, BluetoothGatt gatt) {
+        Log.i(TAG, "Services of " + deviceAddress + " have changed");
+        CharacteristicCache cache = characteristicCaches.get(deviceAddress);
+        if (cache != null) cache.invalidate();
+        if (!moveTo(deviceAddress, ConnectionState.DISCOVERING)) return;
+        if (!gatt.discoverServices()) {
+            Log.e(TAG, "Service discovery could not have been started.");
+            moveTo(deviceAddress, ConnectionState.CONNECTED);
+        }
     }
 
     /**
-     * Saves the core properties of the given characteristic into the given intent object.
-     * Unfortunately BluetoothGattCharacteristic is only parcelable since API 24 (Android 7.0)...
+     * Completes the current operation of the device and sends the next queued one.
      *
-     * @param characteristic
-     * @param intent
+     * @param uuid characteristic of the callback, null if unknown
      */
-    private Intent embedCharacteristicInIntent(
-            BluetoothGattCharacteristic characteristic, Intent intent) {
+    private void completeOperation(BluetoothGatt gatt, GattOperation.Type type, UUID uuid,
+                                   int status, byte[] value) {
+        GattOperationQueue queue = operationQueues.get(gatt.getDevice().getAddress());
+        if (queue == null) return;
+        queue.onResult(type, uuid, status, value);
+    }
 
-        byte[] characteristicValue = characteristic.getValue();
-        String characteristicId = characteristic.getUuid().toString();
-        int characteristicProp = characteristic.getProperties();
-        int characteristicPerm = characteristic.getPermissions();
+    /**
+     * Copies a value of a callback, since the characteristic objects are reused by the
+     * following callbacks. The copy is shared by the operation queue and the listeners.
+     */
+    private static byte[] copyValue(byte[] value) {
+        return value != null ? value.clone() : null;
+    }
 
-        intent.putExtra(EXTRA_CHARACTERISTIC_VALUE, characteristicValue);
-        intent.putExtra(EXTRA_CHARACTERISTIC_UUID, characteristicId);
-        intent.putExtra(CHARACTERISTIC_PROPERTIES, characteristicProp);
-        intent.putExtra(CHARACTERISTIC_PERMISSIONS, characteristicPerm);
+    /**
+     * Registers a listener, which gets the events of the device on the given executor. Events
+     * are only delivered in order, if the executor runs them in order.
+     */
+    @Override
+    public void registerListener(String deviceAddress, GattEventListener listener,
+                                 Executor executor) {
+        synchronized (listeners) {
+            List<ListenerRegistration> registrations = listeners.get(deviceAddress);
+            if (registrations == null) {
+                registrations = new CopyOnWriteArrayList<>();
+                listeners.put(deviceAddress, registrations);
+            }
+            registrations.add(new ListenerRegistration(listener, executor));
+        }
+    }
 
-        return intent;
+    @Override
+    public void unregisterListener(String deviceAddress, GattEventListener listener) {
+        synchronized (listeners) {
+            List<ListenerRegistration> registrations = listeners.get(deviceAddress);
+            if (registrations == null) return;
+            for (ListenerRegistration registration : registrations) {
+                if (registration.listener != listener) continue;
+                registrations.remove(registration);
+                NotificationRingBuffer buffer = registration.notifications;
+                if (buffer != null && buffer.getDrops() + buffer.getCoalesced() > 0) {
+                    Log.i(TAG, "Notifications of " + deviceAddress + ": " + buffer);
+                }
+            }
+            if (registrations.isEmpty()) listeners.remove(deviceAddress);
+        }
+    }
+
+    /**
+     * Records the events of all devices into the given stream, until stopRecording is called.
+     * A running recording is stopped first.
+     *
+     * @return false, if the trace could not be started
+     */
+    public boolean startRecording(OutputStream out) {
+        stopRecording();
+        try {
+            this.recorder = new GattTraceRecorder(out);
+            return true;
+        } catch (IOException ex) {
+            Log.w(TAG, "Could not start GATT trace.", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Stops the running recording and closes its stream.
+     *
+     * @return number of recorded events, -1 if the trace is incomplete or no recording was running
+     */
+    public int stopRecording() {
+        GattTraceRecorder recorder = this.recorder;
+        if (recorder == null) return -1;
+        this.recorder = null;
+        try {
+            recorder.close();
+            Log.i(TAG, "GATT trace with " + recorder.getEventCount() + " events written.");
+            return recorder.getEventCount();
+        } catch (IOException ex) {
+            Log.w(TAG, "GATT trace incomplete.", ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Hands the event to the listeners of the device.
+     *
+     * @return false, if there is no listener and the event is dropped
+     */
+    private boolean dispatch(String deviceAddress, Event event) {
+        GattTraceRecorder recorder = this.recorder;
+        if (recorder != null) event.deliver(recorder);
+        List<ListenerRegistration> registrations = listeners.get(deviceAddress);
+        if (registrations == null || registrations.isEmpty()) return false;
+        for (ListenerRegistration registration : registrations) {
+            try {
+                registration.executor.execute(() -> event.deliver(registration.listener));
+            } catch (RejectedExecutionException ex) {
+                Log.w(TAG, "Dropping event of " + deviceAddress + ", executor shut down.");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands the notification to the listeners of the device through their notification buffers.
+     * A buffer is drained on the executor of its listener, a drain is only started, if none is
+     * running. Notifications keep their order, but may overtake the other events of the device.
+     *
+     * @return false, if there is no listener and the notification is dropped
+     */
+    private boolean dispatchNotification(String deviceAddress, UUID uuid, byte[] value) {
+        GattTraceRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.onCharacteristicChanged(deviceAddress, uuid, value != null ? value
+                    : new byte[0]);
+        }
+        List<ListenerRegistration> registrations = listeners.get(deviceAddress);
+        if (registrations == null || registrations.isEmpty()) return false;
+        for (ListenerRegistration registration : registrations) {
+            NotificationRingBuffer buffer = getNotificationBuffer(deviceAddress, registration);
+            if (!buffer.offer(uuid, value)) continue;
+            try {
+                registration.executor.execute(() -> buffer.drain((characteristicUuid, data) ->
+                        registration.listener.onCharacteristicChanged(
+                                deviceAddress, characteristicUuid, data)));
+            } catch (RejectedExecutionException ex) {
+                buffer.clear();
+                Log.w(TAG, "Dropping notifications of " + deviceAddress + ", executor shut down.");
+            }
+        }
+        return true;
+    }
+
+    private NotificationRingBuffer getNotificationBuffer(String deviceAddress,
+                                                         ListenerRegistration registration) {
+        synchronized (registration) {
+            if (registration.notifications == null) {
+                registration.notifications =
+                        new NotificationRingBuffer(getOverflowPolicy(deviceAddress));
+            }
+            return registration.notifications;
+        }
+    }
+
+    /**
+     * Returns the notification buffers of the listeners of the device, to watch their
+     * counters.
+     */
+    public List<NotificationRingBuffer> getNotificationBuffers(String deviceAddress) {
+        List<NotificationRingBuffer> buffers = new ArrayList<>();
+        List<ListenerRegistration> registrations = listeners.get(deviceAddress);
+        if (registrations == null) return buffers;
+        for (ListenerRegistration registration : registrations) {
+            buffers.add(getNotificationBuffer(deviceAddress, registration));
+        }
+        return buffers;
     }
 
     public class LocalBinder extends Binder {
@@ -362,11 +788,68 @@ public class BleService extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Sets how the device is connected again after failures.
+     */
+    @Override
+    public void setReconnectPolicy(String deviceAddress, ReconnectPolicy policy) {
+        this.reconnectPolicies.put(deviceAddress, policy);
+    }
+
+    /**
+     * Sets what is lost, if the listeners of the device fall behind its notifications. Takes
+     * effect for listeners, which have not received a notification yet.
+     */
+    @Override
+    public void setOverflowPolicy(String deviceAddress,
+                                  NotificationRingBuffer.OverflowPolicy policy) {
+        this.overflowPolicies.put(deviceAddress, policy);
+    }
+
+    public NotificationRingBuffer.OverflowPolicy getOverflowPolicy(String deviceAddress) {
+        NotificationRingBuffer.OverflowPolicy policy = this.overflowPolicies.get(deviceAddress);
+        return policy != null ? policy : NotificationRingBuffer.OverflowPolicy.GROW;
+    }
+
+    public ReconnectPolicy getReconnectPolicy(String deviceAddress) {
+        ReconnectPolicy policy = this.reconnectPolicies.get(deviceAddress);
+        return policy != null ? policy : ReconnectPolicy.DEFAULT;
+    }
+
+    /**
+     * Returns the outcome of the recent connection attempts of the device.
+     */
+    public ConnectionHistory getConnectionHistory(String deviceAddress) {
+        synchronized (connectionHistories) {
+            ConnectionHistory history = connectionHistories.get(deviceAddress);
+            if (history == null) {
+                history = new ConnectionHistory();
+                connectionHistories.put(deviceAddress, history);
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Returns the time in ms to wait, before the device should be connected again. Devices,
+     * which fail too often, are left alone until their circuit closes again.
+     */
+    @Override
+    public long getReconnectDelay(String deviceAddress) {
+        ConnectionHistory history = getConnectionHistory(deviceAddress);
+        long backoff = getReconnectPolicy(deviceAddress)
+                .backoffDelay(history.getConsecutiveFailures(), random);
+        return Math.max(backoff, history.getOpenRemaining());
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device. The reconnect policy of the
+     * device decides, whether the device is connected directly or in the background.
      *
      * @param address
-     * @return
+     * @return false, if the attempt has not been started, e.g. because the device has failed
+     * too often recently
      */
+    @Override
     public boolean startConnect(String address) {
         // check for initialization
         if (!isProperlyInitialized() || address == null) {
@@ -376,11 +859,27 @@ public class BleService extends Service {
 
         if (this.connectedDevices.containsKey(address)) return false;
 
-        // previously connected device try to reconnect
-        BluetoothGatt existing = this.disconnectedDevices.get(address);
-        if (existing != null) {
+        ConnectionHistory history = getConnectionHistory(address);
+        if (history.isOpen()) {
+            Log.i(TAG, "Device " + address + " keeps failing, not connecting for another "
+                    + history.getOpenRemaining() + " ms.");
+            return false;
+        }
+        boolean autoConnect = getReconnectPolicy(address).useAutoConnect(history);
+
+        // previously connected device try to reconnect, connect() always waits in the background
+        BluetoothGatt existing = this.clientPool.acquire(address);
+        if (existing != null && autoConnect) {
             Log.d(TAG, "Trying to use existing bluetooth gatt for connection");
-            return existing.connect();
+            if (existing.connect()) {
+                history.attemptStarted(true);
+                moveTo(address, ConnectionState.CONNECTING);
+                return true;
+            }
+        }
+        if (existing != null) {
+            // the client is stale or cannot connect directly, a new one is registered below
+            this.clientPool.discard(address);
         }
 
         // no previous connection, make a new connection
@@ -390,10 +889,18 @@ public class BleService extends Service {
             return false;
         }
 
-        // startConnect directly, no auto-startConnect
         BleGattCallback gattCallback = new BleGattCallback(this);
-        device.connectGatt(this, true, gattCallback);
-        Log.d(TAG, "Waiting for a connection to device " + address + " ...");
+        BluetoothGatt gatt = device.connectGatt(this, autoConnect, gattCallback);
+        if (gatt == null) {
+            Log.w(TAG, "Unable to create a gatt client for device " + address);
+            return false;
+        }
+        // keep the pending client, so that the attempt can be cancelled
+        this.clientPool.addConnecting(address, gatt);
+        history.attemptStarted(autoConnect);
+        moveTo(address, ConnectionState.CONNECTING);
+        Log.d(TAG, "Waiting for a " + (autoConnect ? "background" : "direct")
+                + " connection to device " + address + " ...");
         return true;
     }
 
@@ -402,6 +909,7 @@ public class BleService extends Service {
      * is reported asynchronously through the BluetoothGattCallback.onConnectionStateChange
      * callback.
      */
+    @Override
     public void startDisconnect(String deviceAddress) {
         if (isProperlyInitialized() && connectedDevices.containsKey(deviceAddress)) {
             BluetoothGatt gatt = connectedDevices.get(deviceAddress);
@@ -409,6 +917,51 @@ public class BleService extends Service {
         }
     }
 
+    /**
+     * Gives up a pending connection attempt, so that the stack stops looking for the device.
+     * A direct attempt counts as failed, the device has not been found in time. A background
+     * wait has no time limit, giving it up says nothing about the device. Connected devices
+     * are not affected.
+     */
+    @Override
+    public void cancelConnect(String deviceAddress) {
+        if (!isProperlyInitialized() || connectedDevices.containsKey(deviceAddress)) return;
+        BluetoothGatt gatt = clientPool.peek(deviceAddress);
+        if (gatt != null) {
+            gatt.disconnect();
+            clientPool.release(deviceAddress, gatt);
+        }
+        if (getConnectionState(deviceAddress) == ConnectionState.CONNECTING) {
+            ConnectionHistory history = getConnectionHistory(deviceAddress);
+            if (history.isAutoConnect()) {
+                history.cancelled();
+            } else {
+                history.failed(ReconnectPolicy.Failure.OUT_OF_RANGE,
+                        getReconnectPolicy(deviceAddress));
+            }
+        }
+        moveTo(deviceAddress, ConnectionState.DISCONNECTED);
+    }
+
+    @Override
+    public boolean isConnectingInBackground(String deviceAddress) {
+        return getConnectionState(deviceAddress) == ConnectionState.CONNECTING
+                && getConnectionHistory(deviceAddress).isAutoConnect();
+    }
+
+    /**
+     * Forgets the failures of the device, so that it is connected directly again and its
+     * circuit does not keep it from connecting while it is in range.
+     */
+    @Override
+    public void onAdvertising(String deviceAddress) {
+        ConnectionHistory history = getConnectionHistory(deviceAddress);
+        if (history.getConsecutiveFailures() > 0) {
+            Log.d(TAG, "Device " + deviceAddress + " advertising, forgetting " + history);
+            history.reset();
+        }
+    }
+
     /**
      * Releases resources for the BLE device after it has been used.
      */
@@ -417,10 +970,15 @@ public class BleService extends Service {
             BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
             gatt.close();
         }
-        for (String deviceAddress : this.disconnectedDevices.keySet()) {
-            BluetoothGatt gatt = this.disconnectedDevices.get(deviceAddress);
-            gatt.close();
-        }
+        this.clientPool.close();
+    }
+
+    /**
+     * Returns the pool of the clients of devices, which are not connected, e.g. to look at its
+     * statistics.
+     */
+    public GattClientPool getClientPool() {
+        return this.clientPool;
     }
 
     /**
@@ -430,14 +988,13 @@ public class BleService extends Service {
      * @param characteristicId
      * @param serviceId
      * @param deviceAddress
+     * @return future of the read value
      */
-    public void readCharacteristic(UUID serviceId, UUID characteristicId, String deviceAddress) {
-        BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
-        if (gatt != null) {
-            BluetoothGattCharacteristic characteristic =
-                    findCharacteristic(serviceId, characteristicId, gatt);
-            if (characteristic != null) gatt.readCharacteristic(characteristic);
-        }
+    @Override
+    public CompletableFuture<byte[]> readCharacteristic(
+            UUID serviceId, UUID characteristicId, String deviceAddress) {
+        return enqueueOperation(GattOperation.Type.READ, serviceId, characteristicId,
+                deviceAddress, null);
     }
 
     /**
@@ -446,145 +1003,152 @@ public class BleService extends Service {
      *
      * @param characteristic
      * @param deviceAddress
+     * @return future of the read value
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic, String deviceAddress) {
-        BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
-        if (gatt != null) gatt.readCharacteristic(characteristic);
+    public CompletableFuture<byte[]> readCharacteristic(
+            BluetoothGattCharacteristic characteristic, String deviceAddress) {
+        return enqueueOperation(GattOperation.Type.READ, characteristic, deviceAddress, null);
     }
 
     /**
      * Writes onto a given characteristic. The result will be returned asynchronously through
      * BluetoothGattCallback.onCharacteristicWrite callback.
+     *
+     * @return future of the written value
      */
-    public void writeCharacteristic(UUID serviceId, UUID characteristicId, String deviceAddress) {
-        BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
-        if (gatt != null) {
-            BluetoothGattCharacteristic characteristic =
-                    findCharacteristic(serviceId, characteristicId, gatt);
-            if (characteristic != null) gatt.writeCharacteristic(characteristic);
-        }
+    public CompletableFuture<byte[]> writeCharacteristic(
+            UUID serviceId, UUID characteristicId, String deviceAddress) {
+        return enqueueOperation(GattOperation.Type.WRITE, serviceId, characteristicId,
+                deviceAddress, null);
     }
 
     /**
      * Writes onto a given characteristic. The result will be returned asynchronously through
      * BluetoothGattCallback.onCharacteristicWrite callback.
+     *
+     * @return future of the written value
      */
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, String deviceAddress) {
-        BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
-        if (gatt != null) gatt.writeCharacteristic(characteristic);
+    public CompletableFuture<byte[]> writeCharacteristic(
+            BluetoothGattCharacteristic characteristic, String deviceAddress) {
+        return enqueueOperation(GattOperation.Type.WRITE, characteristic, deviceAddress, null);
     }
 
     /**
      * Contacts the record access control point in order trigger the submission of the service
      * data (like glucose measurements).
+     *
+     * @return future, which completes when the request has been written
      */
-    public boolean requestAllRecords(UUID serviceId, UUID characteristicId, String deviceAddress) {
-        BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
-        boolean sendingOk = false;
-        if (gatt != null) {
-            BluetoothGattCharacteristic characteristic = findCharacteristic(serviceId, characteristicId, gatt);
-            // set the parameters of the characteristic and write it
-            if (characteristic != null) {
-                byte[] value = {0x01, 0x01}; // get all records (01) unfiltered (01)
-                characteristic.setValue(value);
-                sendingOk = gatt.writeCharacteristic(characteristic);
-            }
-        }
-        return sendingOk;
+    @Override
+    public CompletableFuture<byte[]> requestAllRecords(
+            UUID serviceId, UUID characteristicId, String deviceAddress) {
+        return writeRecordAccessControlPoint(serviceId, characteristicId, deviceAddress,
+                RecordAccessControlPoint.reportAllRecords());
     }
 
     /**
-     * Waits for the service list to come up, because it is not instantly instantiated.
+     * Writes a request, e.g. a filtered report of stored records, onto the record access control
+     * point. The response is indicated asynchronously.
      *
-     * @param tries number of tries to wait for in 100 ms
-     * @return true if service list came up, else false
+     * @param request built by RecordAccessControlPoint
+     * @return future, which completes when the request has been written
      */
-    private boolean waitForServiceList(int tries, BluetoothGatt gatt) {
-        List<BluetoothGattService> services = null;
-        boolean result = false;
+    @Override
+    public CompletableFuture<byte[]> writeRecordAccessControlPoint(
+            UUID serviceId, UUID characteristicId, String deviceAddress, byte[] request) {
+        return enqueueOperation(GattOperation.Type.WRITE, serviceId, characteristicId,
+                deviceAddress, request);
+    }
 
-        // the gatt service list is not instantly available
-        try {
-            while (tries > 0 && services == null) {
-                services = gatt.getServices();
-                if (services != null) {
-                    result = true;
-                } else {
-                    Thread.sleep(10);
-                    tries--;
-                }
-            }
-        } catch (InterruptedException ex) {
-            Log.w(TAG, "Waiting for service list has been interrupted");
-            result = false;
+    /**
+     * Looks up the characteristic and queues the operation on it.
+     *
+     * @param value value to write, null for reads or to write the current value
+     */
+    private CompletableFuture<byte[]> enqueueOperation(GattOperation.Type type, UUID serviceId,
+                                                       UUID characteristicId, String deviceAddress,
+                                                       byte[] value) {
+        BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
+        if (gatt == null) {
+            return failedOperation("Not connected to " + deviceAddress);
         }
+        BluetoothGattCharacteristic characteristic =
+                findCharacteristic(serviceId, characteristicId, deviceAddress);
+        if (characteristic == null) {
+            return failedOperation("Characteristic " + characteristicId + " not found on "
+                    + deviceAddress);
+        }
+        return enqueueOperation(type, characteristic, deviceAddress, value);
+    }
 
-        return result;
+    private CompletableFuture<byte[]> enqueueOperation(
+            GattOperation.Type type, BluetoothGattCharacteristic characteristic,
+            String deviceAddress, byte[] value) {
+        GattOperationQueue queue = this.operationQueues.get(deviceAddress);
+        if (queue == null) {
+            return failedOperation("Not connected to " + deviceAddress);
+        }
+        return queue.enqueue(new GattOperation(type, characteristic, value, OPERATION_TIMEOUT));
+    }
+
+    private static <T> CompletableFuture<T> failedOperation(String message) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new GattException(message, GattException.STATUS_NOT_SENT));
+        return future;
     }
 
     /**
      * Enables the notification for a given characteristic.
+     *
+     * @return future, which completes when the descriptor has been written
      */
-    public boolean enableNotification(UUID serviceId, UUID characteristicId, String deviceAddress) {
+    @Override
+    public CompletableFuture<byte[]> enableNotification(
+            UUID serviceId, UUID characteristicId, String deviceAddress) {
         return enableIndicationOrNotification(serviceId, characteristicId, deviceAddress, false);
     }
 
     /**
      * Enables the indication for a given characteristic.
+     *
+     * @return future, which completes when the descriptor has been written
      */
-    public boolean enableIndication(UUID serviceId, UUID characteristicId, String deviceAddress) {
+    @Override
+    public CompletableFuture<byte[]> enableIndication(
+            UUID serviceId, UUID characteristicId, String deviceAddress) {
         return enableIndicationOrNotification(serviceId, characteristicId, deviceAddress, true);
     }
 
-    private boolean enableIndicationOrNotification(
+    private CompletableFuture<byte[]> enableIndicationOrNotification(
             UUID serviceId, UUID characteristicId, String deviceAddress, boolean isIndication) {
         byte[] value = isIndication ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE :
                 BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
-        boolean success = false;
-
-        // enable the notification, finally
-        BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
-        if (gatt != null) {
-            BluetoothGattCharacteristic characteristic = findCharacteristic(
-                    serviceId, characteristicId, gatt);
-            if (characteristic != null) {
-                Log.d(TAG, "Activating " + (isIndication ? "indications" : "notifications") +
-                        " for characteristic " + characteristic.getUuid());
-
-                // enable it locally
-                success = gatt.setCharacteristicNotification(characteristic, true);
-
-                // write the new configuration to the ble device
-                if (success) {
-                    Log.d(TAG, "Writing indication descriptor");
-                    BluetoothGattDescriptor descriptor =
-                            characteristic.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIGURATION);
-                    descriptor.setValue(value);
-                    success = gatt.writeDescriptor(descriptor);
-                }
-            }
-        }
-        return success;
+        Log.d(TAG, "Activating " + (isIndication ? "indications" : "notifications") +
+                " for characteristic " + characteristicId);
+        return enqueueOperation(GattOperation.Type.WRITE_DESCRIPTOR, serviceId, characteristicId,
+                deviceAddress, value);
     }
 
     /**
-     * Retrieves the wished characteristic from the bluetooth gatt interface.
+     * Retrieves the wished characteristic from the cache of the connection.
      *
      * @param serviceId
      * @param characteristicId
      * @return null if not found
      */
     private BluetoothGattCharacteristic findCharacteristic(
-            UUID serviceId, UUID characteristicId, BluetoothGatt gatt) {
-        BluetoothGattCharacteristic result = null;
-        // pick the right service
-        boolean servicesReady = waitForServiceList(15, gatt);
-        if (servicesReady) {
-            BluetoothGattService service = gatt.getService(serviceId);
-            if (service != null) result = service.getCharacteristic(characteristicId);
-            else Log.w(TAG, "Service " + serviceId + " not found.");
-        } else Log.w(TAG, "No GATT services found");
-        if (result == null) Log.w(TAG, "Characteristic " + characteristicId + " not found.");
+            UUID serviceId, UUID characteristicId, String deviceAddress) {
+        // the cache is filled once the services have been discovered
+        CharacteristicCache cache = characteristicCaches.get(deviceAddress);
+        if (cache == null || !cache.isFilled()) {
+            Log.w(TAG, "GATT services not discovered yet");
+            return null;
+        }
+        BluetoothGattCharacteristic result = cache.find(serviceId, characteristicId);
+        if (result == null) {
+            if (!cache.hasService(serviceId)) Log.w(TAG, "Service " + serviceId + " not found.");
+            Log.w(TAG, "Characteristic " + characteristicId + " not found.");
+        }
         return result;
     }
 
@@ -593,6 +1157,7 @@ public class BleService extends Service {
      *
      * @return
      */
+    @Override
     public boolean isConnected(String deviceAddress) {
         BluetoothGatt gatt = this.connectedDevices.get(deviceAddress);
         return gatt != null;
@@ -605,9 +1170,16 @@ public class BleService extends Service {
      */
     public void processDescriptorWriteResult(
             int status, BluetoothGattDescriptor descriptor, BluetoothGatt gatt) {
+        BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+        UUID uuid = characteristic != null ? characteristic.getUuid() : null;
+        byte[] value = copyValue(descriptor.getValue());
+        completeOperation(gatt, GattOperation.Type.WRITE_DESCRIPTOR, uuid, status, value);
         if (status == BluetoothGatt.GATT_SUCCESS) {
             String deviceAddress = gatt.getDevice().getAddress();
-            broadcastDescriptorUpdate(ACTION_DESCRIPTOR_WRITTEN, descriptor, deviceAddress);
+            if (!dispatch(deviceAddress,
+                    listener -> listener.onDescriptorWritten(deviceAddress, uuid, value))) {
+                Log.d(TAG, "No listener for the descriptor of " + uuid + " on " + deviceAddress);
+            }
             Log.i(TAG, "Descriptor has been written " + descriptor);
         } else {
             Log.w(TAG, "Descriptor write was not successful:\n" +
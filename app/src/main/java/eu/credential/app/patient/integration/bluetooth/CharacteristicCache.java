@@ -0,0 +1,75 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Characteristics of one connection, resolved once after the service discovery. Lookups by
+ * service and characteristic UUID take constant time instead of walking the service list on
+ * every operation. The cache is only valid, until the connection is lost or the services of the
+ * device change.
+ */
+class CharacteristicCache {
+
+    // service uuid -> characteristic uuid -> characteristic
+    private final Map<UUID, Map<UUID, BluetoothGattCharacteristic>> services;
+    private boolean filled;
+
+    CharacteristicCache() {
+        this.services = new HashMap<>();
+        this.filled = false;
+    }
+
+    /**
+     * Replaces the content by the discovered services. If a device has a service or a
+     * characteristic several times, the first one is used like BluetoothGatt.getService does.
+     */
+    synchronized void fill(List<BluetoothGattService> discovered) {
+        services.clear();
+        if (discovered != null) {
+            for (BluetoothGattService service : discovered) {
+                Map<UUID, BluetoothGattCharacteristic> characteristics =
+                        services.get(service.getUuid());
+                if (characteristics == null) {
+                    characteristics = new HashMap<>();
+                    services.put(service.getUuid(), characteristics);
+                }
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    if (!characteristics.containsKey(characteristic.getUuid())) {
+                        characteristics.put(characteristic.getUuid(), characteristic);
+                    }
+                }
+            }
+        }
+        filled = true;
+    }
+
+    /**
+     * Returns true, if the cache has been filled since the last invalidation.
+     */
+    synchronized boolean isFilled() {
+        return filled;
+    }
+
+    synchronized boolean hasService(UUID serviceId) {
+        return services.containsKey(serviceId);
+    }
+
+    /**
+     * @return null, if the device does not have the characteristic or the cache is not filled
+     */
+    synchronized BluetoothGattCharacteristic find(UUID serviceId, UUID characteristicId) {
+        Map<UUID, BluetoothGattCharacteristic> characteristics = services.get(serviceId);
+        return characteristics != null ? characteristics.get(characteristicId) : null;
+    }
+
+    synchronized void invalidate() {
+        services.clear();
+        filled = false;
+    }
+}
@@ -0,0 +1,128 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+/**
+ * Outcome of the recent connection attempts of one device, from which the ReconnectPolicy
+ * decides on the next attempt. It also keeps the time the attempts took to connect.
+ */
+public class ConnectionHistory {
+
+    private int attempts;
+    private int consecutiveFailures;
+    private ReconnectPolicy.Failure lastFailure;
+    private long openUntil;
+
+    // start of the pending attempt, 0 if none
+    private long attemptStart;
+    private boolean autoConnect;
+    private long lastLatency;
+    private long totalLatency;
+    private int connections;
+
+    ConnectionHistory() {
+        this.lastFailure = ReconnectPolicy.Failure.NONE;
+    }
+
+    synchronized void attemptStarted(boolean autoConnect) {
+        this.attempts++;
+        this.attemptStart = System.currentTimeMillis();
+        this.autoConnect = autoConnect;
+    }
+
+    synchronized void connected() {
+        if (attemptStart != 0) {
+            lastLatency = System.currentTimeMillis() - attemptStart;
+            totalLatency += lastLatency;
+            connections++;
+        }
+        attemptStart = 0;
+        consecutiveFailures = 0;
+        openUntil = 0;
+    }
+
+    /**
+     * Counts a failed attempt and opens the circuit, once the policy's threshold is reached.
+     */
+    synchronized void failed(ReconnectPolicy.Failure failure, ReconnectPolicy policy) {
+        attemptStart = 0;
+        consecutiveFailures++;
+        lastFailure = failure;
+        if (consecutiveFailures >= policy.getFailureThreshold()) {
+            openUntil = System.currentTimeMillis() + policy.getOpenDuration();
+        }
+    }
+
+    /**
+     * Ends the pending attempt without counting it, e.g. a background wait the collection has
+     * given up.
+     */
+    synchronized void cancelled() {
+        attemptStart = 0;
+    }
+
+    /**
+     * Forgets the failures and closes the circuit, e.g. once the device has been seen in range.
+     */
+    synchronized void reset() {
+        consecutiveFailures = 0;
+        lastFailure = ReconnectPolicy.Failure.NONE;
+        openUntil = 0;
+    }
+
+    /**
+     * Records why an established connection has been lost.
+     */
+    synchronized void lost(ReconnectPolicy.Failure failure) {
+        lastFailure = failure;
+    }
+
+    /**
+     * Returns true, if the device fails too often to be tried now.
+     */
+    public synchronized boolean isOpen() {
+        return openUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the time in ms, until the device may be tried again, 0 if it may be tried now.
+     */
+    public synchronized long getOpenRemaining() {
+        return Math.max(0, openUntil - System.currentTimeMillis());
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized ReconnectPolicy.Failure getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Returns true, if the pending or last attempt waits in the background.
+     */
+    public synchronized boolean isAutoConnect() {
+        return autoConnect;
+    }
+
+    /**
+     * Returns the time in ms the last successful attempt took to connect.
+     */
+    public synchronized long getLastLatency() {
+        return lastLatency;
+    }
+
+    public synchronized long getAverageLatency() {
+        return connections > 0 ? totalLatency / connections : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return attempts + " attempts, " + consecutiveFailures + " failures in a row (last "
+                + lastFailure + "), latency " + lastLatency + " ms / avg " + getAverageLatency()
+                + " ms" + (isOpen() ? ", open" : "");
+    }
+}
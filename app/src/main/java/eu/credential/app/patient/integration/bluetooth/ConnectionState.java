@@ -0,0 +1,51 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+/**
+ * Readiness of the connection to a device. The state only advances on GATT callbacks, so that
+ * nobody has to guess with fixed sleeps, when the device can be talked to.
+ */
+public enum ConnectionState {
+    // no connection, or the connection has been lost
+    DISCONNECTED,
+    // connection requested, waiting for the callback
+    CONNECTING,
+    // link established, services not yet discovered
+    CONNECTED,
+    // service discovery scheduled or running
+    DISCOVERING,
+    // services discovered, characteristics can be used
+    READY,
+    // a handler has started to request its data
+    COLLECTING;
+
+    /**
+     * Returns true, if the state may follow this one. Every state may fall back to
+     * DISCONNECTED, a failed discovery falls back to CONNECTED.
+     */
+    public boolean canMoveTo(ConnectionState next) {
+        if (next == DISCONNECTED) return true;
+        switch (this) {
+            case DISCONNECTED:
+                return next == CONNECTING || next == CONNECTED;
+            case CONNECTING:
+                return next == CONNECTED;
+            case CONNECTED:
+                return next == DISCOVERING;
+            case DISCOVERING:
+                return next == READY || next == CONNECTED;
+            case READY:
+                return next == COLLECTING || next == DISCOVERING;
+            case COLLECTING:
+                return next == DISCOVERING;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns true, if the services of the device have been discovered.
+     */
+    public boolean isReady() {
+        return this == READY || this == COLLECTING;
+    }
+}
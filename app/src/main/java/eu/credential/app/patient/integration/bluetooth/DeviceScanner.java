@@ -0,0 +1,173 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Finds advertising devices by their services, so that devices can be collected without being
+ * bonded. The scan is filtered by the controller on the given service UUIDs and runs in low
+ * power mode, the results are kept in a ScanCache.
+ */
+public class DeviceScanner {
+    private final static String TAG = DeviceScanner.class.getSimpleName();
+
+    // time in ms, after which a device, which has not advertised, is no longer present
+    public final static long DEFAULT_MAX_AGE = 5 * 60 * 1000;
+
+    /**
+     * Gets the devices, which appear or appear again.
+     */
+    public interface Listener {
+        void onDeviceFound(ScanCache.Entry entry);
+    }
+
+    private final Context context;
+    private final BluetoothAdapter btAdapter;
+    private final Listener listener;
+    private final ScanCache cache;
+    private final long maxAge;
+
+    private BluetoothLeScanner scanner;
+    private volatile boolean scanning;
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            processScanResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                processScanResult(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Scan failed with error " + errorCode);
+            scanning = false;
+        }
+    };
+
+    public DeviceScanner(Context context, BluetoothAdapter btAdapter, Listener listener) {
+        this(context, btAdapter, listener, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param maxAge time in ms, after which a device, which has not advertised, is reported
+     *               again as found
+     */
+    public DeviceScanner(Context context, BluetoothAdapter btAdapter, Listener listener,
+                         long maxAge) {
+        this.context = context;
+        this.btAdapter = btAdapter;
+        this.listener = listener;
+        this.cache = new ScanCache();
+        this.maxAge = maxAge;
+        this.scanning = false;
+    }
+
+    /**
+     * Starts scanning for devices announcing one of the services. A running scan is kept.
+     *
+     * @return false, if bluetooth is off or the location permission, which scans require, has
+     * not been granted
+     */
+    public synchronized boolean start(Collection<UUID> serviceUuids) {
+        if (scanning) return true;
+        if (btAdapter == null || !btAdapter.isEnabled()) {
+            Log.w(TAG, "Bluetooth is not enabled, not scanning.");
+            return false;
+        }
+        if (context.checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "Location permission not granted, not scanning.");
+            return false;
+        }
+        scanner = btAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            Log.w(TAG, "No LE scanner available.");
+            return false;
+        }
+
+        // an empty filter list would report every advertiser around
+        List<ScanFilter> filters = new ArrayList<>();
+        for (UUID serviceUuid : serviceUuids) {
+            filters.add(new ScanFilter.Builder()
+                    .setServiceUuid(new ParcelUuid(serviceUuid))
+                    .build());
+        }
+        if (filters.isEmpty()) return false;
+
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .build();
+        scanner.startScan(filters, settings, scanCallback);
+        scanning = true;
+        Log.i(TAG, "Scanning for " + filters.size() + " services.");
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (!scanning) return;
+        scanning = false;
+        // the scanner is gone, if bluetooth has been switched off meanwhile
+        if (btAdapter.isEnabled() && scanner != null) scanner.stopScan(scanCallback);
+        scanner = null;
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    public ScanCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the devices, which have advertised recently.
+     */
+    public List<ScanCache.Entry> getPresentDevices() {
+        return cache.getPresent(maxAge);
+    }
+
+    private void processScanResult(ScanResult result) {
+        BluetoothDevice device = result.getDevice();
+        ScanRecord record = result.getScanRecord();
+
+        String name = record != null ? record.getDeviceName() : null;
+        if (name == null) name = device.getName();
+        List<UUID> serviceUuids = new ArrayList<>();
+        if (record != null && record.getServiceUuids() != null) {
+            for (ParcelUuid uuid : record.getServiceUuids()) {
+                serviceUuids.add(uuid.getUuid());
+            }
+        }
+
+        boolean found = cache.put(device.getAddress(), name, result.getRssi(),
+                System.currentTimeMillis(), serviceUuids, maxAge);
+        if (found) {
+            ScanCache.Entry entry = cache.get(device.getAddress());
+            Log.d(TAG, "Found " + entry);
+            if (listener != null) listener.onDeviceFound(entry);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Operations the collection needs from a GATT backend. The BleService talks to real devices,
+ * the ReplayGattClient plays a recorded trace back, so that the collection can be run without
+ * the devices. Operations complete their future, once the device has answered, the events of
+ * a device are delivered to its GattEventListeners.
+ */
+public interface GattClient {
+
+    // MTU every connection starts with
+    int DEFAULT_MTU = 23;
+
+    /**
+     * Delivers the events of the device to the listener on the given executor.
+     */
+    void registerListener(String deviceAddress, GattEventListener listener, Executor executor);
+
+    void unregisterListener(String deviceAddress, GattEventListener listener);
+
+    /**
+     * @return false, if the attempt has not been started
+     */
+    boolean startConnect(String deviceAddress);
+
+    /**
+     * Gives up a pending connection attempt.
+     */
+    void cancelConnect(String deviceAddress);
+
+    /**
+     * Returns true, if the pending attempt of the device waits in the background until the
+     * device advertises, instead of failing after a while.
+     */
+    boolean isConnectingInBackground(String deviceAddress);
+
+    /**
+     * The device has been seen advertising, so its recent failures do not matter anymore.
+     */
+    void onAdvertising(String deviceAddress);
+
+    void startDisconnect(String deviceAddress);
+
+    boolean isConnected(String deviceAddress);
+
+    /**
+     * @return empty string if not known
+     */
+    String getDeviceName(String deviceAddress);
+
+    void startDeviceServiceDiscovery(String deviceAddress);
+
+    /**
+     * Returns true, if the discovered services of the device contain the characteristic.
+     */
+    boolean supportsCharacteristic(String deviceAddress, UUID serviceId, UUID characteristicId);
+
+    CompletableFuture<byte[]> readCharacteristic(
+            UUID serviceId, UUID characteristicId, String deviceAddress);
+
+    CompletableFuture<byte[]> enableNotification(
+            UUID serviceId, UUID characteristicId, String deviceAddress);
+
+    CompletableFuture<byte[]> enableIndication(
+            UUID serviceId, UUID characteristicId, String deviceAddress);
+
+    /**
+     * Requests all stored records from the record access control point.
+     */
+    CompletableFuture<byte[]> requestAllRecords(
+            UUID serviceId, UUID characteristicId, String deviceAddress);
+
+    /**
+     * Writes a request built by RecordAccessControlPoint.
+     */
+    CompletableFuture<byte[]> writeRecordAccessControlPoint(
+            UUID serviceId, UUID characteristicId, String deviceAddress, byte[] request);
+
+    /**
+     * Prepares the connection for a transfer of stored records.
+     *
+     * @return future of the MTU in use
+     */
+    CompletableFuture<Integer> beginBulkTransfer(String deviceAddress);
+
+    /**
+     * @return figures of the finished transfer, null if no transfer has been running
+     */
+    TransferStats endBulkTransfer(String deviceAddress);
+
+    /**
+     * Marks the device as collecting, once its data has been requested.
+     */
+    void setCollecting(String deviceAddress);
+
+    void setReconnectPolicy(String deviceAddress, ReconnectPolicy policy);
+
+    /**
+     * Sets what is lost, if the listeners fall behind the notifications of the device.
+     */
+    void setOverflowPolicy(String deviceAddress, NotificationRingBuffer.OverflowPolicy policy);
+
+    /**
+     * Returns the time in ms to wait, before the device should be connected again.
+     */
+    long getReconnectDelay(String deviceAddress);
+}
@@ -0,0 +1,262 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the gatt clients of devices, which are not connected, so that a device can be connected
+ * again without registering a new client. The platform only has a few client interfaces, so
+ * the number of idle clients is bounded: the least recently used ones are closed, when the pool
+ * is full or when they have not been used for too long. Clients of a pending connection attempt
+ * are never closed by the pool.
+ */
+public class GattClientPool {
+    private final static String TAG = GattClientPool.class.getSimpleName();
+
+    public final static int DEFAULT_MAX_IDLE = 4;
+    public final static long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    private static class Entry {
+        final BluetoothGatt gatt;
+        boolean connecting;
+        long lastUsed;
+
+        Entry(BluetoothGatt gatt, boolean connecting) {
+            this.gatt = gatt;
+            this.connecting = connecting;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private final int maxIdle;
+    private final long idleTimeout;
+
+    // clients by device address, in the order of their last use
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public GattClientPool() {
+        this(DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param maxIdle     number of idle clients kept
+     * @param idleTimeout time in ms, after which an unused client is closed
+     */
+    public GattClientPool(int maxIdle, long idleTimeout) {
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Takes the client of the device for a new connection attempt. The client stays in the pool
+     * until the device has connected.
+     *
+     * @return null, if there is no client for the device
+     */
+    BluetoothGatt acquire(String deviceAddress) {
+        synchronized (entries) {
+            Entry entry = entries.get(deviceAddress);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            entry.connecting = true;
+            entry.lastUsed = System.currentTimeMillis();
+            return entry.gatt;
+        }
+    }
+
+    /**
+     * Adds the new client of a pending connection attempt.
+     */
+    void addConnecting(String deviceAddress, BluetoothGatt gatt) {
+        put(deviceAddress, new Entry(gatt, true));
+    }
+
+    /**
+     * Returns the client of a device, which has disconnected or whose attempt has been
+     * cancelled. Surplus idle clients are closed.
+     */
+    void release(String deviceAddress, BluetoothGatt gatt) {
+        put(deviceAddress, new Entry(gatt, false));
+    }
+
+    /**
+     * Removes the client of a device, which has connected. The connected client is managed by
+     * the caller.
+     */
+    void remove(String deviceAddress) {
+        synchronized (entries) {
+            entries.remove(deviceAddress);
+        }
+    }
+
+    /**
+     * Closes the client of the device, e.g. if it refuses to connect again.
+     */
+    void discard(String deviceAddress) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.remove(deviceAddress);
+        }
+        if (entry != null) entry.gatt.close();
+    }
+
+    /**
+     * Returns the client of the device without using it.
+     *
+     * @return null, if there is no client for the device
+     */
+    BluetoothGatt peek(String deviceAddress) {
+        synchronized (entries) {
+            // a plain get would count as use of the access ordered map
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getKey().equals(deviceAddress)) return entry.getValue().gatt;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Closes the idle clients, which have not been used within the idle timeout.
+     */
+    void expireIdle() {
+        long deadline = System.currentTimeMillis() - idleTimeout;
+        List<BluetoothGatt> expired = new ArrayList<>();
+        synchronized (entries) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (!entry.connecting && entry.lastUsed < deadline) {
+                    iterator.remove();
+                    expired.add(entry.gatt);
+                }
+            }
+            expirations += expired.size();
+        }
+        closeAll(expired);
+    }
+
+    /**
+     * Closes all clients of the pool.
+     */
+    void close() {
+        List<BluetoothGatt> all = new ArrayList<>();
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                all.add(entry.gatt);
+            }
+            entries.clear();
+        }
+        closeAll(all);
+    }
+
+    private void put(String deviceAddress, Entry entry) {
+        List<BluetoothGatt> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Entry previous = entries.put(deviceAddress, entry);
+            if (previous != null && previous.gatt != entry.gatt) evicted.add(previous.gatt);
+
+            // the eldest idle clients go first
+            int idle = countIdle();
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (idle > maxIdle && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                if (eldest.connecting || eldest == entry) continue;
+                iterator.remove();
+                evicted.add(eldest.gatt);
+                evictions++;
+                idle--;
+            }
+        }
+        closeAll(evicted);
+    }
+
+    private int countIdle() {
+        int idle = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.connecting) idle++;
+        }
+        return idle;
+    }
+
+    private static void closeAll(List<BluetoothGatt> clients) {
+        for (BluetoothGatt gatt : clients) {
+            Log.d(TAG, "Closing gatt client of " + gatt.getDevice().getAddress());
+            gatt.close();
+        }
+    }
+
+    /**
+     * Returns the number of clients in the pool, including pending attempts.
+     */
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getIdleCount() {
+        synchronized (entries) {
+            return countIdle();
+        }
+    }
+
+    /**
+     * Returns how often a connection attempt could reuse a pooled client.
+     */
+    public long getHits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * Returns how often a connection attempt needed a new client.
+     */
+    public long getMisses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    /**
+     * Returns the number of idle clients closed, because the pool was full.
+     */
+    public long getEvictions() {
+        synchronized (entries) {
+            return evictions;
+        }
+    }
+
+    /**
+     * Returns the number of idle clients closed after the idle timeout.
+     */
+    public long getExpirations() {
+        synchronized (entries) {
+            return expirations;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (entries) {
+            return entries.size() + " clients (" + countIdle() + " idle, max " + maxIdle + "), "
+                    + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+                    + expirations + " expirations";
+        }
+    }
+}
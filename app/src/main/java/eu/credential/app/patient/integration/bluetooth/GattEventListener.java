@@ -0,0 +1,34 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * Receives the GATT events of one device directly from the BleService, without the detour over
+ * broadcast intents. The events are delivered in order on the executor given at registration.
+ * Values are copies, which the listener may keep.
+ */
+public interface GattEventListener {
+
+    void onConnected(String deviceAddress);
+
+    void onDisconnected(String deviceAddress);
+
+    /**
+     * The services have been discovered and the device is ready to operate with.
+     */
+    void onServicesDiscovered(String deviceAddress);
+
+    /**
+     * A notification or indication has arrived.
+     */
+    void onCharacteristicChanged(String deviceAddress, UUID characteristicUuid, byte[] value);
+
+    void onCharacteristicRead(String deviceAddress, UUID characteristicUuid, byte[] value);
+
+    void onCharacteristicWritten(String deviceAddress, UUID characteristicUuid, byte[] value);
+
+    /**
+     * The client characteristic configuration of the characteristic has been written.
+     */
+    void onDescriptorWritten(String deviceAddress, UUID characteristicUuid, byte[] value);
+}
@@ -0,0 +1,30 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+/**
+ * Failure of a GATT operation, with which the future of the operation completes.
+ */
+public class GattException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    // status, if the operation has not even been sent to the device
+    public static final int STATUS_NOT_SENT = -1;
+    // status, if the device did not answer in time
+    public static final int STATUS_TIMEOUT = -2;
+    // status, if the connection has been lost before the operation completed
+    public static final int STATUS_DISCONNECTED = -3;
+
+    private final int status;
+
+    public GattException(String message, int status) {
+        super(message + " (status " + status + ")");
+        this.status = status;
+    }
+
+    /**
+     * Returns the GATT status of the callback or one of the STATUS constants.
+     */
+    public int getStatus() {
+        return status;
+    }
+}
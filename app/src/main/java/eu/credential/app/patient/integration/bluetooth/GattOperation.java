@@ -0,0 +1,54 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A single read, write, descriptor write or MTU request waiting in the GattOperationQueue of a
+ * device. The future completes with the read or written value, when the matching callback
+ * arrives.
+ */
+class GattOperation {
+
+    enum Type {READ, WRITE, WRITE_DESCRIPTOR, REQUEST_MTU}
+
+    final Type type;
+    // null for MTU requests
+    final BluetoothGattCharacteristic characteristic;
+    // value to write, null for reads
+    final byte[] value;
+    // requested MTU
+    final int mtu;
+    final long timeoutMillis;
+    final CompletableFuture<byte[]> future;
+
+    GattOperation(Type type, BluetoothGattCharacteristic characteristic, byte[] value,
+                  long timeoutMillis) {
+        this(type, characteristic, value, 0, timeoutMillis);
+    }
+
+    private GattOperation(Type type, BluetoothGattCharacteristic characteristic, byte[] value,
+                          int mtu, long timeoutMillis) {
+        this.type = type;
+        this.characteristic = characteristic;
+        this.value = value;
+        this.mtu = mtu;
+        this.timeoutMillis = timeoutMillis;
+        this.future = new CompletableFuture<>();
+    }
+
+    static GattOperation requestMtu(int mtu, long timeoutMillis) {
+        return new GattOperation(Type.REQUEST_MTU, null, null, mtu, timeoutMillis);
+    }
+
+    UUID getUuid() {
+        return characteristic != null ? characteristic.getUuid() : null;
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.REQUEST_MTU ? type + " " + mtu : type + " " + getUuid();
+    }
+}
@@ -0,0 +1,187 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes the GATT operations of one connection, since Android only allows one outstanding
+ * operation at a time. Operations are queued without blocking the caller. The next operation is
+ * sent as soon as the callback of the current one arrives or its timeout expires, and the
+ * futures of the operations complete accordingly.
+ */
+class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    private final String deviceAddress;
+    private final BluetoothGatt gatt;
+    private final ScheduledExecutorService scheduler;
+
+    private final ArrayDeque<GattOperation> pending;
+    private GattOperation current;
+    private ScheduledFuture<?> currentTimeout;
+    private boolean closed;
+
+    GattOperationQueue(String deviceAddress, BluetoothGatt gatt,
+                       ScheduledExecutorService scheduler) {
+        this.deviceAddress = deviceAddress;
+        this.gatt = gatt;
+        this.scheduler = scheduler;
+        this.pending = new ArrayDeque<>();
+        this.current = null;
+        this.closed = false;
+    }
+
+    /**
+     * Queues the operation and sends it at once, if the connection is idle.
+     *
+     * @return future of the operation
+     */
+    CompletableFuture<byte[]> enqueue(GattOperation operation) {
+        List<GattOperation> failed;
+        synchronized (this) {
+            if (closed) {
+                failed = new ArrayList<>(1);
+                failed.add(operation);
+            } else {
+                pending.add(operation);
+                failed = current == null ? startNext() : null;
+            }
+        }
+        fail(failed, "Could not send", GattException.STATUS_NOT_SENT);
+        return operation.future;
+    }
+
+    /**
+     * Completes the current operation with the result of a callback.
+     *
+     * @param type  type of the callback
+     * @param uuid  characteristic of the callback
+     * @param value read or written value
+     */
+    void onResult(GattOperation.Type type, UUID uuid, int status, byte[] value) {
+        GattOperation done;
+        List<GattOperation> failed;
+        synchronized (this) {
+            if (current == null || current.type != type
+                    || (uuid != null && !uuid.equals(current.getUuid()))) {
+                Log.w(TAG, "Unexpected " + type + " result for " + uuid + " on " + deviceAddress);
+                return;
+            }
+            done = finishCurrent();
+            failed = startNext();
+        }
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            done.future.complete(value);
+        } else {
+            done.future.completeExceptionally(
+                    new GattException(done + " failed on " + deviceAddress, status));
+        }
+        fail(failed, "Could not send", GattException.STATUS_NOT_SENT);
+    }
+
+    /**
+     * Fails the current and all queued operations, e.g. when the connection has been lost.
+     */
+    void close() {
+        List<GattOperation> failed = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            if (current != null) failed.add(finishCurrent());
+            failed.addAll(pending);
+            pending.clear();
+        }
+        fail(failed, "Connection lost before", GattException.STATUS_DISCONNECTED);
+    }
+
+    synchronized int size() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    private void onTimeout(GattOperation operation) {
+        List<GattOperation> failed;
+        synchronized (this) {
+            if (current != operation) return;
+            finishCurrent();
+            failed = startNext();
+        }
+        Log.w(TAG, operation + " timed out on " + deviceAddress);
+        operation.future.completeExceptionally(new GattException(
+                operation + " timed out on " + deviceAddress, GattException.STATUS_TIMEOUT));
+        fail(failed, "Could not send", GattException.STATUS_NOT_SENT);
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private GattOperation finishCurrent() {
+        GattOperation done = current;
+        current = null;
+        if (currentTimeout != null) currentTimeout.cancel(false);
+        currentTimeout = null;
+        return done;
+    }
+
+    /**
+     * Sends the next queued operation. Operations, which cannot be sent, are skipped and
+     * returned, so that they can be failed outside of the lock. Must be called with the lock
+     * held.
+     */
+    private List<GattOperation> startNext() {
+        List<GattOperation> failed = null;
+        while (current == null && !pending.isEmpty()) {
+            GattOperation operation = pending.poll();
+            if (send(operation)) {
+                current = operation;
+                currentTimeout = scheduler.schedule(() -> onTimeout(operation),
+                        operation.timeoutMillis, TimeUnit.MILLISECONDS);
+            } else {
+                if (failed == null) failed = new ArrayList<>();
+                failed.add(operation);
+            }
+        }
+        return failed;
+    }
+
+    private boolean send(GattOperation operation) {
+        switch (operation.type) {
+            case READ:
+                return gatt.readCharacteristic(operation.characteristic);
+            case WRITE:
+                if (operation.value != null) operation.characteristic.setValue(operation.value);
+                return gatt.writeCharacteristic(operation.characteristic);
+            case WRITE_DESCRIPTOR:
+                // enable it locally, then write the new configuration to the device
+                if (!gatt.setCharacteristicNotification(operation.characteristic, true)) {
+                    return false;
+                }
+                BluetoothGattDescriptor descriptor = operation.characteristic.getDescriptor(
+                        BleService.UUID_CLIENT_CHARACTERISTIC_CONFIGURATION);
+                if (descriptor == null) return false;
+                descriptor.setValue(operation.value);
+                return gatt.writeDescriptor(descriptor);
+            case REQUEST_MTU:
+                return gatt.requestMtu(operation.mtu);
+            default:
+                return false;
+        }
+    }
+
+    private void fail(List<GattOperation> operations, String reason, int status) {
+        if (operations == null) return;
+        for (GattOperation operation : operations) {
+            operation.future.completeExceptionally(new GattException(
+                    reason + " " + operation + " on " + deviceAddress, status));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * One event of a GATT trace: what happened, when, on which device and characteristic, and the
+ * value which came with it.
+ */
+public class GattTraceEvent {
+
+    /**
+     * Kind of event, one per callback of the GattEventListener.
+     */
+    public enum Type {
+        CONNECTED,
+        DISCONNECTED,
+        SERVICES_DISCOVERED,
+        CHARACTERISTIC_CHANGED,
+        CHARACTERISTIC_READ,
+        CHARACTERISTIC_WRITTEN,
+        DESCRIPTOR_WRITTEN;
+
+        /**
+         * Returns true, if events of this type belong to a characteristic.
+         */
+        public boolean hasCharacteristic() {
+            return ordinal() >= CHARACTERISTIC_CHANGED.ordinal();
+        }
+    }
+
+    private final Type type;
+    private final long timeMicros;
+    private final String deviceAddress;
+    private final UUID characteristicUuid;
+    private final byte[] value;
+
+    /**
+     * @param timeMicros         time since the start of the trace
+     * @param characteristicUuid null for connection events
+     * @param value              null for connection events
+     */
+    public GattTraceEvent(Type type, long timeMicros, String deviceAddress,
+                          UUID characteristicUuid, byte[] value) {
+        this.type = type;
+        this.timeMicros = timeMicros;
+        this.deviceAddress = deviceAddress;
+        this.characteristicUuid = characteristicUuid;
+        this.value = value;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getTimeMicros() {
+        return timeMicros;
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * @return null for connection events
+     */
+    public UUID getCharacteristicUuid() {
+        return characteristicUuid;
+    }
+
+    /**
+     * @return null for connection events
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * Calls the callback of the listener, which belongs to the event.
+     */
+    public void deliver(GattEventListener listener) {
+        switch (type) {
+            case CONNECTED:
+                listener.onConnected(deviceAddress);
+                break;
+            case DISCONNECTED:
+                listener.onDisconnected(deviceAddress);
+                break;
+            case SERVICES_DISCOVERED:
+                listener.onServicesDiscovered(deviceAddress);
+                break;
+            case CHARACTERISTIC_CHANGED:
+                listener.onCharacteristicChanged(deviceAddress, characteristicUuid, value.clone());
+                break;
+            case CHARACTERISTIC_READ:
+                listener.onCharacteristicRead(deviceAddress, characteristicUuid, value.clone());
+                break;
+            case CHARACTERISTIC_WRITTEN:
+                listener.onCharacteristicWritten(deviceAddress, characteristicUuid, value.clone());
+                break;
+            case DESCRIPTOR_WRITTEN:
+                listener.onDescriptorWritten(deviceAddress, characteristicUuid, value.clone());
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return timeMicros + " " + type + " " + deviceAddress
+                + (characteristicUuid != null ? " " + characteristicUuid : "")
+                + (value != null ? " " + value.length + " bytes" : "");
+    }
+}
@@ -0,0 +1,114 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Reads a trace written by the GattTraceRecorder event by event.
+ */
+public class GattTraceReader implements Closeable {
+
+    private final DataInputStream in;
+    private final List<String> addresses;
+    private long timeMicros;
+
+    /**
+     * @throws IOException if the stream does not start with a trace header
+     */
+    public GattTraceReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.addresses = new ArrayList<>();
+        this.timeMicros = 0;
+        if (this.in.readInt() != GattTraceRecorder.MAGIC) {
+            throw new IOException("Not a GATT trace");
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != GattTraceRecorder.VERSION) {
+            throw new IOException("Unsupported GATT trace version " + version);
+        }
+    }
+
+    /**
+     * @return null at the end of the trace
+     * @throws IOException if the trace is corrupt or truncated within an event
+     */
+    public GattTraceEvent next() throws IOException {
+        int typeIndex = in.read();
+        if (typeIndex < 0) return null;
+        GattTraceEvent.Type[] types = GattTraceEvent.Type.values();
+        if (typeIndex >= types.length) throw new IOException("Unknown event type " + typeIndex);
+        GattTraceEvent.Type type = types[typeIndex];
+
+        try {
+            timeMicros += readVarLong(in);
+            long index = readVarLong(in);
+            if (index == addresses.size()) {
+                addresses.add(in.readUTF());
+            } else if (index < 0 || index > addresses.size()) {
+                throw new IOException("Unknown device index " + index);
+            }
+            String deviceAddress = addresses.get((int) index);
+
+            UUID uuid = null;
+            byte[] value = null;
+            if (type.hasCharacteristic()) {
+                uuid = readUuid(in);
+                long length = readVarLong(in);
+                if (length < 0 || length > Integer.MAX_VALUE) {
+                    throw new IOException("Invalid value length " + length);
+                }
+                value = new byte[(int) length];
+                in.readFully(value);
+            }
+            return new GattTraceEvent(type, timeMicros, deviceAddress, uuid, value);
+        } catch (EOFException ex) {
+            throw new IOException("Truncated GATT trace", ex);
+        }
+    }
+
+    /**
+     * Reads all remaining events.
+     */
+    public List<GattTraceEvent> readAll() throws IOException {
+        List<GattTraceEvent> events = new ArrayList<>();
+        GattTraceEvent event;
+        while ((event = next()) != null) {
+            events.add(event);
+        }
+        return events;
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        int kind = in.readUnsignedByte();
+        if (kind == GattTraceRecorder.UUID_SHORT) {
+            long shortUuid = in.readUnsignedShort();
+            return new UUID(GattTraceRecorder.BASE_UUID_MSB | shortUuid << 32,
+                    GattTraceRecorder.BASE_UUID_LSB);
+        } else if (kind == GattTraceRecorder.UUID_FULL) {
+            return new UUID(in.readLong(), in.readLong());
+        }
+        throw new IOException("Unknown UUID kind " + kind);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed number in GATT trace");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
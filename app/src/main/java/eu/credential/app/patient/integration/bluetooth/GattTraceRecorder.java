@@ -0,0 +1,164 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes the GATT events it listens to into a compact binary trace, which the GattTraceReader
+ * reads back. After a header, every event is stored as its type, the time since the previous
+ * event in microseconds as variable length number, the device as index into the addresses seen
+ * so far, and for characteristic events the UUID, 16 bit short for the Bluetooth base UUIDs,
+ * and the value. A failed write stops the recording, the error can be fetched afterwards.
+ */
+public class GattTraceRecorder implements GattEventListener, Closeable {
+
+    // "GTRC"
+    final static int MAGIC = 0x47545243;
+    final static int VERSION = 1;
+
+    // marks how the UUID of an event is stored
+    final static int UUID_SHORT = 16;
+    final static int UUID_FULL = 128;
+
+    // least significant bits of the Bluetooth base UUID 0000xxxx-0000-1000-8000-00805f9b34fb
+    final static long BASE_UUID_LSB = 0x800000805F9B34FBL;
+    final static long BASE_UUID_MSB = 0x0000000000001000L;
+    private final static long BASE_UUID_MSB_MASK = 0xFFFF0000FFFFFFFFL;
+
+    private final DataOutputStream out;
+    private final long startNanos;
+    private long lastMicros;
+    private final Map<String, Integer> addresses;
+    private int eventCount;
+    private IOException error;
+
+    public GattTraceRecorder(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.startNanos = System.nanoTime();
+        this.lastMicros = 0;
+        this.addresses = new HashMap<>();
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+
+    @Override
+    public void onConnected(String deviceAddress) {
+        record(GattTraceEvent.Type.CONNECTED, deviceAddress, null, null);
+    }
+
+    @Override
+    public void onDisconnected(String deviceAddress) {
+        record(GattTraceEvent.Type.DISCONNECTED, deviceAddress, null, null);
+    }
+
+    @Override
+    public void onServicesDiscovered(String deviceAddress) {
+        record(GattTraceEvent.Type.SERVICES_DISCOVERED, deviceAddress, null, null);
+    }
+
+    @Override
+    public void onCharacteristicChanged(String deviceAddress, UUID characteristicUuid,
+                                        byte[] value) {
+        record(GattTraceEvent.Type.CHARACTERISTIC_CHANGED, deviceAddress, characteristicUuid,
+                value);
+    }
+
+    @Override
+    public void onCharacteristicRead(String deviceAddress, UUID characteristicUuid,
+                                     byte[] value) {
+        record(GattTraceEvent.Type.CHARACTERISTIC_READ, deviceAddress, characteristicUuid, value);
+    }
+
+    @Override
+    public void onCharacteristicWritten(String deviceAddress, UUID characteristicUuid,
+                                        byte[] value) {
+        record(GattTraceEvent.Type.CHARACTERISTIC_WRITTEN, deviceAddress, characteristicUuid,
+                value);
+    }
+
+    @Override
+    public void onDescriptorWritten(String deviceAddress, UUID characteristicUuid,
+                                    byte[] value) {
+        record(GattTraceEvent.Type.DESCRIPTOR_WRITTEN, deviceAddress, characteristicUuid, value);
+    }
+
+    private synchronized void record(GattTraceEvent.Type type, String deviceAddress,
+                                     UUID characteristicUuid, byte[] value) {
+        if (error != null) return;
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        try {
+            out.writeByte(type.ordinal());
+            writeVarLong(out, micros - lastMicros);
+            lastMicros = micros;
+
+            Integer index = addresses.get(deviceAddress);
+            if (index == null) {
+                writeVarLong(out, addresses.size());
+                out.writeUTF(deviceAddress);
+                addresses.put(deviceAddress, addresses.size());
+            } else {
+                writeVarLong(out, index);
+            }
+
+            if (type.hasCharacteristic()) {
+                writeUuid(out, characteristicUuid);
+                byte[] bytes = value != null ? value : new byte[0];
+                writeVarLong(out, bytes.length);
+                out.write(bytes);
+            }
+            eventCount++;
+        } catch (IOException ex) {
+            error = ex;
+        }
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if (lsb == BASE_UUID_LSB && (msb & BASE_UUID_MSB_MASK) == BASE_UUID_MSB) {
+            out.writeByte(UUID_SHORT);
+            out.writeShort((int) (msb >>> 32));
+        } else {
+            out.writeByte(UUID_FULL);
+            out.writeLong(msb);
+            out.writeLong(lsb);
+        }
+    }
+
+    /**
+     * Writes 7 bits per byte, the highest bit tells that more bytes follow.
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public synchronized int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return null, if all events have been written
+     */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    /**
+     * Writes the buffered events and closes the trace.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+        if (error != null) throw error;
+    }
+}
@@ -0,0 +1,262 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Bounded buffer for the notifications of one device between the GATT callback and the
+ * listener. A slot is allocated with the first value it takes and only replaced by a longer
+ * one, so the buffer costs no more than the values it has seen and the callback thread mostly
+ * just copies. The listener drains the buffer on its own thread. If the listener falls behind
+ * and the buffer is full, the overflow policy decides what happens, the callback thread is
+ * never held up, since it is shared by all devices. All methods are synchronized, the callback
+ * writes and the listener reads.
+ */
+public class NotificationRingBuffer {
+
+    /**
+     * What happens to a notification, which does not fit into the full buffer.
+     */
+    public enum OverflowPolicy {
+        // the oldest notification is overwritten
+        DROP_OLDEST,
+        // the newest queued value of the same characteristic is replaced, the oldest
+        // notification is overwritten if there is none
+        COALESCE,
+        // the buffer doubles up to MAX_CAPACITY, the oldest notification is overwritten
+        // afterwards
+        GROW
+    }
+
+    /**
+     * Receives the drained notifications.
+     */
+    public interface Consumer {
+        void accept(UUID characteristicUuid, byte[] value);
+    }
+
+    public final static int DEFAULT_CAPACITY = 128;
+    // capacity a growing buffer starts with
+    public final static int INITIAL_GROW_CAPACITY = 16;
+    // largest capacity a growing buffer reaches, more than the records of a meter
+    public final static int MAX_CAPACITY = 4096;
+    // longest value of an attribute
+    public final static int MAX_VALUE_LENGTH = 512;
+
+    private final OverflowPolicy policy;
+    private UUID[] uuids;
+    // allocated on first use
+    private byte[][] values;
+    private int[] lengths;
+
+    // index of the oldest notification
+    private int tail;
+    private int size;
+    // true from the first notification until a drain has found the buffer empty
+    private boolean draining;
+
+    private long offered;
+    private long drops;
+    private long coalesced;
+    private int highWaterMark;
+
+    /**
+     * Creates a buffer with the default capacity of the policy.
+     */
+    public NotificationRingBuffer(OverflowPolicy policy) {
+        this(policy == OverflowPolicy.GROW ? INITIAL_GROW_CAPACITY : DEFAULT_CAPACITY, policy);
+    }
+
+    /**
+     * @param capacity number of notifications, which fit into the buffer, the initial one for
+     *                 the GROW policy
+     */
+    public NotificationRingBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.policy = policy;
+        this.uuids = new UUID[capacity];
+        this.values = new byte[capacity][];
+        this.lengths = new int[capacity];
+    }
+
+    /**
+     * Copies the notification into the buffer.
+     *
+     * @return true, if the buffer has not been drained yet and a drain has to be started
+     */
+    public synchronized boolean offer(UUID characteristicUuid, byte[] value) {
+        offered++;
+        int length = value != null ? Math.min(value.length, MAX_VALUE_LENGTH) : 0;
+        if (size == uuids.length && !makeRoom(characteristicUuid, value, length)) {
+            return false;
+        }
+
+        int index = (tail + size) % uuids.length;
+        uuids[index] = characteristicUuid;
+        copyToSlot(index, value, length);
+        size++;
+        if (size > highWaterMark) highWaterMark = size;
+
+        if (draining) return false;
+        draining = true;
+        return true;
+    }
+
+    private void copyToSlot(int index, byte[] value, int length) {
+        if (values[index] == null || values[index].length < length) {
+            values[index] = new byte[length];
+        }
+        if (length > 0) System.arraycopy(value, 0, values[index], 0, length);
+        lengths[index] = length;
+    }
+
+    /**
+     * Applies the overflow policy to the full buffer.
+     *
+     * @return true, if the notification still has to be added
+     */
+    private boolean makeRoom(UUID characteristicUuid, byte[] value, int length) {
+        switch (policy) {
+            case COALESCE:
+                for (int i = size - 1; i >= 0; i--) {
+                    int index = (tail + i) % uuids.length;
+                    if (uuids[index].equals(characteristicUuid)) {
+                        copyToSlot(index, value, length);
+                        coalesced++;
+                        return false;
+                    }
+                }
+                dropOldest();
+                return true;
+            case GROW:
+                if (uuids.length < MAX_CAPACITY) {
+                    grow(Math.min(uuids.length * 2, MAX_CAPACITY));
+                } else {
+                    dropOldest();
+                }
+                return true;
+            default:
+                dropOldest();
+                return true;
+        }
+    }
+
+    private void dropOldest() {
+        tail = (tail + 1) % uuids.length;
+        size--;
+        drops++;
+    }
+
+    /**
+     * Moves the notifications in order into bigger arrays.
+     */
+    private void grow(int capacity) {
+        UUID[] newUuids = new UUID[capacity];
+        byte[][] newValues = new byte[capacity][];
+        int[] newLengths = new int[capacity];
+        for (int i = 0; i < uuids.length; i++) {
+            int index = (tail + i) % uuids.length;
+            newUuids[i] = uuids[index];
+            newValues[i] = values[index];
+            newLengths[i] = lengths[index];
+        }
+        uuids = newUuids;
+        values = newValues;
+        lengths = newLengths;
+        tail = 0;
+    }
+
+    /**
+     * Hands all buffered notifications to the consumer, including those offered meanwhile.
+     * The consumer is called outside the lock, so the callback is not held up by it. If the
+     * consumer throws, the next offer starts a new drain for the remaining notifications.
+     */
+    public void drain(Consumer consumer) {
+        boolean done = false;
+        try {
+            while (true) {
+                UUID uuid;
+                byte[] value;
+                synchronized (this) {
+                    if (size == 0) {
+                        draining = false;
+                        done = true;
+                        return;
+                    }
+                    uuid = uuids[tail];
+                    value = Arrays.copyOf(values[tail], lengths[tail]);
+                    uuids[tail] = null;
+                    tail = (tail + 1) % uuids.length;
+                    size--;
+                }
+                consumer.accept(uuid, value);
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the buffered notifications, if they cannot be drained anymore.
+     */
+    public synchronized void clear() {
+        drops += size;
+        Arrays.fill(uuids, null);
+        tail = 0;
+        size = 0;
+        draining = false;
+    }
+
+    public synchronized int getCapacity() {
+        return uuids.length;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of notifications offered since creation.
+     */
+    public synchronized long getOffered() {
+        return offered;
+    }
+
+    /**
+     * Returns the number of notifications lost by overflow or clearing.
+     */
+    public synchronized long getDrops() {
+        return drops;
+    }
+
+    /**
+     * Returns the number of values, which replaced a queued one of the same characteristic.
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Returns the most notifications, which have been buffered at once.
+     */
+    public synchronized int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return policy + " " + size + "/" + uuids.length + ", high water " + highWaterMark
+                + ", " + offered + " offered, " + drops + " dropped, " + coalesced
+                + " coalesced";
+    }
+}
@@ -0,0 +1,145 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.util.Random;
+
+/**
+ * Decides how a device is connected again: directly or in the background, how long to wait
+ * after failed attempts and when to stop trying for a while. Direct connections are fast, but
+ * fail after a short time if the device is out of range. Background connections (autoConnect)
+ * wait for the device as long as needed, but are slow to set up.
+ */
+public class ReconnectPolicy {
+
+    /**
+     * Kind of connection attempt.
+     */
+    public enum Mode {
+        // always connect directly
+        DIRECT,
+        // always wait in the background
+        AUTO,
+        // connect directly first, wait in the background once the device seems out of range
+        DIRECT_THEN_AUTO
+    }
+
+    /**
+     * Classification of the status of a lost or failed connection.
+     */
+    public enum Failure {
+        // no failure, e.g. the connection has been closed on request
+        NONE,
+        // the device has not answered in time, it is most likely out of range
+        OUT_OF_RANGE,
+        // the device has closed the connection
+        PEER_TERMINATED,
+        // the stack has failed, e.g. the infamous GATT_ERROR 133, the client should be renewed
+        STACK_ERROR,
+        // anything else
+        OTHER;
+
+        // status codes of the link layer and the stack, as reported by onConnectionStateChange
+        private final static int STATUS_CONNECTION_TIMEOUT = 0x08;
+        private final static int STATUS_TERMINATED_BY_PEER = 0x13;
+        private final static int STATUS_TERMINATED_LOCALLY = 0x16;
+        private final static int STATUS_FAILED_TO_ESTABLISH = 0x3e;
+        private final static int STATUS_GATT_ERROR = 0x85;
+
+        public static Failure classify(int status) {
+            switch (status) {
+                case 0:
+                case STATUS_TERMINATED_LOCALLY:
+                    return NONE;
+                case STATUS_CONNECTION_TIMEOUT:
+                case STATUS_FAILED_TO_ESTABLISH:
+                    return OUT_OF_RANGE;
+                case STATUS_TERMINATED_BY_PEER:
+                    return PEER_TERMINATED;
+                case STATUS_GATT_ERROR:
+                    return STACK_ERROR;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    /**
+     * Policy for devices, which are around most of the time, e.g. worn sensors.
+     */
+    public final static ReconnectPolicy DEFAULT =
+            new ReconnectPolicy(Mode.DIRECT_THEN_AUTO, 1000, 5 * 60 * 1000, 0.2, 5, 10 * 60 * 1000);
+
+    /**
+     * Policy for devices, which only advertise for a short while after a measurement, e.g.
+     * meters and scales. They are waited for in the background, failures are not worth a fast
+     * retry.
+     */
+    public final static ReconnectPolicy OCCASIONAL =
+            new ReconnectPolicy(Mode.AUTO, 5000, 15 * 60 * 1000, 0.2, 8, 30 * 60 * 1000);
+
+    private final Mode mode;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final double jitter;
+    private final int failureThreshold;
+    private final long openDuration;
+
+    /**
+     * @param baseDelay        time in ms waited after the first failure, doubled on every
+     *                         further failure
+     * @param maxDelay         upper bound of the waiting time in ms
+     * @param jitter           fraction by which the waiting time is varied at random, so that
+     *                         devices failing together do not retry together
+     * @param failureThreshold number of failures in a row, after which the device is not
+     *                         connected for the open duration
+     * @param openDuration     time in ms to leave a failing device alone
+     */
+    public ReconnectPolicy(Mode mode, long baseDelay, long maxDelay, double jitter,
+                           int failureThreshold, long openDuration) {
+        this.mode = mode;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Returns true, if the next attempt should wait in the background.
+     */
+    public boolean useAutoConnect(ConnectionHistory history) {
+        switch (mode) {
+            case DIRECT:
+                return false;
+            case AUTO:
+                return true;
+            default:
+                return history.getConsecutiveFailures() > 0
+                        && history.getLastFailure() == Failure.OUT_OF_RANGE;
+        }
+    }
+
+    /**
+     * Returns the time in ms to wait before the next attempt.
+     *
+     * @param failures number of failed attempts in a row
+     */
+    public long backoffDelay(int failures, Random random) {
+        if (failures <= 0) return 0;
+        // no overflow of the shift, the delay is capped long before
+        long delay = Math.min(maxDelay, baseDelay << Math.min(failures - 1, 30));
+        double variation = 1 + jitter * (2 * random.nextDouble() - 1);
+        return Math.min(maxDelay, Math.round(delay * variation));
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+}
@@ -0,0 +1,505 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a recorded GATT trace back to the listeners, in place of the BleService. The events are
+ * replayed with their recorded timing divided by the speed, or as fast as possible with speed 0.
+ * The connection follows the trace, the operations of the listeners complete with the recorded
+ * results of their characteristic in order, even if the result has been replayed before the
+ * operation was requested. Characteristics, which do not appear in the trace, are not supported.
+ * Needs no Android classes, so the collection can be run and measured on any JVM.
+ */
+public class ReplayGattClient implements GattClient {
+
+    private static class Registration {
+        final GattEventListener listener;
+        final Executor executor;
+
+        Registration(GattEventListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private static class Pending {
+        final CompletableFuture<byte[]> future;
+        final long requestNanos;
+
+        Pending(CompletableFuture<byte[]> future) {
+            this.future = future;
+            this.requestNanos = System.nanoTime();
+        }
+    }
+
+    // kinds of operations, by which results are matched
+    private final static String READ = "read";
+    private final static String WRITE = "write";
+    private final static String DESCRIPTOR = "descriptor";
+
+    private final List<GattTraceEvent> events;
+    private final double speed;
+
+    private final Map<String, List<Registration>> listeners;
+    private final Set<String> connected;
+    // devices disconnected on request, their events are skipped until the trace disconnects
+    private final Set<String> dropped;
+    // device address and UUID of every characteristic in the trace
+    private final Set<String> characteristics;
+    // operations waiting for their result
+    private final Map<String, ArrayDeque<Pending>> pending;
+    // results replayed before their operation has been requested
+    private final Map<String, ArrayDeque<byte[]>> unclaimed;
+    private final Map<String, TransferStats> transfers;
+
+    private final CountDownLatch finished;
+    private long startNanos;
+    private long endNanos;
+    private int replayedEvents;
+    private int completedOperations;
+    private long operationNanos;
+
+    /**
+     * @param speed factor by which the replay is faster than recorded, 0 for no waiting at all
+     */
+    public ReplayGattClient(List<GattTraceEvent> events, double speed) {
+        this.events = new ArrayList<>(events);
+        this.speed = speed;
+        this.listeners = new HashMap<>();
+        this.connected = new HashSet<>();
+        this.dropped = new HashSet<>();
+        this.characteristics = new HashSet<>();
+        this.pending = new HashMap<>();
+        this.unclaimed = new HashMap<>();
+        this.transfers = new HashMap<>();
+        this.finished = new CountDownLatch(1);
+        for (GattTraceEvent event : events) {
+            if (event.getType().hasCharacteristic()) {
+                characteristics.add(event.getDeviceAddress() + "/" + event.getCharacteristicUuid());
+            }
+        }
+    }
+
+    /**
+     * Reads the whole trace, which is replayed once started.
+     */
+    public static ReplayGattClient fromTrace(InputStream in, double speed) throws IOException {
+        try (GattTraceReader reader = new GattTraceReader(in)) {
+            return new ReplayGattClient(reader.readAll(), speed);
+        }
+    }
+
+    /**
+     * Starts the replay on its own thread. The listeners should be registered before.
+     */
+    public synchronized void start() {
+        if (startNanos != 0) return;
+        startNanos = System.nanoTime();
+        Thread thread = new Thread(this::replay, "gatt-replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits until all events have been replayed.
+     *
+     * @return false, if the timeout has elapsed before
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    private void replay() {
+        try {
+            for (GattTraceEvent event : events) {
+                if (speed > 0) {
+                    long due = startNanos + (long) (event.getTimeMicros() * 1000 / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                process(event);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // the trace has ended, no result will come anymore
+            List<Pending> failed;
+            synchronized (this) {
+                failed = removePending(null);
+                endNanos = System.nanoTime();
+            }
+            fail(failed, "Trace has ended");
+            finished.countDown();
+        }
+    }
+
+    private void process(GattTraceEvent event) {
+        String deviceAddress = event.getDeviceAddress();
+        List<Pending> failed = null;
+        Pending completed = null;
+
+        synchronized (this) {
+            replayedEvents++;
+            if (dropped.contains(deviceAddress)) {
+                // the device has been disconnected on request, until the trace catches up
+                if (event.getType() != GattTraceEvent.Type.CONNECTED) {
+                    if (event.getType() == GattTraceEvent.Type.DISCONNECTED) {
+                        dropped.remove(deviceAddress);
+                    }
+                    return;
+                }
+                dropped.remove(deviceAddress);
+            }
+
+            switch (event.getType()) {
+                case CONNECTED:
+                    connected.add(deviceAddress);
+                    break;
+                case DISCONNECTED:
+                    connected.remove(deviceAddress);
+                    failed = removePending(deviceAddress);
+                    TransferStats stats = transfers.get(deviceAddress);
+                    if (stats != null) stats.finish();
+                    break;
+                case CHARACTERISTIC_CHANGED:
+                    TransferStats transfer = transfers.get(deviceAddress);
+                    if (transfer != null && !transfer.isFinished()) {
+                        transfer.addNotification(event.getValue().length);
+                    }
+                    break;
+                case CHARACTERISTIC_READ:
+                    completed = claim(key(READ, deviceAddress, event.getCharacteristicUuid()),
+                            event.getValue());
+                    break;
+                case CHARACTERISTIC_WRITTEN:
+                    completed = claim(key(WRITE, deviceAddress, event.getCharacteristicUuid()),
+                            event.getValue());
+                    break;
+                case DESCRIPTOR_WRITTEN:
+                    completed = claim(key(DESCRIPTOR, deviceAddress, event.getCharacteristicUuid()),
+                            event.getValue());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (failed != null) fail(failed, "Disconnected from " + deviceAddress);
+        if (completed != null) complete(completed, event.getValue());
+        deliver(event);
+    }
+
+    /**
+     * Takes the oldest operation waiting for the result, or keeps the result for a later one.
+     */
+    private Pending claim(String key, byte[] value) {
+        ArrayDeque<Pending> waiting = pending.get(key);
+        if (waiting != null && !waiting.isEmpty()) return waiting.poll();
+        ArrayDeque<byte[]> results = unclaimed.get(key);
+        if (results == null) {
+            results = new ArrayDeque<>();
+            unclaimed.put(key, results);
+        }
+        results.add(value);
+        return null;
+    }
+
+    /**
+     * Removes the waiting operations of the device, of all devices if null.
+     */
+    private List<Pending> removePending(String deviceAddress) {
+        List<Pending> removed = new ArrayList<>();
+        Iterator<Map.Entry<String, ArrayDeque<Pending>>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ArrayDeque<Pending>> entry = iterator.next();
+            if (deviceAddress == null || entry.getKey().contains("/" + deviceAddress + "/")) {
+                removed.addAll(entry.getValue());
+                iterator.remove();
+            }
+        }
+        return removed;
+    }
+
+    private void complete(Pending operation, byte[] value) {
+        synchronized (this) {
+            completedOperations++;
+            operationNanos += System.nanoTime() - operation.requestNanos;
+        }
+        operation.future.complete(value.clone());
+    }
+
+    private static void fail(List<Pending> operations, String message) {
+        for (Pending operation : operations) {
+            operation.future.completeExceptionally(
+                    new GattException(message, GattException.STATUS_DISCONNECTED));
+        }
+    }
+
+    private void deliver(GattTraceEvent event) {
+        List<Registration> registrations;
+        synchronized (this) {
+            List<Registration> current = listeners.get(event.getDeviceAddress());
+            if (current == null) return;
+            registrations = new ArrayList<>(current);
+        }
+        for (Registration registration : registrations) {
+            try {
+                registration.executor.execute(() -> event.deliver(registration.listener));
+            } catch (RejectedExecutionException ex) {
+                // the listener has been shut down
+            }
+        }
+    }
+
+    private static String key(String kind, String deviceAddress, UUID characteristicUuid) {
+        return kind + "/" + deviceAddress + "/" + characteristicUuid;
+    }
+
+    /**
+     * Queues the operation until its recorded result is replayed.
+     */
+    private CompletableFuture<byte[]> enqueue(String kind, String deviceAddress,
+                                              UUID characteristicId) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (!supportsCharacteristic(deviceAddress, null, characteristicId)) {
+            future.completeExceptionally(new GattException("Characteristic " + characteristicId
+                    + " not in trace", GattException.STATUS_NOT_SENT));
+            return future;
+        }
+        Pending operation = new Pending(future);
+        byte[] result = null;
+        synchronized (this) {
+            if (!connected.contains(deviceAddress)) {
+                future.completeExceptionally(new GattException("Not connected to "
+                        + deviceAddress, GattException.STATUS_NOT_SENT));
+                return future;
+            }
+            String key = key(kind, deviceAddress, characteristicId);
+            ArrayDeque<byte[]> results = unclaimed.get(key);
+            if (results != null && !results.isEmpty()) {
+                result = results.poll();
+            } else {
+                ArrayDeque<Pending> waiting = pending.get(key);
+                if (waiting == null) {
+                    waiting = new ArrayDeque<>();
+                    pending.put(key, waiting);
+                }
+                waiting.add(operation);
+            }
+        }
+        if (result != null) complete(operation, result);
+        return future;
+    }
+
+    @Override
+    public synchronized void registerListener(String deviceAddress, GattEventListener listener,
+                                              Executor executor) {
+        List<Registration> registrations = listeners.get(deviceAddress);
+        if (registrations == null) {
+            registrations = new ArrayList<>();
+            listeners.put(deviceAddress, registrations);
+        }
+        registrations.add(new Registration(listener, executor));
+    }
+
+    @Override
+    public synchronized void unregisterListener(String deviceAddress, GattEventListener listener) {
+        List<Registration> registrations = listeners.get(deviceAddress);
+        if (registrations == null) return;
+        registrations.removeIf(registration -> registration.listener == listener);
+        if (registrations.isEmpty()) listeners.remove(deviceAddress);
+    }
+
+    /**
+     * The trace decides, when the device connects.
+     */
+    @Override
+    public boolean startConnect(String deviceAddress) {
+        return true;
+    }
+
+    @Override
+    public void cancelConnect(String deviceAddress) {
+    }
+
+    @Override
+    public boolean isConnectingInBackground(String deviceAddress) {
+        return false;
+    }
+
+    @Override
+    public void onAdvertising(String deviceAddress) {
+    }
+
+    /**
+     * Reports the device as disconnected at once and skips its events, until the trace has
+     * disconnected it as well.
+     */
+    @Override
+    public void startDisconnect(String deviceAddress) {
+        List<Pending> failed;
+        synchronized (this) {
+            if (!connected.remove(deviceAddress)) return;
+            dropped.add(deviceAddress);
+            failed = removePending(deviceAddress);
+        }
+        fail(failed, "Disconnected from " + deviceAddress);
+        deliver(new GattTraceEvent(GattTraceEvent.Type.DISCONNECTED, 0, deviceAddress, null, null));
+    }
+
+    @Override
+    public synchronized boolean isConnected(String deviceAddress) {
+        return connected.contains(deviceAddress);
+    }
+
+    @Override
+    public String getDeviceName(String deviceAddress) {
+        return "";
+    }
+
+    /**
+     * The trace decides, when the services are discovered.
+     */
+    @Override
+    public void startDeviceServiceDiscovery(String deviceAddress) {
+    }
+
+    /**
+     * The trace does not know the services, the characteristic is looked up by its UUID only.
+     */
+    @Override
+    public boolean supportsCharacteristic(String deviceAddress, UUID serviceId,
+                                          UUID characteristicId) {
+        return characteristics.contains(deviceAddress + "/" + characteristicId);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readCharacteristic(UUID serviceId, UUID characteristicId,
+                                                        String deviceAddress) {
+        return enqueue(READ, deviceAddress, characteristicId);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> enableNotification(UUID serviceId, UUID characteristicId,
+                                                        String deviceAddress) {
+        return enqueue(DESCRIPTOR, deviceAddress, characteristicId);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> enableIndication(UUID serviceId, UUID characteristicId,
+                                                      String deviceAddress) {
+        return enqueue(DESCRIPTOR, deviceAddress, characteristicId);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> requestAllRecords(UUID serviceId, UUID characteristicId,
+                                                       String deviceAddress) {
+        return enqueue(WRITE, deviceAddress, characteristicId);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> writeRecordAccessControlPoint(
+            UUID serviceId, UUID characteristicId, String deviceAddress, byte[] request) {
+        return enqueue(WRITE, deviceAddress, characteristicId);
+    }
+
+    /**
+     * Counts the notifications until the end of the transfer, the MTU is the default one.
+     */
+    @Override
+    public synchronized CompletableFuture<Integer> beginBulkTransfer(String deviceAddress) {
+        transfers.put(deviceAddress,
+                new TransferStats(deviceAddress, DEFAULT_MTU, false));
+        return CompletableFuture.completedFuture(DEFAULT_MTU);
+    }
+
+    @Override
+    public synchronized TransferStats endBulkTransfer(String deviceAddress) {
+        TransferStats stats = transfers.get(deviceAddress);
+        if (stats == null || stats.isFinished()) return null;
+        stats.finish();
+        return stats;
+    }
+
+    @Override
+    public void setCollecting(String deviceAddress) {
+    }
+
+    @Override
+    public void setReconnectPolicy(String deviceAddress, ReconnectPolicy policy) {
+    }
+
+    /**
+     * The replay is deterministic, every notification is delivered.
+     */
+    @Override
+    public void setOverflowPolicy(String deviceAddress,
+                                  NotificationRingBuffer.OverflowPolicy policy) {
+    }
+
+    @Override
+    public long getReconnectDelay(String deviceAddress) {
+        return 0;
+    }
+
+    /**
+     * Returns the figures of the last transfer of the device.
+     *
+     * @return null, if the device has not transferred records
+     */
+    public synchronized TransferStats getTransferStats(String deviceAddress) {
+        return transfers.get(deviceAddress);
+    }
+
+    public synchronized int getReplayedEvents() {
+        return replayedEvents;
+    }
+
+    /**
+     * Returns the time in ms the replay has taken so far.
+     */
+    public synchronized long getElapsedMillis() {
+        if (startNanos == 0) return 0;
+        return ((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos) / 1000000;
+    }
+
+    /**
+     * Returns the time in ms the recording has taken.
+     */
+    public long getTraceMillis() {
+        return events.isEmpty() ? 0 : events.get(events.size() - 1).getTimeMicros() / 1000;
+    }
+
+    public synchronized int getCompletedOperations() {
+        return completedOperations;
+    }
+
+    /**
+     * Returns the average time in microseconds from the request of an operation to its result.
+     */
+    public synchronized long getAverageOperationMicros() {
+        return completedOperations > 0 ? operationNanos / completedOperations / 1000 : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return replayedEvents + " of " + events.size() + " events in " + getElapsedMillis()
+                + " ms (recorded " + getTraceMillis() + " ms), " + completedOperations
+                + " operations, avg " + getAverageOperationMicros() + " us";
+    }
+}
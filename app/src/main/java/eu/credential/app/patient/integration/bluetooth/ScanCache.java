@@ -0,0 +1,127 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Advertisers seen by the DeviceScanner, with their signal strength and the time they were seen
+ * last. A device counts as present, as long as it has advertised within the given age.
+ */
+public class ScanCache {
+
+    /**
+     * Last advertisement of one device.
+     */
+    public static class Entry {
+        private final String address;
+        private final String name;
+        private final int rssi;
+        private final long lastSeen;
+        private final List<UUID> serviceUuids;
+
+        Entry(String address, String name, int rssi, long lastSeen, List<UUID> serviceUuids) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+            this.serviceUuids = Collections.unmodifiableList(serviceUuids);
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return empty string, if the advertisement carries no name
+         */
+        public String getName() {
+            return name;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        /**
+         * Returns the time of the last advertisement in unix milliseconds.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * Returns the services announced in the advertisement.
+         */
+        public List<UUID> getServiceUuids() {
+            return serviceUuids;
+        }
+
+        @Override
+        public String toString() {
+            return address + " \"" + name + "\" " + rssi + " dBm";
+        }
+    }
+
+    private final Map<String, Entry> entries;
+
+    public ScanCache() {
+        this.entries = new HashMap<>();
+    }
+
+    /**
+     * Stores the advertisement. Name and services are kept from earlier advertisements, if the
+     * new one lacks them, as devices alternate between advertising and scan response data.
+     *
+     * @return true, if the device has not been present before
+     */
+    synchronized boolean put(String address, String name, int rssi, long seen,
+                             List<UUID> serviceUuids, long maxAge) {
+        Entry previous = entries.get(address);
+        if (previous != null) {
+            if (name == null || name.isEmpty()) name = previous.name;
+            if (serviceUuids.isEmpty()) serviceUuids = previous.serviceUuids;
+        }
+        entries.put(address, new Entry(address, name != null ? name : "", rssi, seen,
+                new ArrayList<>(serviceUuids)));
+        return previous == null || previous.lastSeen < seen - maxAge;
+    }
+
+    /**
+     * @return null, if the device has never been seen
+     */
+    public synchronized Entry get(String address) {
+        return entries.get(address);
+    }
+
+    /**
+     * Returns the devices, which have advertised within the given age, the strongest first.
+     *
+     * @param maxAge time in ms
+     */
+    public synchronized List<Entry> getPresent(long maxAge) {
+        long deadline = System.currentTimeMillis() - maxAge;
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.lastSeen >= deadline) result.add(entry);
+        }
+        Collections.sort(result, (a, b) -> Integer.compare(b.rssi, a.rssi));
+        return result;
+    }
+
+    /**
+     * Returns all devices seen so far, the most recently seen first.
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>(entries.values());
+        Collections.sort(result, (a, b) -> Long.compare(b.lastSeen, a.lastSeen));
+        return result;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
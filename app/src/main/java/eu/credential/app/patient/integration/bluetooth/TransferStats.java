@@ -0,0 +1,91 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import java.util.Locale;
+
+/**
+ * Figures of one bulk transfer of stored records, so that the negotiated connection parameters
+ * can be compared by their throughput.
+ */
+public class TransferStats {
+
+    private final String deviceAddress;
+    private final long startTime;
+    private final boolean highPriority;
+    private volatile int mtu;
+    private volatile long endTime;
+    private long bytes;
+    private int notifications;
+
+    TransferStats(String deviceAddress, int mtu, boolean highPriority) {
+        this.deviceAddress = deviceAddress;
+        this.startTime = System.currentTimeMillis();
+        this.mtu = mtu;
+        this.highPriority = highPriority;
+        this.endTime = 0;
+    }
+
+    synchronized void addNotification(int length) {
+        bytes += length;
+        notifications++;
+    }
+
+    void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    void finish() {
+        if (endTime == 0) endTime = System.currentTimeMillis();
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * Returns the MTU in use during the transfer.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Returns true, if the high connection priority has been granted for the transfer.
+     */
+    public boolean isHighPriority() {
+        return highPriority;
+    }
+
+    public boolean isFinished() {
+        return endTime != 0;
+    }
+
+    /**
+     * Returns the duration so far, if the transfer has not finished yet.
+     */
+    public long getDurationMillis() {
+        return (isFinished() ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getNotifications() {
+        return notifications;
+    }
+
+    /**
+     * Returns the received characteristic bytes per second.
+     */
+    public synchronized double getThroughput() {
+        long duration = getDurationMillis();
+        return duration > 0 ? bytes * 1000.0 / duration : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d bytes in %d notifications within %d ms (%.0f B/s, "
+                        + "MTU %d, %s priority)", getBytes(), getNotifications(),
+                getDurationMillis(), getThroughput(), mtu, highPriority ? "high" : "balanced");
+    }
+}
@@ -0,0 +1,139 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Decoder for the 0x2aa7 "CGM Measurement" characteristic. A notification packs one or more
+ * records, each starting with its own size, so all methods take the offset of a record. Records
+ * are walked with {@code offset += recordSize(data, offset)}.
+ */
+public final class CgmFrameDecoder {
+
+    // flag positions
+    public static final int FLAG_TREND = 0x01;
+    public static final int FLAG_QUALITY = 0x02;
+    public static final int FLAG_WARNING_OCTET = 0x20;
+    public static final int FLAG_CAL_TEMP_OCTET = 0x40;
+    public static final int FLAG_STATUS_OCTET = 0x80;
+
+    // fixed offsets inside a record
+    private static final int SIZE_OFFSET = 0;
+    private static final int FLAGS_OFFSET = 1;
+    private static final int GLUCOSE_OFFSET = 2;
+    private static final int TIME_OFFSET_OFFSET = 4;
+    private static final int ANNUNCIATION_OFFSET = 6;
+
+    // smallest possible record: size, flags, glucose and time offset
+    public static final int MIN_RECORD_SIZE = 6;
+
+    // flag dependent offsets, indexed by the flags
+    private static final int[] TREND_OFFSETS = new int[256];
+    private static final int[] RECORD_LENGTHS = new int[256];
+
+    static {
+        for (int flags = 0; flags < 256; flags++) {
+            int offset = ANNUNCIATION_OFFSET;
+            if ((flags & FLAG_STATUS_OCTET) != 0) offset++;
+            if ((flags & FLAG_CAL_TEMP_OCTET) != 0) offset++;
+            if ((flags & FLAG_WARNING_OCTET) != 0) offset++;
+            TREND_OFFSETS[flags] = offset;
+            if ((flags & FLAG_TREND) != 0) offset += 2;
+            if ((flags & FLAG_QUALITY) != 0) offset += 2;
+            // an optional E2E-CRC may follow, it is covered by the size field
+            RECORD_LENGTHS[flags] = offset;
+        }
+    }
+
+    private CgmFrameDecoder() {
+    }
+
+    /**
+     * Checks, if the first record of the frame is complete. Use isValidRecord for the others.
+     */
+    public static boolean isValid(byte[] data, int offset, int length) {
+        return isValidRecord(data, offset, length);
+    }
+
+    /**
+     * Checks, if the record at the given offset fits into the remaining length and is long
+     * enough for the fields its flags announce.
+     *
+     * @param remaining number of bytes from the offset to the end of the frame
+     */
+    public static boolean isValidRecord(byte[] data, int offset, int remaining) {
+        if (remaining < MIN_RECORD_SIZE) return false;
+        int size = recordSize(data, offset);
+        return size <= remaining && size >= RECORD_LENGTHS[flags(data, offset)];
+    }
+
+    /**
+     * Counts the valid records of the frame, stopping at the first broken one.
+     */
+    public static int recordCount(byte[] data, int offset, int length) {
+        int count = 0;
+        int end = offset + length;
+        while (isValidRecord(data, offset, end - offset)) {
+            count++;
+            offset += recordSize(data, offset);
+        }
+        return count;
+    }
+
+    public static int recordSize(byte[] data, int offset) {
+        return data[offset + SIZE_OFFSET] & 0xFF;
+    }
+
+    public static int flags(byte[] data, int offset) {
+        return data[offset + FLAGS_OFFSET] & 0xFF;
+    }
+
+    /**
+     * Returns the glucose concentration in mg/dL as raw SFLOAT.
+     */
+    public static int rawGlucose(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + GLUCOSE_OFFSET);
+    }
+
+    /**
+     * Returns the minutes since the session start.
+     */
+    public static int timeOffset(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + TIME_OFFSET_OFFSET);
+    }
+
+    /**
+     * Returns the sensor status annunciation as 24 bit mask with the status octet in bits 0-7,
+     * the cal/temp octet in 8-15 and the warning octet in 16-23, like in the CGM Status.
+     */
+    public static int sensorStatus(byte[] data, int offset) {
+        int flags = flags(data, offset);
+        int position = offset + ANNUNCIATION_OFFSET;
+        int status = 0;
+        if ((flags & FLAG_STATUS_OCTET) != 0) status |= data[position++] & 0xFF;
+        if ((flags & FLAG_CAL_TEMP_OCTET) != 0) status |= (data[position++] & 0xFF) << 8;
+        if ((flags & FLAG_WARNING_OCTET) != 0) status |= (data[position] & 0xFF) << 16;
+        return status;
+    }
+
+    /**
+     * Returns the trend in (mg/dL)/min as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawTrend(byte[] data, int offset) {
+        int flags = flags(data, offset);
+        if ((flags & FLAG_TREND) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data, offset + TREND_OFFSETS[flags]);
+    }
+
+    /**
+     * Returns the quality in percent as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawQuality(byte[] data, int offset) {
+        int flags = flags(data, offset);
+        if ((flags & FLAG_QUALITY) == 0) return Ieee11073Float.SFLOAT_NRES;
+        int position = TREND_OFFSETS[flags];
+        if ((flags & FLAG_TREND) != 0) position += 2;
+        return GattFrame.uint16(data, offset + position);
+    }
+}
@@ -0,0 +1,68 @@
+package eu.credential.app.patient.integration.codec;
+
+import java.util.TimeZone;
+
+/**
+ * Decoder for the session related CGM characteristics 0x2aaa "CGM Session Start Time" and
+ * 0x2aa9 "CGM Status". The time offsets of the CGM records count minutes from the session start.
+ */
+public final class CgmSessionFrameDecoder {
+
+    // session start time: date_time, time zone and DST offset
+    public static final int SESSION_START_LENGTH = GattFrame.DATE_TIME_LENGTH + 2;
+    // status: time offset and 24 bit status
+    public static final int STATUS_LENGTH = 5;
+
+    // values, if the device does not know its time zone or DST offset
+    public static final int TIME_ZONE_UNKNOWN = -128;
+    public static final int DST_OFFSET_UNKNOWN = 255;
+
+    private static final long MILLIS_PER_QUARTER_HOUR = 15 * 60 * 1000L;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private CgmSessionFrameDecoder() {
+    }
+
+    public static boolean isValidSessionStart(byte[] data, int offset, int length) {
+        return length >= SESSION_START_LENGTH;
+    }
+
+    /**
+     * Returns the session start in unix milliseconds. The date_time is local time of the device,
+     * which is converted with the transmitted time zone and DST offset. If these are unknown, the
+     * default time zone of the phone is used.
+     *
+     * @return 0, if the device marked the date as unknown
+     */
+    public static long sessionStart(byte[] data, int offset) {
+        int timeZone = data[offset + GattFrame.DATE_TIME_LENGTH];
+        int dstOffset = data[offset + GattFrame.DATE_TIME_LENGTH + 1] & 0xFF;
+        if (timeZone == TIME_ZONE_UNKNOWN || dstOffset == DST_OFFSET_UNKNOWN) {
+            return GattFrame.dateTime(data, offset);
+        }
+
+        long local = GattFrame.dateTime(data, offset, UTC);
+        if (local == 0) return 0;
+        // both are coded in quarter hours, the DST offset as 0, 2, 4 or 8
+        return local - timeZone * MILLIS_PER_QUARTER_HOUR - dstOffset * MILLIS_PER_QUARTER_HOUR;
+    }
+
+    public static boolean isValidStatus(byte[] data, int offset, int length) {
+        return length >= STATUS_LENGTH;
+    }
+
+    /**
+     * Returns the minutes since session start the status refers to.
+     */
+    public static int statusTimeOffset(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset);
+    }
+
+    /**
+     * Returns the status with the status octet in bits 0-7, the cal/temp octet in 8-15 and the
+     * warning octet in 16-23.
+     */
+    public static int status(byte[] data, int offset) {
+        return GattFrame.uint24(data, offset + 2);
+    }
+}
@@ -0,0 +1,89 @@
+package eu.credential.app.patient.integration.codec;
+
+import java.util.TimeZone;
+
+/**
+ * Low level readers for little endian GATT characteristic values. All methods work directly on
+ * the given byte array and the absolute offset into it, so slices of bigger buffers can be read
+ * without copying and without any Android framework classes. Heap ByteBuffers are read the
+ * same way through {@code buffer.array()} and {@code buffer.arrayOffset() + buffer.position()}.
+ */
+public final class GattFrame {
+
+    // length of the org.bluetooth.characteristic.date_time field in bytes
+    public static final int DATE_TIME_LENGTH = 7;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private GattFrame() {
+    }
+
+    public static int uint8(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    public static int sint8(byte[] data, int offset) {
+        return data[offset];
+    }
+
+    public static int uint16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    public static int sint16(byte[] data, int offset) {
+        return (short) uint16(data, offset);
+    }
+
+    public static int uint24(byte[] data, int offset) {
+        return uint16(data, offset) | (data[offset + 2] & 0xFF) << 16;
+    }
+
+    public static long uint32(byte[] data, int offset) {
+        return (uint16(data, offset) | (long) uint16(data, offset + 2) << 16) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Reads a org.bluetooth.characteristic.date_time field and interprets it in the default
+     * time zone of the phone, like the devices do.
+     *
+     * @return unix time in milliseconds, 0 if the device marked the date as unknown
+     */
+    public static long dateTime(byte[] data, int offset) {
+        return dateTime(data, offset, TimeZone.getDefault());
+    }
+
+    /**
+     * Reads a org.bluetooth.characteristic.date_time field (16y + 8m + 8d + 8h + 8min + 8s)
+     * without going through a Calendar.
+     *
+     * @param zone time zone the device clock is running in
+     * @return unix time in milliseconds, 0 if the device marked the date as unknown
+     */
+    public static long dateTime(byte[] data, int offset, TimeZone zone) {
+        int year = uint16(data, offset);
+        int month = uint8(data, offset + 2);
+        int day = uint8(data, offset + 3);
+        if (year == 0 || month == 0 || day == 0) return 0;
+
+        long local = daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                + uint8(data, offset + 4) * 3600000L
+                + uint8(data, offset + 5) * 60000L
+                + uint8(data, offset + 6) * 1000L;
+
+        // the offset is looked up for the approximated utc time, this is exact besides the
+        // hour of a daylight saving switch
+        return local - zone.getOffset(local - zone.getRawOffset());
+    }
+
+    /**
+     * Counts the days since 1970-01-01 for the given date of the proleptic gregorian calendar.
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,208 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Decoder for the 0x2a34 "Glucose Measurement Context" characteristic. Like the measurement, all
+ * field offsets only depend on the flags, so they are computed once for the 128 combinations of
+ * the lower seven flag bits.
+ */
+public final class GlucoseContextFrameDecoder {
+
+    // flag positions
+    public static final int FLAG_CARBOHYDRATE = 0x01;
+    public static final int FLAG_MEAL = 0x02;
+    public static final int FLAG_TESTER_HEALTH = 0x04;
+    public static final int FLAG_EXERCISE = 0x08;
+    public static final int FLAG_MEDICATION = 0x10;
+    public static final int FLAG_MEDICATION_LITER = 0x20;
+    public static final int FLAG_HBA1C = 0x40;
+    public static final int FLAG_EXTENDED = 0x80;
+
+    // exercise duration, if the duration exceeds 65534 seconds
+    public static final int EXERCISE_DURATION_OVERRUN = 0xFFFF;
+
+    // fixed offsets
+    private static final int SEQUENCE_NUMBER_OFFSET = 1;
+    private static final int EXTENDED_FLAGS_OFFSET = 3;
+
+    // flag dependent offsets, indexed by the lower seven bits of the flags, the extended flags
+    // byte is handled separately
+    private static final int[] CARBOHYDRATE_OFFSETS = new int[128];
+    private static final int[] MEAL_OFFSETS = new int[128];
+    private static final int[] TESTER_HEALTH_OFFSETS = new int[128];
+    private static final int[] EXERCISE_OFFSETS = new int[128];
+    private static final int[] MEDICATION_OFFSETS = new int[128];
+    private static final int[] HBA1C_OFFSETS = new int[128];
+    private static final int[] FRAME_LENGTHS = new int[128];
+
+    static {
+        for (int flags = 0; flags < 128; flags++) {
+            int offset = EXTENDED_FLAGS_OFFSET;
+            CARBOHYDRATE_OFFSETS[flags] = offset;
+            if ((flags & FLAG_CARBOHYDRATE) != 0) offset += 3;
+            MEAL_OFFSETS[flags] = offset;
+            if ((flags & FLAG_MEAL) != 0) offset += 1;
+            TESTER_HEALTH_OFFSETS[flags] = offset;
+            if ((flags & FLAG_TESTER_HEALTH) != 0) offset += 1;
+            EXERCISE_OFFSETS[flags] = offset;
+            if ((flags & FLAG_EXERCISE) != 0) offset += 3;
+            MEDICATION_OFFSETS[flags] = offset;
+            if ((flags & FLAG_MEDICATION) != 0) offset += 3;
+            HBA1C_OFFSETS[flags] = offset;
+            if ((flags & FLAG_HBA1C) != 0) offset += 2;
+            FRAME_LENGTHS[flags] = offset;
+        }
+    }
+
+    private GlucoseContextFrameDecoder() {
+    }
+
+    /**
+     * Checks, if the frame at the given offset is long enough for the fields its flags announce.
+     */
+    public static boolean isValid(byte[] data, int offset, int length) {
+        return length > 0 && length >= FRAME_LENGTHS[data[offset] & 0x7F] + extension(data, offset);
+    }
+
+    public static int flags(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    /**
+     * Returns the sequence number of the measurement this context belongs to.
+     */
+    public static int sequenceNumber(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + SEQUENCE_NUMBER_OFFSET);
+    }
+
+    /**
+     * Returns the extended flags (reserved for future use).
+     *
+     * @return 0, if not given
+     */
+    public static int extendedFlags(byte[] data, int offset) {
+        if ((data[offset] & FLAG_EXTENDED) == 0) return 0;
+        return data[offset + EXTENDED_FLAGS_OFFSET] & 0xFF;
+    }
+
+    /**
+     * Returns the carbohydrate id (index of GlucoseContext.CARBOHYDRATES).
+     *
+     * @return 0 (reserved), if no information given
+     */
+    public static int carbohydrateId(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_CARBOHYDRATE) == 0) return 0;
+        return data[offset + CARBOHYDRATE_OFFSETS[flags & 0x7F] + extension(data, offset)] & 0xFF;
+    }
+
+    /**
+     * Returns the carbohydrate amount in kg as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawCarbohydrate(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_CARBOHYDRATE) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data,
+                offset + CARBOHYDRATE_OFFSETS[flags & 0x7F] + extension(data, offset) + 1);
+    }
+
+    /**
+     * Returns the meal code (index of GlucoseContext.MEALS).
+     *
+     * @return 0 (reserved), if no information given
+     */
+    public static int meal(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_MEAL) == 0) return 0;
+        return data[offset + MEAL_OFFSETS[flags & 0x7F] + extension(data, offset)] & 0xFF;
+    }
+
+    /**
+     * Returns the tester out of the lower nibble of the tester-health field.
+     *
+     * @return 0 (reserved), if no information given
+     */
+    public static int tester(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_TESTER_HEALTH) == 0) return 0;
+        return data[offset + TESTER_HEALTH_OFFSETS[flags & 0x7F] + extension(data, offset)] & 0x0F;
+    }
+
+    /**
+     * Returns the health out of the upper nibble of the tester-health field.
+     *
+     * @return 0 (reserved), if no information given
+     */
+    public static int health(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_TESTER_HEALTH) == 0) return 0;
+        return (data[offset + TESTER_HEALTH_OFFSETS[flags & 0x7F] + extension(data, offset)] >> 4)
+                & 0x0F;
+    }
+
+    /**
+     * Returns the exercise duration in seconds.
+     *
+     * @return 0, if no information given
+     */
+    public static int exerciseDuration(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_EXERCISE) == 0) return 0;
+        return GattFrame.uint16(data,
+                offset + EXERCISE_OFFSETS[flags & 0x7F] + extension(data, offset));
+    }
+
+    /**
+     * Returns the exercise intensity in percent.
+     *
+     * @return 0, if no information given
+     */
+    public static int exerciseIntensity(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_EXERCISE) == 0) return 0;
+        return data[offset + EXERCISE_OFFSETS[flags & 0x7F] + extension(data, offset) + 2] & 0xFF;
+    }
+
+    /**
+     * Returns the medication id (index of GlucoseContext.MEDICATIONS).
+     *
+     * @return 0 (reserved), if no information given
+     */
+    public static int medicationId(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_MEDICATION) == 0) return 0;
+        return data[offset + MEDICATION_OFFSETS[flags & 0x7F] + extension(data, offset)] & 0xFF;
+    }
+
+    /**
+     * Returns the medication amount in kg or liter as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawMedication(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_MEDICATION) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data,
+                offset + MEDICATION_OFFSETS[flags & 0x7F] + extension(data, offset) + 1);
+    }
+
+    /**
+     * Returns the HbA1c in percent as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawHbA1c(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_HBA1C) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data,
+                offset + HBA1C_OFFSETS[flags & 0x7F] + extension(data, offset));
+    }
+
+    /**
+     * Returns the length of the extended flags field, which shifts all following fields.
+     */
+    private static int extension(byte[] data, int offset) {
+        return (data[offset] & FLAG_EXTENDED) != 0 ? 1 : 0;
+    }
+}
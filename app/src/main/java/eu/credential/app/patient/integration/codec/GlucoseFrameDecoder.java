@@ -0,0 +1,130 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Decoder for the 0x2a18 "Glucose Measurement" characteristic. The field offsets only depend on
+ * the lower flag bits, so they are computed once for every flag combination and every field is
+ * read with a single table lookup.
+ */
+public final class GlucoseFrameDecoder {
+
+    // flag positions
+    public static final int FLAG_TIME_OFFSET = 0x01;
+    public static final int FLAG_CONCENTRATION = 0x02;
+    public static final int FLAG_UNIT_MOL = 0x04;
+    public static final int FLAG_SENSOR_STATUS = 0x08;
+    public static final int FLAG_CONTEXT_FOLLOWS = 0x10;
+
+    // fixed offsets
+    private static final int SEQUENCE_NUMBER_OFFSET = 1;
+    private static final int BASE_TIME_OFFSET = 3;
+    private static final int TIME_OFFSET_OFFSET = 10;
+
+    // flag dependent offsets, indexed by the lower nibble of the flags
+    private static final int[] CONCENTRATION_OFFSETS = new int[16];
+    private static final int[] TYPE_LOCATION_OFFSETS = new int[16];
+    private static final int[] SENSOR_STATUS_OFFSETS = new int[16];
+    private static final int[] FRAME_LENGTHS = new int[16];
+
+    static {
+        for (int flags = 0; flags < 16; flags++) {
+            int offset = TIME_OFFSET_OFFSET;
+            if ((flags & FLAG_TIME_OFFSET) != 0) offset += 2;
+            CONCENTRATION_OFFSETS[flags] = offset;
+            TYPE_LOCATION_OFFSETS[flags] = offset + 2;
+            if ((flags & FLAG_CONCENTRATION) != 0) offset += 3;
+            SENSOR_STATUS_OFFSETS[flags] = offset;
+            if ((flags & FLAG_SENSOR_STATUS) != 0) offset += 2;
+            FRAME_LENGTHS[flags] = offset;
+        }
+    }
+
+    private GlucoseFrameDecoder() {
+    }
+
+    /**
+     * Checks, if the frame at the given offset is long enough for the fields its flags announce.
+     */
+    public static boolean isValid(byte[] data, int offset, int length) {
+        return length > 0 && length >= FRAME_LENGTHS[data[offset] & 0x0F];
+    }
+
+    public static int flags(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    public static int sequenceNumber(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + SEQUENCE_NUMBER_OFFSET);
+    }
+
+    /**
+     * Returns the base time in unix milliseconds.
+     */
+    public static long baseTime(byte[] data, int offset) {
+        return GattFrame.dateTime(data, offset + BASE_TIME_OFFSET);
+    }
+
+    /**
+     * Returns the time offset in minutes.
+     *
+     * @return 0, if no information given.
+     */
+    public static int timeOffset(byte[] data, int offset) {
+        if ((data[offset] & FLAG_TIME_OFFSET) == 0) return 0;
+        return GattFrame.sint16(data, offset + TIME_OFFSET_OFFSET);
+    }
+
+    /**
+     * Returns the glucose concentration in kg/L or mol/L.
+     *
+     * @return 0, if no information given
+     */
+    public static float concentration(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_CONCENTRATION) == 0) return 0;
+        return Ieee11073Float.readSfloat(data, offset + CONCENTRATION_OFFSETS[flags & 0x0F]);
+    }
+
+    /**
+     * Returns the glucose concentration as raw 16 bit SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawConcentration(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_CONCENTRATION) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data, offset + CONCENTRATION_OFFSETS[flags & 0x0F]);
+    }
+
+    /**
+     * Returns the type code out of the lower nibble of the type-sample location field.
+     *
+     * @return 0 (reserved), if no information given
+     */
+    public static int type(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_CONCENTRATION) == 0) return 0;
+        return data[offset + TYPE_LOCATION_OFFSETS[flags & 0x0F]] & 0x0F;
+    }
+
+    /**
+     * Returns the sample location code out of the upper nibble of the type-sample location field.
+     *
+     * @return 0 (reserved), if no information given
+     */
+    public static int sampleLocation(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_CONCENTRATION) == 0) return 0;
+        return (data[offset + TYPE_LOCATION_OFFSETS[flags & 0x0F]] >> 4) & 0x0F;
+    }
+
+    /**
+     * Returns the 16 bit sensor status annunciation.
+     *
+     * @return 0, if no information given
+     */
+    public static int sensorStatus(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_SENSOR_STATUS) == 0) return 0;
+        return GattFrame.uint16(data, offset + SENSOR_STATUS_OFFSETS[flags & 0x0F]);
+    }
+}
@@ -0,0 +1,91 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Decoder for the 0x2a37 "Heart Rate Measurement" characteristic. Every notification carries one
+ * heart rate and, at the end of the frame, as many RR-intervals as fit into it.
+ */
+public final class HeartRateFrameDecoder {
+
+    // flag positions
+    public static final int FLAG_VALUE_UINT16 = 0x01;
+    public static final int FLAG_SENSOR_CONTACT_DETECTED = 0x02;
+    public static final int FLAG_SENSOR_CONTACT_SUPPORTED = 0x04;
+    public static final int FLAG_ENERGY_EXPENDED = 0x08;
+    public static final int FLAG_RR_INTERVALS = 0x10;
+
+    // resolution of the RR-intervals
+    public static final int RR_INTERVALS_PER_SECOND = 1024;
+
+    private static final int VALUE_OFFSET = 1;
+
+    private HeartRateFrameDecoder() {
+    }
+
+    /**
+     * Checks, if the frame at the given offset is long enough for the fields its flags announce.
+     */
+    public static boolean isValid(byte[] data, int offset, int length) {
+        return length > 0 && length >= rrOffset(data, offset);
+    }
+
+    public static int flags(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    /**
+     * Returns the heart rate in beats per minute.
+     */
+    public static int heartRate(byte[] data, int offset) {
+        if ((data[offset] & FLAG_VALUE_UINT16) != 0) {
+            return GattFrame.uint16(data, offset + VALUE_OFFSET);
+        }
+        return GattFrame.uint8(data, offset + VALUE_OFFSET);
+    }
+
+    /**
+     * Returns true, if the sensor reports contact to the skin or does not support contact
+     * detection at all.
+     */
+    public static boolean hasSensorContact(byte[] data, int offset) {
+        int flags = data[offset];
+        return (flags & FLAG_SENSOR_CONTACT_SUPPORTED) == 0
+                || (flags & FLAG_SENSOR_CONTACT_DETECTED) != 0;
+    }
+
+    /**
+     * Returns the accumulated energy expended in kJ.
+     *
+     * @return -1, if no information given
+     */
+    public static int energyExpended(byte[] data, int offset) {
+        if ((data[offset] & FLAG_ENERGY_EXPENDED) == 0) return -1;
+        return GattFrame.uint16(data, offset + energyOffset(data, offset));
+    }
+
+    /**
+     * Returns the number of RR-intervals in the frame.
+     *
+     * @param length length of the frame
+     */
+    public static int rrCount(byte[] data, int offset, int length) {
+        if ((data[offset] & FLAG_RR_INTERVALS) == 0) return 0;
+        return Math.max(0, (length - rrOffset(data, offset)) / 2);
+    }
+
+    /**
+     * Returns the RR-interval with the given index in 1/1024 seconds.
+     */
+    public static int rrInterval(byte[] data, int offset, int index) {
+        return GattFrame.uint16(data, offset + rrOffset(data, offset) + 2 * index);
+    }
+
+    private static int energyOffset(byte[] data, int offset) {
+        return (data[offset] & FLAG_VALUE_UINT16) != 0 ? VALUE_OFFSET + 2 : VALUE_OFFSET + 1;
+    }
+
+    private static int rrOffset(byte[] data, int offset) {
+        int rrOffset = energyOffset(data, offset);
+        if ((data[offset] & FLAG_ENERGY_EXPENDED) != 0) rrOffset += 2;
+        return rrOffset;
+    }
+}
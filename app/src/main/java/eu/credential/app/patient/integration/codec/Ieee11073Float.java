@@ -0,0 +1,237 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Codec for the IEEE-11073 20601 16 bit SFLOAT and 32 bit FLOAT types used by the health device
+ * profiles. Both consist of a signed mantissa and a signed decimal exponent. The powers of ten are
+ * looked up in tables and the reserved mantissas (NaN, NRes, +/- infinity) are decoded to the
+ * corresponding float values instead of being read as numbers.
+ */
+public final class Ieee11073Float {
+
+    // special SFLOAT values (exponent 0)
+    public static final int SFLOAT_NAN = 0x07FF;
+    public static final int SFLOAT_NRES = 0x0800;
+    public static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    public static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    public static final int SFLOAT_RESERVED = 0x0801;
+
+    // special FLOAT values (exponent 0)
+    public static final int FLOAT_NAN = 0x007FFFFF;
+    public static final int FLOAT_NRES = 0x00800000;
+    public static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    public static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    public static final int FLOAT_RESERVED = 0x00800001;
+
+    // largest mantissas which are no special values
+    public static final int SFLOAT_MAX_MANTISSA = 2045;
+    public static final int FLOAT_MAX_MANTISSA = 8388605;
+
+    // powers of ten for the 4 bit exponent (-8 .. 7)
+    private static final double[] SFLOAT_POWERS = new double[16];
+    // powers of ten for the 8 bit exponent (-128 .. 127)
+    private static final double[] FLOAT_POWERS = new double[256];
+
+    static {
+        for (int i = 0; i < SFLOAT_POWERS.length; i++) {
+            SFLOAT_POWERS[i] = Double.parseDouble("1e" + (i - 8));
+        }
+        for (int i = 0; i < FLOAT_POWERS.length; i++) {
+            FLOAT_POWERS[i] = Double.parseDouble("1e" + (i - 128));
+        }
+    }
+
+    private Ieee11073Float() {
+    }
+
+    /**
+     * Returns the sign extended 12 bit mantissa of the raw SFLOAT.
+     */
+    public static int sfloatMantissa(int raw) {
+        return (raw << 20) >> 20;
+    }
+
+    /**
+     * Returns the sign extended 4 bit exponent of the raw SFLOAT.
+     */
+    public static int sfloatExponent(int raw) {
+        return (raw << 16) >> 28;
+    }
+
+    /**
+     * Returns the sign extended 24 bit mantissa of the raw FLOAT.
+     */
+    public static int floatMantissa(int raw) {
+        return (raw << 8) >> 8;
+    }
+
+    /**
+     * Returns the 8 bit exponent of the raw FLOAT.
+     */
+    public static int floatExponent(int raw) {
+        return raw >> 24;
+    }
+
+    /**
+     * Checks, if the raw SFLOAT is NaN, NRes, reserved or infinite.
+     */
+    public static boolean isSfloatSpecial(int raw) {
+        raw &= 0xFFFF;
+        return raw >= SFLOAT_POSITIVE_INFINITY && raw <= SFLOAT_NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Checks, if the raw FLOAT is NaN, NRes, reserved or infinite.
+     */
+    public static boolean isFloatSpecial(int raw) {
+        return raw >= FLOAT_POSITIVE_INFINITY && raw <= FLOAT_NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Decodes the lower 16 bits of the given raw value as SFLOAT.
+     *
+     * @return Float.NaN for NaN, NRes and the reserved value
+     */
+    public static float decodeSfloat(int raw) {
+        raw &= 0xFFFF;
+        if (isSfloatSpecial(raw)) {
+            if (raw == SFLOAT_POSITIVE_INFINITY) return Float.POSITIVE_INFINITY;
+            if (raw == SFLOAT_NEGATIVE_INFINITY) return Float.NEGATIVE_INFINITY;
+            return Float.NaN;
+        }
+        return (float) (sfloatMantissa(raw) * SFLOAT_POWERS[sfloatExponent(raw) + 8]);
+    }
+
+    /**
+     * Decodes the given raw value as FLOAT.
+     *
+     * @return Float.NaN for NaN, NRes and the reserved value
+     */
+    public static float decodeFloat(int raw) {
+        if (isFloatSpecial(raw)) {
+            if (raw == FLOAT_POSITIVE_INFINITY) return Float.POSITIVE_INFINITY;
+            if (raw == FLOAT_NEGATIVE_INFINITY) return Float.NEGATIVE_INFINITY;
+            return Float.NaN;
+        }
+        return (float) (floatMantissa(raw) * FLOAT_POWERS[floatExponent(raw) + 128]);
+    }
+
+    public static float readSfloat(byte[] data, int offset) {
+        return decodeSfloat(GattFrame.uint16(data, offset));
+    }
+
+    public static float readFloat(byte[] data, int offset) {
+        return decodeFloat((int) GattFrame.uint32(data, offset));
+    }
+
+    /**
+     * Builds a raw SFLOAT out of mantissa and exponent.
+     *
+     * @throws IllegalArgumentException if the value is not representable or a special value
+     */
+    public static int encodeSfloat(int mantissa, int exponent) {
+        if (mantissa < -SFLOAT_MAX_MANTISSA || mantissa > SFLOAT_MAX_MANTISSA
+                || exponent < -8 || exponent > 7) {
+            throw new IllegalArgumentException(
+                    "SFLOAT out of range: " + mantissa + "e" + exponent);
+        }
+        return (exponent & 0x0F) << 12 | mantissa & 0x0FFF;
+    }
+
+    /**
+     * Builds a raw FLOAT out of mantissa and exponent.
+     *
+     * @throws IllegalArgumentException if the value is not representable or a special value
+     */
+    public static int encodeFloat(int mantissa, int exponent) {
+        if (mantissa < -FLOAT_MAX_MANTISSA || mantissa > FLOAT_MAX_MANTISSA
+                || exponent < -128 || exponent > 127) {
+            throw new IllegalArgumentException(
+                    "FLOAT out of range: " + mantissa + "e" + exponent);
+        }
+        return exponent << 24 | mantissa & 0x00FFFFFF;
+    }
+
+    /**
+     * Encodes the value as SFLOAT with the given number of fraction digits. If the mantissa does
+     * not fit, digits are dropped (rounded half up) until it does.
+     *
+     * @throws IllegalArgumentException if the value is too big for an SFLOAT
+     */
+    public static int encodeSfloat(double value, int fractionDigits) {
+        if (Double.isNaN(value)) return SFLOAT_NAN;
+        if (value == Double.POSITIVE_INFINITY) return SFLOAT_POSITIVE_INFINITY;
+        if (value == Double.NEGATIVE_INFINITY) return SFLOAT_NEGATIVE_INFINITY;
+
+        int exponent = Math.min(Math.max(-fractionDigits, -8), 7);
+        long mantissa = Math.round(value / SFLOAT_POWERS[exponent + 8]);
+        while ((mantissa > SFLOAT_MAX_MANTISSA || mantissa < -SFLOAT_MAX_MANTISSA) && exponent < 7) {
+            exponent++;
+            mantissa = Math.round(value / SFLOAT_POWERS[exponent + 8]);
+        }
+        return encodeSfloat((int) mantissa, exponent);
+    }
+
+    /**
+     * Appends the exact decimal representation of the raw SFLOAT, e.g. "0.00095" for a
+     * mantissa of 95 and an exponent of -5, without going through binary floating point.
+     * Special values are written as "NaN", "NRes", "Reserved", "+INF" or "-INF".
+     */
+    public static StringBuilder appendSfloat(StringBuilder builder, int raw) {
+        raw &= 0xFFFF;
+        switch (raw) {
+            case SFLOAT_NAN:
+                return builder.append("NaN");
+            case SFLOAT_NRES:
+                return builder.append("NRes");
+            case SFLOAT_RESERVED:
+                return builder.append("Reserved");
+            case SFLOAT_POSITIVE_INFINITY:
+                return builder.append("+INF");
+            case SFLOAT_NEGATIVE_INFINITY:
+                return builder.append("-INF");
+            default:
+                return appendDecimal(builder, sfloatMantissa(raw), sfloatExponent(raw));
+        }
+    }
+
+    /**
+     * Appends the exact decimal representation of the raw FLOAT. See appendSfloat.
+     */
+    public static StringBuilder appendFloat(StringBuilder builder, int raw) {
+        switch (raw) {
+            case FLOAT_NAN:
+                return builder.append("NaN");
+            case FLOAT_NRES:
+                return builder.append("NRes");
+            case FLOAT_RESERVED:
+                return builder.append("Reserved");
+            case FLOAT_POSITIVE_INFINITY:
+                return builder.append("+INF");
+            case FLOAT_NEGATIVE_INFINITY:
+                return builder.append("-INF");
+            default:
+                return appendDecimal(builder, floatMantissa(raw), floatExponent(raw));
+        }
+    }
+
+    /**
+     * Appends mantissa * 10^exponent as plain decimal number.
+     */
+    static StringBuilder appendDecimal(StringBuilder builder, int mantissa, int exponent) {
+        if (mantissa < 0) builder.append('-');
+        int start = builder.length();
+        builder.append(Math.abs(mantissa));
+        if (mantissa == 0) return builder;
+
+        if (exponent >= 0) {
+            for (int i = 0; i < exponent; i++) builder.append('0');
+        } else {
+            // move the decimal point into the digits, add leading zeros if necessary
+            int digits = builder.length() - start;
+            int fraction = -exponent;
+            for (int i = digits; i <= fraction; i++) builder.insert(start, '0');
+            builder.insert(builder.length() - fraction, '.');
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,355 @@
+package eu.credential.app.patient.integration.codec;
+
+import eu.credential.app.patient.integration.model.Measurement;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming encoder for the InfluxDB line protocol. Lines are written straight into a reusable
+ * byte buffer. The escaped measurement name and tag set of every series is cached, so for
+ * repeated readings of a device only the fields and the time stamp are encoded. Single lines
+ * are written without the cache into a small buffer.
+ */
+public class InfluxLineEncoder {
+
+    /**
+     * Time stamp precision of the written lines. Has to match the precision parameter of the
+     * write request.
+     */
+    public enum Precision {
+        NANOSECONDS("ns"), MILLISECONDS("ms"), SECONDS("s");
+
+        private final String parameter;
+
+        Precision(String parameter) {
+            this.parameter = parameter;
+        }
+
+        /**
+         * Returns the value of the precision parameter InfluxDB expects for this precision.
+         */
+        public String getParameter() {
+            return parameter;
+        }
+
+        long fromMillis(long millis) {
+            switch (this) {
+                case NANOSECONDS:
+                    return millis * 1000000L;
+                case SECONDS:
+                    return millis / 1000L;
+                default:
+                    return millis;
+            }
+        }
+    }
+
+    /**
+     * Cached prefix of one series, valid as long as the tag signature does not change.
+     */
+    private static class Prefix {
+        Class<?> type;
+        long signature;
+        byte[] bytes;
+    }
+
+    // used by measurements without own time stamp
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 4096;
+    // enough for a single line of every measurement
+    private static final int LINE_CAPACITY = 256;
+
+    private final Precision precision;
+    // cached tag sets by series, created with the first series
+    private Map<String, Prefix> prefixes;
+    // scratch space for the decimal representation of floating point fields, created on use
+    private StringBuilder scratch;
+
+    private byte[] buffer;
+    private int size;
+    private int lines;
+    private int fieldCount;
+
+    public InfluxLineEncoder(Precision precision) {
+        this(precision, INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity initial size of the buffer in bytes, it grows if necessary
+     */
+    public InfluxLineEncoder(Precision precision, int capacity) {
+        this.precision = precision;
+        this.buffer = new byte[capacity];
+        this.size = 0;
+        this.lines = 0;
+    }
+
+    /**
+     * Encodes a single measurement without the series cache.
+     */
+    public static String encodeLine(Measurement measurement, Precision precision) {
+        InfluxLineEncoder encoder = new InfluxLineEncoder(precision, LINE_CAPACITY);
+        encoder.append(measurement);
+        return encoder.toString();
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Appends the given measurement as a new line.
+     *
+     * @param series key of the series, e.g. the device address the measurement comes from
+     */
+    public void append(String series, Measurement measurement) {
+        int lineStart = size;
+        if (lines > 0) writeByte('\n');
+        lines++;
+
+        // write the cached tag set or build a new one
+        if (prefixes == null) prefixes = new HashMap<>();
+        long signature = measurement.getTagSignature();
+        Prefix prefix = prefixes.get(series);
+        if (prefix != null && prefix.signature == signature
+                && prefix.type == measurement.getClass()) {
+            writeBytes(prefix.bytes, prefix.bytes.length);
+        } else {
+            int start = size;
+            measurement.writeTags(this);
+            if (prefix == null) {
+                prefix = new Prefix();
+                prefixes.put(series, prefix);
+            }
+            prefix.type = measurement.getClass();
+            prefix.signature = signature;
+            prefix.bytes = Arrays.copyOfRange(buffer, start, size);
+        }
+        appendValues(measurement, lineStart);
+    }
+
+    /**
+     * Appends the given measurement as a new line, without caching its tag set.
+     */
+    public void append(Measurement measurement) {
+        int lineStart = size;
+        if (lines > 0) writeByte('\n');
+        lines++;
+        measurement.writeTags(this);
+        appendValues(measurement, lineStart);
+    }
+
+    /**
+     * Writes fields and time stamp after the tag set, drops the line if it has no fields.
+     */
+    private void appendValues(Measurement measurement, int lineStart) {
+        // separator
+        writeByte(' ');
+
+        // measurement values
+        fieldCount = 0;
+        measurement.writeFields(this);
+        if (fieldCount == 0) {
+            // a line without fields is not valid, e.g. if the device only sent NaN
+            size = lineStart;
+            lines--;
+            return;
+        }
+
+        // time stamp in the wanted precision, influx uses the arrival time if missing
+        long millis = measurement.getInfluxTimeMillis();
+        if (millis != NO_TIME) {
+            writeByte(' ');
+            writeLong(precision.fromMillis(millis));
+        }
+    }
+
+    /**
+     * Writes the escaped measurement name. Only to be called from Measurement.writeTags.
+     */
+    public void measurement(String name) {
+        writeEscaped(name, false);
+    }
+
+    /**
+     * Writes an escaped tag. Only to be called from Measurement.writeTags.
+     */
+    public void tag(String key, String value) {
+        writeByte(',');
+        writeEscaped(key, true);
+        writeByte('=');
+        writeEscaped(value, true);
+    }
+
+    public void tag(String key, long value) {
+        writeByte(',');
+        writeEscaped(key, true);
+        writeByte('=');
+        writeLong(value);
+    }
+
+    /**
+     * Writes a floating point field. Only to be called from Measurement.writeFields.
+     * NaN and infinite values are skipped, since the line protocol does not support them.
+     */
+    public void field(String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return;
+        fieldKey(key);
+        clearScratch();
+        scratch.append(value);
+        writeScratch();
+    }
+
+    public void field(String key, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) return;
+        fieldKey(key);
+        clearScratch();
+        scratch.append(value);
+        writeScratch();
+    }
+
+    /**
+     * Writes the exact decimal value of a raw IEEE-11073 SFLOAT. Special values are skipped.
+     */
+    public void sfloatField(String key, int raw) {
+        if (Ieee11073Float.isSfloatSpecial(raw)) return;
+        fieldKey(key);
+        clearScratch();
+        Ieee11073Float.appendSfloat(scratch, raw);
+        writeScratch();
+    }
+
+    /**
+     * Writes an integer field.
+     */
+    public void field(String key, long value) {
+        fieldKey(key);
+        writeLong(value);
+        writeByte('i');
+    }
+
+    /**
+     * Number of lines written since the last reset.
+     */
+    public int getLineCount() {
+        return lines;
+    }
+
+    /**
+     * Number of bytes written since the last reset.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Clears the written lines but keeps the buffer and the cached series.
+     */
+    public void reset() {
+        size = 0;
+        lines = 0;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(buffer, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private void fieldKey(String key) {
+        if (fieldCount > 0) writeByte(',');
+        fieldCount++;
+        writeEscaped(key, true);
+        writeByte('=');
+    }
+
+    private void clearScratch() {
+        if (scratch == null) scratch = new StringBuilder(32);
+        scratch.setLength(0);
+    }
+
+    private void writeScratch() {
+        int length = scratch.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer[size++] = (byte) scratch.charAt(i);
+        }
+    }
+
+    /**
+     * Writes the string as UTF-8 and escapes the characters the line protocol reserves.
+     *
+     * @param escapeEquals true for tag keys, tag values and field keys
+     */
+    private void writeEscaped(String value, boolean escapeEquals) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == ' ' || c == ',' || (escapeEquals && c == '=')) {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                writeByte(0xC0 | c >> 6);
+                writeByte(0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writeByte(0xF0 | codePoint >> 18);
+                writeByte(0x80 | codePoint >> 12 & 0x3F);
+                writeByte(0x80 | codePoint >> 6 & 0x3F);
+                writeByte(0x80 | codePoint & 0x3F);
+            } else {
+                writeByte(0xE0 | c >> 12);
+                writeByte(0x80 | c >> 6 & 0x3F);
+                writeByte(0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(20);
+        if (value < 0) buffer[size++] = '-';
+
+        // count the digits and write them from the back, the value is not negated so that
+        // Long.MIN_VALUE is written correctly as well
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) digits++;
+        int position = size + digits;
+        do {
+            buffer[--position] = (byte) ('0' + Math.abs(value % 10));
+            value /= 10;
+        } while (value != 0);
+        size += digits;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+    }
+
+    private void writeBytes(byte[] bytes, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, 0, buffer, size, length);
+        size += length;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Decoder for the 0x2a5f "PLX Continuous Measurement" characteristic. The flag dependent offsets
+ * are computed once for every combination of the lower five flag bits.
+ */
+public final class PlxContinuousFrameDecoder {
+
+    // flag positions
+    public static final int FLAG_FAST = 0x01;
+    public static final int FLAG_SLOW = 0x02;
+    public static final int FLAG_MEASUREMENT_STATUS = 0x04;
+    public static final int FLAG_DEVICE_SENSOR_STATUS = 0x08;
+    public static final int FLAG_PULSE_AMPLITUDE_INDEX = 0x10;
+
+    // fixed offsets
+    private static final int SPO2_OFFSET = 1;
+    private static final int PULSE_RATE_OFFSET = 3;
+    private static final int FAST_OFFSET = 5;
+
+    // flag dependent offsets, indexed by the lower five bits of the flags
+    private static final int[] SLOW_OFFSETS = new int[32];
+    private static final int[] MEASUREMENT_STATUS_OFFSETS = new int[32];
+    private static final int[] DEVICE_SENSOR_STATUS_OFFSETS = new int[32];
+    private static final int[] PULSE_AMPLITUDE_INDEX_OFFSETS = new int[32];
+    private static final int[] FRAME_LENGTHS = new int[32];
+
+    static {
+        for (int flags = 0; flags < 32; flags++) {
+            int offset = FAST_OFFSET;
+            if ((flags & FLAG_FAST) != 0) offset += 4;
+            SLOW_OFFSETS[flags] = offset;
+            if ((flags & FLAG_SLOW) != 0) offset += 4;
+            MEASUREMENT_STATUS_OFFSETS[flags] = offset;
+            if ((flags & FLAG_MEASUREMENT_STATUS) != 0) offset += 2;
+            DEVICE_SENSOR_STATUS_OFFSETS[flags] = offset;
+            if ((flags & FLAG_DEVICE_SENSOR_STATUS) != 0) offset += 3;
+            PULSE_AMPLITUDE_INDEX_OFFSETS[flags] = offset;
+            if ((flags & FLAG_PULSE_AMPLITUDE_INDEX) != 0) offset += 2;
+            FRAME_LENGTHS[flags] = offset;
+        }
+    }
+
+    private PlxContinuousFrameDecoder() {
+    }
+
+    /**
+     * Checks, if the frame at the given offset is long enough for the fields its flags announce.
+     */
+    public static boolean isValid(byte[] data, int offset, int length) {
+        return length > 0 && length >= FRAME_LENGTHS[data[offset] & 0x1F];
+    }
+
+    public static int flags(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    /**
+     * Returns the normal SpO2 in percent as raw SFLOAT.
+     */
+    public static int rawSpo2(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + SPO2_OFFSET);
+    }
+
+    /**
+     * Returns the normal pulse rate in beats per minute as raw SFLOAT.
+     */
+    public static int rawPulseRate(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + PULSE_RATE_OFFSET);
+    }
+
+    /**
+     * Returns the fast responding SpO2 as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawFastSpo2(byte[] data, int offset) {
+        if ((data[offset] & FLAG_FAST) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data, offset + FAST_OFFSET);
+    }
+
+    /**
+     * Returns the fast responding pulse rate as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawFastPulseRate(byte[] data, int offset) {
+        if ((data[offset] & FLAG_FAST) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data, offset + FAST_OFFSET + 2);
+    }
+
+    /**
+     * Returns the slow responding SpO2 as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawSlowSpo2(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_SLOW) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data, offset + SLOW_OFFSETS[flags & 0x1F]);
+    }
+
+    /**
+     * Returns the slow responding pulse rate as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawSlowPulseRate(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_SLOW) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data, offset + SLOW_OFFSETS[flags & 0x1F] + 2);
+    }
+
+    /**
+     * Returns the 16 bit measurement status.
+     *
+     * @return 0, if no information given
+     */
+    public static int measurementStatus(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_MEASUREMENT_STATUS) == 0) return 0;
+        return GattFrame.uint16(data, offset + MEASUREMENT_STATUS_OFFSETS[flags & 0x1F]);
+    }
+
+    /**
+     * Returns the 24 bit device and sensor status.
+     *
+     * @return 0, if no information given
+     */
+    public static int deviceSensorStatus(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_DEVICE_SENSOR_STATUS) == 0) return 0;
+        return GattFrame.uint24(data, offset + DEVICE_SENSOR_STATUS_OFFSETS[flags & 0x1F]);
+    }
+
+    /**
+     * Returns the pulse amplitude index in percent as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawPulseAmplitudeIndex(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_PULSE_AMPLITUDE_INDEX) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data, offset + PULSE_AMPLITUDE_INDEX_OFFSETS[flags & 0x1F]);
+    }
+}
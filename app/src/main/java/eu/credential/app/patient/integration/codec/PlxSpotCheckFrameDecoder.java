@@ -0,0 +1,111 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Decoder for the 0x2a5e "PLX Spot-check Measurement" characteristic. The flag dependent offsets
+ * are computed once for every combination of the lower four flag bits.
+ */
+public final class PlxSpotCheckFrameDecoder {
+
+    // flag positions
+    public static final int FLAG_TIMESTAMP = 0x01;
+    public static final int FLAG_MEASUREMENT_STATUS = 0x02;
+    public static final int FLAG_DEVICE_SENSOR_STATUS = 0x04;
+    public static final int FLAG_PULSE_AMPLITUDE_INDEX = 0x08;
+    public static final int FLAG_CLOCK_NOT_SET = 0x10;
+
+    // fixed offsets
+    private static final int SPO2_OFFSET = 1;
+    private static final int PULSE_RATE_OFFSET = 3;
+    private static final int TIMESTAMP_OFFSET = 5;
+
+    // flag dependent offsets, indexed by the lower nibble of the flags
+    private static final int[] MEASUREMENT_STATUS_OFFSETS = new int[16];
+    private static final int[] DEVICE_SENSOR_STATUS_OFFSETS = new int[16];
+    private static final int[] PULSE_AMPLITUDE_INDEX_OFFSETS = new int[16];
+    private static final int[] FRAME_LENGTHS = new int[16];
+
+    static {
+        for (int flags = 0; flags < 16; flags++) {
+            int offset = TIMESTAMP_OFFSET;
+            if ((flags & FLAG_TIMESTAMP) != 0) offset += GattFrame.DATE_TIME_LENGTH;
+            MEASUREMENT_STATUS_OFFSETS[flags] = offset;
+            if ((flags & FLAG_MEASUREMENT_STATUS) != 0) offset += 2;
+            DEVICE_SENSOR_STATUS_OFFSETS[flags] = offset;
+            if ((flags & FLAG_DEVICE_SENSOR_STATUS) != 0) offset += 3;
+            PULSE_AMPLITUDE_INDEX_OFFSETS[flags] = offset;
+            if ((flags & FLAG_PULSE_AMPLITUDE_INDEX) != 0) offset += 2;
+            FRAME_LENGTHS[flags] = offset;
+        }
+    }
+
+    private PlxSpotCheckFrameDecoder() {
+    }
+
+    /**
+     * Checks, if the frame at the given offset is long enough for the fields its flags announce.
+     */
+    public static boolean isValid(byte[] data, int offset, int length) {
+        return length > 0 && length >= FRAME_LENGTHS[data[offset] & 0x0F];
+    }
+
+    public static int flags(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    /**
+     * Returns the SpO2 in percent as raw SFLOAT.
+     */
+    public static int rawSpo2(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + SPO2_OFFSET);
+    }
+
+    /**
+     * Returns the pulse rate in beats per minute as raw SFLOAT.
+     */
+    public static int rawPulseRate(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + PULSE_RATE_OFFSET);
+    }
+
+    /**
+     * Returns the time stamp in unix milliseconds.
+     *
+     * @return 0, if no information given
+     */
+    public static long timestamp(byte[] data, int offset) {
+        if ((data[offset] & FLAG_TIMESTAMP) == 0) return 0;
+        return GattFrame.dateTime(data, offset + TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Returns the 16 bit measurement status.
+     *
+     * @return 0, if no information given
+     */
+    public static int measurementStatus(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_MEASUREMENT_STATUS) == 0) return 0;
+        return GattFrame.uint16(data, offset + MEASUREMENT_STATUS_OFFSETS[flags & 0x0F]);
+    }
+
+    /**
+     * Returns the 24 bit device and sensor status.
+     *
+     * @return 0, if no information given
+     */
+    public static int deviceSensorStatus(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_DEVICE_SENSOR_STATUS) == 0) return 0;
+        return GattFrame.uint24(data, offset + DEVICE_SENSOR_STATUS_OFFSETS[flags & 0x0F]);
+    }
+
+    /**
+     * Returns the pulse amplitude index in percent as raw SFLOAT.
+     *
+     * @return SFLOAT_NRES, if no information given
+     */
+    public static int rawPulseAmplitudeIndex(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_PULSE_AMPLITUDE_INDEX) == 0) return Ieee11073Float.SFLOAT_NRES;
+        return GattFrame.uint16(data, offset + PULSE_AMPLITUDE_INDEX_OFFSETS[flags & 0x0F]);
+    }
+}
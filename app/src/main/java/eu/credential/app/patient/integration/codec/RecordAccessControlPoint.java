@@ -0,0 +1,110 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Builds requests for and reads responses of the 0x2a52 "Record Access Control Point", which the
+ * glucose, CGM and pulse oximeter profiles use to transfer stored records.
+ */
+public final class RecordAccessControlPoint {
+
+    // op codes
+    public static final int OP_REPORT_STORED_RECORDS = 0x01;
+    public static final int OP_DELETE_STORED_RECORDS = 0x02;
+    public static final int OP_ABORT = 0x03;
+    public static final int OP_REPORT_NUMBER_OF_RECORDS = 0x04;
+    public static final int OP_NUMBER_OF_RECORDS_RESPONSE = 0x05;
+    public static final int OP_RESPONSE_CODE = 0x06;
+
+    // operators
+    public static final int OPERATOR_NULL = 0x00;
+    public static final int OPERATOR_ALL_RECORDS = 0x01;
+    public static final int OPERATOR_LESS_OR_EQUAL = 0x02;
+    public static final int OPERATOR_GREATER_OR_EQUAL = 0x03;
+    public static final int OPERATOR_WITHIN_RANGE = 0x04;
+    public static final int OPERATOR_FIRST_RECORD = 0x05;
+    public static final int OPERATOR_LAST_RECORD = 0x06;
+
+    // filter types
+    public static final int FILTER_SEQUENCE_NUMBER = 0x01;
+    public static final int FILTER_USER_FACING_TIME = 0x02;
+    // the CGM profile filters by time offset with the same value as the sequence number
+    public static final int FILTER_TIME_OFFSET = 0x01;
+
+    // response codes
+    public static final int RESPONSE_SUCCESS = 0x01;
+    public static final int RESPONSE_OP_CODE_NOT_SUPPORTED = 0x02;
+    public static final int RESPONSE_INVALID_OPERATOR = 0x03;
+    public static final int RESPONSE_OPERATOR_NOT_SUPPORTED = 0x04;
+    public static final int RESPONSE_INVALID_OPERAND = 0x05;
+    public static final int RESPONSE_NO_RECORDS_FOUND = 0x06;
+    public static final int RESPONSE_ABORT_UNSUCCESSFUL = 0x07;
+    public static final int RESPONSE_PROCEDURE_NOT_COMPLETED = 0x08;
+    public static final int RESPONSE_OPERAND_NOT_SUPPORTED = 0x09;
+
+    private RecordAccessControlPoint() {
+    }
+
+    /**
+     * Requests all stored records.
+     */
+    public static byte[] reportAllRecords() {
+        return new byte[]{OP_REPORT_STORED_RECORDS, OPERATOR_ALL_RECORDS};
+    }
+
+    /**
+     * Requests all stored records, whose 16 bit filter value is at least the given one.
+     *
+     * @param filterType FILTER_SEQUENCE_NUMBER or FILTER_TIME_OFFSET
+     */
+    public static byte[] reportRecordsFrom(int filterType, int minimum) {
+        return new byte[]{OP_REPORT_STORED_RECORDS, OPERATOR_GREATER_OR_EQUAL, (byte) filterType,
+                (byte) minimum, (byte) (minimum >> 8)};
+    }
+
+    /**
+     * Requests the number of all stored records.
+     */
+    public static byte[] reportNumberOfRecords() {
+        return new byte[]{OP_REPORT_NUMBER_OF_RECORDS, OPERATOR_ALL_RECORDS};
+    }
+
+    /**
+     * Requests the number of stored records, whose 16 bit filter value is at least the given one.
+     */
+    public static byte[] reportNumberOfRecordsFrom(int filterType, int minimum) {
+        return new byte[]{OP_REPORT_NUMBER_OF_RECORDS, OPERATOR_GREATER_OR_EQUAL,
+                (byte) filterType, (byte) minimum, (byte) (minimum >> 8)};
+    }
+
+    public static int opCode(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    /**
+     * Returns true, if the value is a response which ends a procedure.
+     */
+    public static boolean isResponseCode(byte[] data, int offset, int length) {
+        return length >= 4 && opCode(data, offset) == OP_RESPONSE_CODE;
+    }
+
+    /**
+     * Returns the op code of the request, the response code belongs to.
+     */
+    public static int requestOpCode(byte[] data, int offset) {
+        return data[offset + 2] & 0xFF;
+    }
+
+    public static int responseCode(byte[] data, int offset) {
+        return data[offset + 3] & 0xFF;
+    }
+
+    /**
+     * Returns true, if the value is the answer to a number of records request.
+     */
+    public static boolean isNumberOfRecords(byte[] data, int offset, int length) {
+        return length >= 4 && opCode(data, offset) == OP_NUMBER_OF_RECORDS_RESPONSE;
+    }
+
+    public static int numberOfRecords(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + 2);
+    }
+}
@@ -0,0 +1,140 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Decoder for the 0x2a9d "Weight Measurement" characteristic. Like the glucose decoder, the flag
+ * dependent offsets are computed once for every flag combination.
+ */
+public final class WeightFrameDecoder {
+
+    // flag positions
+    public static final int FLAG_UNIT_IMPERIAL = 0x01;
+    public static final int FLAG_TIMESTAMP = 0x02;
+    public static final int FLAG_USER_ID = 0x04;
+    public static final int FLAG_BMI_HEIGHT = 0x08;
+
+    // raw value the scale sends, if the measurement was not successful
+    public static final int WEIGHT_FAILED = 0xFFFF;
+
+    // divisors turning the raw values into units
+    public static final int FACTOR_SCI_WEIGHT = 200;
+    public static final int FACTOR_IMP_WEIGHT = 100;
+    public static final int FACTOR_SCI_HEIGHT = 1000;
+    public static final int FACTOR_IMP_HEIGHT = 10;
+    public static final int FACTOR_BMI = 10;
+
+    // fixed offsets
+    private static final int WEIGHT_OFFSET = 1;
+    private static final int TIMESTAMP_OFFSET = 3;
+
+    // flag dependent offsets, indexed by the lower nibble of the flags
+    private static final int[] USER_ID_OFFSETS = new int[16];
+    private static final int[] BMI_OFFSETS = new int[16];
+    private static final int[] FRAME_LENGTHS = new int[16];
+
+    static {
+        for (int flags = 0; flags < 16; flags++) {
+            int offset = TIMESTAMP_OFFSET;
+            if ((flags & FLAG_TIMESTAMP) != 0) offset += GattFrame.DATE_TIME_LENGTH;
+            USER_ID_OFFSETS[flags] = offset;
+            if ((flags & FLAG_USER_ID) != 0) offset += 1;
+            BMI_OFFSETS[flags] = offset;
+            if ((flags & FLAG_BMI_HEIGHT) != 0) offset += 4;
+            FRAME_LENGTHS[flags] = offset;
+        }
+    }
+
+    private WeightFrameDecoder() {
+    }
+
+    /**
+     * Checks, if the frame at the given offset is long enough for the fields its flags announce.
+     */
+    public static boolean isValid(byte[] data, int offset, int length) {
+        return length > 0 && length >= FRAME_LENGTHS[data[offset] & 0x0F];
+    }
+
+    public static int flags(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    /**
+     * Returns the weight in the resolution units of the scale.
+     *
+     * @return WEIGHT_FAILED, if the measurement was not successful
+     */
+    public static int rawWeight(byte[] data, int offset) {
+        return GattFrame.uint16(data, offset + WEIGHT_OFFSET);
+    }
+
+    /**
+     * Returns the weight in kg or lb depending on the unit flag.
+     */
+    public static double weight(byte[] data, int offset) {
+        int factor = (data[offset] & FLAG_UNIT_IMPERIAL) != 0 ?
+                FACTOR_IMP_WEIGHT : FACTOR_SCI_WEIGHT;
+        return rawWeight(data, offset) / (double) factor;
+    }
+
+    /**
+     * Returns the time stamp in unix milliseconds.
+     *
+     * @return 0, if no information given
+     */
+    public static long timestamp(byte[] data, int offset) {
+        if ((data[offset] & FLAG_TIMESTAMP) == 0) return 0;
+        return GattFrame.dateTime(data, offset + TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * @return -1, if no information given
+     */
+    public static int userId(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_USER_ID) == 0) return -1;
+        return GattFrame.uint8(data, offset + USER_ID_OFFSETS[flags & 0x0F]);
+    }
+
+    /**
+     * Returns the BMI in units of 0.1.
+     *
+     * @return -1, if no information given
+     */
+    public static int rawBmi(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_BMI_HEIGHT) == 0) return -1;
+        return GattFrame.uint16(data, offset + BMI_OFFSETS[flags & 0x0F]);
+    }
+
+    /**
+     * Returns the height in the resolution units of the scale.
+     *
+     * @return -1, if no information given
+     */
+    public static int rawHeight(byte[] data, int offset) {
+        int flags = data[offset];
+        if ((flags & FLAG_BMI_HEIGHT) == 0) return -1;
+        return GattFrame.uint16(data, offset + BMI_OFFSETS[flags & 0x0F] + 2);
+    }
+
+    /**
+     * Returns the height in m or in depending on the unit flag.
+     *
+     * @return -1, if no information given
+     */
+    public static double height(byte[] data, int offset) {
+        int raw = rawHeight(data, offset);
+        if (raw < 0) return -1;
+        int factor = (data[offset] & FLAG_UNIT_IMPERIAL) != 0 ?
+                FACTOR_IMP_HEIGHT : FACTOR_SCI_HEIGHT;
+        return raw / (double) factor;
+    }
+
+    /**
+     * @return -1, if no information given
+     */
+    public static double bmi(byte[] data, int offset) {
+        int raw = rawBmi(data, offset);
+        if (raw < 0) return -1;
+        return raw / (double) FACTOR_BMI;
+    }
+}
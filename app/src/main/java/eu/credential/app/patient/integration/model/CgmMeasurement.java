@@ -0,0 +1,166 @@
+package eu.credential.app.patient.integration.model;
+
+import eu.credential.app.patient.integration.codec.CgmFrameDecoder;
+import eu.credential.app.patient.integration.codec.Ieee11073Float;
+import eu.credential.app.patient.integration.codec.InfluxLineEncoder;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * One record of a continuous glucose monitor. The record only carries the minutes since the
+ * session start, the absolute time is computed from the session start time read before.
+ */
+public class CgmMeasurement extends Measurement {
+
+    public static final String UNIT = "mg/dL";
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+
+    // session start in unix milliseconds, 0 if unknown
+    private final long sessionStart;
+    // minutes since session start
+    private final int timeOffset;
+    // status (bits 0-7), cal/temp (8-15) and warning (16-23) octet
+    private final int sensorStatus;
+    // raw SFLOAT values
+    private final short rawGlucose;
+    private final short rawTrend;
+    private final short rawQuality;
+
+    /**
+     * Decodes the record at the given offset of a CGM measurement characteristic value.
+     *
+     * @param offset       start of the record, which has to be checked with isValidRecord
+     * @param sessionStart unix time in milliseconds of the session start, 0 if unknown
+     * @param receiveTime  unix time in milliseconds, when the value has been received
+     */
+    public CgmMeasurement(byte[] value, int offset, long sessionStart, long receiveTime) {
+        super(CgmFrameDecoder.flags(value, offset), receiveTime);
+        this.sessionStart = sessionStart;
+        this.timeOffset = CgmFrameDecoder.timeOffset(value, offset);
+        this.sensorStatus = CgmFrameDecoder.sensorStatus(value, offset);
+        this.rawGlucose = (short) CgmFrameDecoder.rawGlucose(value, offset);
+        this.rawTrend = (short) CgmFrameDecoder.rawTrend(value, offset);
+        this.rawQuality = (short) CgmFrameDecoder.rawQuality(value, offset);
+    }
+
+    /**
+     * Returns the minutes since the session start.
+     */
+    public int getTimeOffset() {
+        return timeOffset;
+    }
+
+    /**
+     * Returns true, if the absolute time of the record is known.
+     */
+    public boolean hasBaseTime() {
+        return sessionStart != 0;
+    }
+
+    /**
+     * Returns the time of the record in unix milliseconds.
+     *
+     * @return the receive time, if the session start is unknown
+     */
+    public long getBaseTimeMillis() {
+        return hasBaseTime() ? sessionStart + timeOffset * MILLIS_PER_MINUTE : getReceiveTimeMillis();
+    }
+
+    public Date getBaseTime() {
+        return new Date(getBaseTimeMillis());
+    }
+
+    /**
+     * Returns the glucose concentration in mg/dL.
+     *
+     * @return NaN, if the sensor could not measure it
+     */
+    public float getGlucoseConcentration() {
+        return Ieee11073Float.decodeSfloat(rawGlucose);
+    }
+
+    public int getRawGlucoseConcentration() {
+        return rawGlucose & 0xFFFF;
+    }
+
+    /**
+     * Returns the trend in (mg/dL)/min as raw SFLOAT.
+     */
+    public int getRawTrend() {
+        return rawTrend & 0xFFFF;
+    }
+
+    /**
+     * Returns the quality in percent as raw SFLOAT.
+     */
+    public int getRawQuality() {
+        return rawQuality & 0xFFFF;
+    }
+
+    public int getSensorStatus() {
+        return sensorStatus;
+    }
+
+    @Override
+    public long getTagSignature() {
+        return 0;
+    }
+
+    @Override
+    public void writeTags(InfluxLineEncoder encoder) {
+        // Name of the measurement
+        encoder.measurement("CGM");
+
+        // tags
+        encoder.tag("unit", UNIT);
+    }
+
+    @Override
+    public void writeFields(InfluxLineEncoder encoder) {
+        encoder.sfloatField("glucose_concentration", getRawGlucoseConcentration());
+        encoder.sfloatField("trend", getRawTrend());
+        encoder.sfloatField("quality", getRawQuality());
+        encoder.field("time_offset", timeOffset);
+        if (sensorStatus != 0) {
+            encoder.field("sensor_status", sensorStatus);
+        }
+    }
+
+    @Override
+    public long getInfluxTimeMillis() {
+        // records arrive in batches and need their own time
+        return getBaseTimeMillis();
+    }
+
+    /**
+     * Converts CGM data into a human-readable string.
+     * @return
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("CGM Glucose Concentration: ");
+        Ieee11073Float.appendSfloat(builder, getRawGlucoseConcentration()).append(" ").append(UNIT);
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("d MMM yyyy HH:mm:ss Z", Locale.US);
+        builder.append("\nTime: ").append(dateFormat.format(getBaseTime()));
+        builder.append("\nTime Offset: ").append(timeOffset).append(" min");
+
+        if (!Ieee11073Float.isSfloatSpecial(getRawTrend())) {
+            builder.append("\nTrend: ");
+            Ieee11073Float.appendSfloat(builder, getRawTrend()).append(" ").append(UNIT).append("/min");
+        }
+        if (!Ieee11073Float.isSfloatSpecial(getRawQuality())) {
+            builder.append("\nQuality: ");
+            Ieee11073Float.appendSfloat(builder, getRawQuality()).append(" %");
+        }
+        if (sensorStatus != 0) {
+            builder.append("\nSensor Status: 0x").append(Integer.toHexString(sensorStatus));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,291 @@
+package eu.credential.app.patient.integration.model;
+
+import eu.credential.app.patient.integration.codec.GlucoseContextFrameDecoder;
+import eu.credential.app.patient.integration.codec.Ieee11073Float;
+import eu.credential.app.patient.integration.codec.InfluxLineEncoder;
+
+/**
+ * Immutable content of a glucose measurement context characteristic. It is no measurement on its
+ * own, but attached to the GlucoseMeasurement with the same sequence number.
+ */
+public class GlucoseContext {
+
+    public static final String[] CARBOHYDRATES = new String[]{
+            "", // 0 - reserved
+            "Breakfast",
+            "Lunch",
+            "Dinner",
+            "Snack",
+            "Drink",
+            "Supper",
+            "Brunch"
+    };
+
+    public static final String[] MEALS = new String[]{
+            "", // 0 - reserved
+            "Preprandial (before meal)",
+            "Postprandial (after meal)",
+            "Fasting",
+            "Casual (snacks, drinks, etc.)",
+            "Bedtime"
+    };
+
+    public static final String[] TESTERS = new String[]{
+            "", // 0 - reserved
+            "Self",
+            "Health Care Professional",
+            "Lab test",
+            "", "", "", "", "", "", "", "", "", "", "", // 4-14 reserved
+            "Tester value not available"
+    };
+
+    public static final String[] HEALTH = new String[]{
+            "", // 0 - reserved
+            "Minor health issues",
+            "Major health issues",
+            "During menses",
+            "Under stress",
+            "No health issues",
+            "", "", "", "", "", "", "", "", "", // 6-14 reserved
+            "Health value not available"
+    };
+
+    public static final String[] MEDICATIONS = new String[]{
+            "", // 0 - reserved
+            "Rapid acting insulin",
+            "Short acting insulin",
+            "Intermediate acting insulin",
+            "Long acting insulin",
+            "Pre-mixed insulin"
+    };
+
+    private final int flags;
+    private final int sequenceNumber;
+    // carbohydrate id (bits 0-7), meal (8-15), tester (16-19), health (20-23), medication (24-31)
+    private final int codes;
+    // exercise duration in seconds (bits 0-15) and intensity in percent (16-23)
+    private final int exercise;
+    // raw SFLOAT values
+    private final short rawCarbohydrate;
+    private final short rawMedication;
+    private final short rawHbA1c;
+
+    /**
+     * Decodes the given value of a glucose measurement context characteristic.
+     *
+     * @param value characteristic value starting with the flags
+     */
+    public GlucoseContext(byte[] value) {
+        this.flags = GlucoseContextFrameDecoder.flags(value, 0);
+        this.sequenceNumber = GlucoseContextFrameDecoder.sequenceNumber(value, 0);
+        this.codes = GlucoseContextFrameDecoder.carbohydrateId(value, 0)
+                | GlucoseContextFrameDecoder.meal(value, 0) << 8
+                | GlucoseContextFrameDecoder.tester(value, 0) << 16
+                | GlucoseContextFrameDecoder.health(value, 0) << 20
+                | GlucoseContextFrameDecoder.medicationId(value, 0) << 24;
+        this.exercise = GlucoseContextFrameDecoder.exerciseDuration(value, 0)
+                | GlucoseContextFrameDecoder.exerciseIntensity(value, 0) << 16;
+        this.rawCarbohydrate = (short) GlucoseContextFrameDecoder.rawCarbohydrate(value, 0);
+        this.rawMedication = (short) GlucoseContextFrameDecoder.rawMedication(value, 0);
+        this.rawHbA1c = (short) GlucoseContextFrameDecoder.rawHbA1c(value, 0);
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Returns the sequence number of the measurement this context belongs to.
+     */
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public int getCarbohydrateId() {
+        return codes & 0xFF;
+    }
+
+    /**
+     * Returns a description of the carbohydrate id.
+     *
+     * @return empty string, if no or no known information given
+     */
+    public String getCarbohydrate() {
+        return describe(CARBOHYDRATES, getCarbohydrateId());
+    }
+
+    /**
+     * Returns the carbohydrate amount in kg.
+     *
+     * @return NaN, if no information given
+     */
+    public float getCarbohydrateAmount() {
+        return Ieee11073Float.decodeSfloat(rawCarbohydrate);
+    }
+
+    public int getRawCarbohydrateAmount() {
+        return rawCarbohydrate & 0xFFFF;
+    }
+
+    public int getMealCode() {
+        return (codes >> 8) & 0xFF;
+    }
+
+    /**
+     * Returns a description of the meal.
+     *
+     * @return empty string, if no or no known information given
+     */
+    public String getMeal() {
+        return describe(MEALS, getMealCode());
+    }
+
+    public int getTesterCode() {
+        return (codes >> 16) & 0x0F;
+    }
+
+    public String getTester() {
+        return TESTERS[getTesterCode()];
+    }
+
+    public int getHealthCode() {
+        return (codes >> 20) & 0x0F;
+    }
+
+    public String getHealth() {
+        return HEALTH[getHealthCode()];
+    }
+
+    /**
+     * Returns the exercise duration in seconds.
+     *
+     * @return 0, if no information given
+     */
+    public int getExerciseDuration() {
+        return exercise & 0xFFFF;
+    }
+
+    /**
+     * Returns the exercise intensity in percent.
+     *
+     * @return 0, if no information given
+     */
+    public int getExerciseIntensity() {
+        return (exercise >> 16) & 0xFF;
+    }
+
+    public int getMedicationId() {
+        return (codes >>> 24) & 0xFF;
+    }
+
+    /**
+     * Returns a description of the medication id.
+     *
+     * @return empty string, if no or no known information given
+     */
+    public String getMedication() {
+        return describe(MEDICATIONS, getMedicationId());
+    }
+
+    /**
+     * Returns the medication amount in kg or liter, see getMedicationUnit.
+     *
+     * @return NaN, if no information given
+     */
+    public float getMedicationAmount() {
+        return Ieee11073Float.decodeSfloat(rawMedication);
+    }
+
+    public int getRawMedicationAmount() {
+        return rawMedication & 0xFFFF;
+    }
+
+    public String getMedicationUnit() {
+        return (flags & GlucoseContextFrameDecoder.FLAG_MEDICATION_LITER) != 0 ? "L" : "kg";
+    }
+
+    /**
+     * Returns the HbA1c in percent.
+     *
+     * @return NaN, if no information given
+     */
+    public float getHbA1c() {
+        return Ieee11073Float.decodeSfloat(rawHbA1c);
+    }
+
+    public int getRawHbA1c() {
+        return rawHbA1c & 0xFFFF;
+    }
+
+    /**
+     * Writes the context values as additional fields of the glucose line.
+     */
+    void writeFields(InfluxLineEncoder encoder) {
+        if ((flags & GlucoseContextFrameDecoder.FLAG_CARBOHYDRATE) != 0) {
+            encoder.field("carbohydrate_id", getCarbohydrateId());
+            encoder.sfloatField("carbohydrate", getRawCarbohydrateAmount());
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_MEAL) != 0) {
+            encoder.field("meal", getMealCode());
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_TESTER_HEALTH) != 0) {
+            encoder.field("tester", getTesterCode());
+            encoder.field("health", getHealthCode());
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_EXERCISE) != 0) {
+            encoder.field("exercise_duration", getExerciseDuration());
+            encoder.field("exercise_intensity", getExerciseIntensity());
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_MEDICATION) != 0) {
+            encoder.field("medication_id", getMedicationId());
+            encoder.sfloatField("medication", getRawMedicationAmount());
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_HBA1C) != 0) {
+            encoder.sfloatField("hba1c", getRawHbA1c());
+        }
+    }
+
+    /**
+     * Converts the context into a human-readable string.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Context of Sequence Number: ").append(sequenceNumber);
+
+        if ((flags & GlucoseContextFrameDecoder.FLAG_CARBOHYDRATE) != 0) {
+            builder.append("\nCarbohydrate: ").append(getCarbohydrate()).append(", ");
+            Ieee11073Float.appendSfloat(builder, getRawCarbohydrateAmount()).append(" kg");
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_MEAL) != 0) {
+            builder.append("\nMeal: ").append(getMeal());
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_TESTER_HEALTH) != 0) {
+            builder.append("\nTester: ").append(getTester());
+            builder.append("\nHealth: ").append(getHealth());
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_EXERCISE) != 0) {
+            builder.append("\nExercise: ");
+            if (getExerciseDuration() == GlucoseContextFrameDecoder.EXERCISE_DURATION_OVERRUN) {
+                builder.append("overrun");
+            } else {
+                builder.append(getExerciseDuration()).append(" s");
+            }
+            builder.append(", ").append(getExerciseIntensity()).append(" %");
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_MEDICATION) != 0) {
+            builder.append("\nMedication: ").append(getMedication()).append(", ");
+            Ieee11073Float.appendSfloat(builder, getRawMedicationAmount())
+                    .append(" ").append(getMedicationUnit());
+        }
+        if ((flags & GlucoseContextFrameDecoder.FLAG_HBA1C) != 0) {
+            builder.append("\nHbA1c: ");
+            Ieee11073Float.appendSfloat(builder, getRawHbA1c()).append(" %");
+        }
+        return builder.toString();
+    }
+
+    private static String describe(String[] descriptions, int code) {
+        return code < descriptions.length ? descriptions[code] : "";
+    }
+}
@@ -1,8 +1,10 @@
 package eu.credential.app.patient.integration.model;
 
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 
+import eu.credential.app.patient.integration.codec.GlucoseFrameDecoder;
+import eu.credential.app.patient.integration.codec.InfluxLineEncoder;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -10,8 +12,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -21,15 +21,18 @@ import java.util.Locale;
  */
 public class GlucoseMeasurement extends Measurement {
 
-    // offsets
-    private int sequenceNumberOffset;
-    private int baseTimeOffset;
-    private int timeDiffOffset;
-    private int glucoseConcentrationOffset;
-    private int typeLocationOffset;
-    private int sensorStatusOffset;
-
-    private Date receiveTime;
+    // decoded fields
+    private final long baseTime;
+    private final float glucoseConcentration;
+    // concentration as transmitted, for exact decimal output
+    private final short rawConcentration;
+    private final short timeOffset;
+    // sequence number (bits 16-31), sample location (12-15) and type (8-11)
+    private final int codes;
+    // 16 bit sensor status annunciation
+    private final int sensorStatus;
+    // context with the same sequence number, if the device sent one
+    private final GlucoseContext context;
 
     public static final String[] TYPES = new String[]{
             "", // 0 - reserved"
@@ -72,17 +75,57 @@ public class GlucoseMeasurement extends Measurement {
             "", "", "", "" // 12-15 reserved
     };
 
-    public GlucoseMeasurement(BluetoothGattCharacteristic characteristic) {
-        super(characteristic);
-
-        // calculate the offsets depending on the flags
-        sequenceNumberOffset = flagOffset + 1; // 16 bit for mandatory sequence number
-        baseTimeOffset = sequenceNumberOffset + 2; // 16y + 8m + 8d + 8h + 8min + 8s - org.bluetooth.characteristic.date_time
-        timeDiffOffset = baseTimeOffset + 7; // 16 bit time offset depending on flag 0
-        glucoseConcentrationOffset = isFlagSet(0) ? timeDiffOffset + 2 : timeDiffOffset; // 16 bit
-        typeLocationOffset = isFlagSet(1) ? glucoseConcentrationOffset + 2 : glucoseConcentrationOffset; // 2 nibbles type and status
-        sensorStatusOffset = isFlagSet(1) ? typeLocationOffset + 1 : typeLocationOffset;
-        this.receiveTime = Calendar.getInstance().getTime();
+    /**
+     * Decodes the given value of a glucose measurement characteristic.
+     *
+     * @param value       characteristic value starting with the flags
+     * @param receiveTime unix time in milliseconds, when the value has been received
+     */
+    public GlucoseMeasurement(byte[] value, long receiveTime) {
+        super(GlucoseFrameDecoder.flags(value, 0), receiveTime);
+        this.baseTime = GlucoseFrameDecoder.baseTime(value, 0);
+        this.glucoseConcentration = GlucoseFrameDecoder.concentration(value, 0);
+        this.rawConcentration = (short) GlucoseFrameDecoder.rawConcentration(value, 0);
+        this.timeOffset = (short) GlucoseFrameDecoder.timeOffset(value, 0);
+        this.codes = GlucoseFrameDecoder.sequenceNumber(value, 0) << 16
+                | GlucoseFrameDecoder.sampleLocation(value, 0) << 12
+                | GlucoseFrameDecoder.type(value, 0) << 8;
+        this.sensorStatus = GlucoseFrameDecoder.sensorStatus(value, 0);
+        this.context = null;
+    }
+
+    private GlucoseMeasurement(GlucoseMeasurement source, GlucoseContext context) {
+        super(source.flags, source.getReceiveTimeMillis());
+        this.baseTime = source.baseTime;
+        this.glucoseConcentration = source.glucoseConcentration;
+        this.rawConcentration = source.rawConcentration;
+        this.timeOffset = source.timeOffset;
+        this.codes = source.codes;
+        this.sensorStatus = source.sensorStatus;
+        this.context = context;
+    }
+
+    /**
+     * Returns a copy of this measurement with the given context attached.
+     */
+    public GlucoseMeasurement withContext(GlucoseContext context) {
+        return new GlucoseMeasurement(this, context);
+    }
+
+    /**
+     * Returns true, if the device announced a context characteristic for this measurement.
+     */
+    public boolean isContextFollowing() {
+        return (flags & GlucoseFrameDecoder.FLAG_CONTEXT_FOLLOWS) != 0;
+    }
+
+    /**
+     * Returns the attached context.
+     *
+     * @return null, if no context has been received
+     */
+    public GlucoseContext getContext() {
+        return context;
     }
 
     /**
@@ -98,33 +141,30 @@ public class GlucoseMeasurement extends Measurement {
      * Returns the sequence number of the measurement.
      */
     public int getSequenceNumber() {
-        return characteristic.getIntValue(
-                BluetoothGattCharacteristic.FORMAT_UINT16, sequenceNumberOffset);
+        return codes >>> 16;
     }
 
     /**
-     * Returns the base time or null if not given.
+     * Returns the base time of the device.
      */
-
-    public void setReceiveTime(Date receiveTime) {
-        this.receiveTime = receiveTime;
+    public Date getBaseTime() {
+        return new Date(baseTime);
     }
 
-    public Date getReceiveTime() {
-        return receiveTime;
-    }
-    public Date getBaseTime() {
-        return readTime(baseTimeOffset);
+    /**
+     * Returns the base time of the device in unix milliseconds.
+     */
+    public long getBaseTimeMillis() {
+        return baseTime;
     }
+
     /**
      * Returns the time offset in minutes.
      *
      * @return 0, if no information given.
      */
     public int getTimeOffset() {
-        if (isFlagSet(0))
-            return characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, timeDiffOffset);
-        else return 0;
+        return timeOffset;
     }
 
     /**
@@ -133,9 +173,35 @@ public class GlucoseMeasurement extends Measurement {
      * @return 0, if no information given
      */
     public float getGlucoseConcentration() {
-        if (isFlagSet(1))
-            return characteristic.getFloatValue(BluetoothGattCharacteristic.FORMAT_SFLOAT, glucoseConcentrationOffset);
-        else return 0;
+        return glucoseConcentration;
+    }
+
+    /**
+     * Returns the glucose concentration as raw IEEE-11073 SFLOAT.
+     */
+    public int getRawGlucoseConcentration() {
+        return rawConcentration & 0xFFFF;
+    }
+
+    /**
+     * Returns the type code (index of TYPES).
+     */
+    public int getTypeCode() {
+        return (codes >> 8) & 0x0F;
+    }
+
+    /**
+     * Returns the sample location code (index of LOCATIONS).
+     */
+    public int getSampleLocationCode() {
+        return (codes >> 12) & 0x0F;
+    }
+
+    /**
+     * Returns the sensor status annunciation as bit mask (bit positions are indices of STATES).
+     */
+    public int getSensorStatusFlags() {
+        return sensorStatus;
     }
 
     /**
@@ -144,13 +210,7 @@ public class GlucoseMeasurement extends Measurement {
      * @return empty string, if no information given
      */
     public String getType() {
-        if (!isFlagSet(1)) return "";
-
-        BitSet fullByte = BitSet.valueOf(new byte[]{characteristic.getValue()[typeLocationOffset]});
-        BitSet lowerNibble = fullByte.get(0, 4);
-        int index = readUnsignedInt(lowerNibble);
-
-        return TYPES[index];
+        return TYPES[getTypeCode()];
     }
 
     /**
@@ -159,13 +219,7 @@ public class GlucoseMeasurement extends Measurement {
      * @return empty string, if no information given
      */
     public String getSampleLocation() {
-        if (!isFlagSet(1)) return "";
-
-        BitSet fullByte = BitSet.valueOf(new byte[]{characteristic.getValue()[typeLocationOffset]});
-        BitSet upperNibble = fullByte.get(4, 8);
-        int index = readUnsignedInt(upperNibble);
-
-        return LOCATIONS[index];
+        return LOCATIONS[getSampleLocationCode()];
     }
 
     /**
@@ -175,60 +229,52 @@ public class GlucoseMeasurement extends Measurement {
      */
     public List<String> getSensorStatus() {
         List<String> result = new ArrayList<>();
-        if (!isFlagSet(3)) return result;
-
-        // The states are described by 16 bit bitmap
-        byte[] statusArray = {
-                characteristic.getValue()[sensorStatusOffset],
-                characteristic.getValue()[sensorStatusOffset + 1]
-        };
-        BitSet statusFlags = BitSet.valueOf(statusArray);
-
-        // get the descriptions
-        for (int i = 0; i < 16; i++) {
-            if (statusFlags.get(i)) result.add(STATES[i]);
+
+        // The states are described by 16 bit bitmap, get the descriptions of the set bits
+        int statusFlags = sensorStatus;
+        while (statusFlags != 0) {
+            result.add(STATES[Integer.numberOfTrailingZeros(statusFlags)]);
+            statusFlags &= statusFlags - 1;
         }
 
         return result;
     }
 
-    public String toInfluxLine() {
-        StringBuilder builder = new StringBuilder();
+    @Override
+    public long getTagSignature() {
+        int offsetTag = timeOffset > 0 ? timeOffset : 0;
+        return (codes & 0xFF00) | (flags & GlucoseFrameDecoder.FLAG_UNIT_MOL) | (long) offsetTag << 16;
+    }
 
+    @Override
+    public void writeTags(InfluxLineEncoder encoder) {
         // Name of the measurement
-        builder.append("Glucose");
+        encoder.measurement("Glucose");
 
         // tags
-        if(!"".equals(this.getSampleLocation())) {
-            String location = getSampleLocation().replace(" ","\\ ").replace(",","\\,");
-            builder.append(",sample_location=").append(location);
+        if (getSampleLocationCode() != 0) {
+            encoder.tag("sample_location", getSampleLocation());
         }
-        // builder.append(",sequence_number=").append(getSequenceNumber());
-        if(this.getTimeOffset() > 0) {
-            builder.append(",time_offset=").append(getTimeOffset());
+        if (this.getTimeOffset() > 0) {
+            encoder.tag("time_offset", getTimeOffset());
         }
-        if(!"".equals(this.getType())) {
-            String type = getType().replace(" ","\\ ").replace(",","\\,");
-            builder.append(",type=").append(type);
+        if (getTypeCode() != 0) {
+            encoder.tag("type", getType());
         }
-        String unit = getUnit().replace(" ", "\\ ").replace(",", "\\,");
-        builder.append(",unit=").append(unit);
-
-        // separator
-        builder.append(" ");
-
-        // measurement values
-        builder.append("glucose_concentration=").append(getGlucoseConcentration());
-
-        // separator
-        builder.append(" ");
+        encoder.tag("unit", getUnit());
+    }
 
-        // Unix time stamp
-        builder.append(getBaseTime().getTime());
-        // influx db wants the time in nanoseconds, not milliseconds
-        builder.append("000000");
+    @Override
+    public void writeFields(InfluxLineEncoder encoder) {
+        encoder.sfloatField("glucose_concentration", getRawGlucoseConcentration());
+        if (context != null) {
+            context.writeFields(encoder);
+        }
+    }
 
-        return builder.toString();
+    @Override
+    public long getInfluxTimeMillis() {
+        return baseTime;
     }
 
     /**
@@ -272,6 +318,11 @@ public class GlucoseMeasurement extends Measurement {
             }
         }
 
+        // context, if received
+        if (context != null) {
+            builder.append("\n").append(context.toString());
+        }
+
         return builder.toString();
     }
     public void writeJSON(Context context, String fileName){
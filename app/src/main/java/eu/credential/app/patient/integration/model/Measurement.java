@@ -1,35 +1,25 @@
 package eu.credential.app.patient.integration.model;
 
-import android.bluetooth.BluetoothGattCharacteristic;
+import eu.credential.app.patient.integration.codec.InfluxLineEncoder;
 
-import java.util.BitSet;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
 
 /**
+ * Immutable base of all measurements. The GATT coded data is decoded once on construction and
+ * only kept in primitive fields, so the characteristic can be freed right after receiving it.
  * Created by ogr on 04.07.2016.
  */
 public abstract class Measurement {
 
-    private Date receiveTime;
+    // unix time in milliseconds, when the measurement arrived on the phone
+    private final long receiveTime;
 
-    // underlying byte array
-    protected BluetoothGattCharacteristic characteristic;
-    protected int flags;
+    // flags in the first byte of the characteristic
+    protected final int flags;
 
-    // offset
-    protected int flagOffset;
-
-    public Measurement(BluetoothGattCharacteristic characteristic) {
-        this.receiveTime = Calendar.getInstance().getTime();
-
-        // take the GATT coded data
-        this.characteristic = characteristic;
-
-        // take the flags
-        this.flags = characteristic.getValue()[0];
-        this.flagOffset = 0;
+    public Measurement(int flags, long receiveTime) {
+        this.receiveTime = receiveTime;
+        this.flags = flags & 0xFF;
     }
 
     /**
@@ -54,63 +44,49 @@ public abstract class Measurement {
         return isBitSet(flags, pos);
     }
 
-    /**
-     * Creates a pseudo unsigned int out of the given value.
-     *
-     * @return
-     */
-    protected int readUnsignedInt(BitSet bits) {
-        int result = 0;
-        for (int i = 0; i < bits.length(); i++) {
-            if (bits.get(i)) result += Math.pow(2, i);
-        }
-        return result;
-    }
-    public void setReceiveTime(Date receiveTime) {
-        this.receiveTime = receiveTime;
-    }
-
     public Date getReceiveTime() {
-        return receiveTime;
+        return new Date(receiveTime);
     }
+
     /**
-     * Returns the 7-bit time by reading data till the given offset
+     * Returns the receive time in unix milliseconds.
      */
-    protected Date readTime(int startOffset) {
-        int yearOffset = startOffset;
-        int monthOffset = yearOffset + 2;
-        int dayOffset = monthOffset + 1;
-        int hourOffset = dayOffset + 1;
-        int minuteOffset = hourOffset + 1;
-        int secondOffset = minuteOffset + 1;
-
-        int year = characteristic.getIntValue(
-                BluetoothGattCharacteristic.FORMAT_UINT16, yearOffset);
-        int month = characteristic.getIntValue(
-                BluetoothGattCharacteristic.FORMAT_UINT8, monthOffset);
-        int day = characteristic.getIntValue(
-                BluetoothGattCharacteristic.FORMAT_UINT8, dayOffset);
-        int hour = characteristic.getIntValue(
-                BluetoothGattCharacteristic.FORMAT_UINT8, hourOffset);
-        int minute = characteristic.getIntValue(
-                BluetoothGattCharacteristic.FORMAT_UINT8, minuteOffset);
-        int seconds = characteristic.getIntValue(
-                BluetoothGattCharacteristic.FORMAT_UINT8, secondOffset);
-
-        Calendar cal = GregorianCalendar.getInstance();
-        // Attention: MONTH field in Calendar starts with 0
-        cal.set(year, month - 1, day, hour, minute, seconds);
-        cal.set(Calendar.MILLISECOND, 0);
-
-        return cal.getTime();
+    public long getReceiveTimeMillis() {
+        return receiveTime;
     }
 
     /**
      * Serializes the measurement data (tags and fields) to the line protocol.
      * The line protocol is a space-efficient single line format used by InfluxDB.
+     * For many measurements, a shared InfluxLineEncoder should be used instead.
      * @return
      */
-    public abstract String toInfluxLine();
+    public String toInfluxLine() {
+        return InfluxLineEncoder.encodeLine(this, InfluxLineEncoder.Precision.NANOSECONDS);
+    }
+
+    /**
+     * Returns a value which differs for every distinct tag set of the measurement. Lines with
+     * the same signature share their escaped tag set in the InfluxLineEncoder.
+     */
+    public abstract long getTagSignature();
+
+    /**
+     * Writes the measurement name and the tags into the encoder.
+     */
+    public abstract void writeTags(InfluxLineEncoder encoder);
+
+    /**
+     * Writes the measurement values into the encoder.
+     */
+    public abstract void writeFields(InfluxLineEncoder encoder);
+
+    /**
+     * Returns the time stamp of the line in unix milliseconds.
+     *
+     * @return InfluxLineEncoder.NO_TIME, if the measurement has no own time stamp
+     */
+    public abstract long getInfluxTimeMillis();
 
     @Override
     public abstract String toString();
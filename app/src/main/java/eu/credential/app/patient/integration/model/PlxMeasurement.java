@@ -0,0 +1,222 @@
+package eu.credential.app.patient.integration.model;
+
+import eu.credential.app.patient.integration.codec.Ieee11073Float;
+import eu.credential.app.patient.integration.codec.InfluxLineEncoder;
+import eu.credential.app.patient.integration.codec.PlxContinuousFrameDecoder;
+import eu.credential.app.patient.integration.codec.PlxSpotCheckFrameDecoder;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * SpO2 and pulse rate of a pulse oximeter, either a single spot-check or one sample of the
+ * continuous measurement. The flags are the ones of the respective characteristic.
+ */
+public class PlxMeasurement extends Measurement {
+
+    private final boolean continuous;
+    // raw SFLOAT SpO2 (bits 0-15) and pulse rate (16-31)
+    private final int rawValues;
+    // continuous only: raw SFLOAT fast SpO2, fast pulse rate, slow SpO2, slow pulse rate
+    private final long rawFastSlow;
+    // spot-check only: time stamp of the device
+    private final long timestamp;
+    private final int measurementStatus;
+    private final int deviceSensorStatus;
+    private final short rawPulseAmplitudeIndex;
+
+    private PlxMeasurement(int flags, long receiveTime, boolean continuous, int rawValues,
+                           long rawFastSlow, long timestamp, int measurementStatus,
+                           int deviceSensorStatus, int rawPulseAmplitudeIndex) {
+        super(flags, receiveTime);
+        this.continuous = continuous;
+        this.rawValues = rawValues;
+        this.rawFastSlow = rawFastSlow;
+        this.timestamp = timestamp;
+        this.measurementStatus = measurementStatus;
+        this.deviceSensorStatus = deviceSensorStatus;
+        this.rawPulseAmplitudeIndex = (short) rawPulseAmplitudeIndex;
+    }
+
+    /**
+     * Decodes the given value of a PLX spot-check measurement characteristic.
+     *
+     * @param receiveTime unix time in milliseconds, when the value has been received
+     */
+    public static PlxMeasurement fromSpotCheck(byte[] value, long receiveTime) {
+        long nres = Ieee11073Float.SFLOAT_NRES;
+        return new PlxMeasurement(PlxSpotCheckFrameDecoder.flags(value, 0), receiveTime, false,
+                PlxSpotCheckFrameDecoder.rawSpo2(value, 0)
+                        | PlxSpotCheckFrameDecoder.rawPulseRate(value, 0) << 16,
+                nres | nres << 16 | nres << 32 | nres << 48,
+                PlxSpotCheckFrameDecoder.timestamp(value, 0),
+                PlxSpotCheckFrameDecoder.measurementStatus(value, 0),
+                PlxSpotCheckFrameDecoder.deviceSensorStatus(value, 0),
+                PlxSpotCheckFrameDecoder.rawPulseAmplitudeIndex(value, 0));
+    }
+
+    /**
+     * Decodes the given value of a PLX continuous measurement characteristic.
+     *
+     * @param receiveTime unix time in milliseconds, when the value has been received
+     */
+    public static PlxMeasurement fromContinuous(byte[] value, long receiveTime) {
+        return new PlxMeasurement(PlxContinuousFrameDecoder.flags(value, 0), receiveTime, true,
+                PlxContinuousFrameDecoder.rawSpo2(value, 0)
+                        | PlxContinuousFrameDecoder.rawPulseRate(value, 0) << 16,
+                (long) PlxContinuousFrameDecoder.rawFastSpo2(value, 0)
+                        | (long) PlxContinuousFrameDecoder.rawFastPulseRate(value, 0) << 16
+                        | (long) PlxContinuousFrameDecoder.rawSlowSpo2(value, 0) << 32
+                        | (long) PlxContinuousFrameDecoder.rawSlowPulseRate(value, 0) << 48,
+                0,
+                PlxContinuousFrameDecoder.measurementStatus(value, 0),
+                PlxContinuousFrameDecoder.deviceSensorStatus(value, 0),
+                PlxContinuousFrameDecoder.rawPulseAmplitudeIndex(value, 0));
+    }
+
+    /**
+     * Returns true for samples of the continuous measurement, false for spot-checks.
+     */
+    public boolean isContinuous() {
+        return continuous;
+    }
+
+    /**
+     * Returns the SpO2 in percent.
+     *
+     * @return NaN, if the device could not measure it
+     */
+    public float getSpo2() {
+        return Ieee11073Float.decodeSfloat(getRawSpo2());
+    }
+
+    public int getRawSpo2() {
+        return rawValues & 0xFFFF;
+    }
+
+    /**
+     * Returns the pulse rate in beats per minute.
+     *
+     * @return NaN, if the device could not measure it
+     */
+    public float getPulseRate() {
+        return Ieee11073Float.decodeSfloat(getRawPulseRate());
+    }
+
+    public int getRawPulseRate() {
+        return rawValues >>> 16;
+    }
+
+    /**
+     * Returns the raw SFLOAT fast responding SpO2 of continuous samples.
+     */
+    public int getRawFastSpo2() {
+        return (int) rawFastSlow & 0xFFFF;
+    }
+
+    public int getRawFastPulseRate() {
+        return (int) (rawFastSlow >>> 16) & 0xFFFF;
+    }
+
+    public int getRawSlowSpo2() {
+        return (int) (rawFastSlow >>> 32) & 0xFFFF;
+    }
+
+    public int getRawSlowPulseRate() {
+        return (int) (rawFastSlow >>> 48) & 0xFFFF;
+    }
+
+    /**
+     * Returns the pulse amplitude index in percent as raw SFLOAT.
+     */
+    public int getRawPulseAmplitudeIndex() {
+        return rawPulseAmplitudeIndex & 0xFFFF;
+    }
+
+    public int getMeasurementStatus() {
+        return measurementStatus;
+    }
+
+    public int getDeviceSensorStatus() {
+        return deviceSensorStatus;
+    }
+
+    /**
+     * Returns true, if the spot-check carries a time stamp of a set device clock.
+     */
+    public boolean hasTimestamp() {
+        return !continuous && isFlagSet(0) && !isFlagSet(4);
+    }
+
+    /**
+     * Returns the time stamp of the device for spot-checks, else the receive time.
+     */
+    public Date getBaseTime() {
+        return new Date(hasTimestamp() ? timestamp : getReceiveTimeMillis());
+    }
+
+    @Override
+    public long getTagSignature() {
+        return continuous ? 1 : 0;
+    }
+
+    @Override
+    public void writeTags(InfluxLineEncoder encoder) {
+        // Name of the measurement
+        encoder.measurement("PulseOximeter");
+
+        // tags
+        encoder.tag("mode", continuous ? "continuous" : "spot_check");
+    }
+
+    @Override
+    public void writeFields(InfluxLineEncoder encoder) {
+        encoder.sfloatField("spo2", getRawSpo2());
+        encoder.sfloatField("pulse_rate", getRawPulseRate());
+        if (continuous) {
+            encoder.sfloatField("spo2_fast", getRawFastSpo2());
+            encoder.sfloatField("pulse_rate_fast", getRawFastPulseRate());
+            encoder.sfloatField("spo2_slow", getRawSlowSpo2());
+            encoder.sfloatField("pulse_rate_slow", getRawSlowPulseRate());
+        }
+        encoder.sfloatField("pulse_amplitude_index", getRawPulseAmplitudeIndex());
+        if (measurementStatus != 0) {
+            encoder.field("measurement_status", measurementStatus);
+        }
+        if (deviceSensorStatus != 0) {
+            encoder.field("device_sensor_status", deviceSensorStatus);
+        }
+    }
+
+    @Override
+    public long getInfluxTimeMillis() {
+        // continuous samples are uploaded in batches and need their own time
+        if (continuous) return getReceiveTimeMillis();
+        return hasTimestamp() ? timestamp : InfluxLineEncoder.NO_TIME;
+    }
+
+    /**
+     * Converts pulse oximeter data into a human-readable string.
+     * @return
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(continuous ? "Continuous SpO2: " : "Spot-check SpO2: ");
+        Ieee11073Float.appendSfloat(builder, getRawSpo2()).append(" %");
+        builder.append("\nPulse Rate: ");
+        Ieee11073Float.appendSfloat(builder, getRawPulseRate()).append(" bpm");
+
+        if (hasTimestamp()) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("d MMM yyyy HH:mm:ss Z", Locale.US);
+            builder.append("\nTime: ").append(dateFormat.format(getBaseTime()));
+        }
+        if (!Ieee11073Float.isSfloatSpecial(getRawPulseAmplitudeIndex())) {
+            builder.append("\nPulse Amplitude Index: ");
+            Ieee11073Float.appendSfloat(builder, getRawPulseAmplitudeIndex()).append(" %");
+        }
+        return builder.toString();
+    }
+}
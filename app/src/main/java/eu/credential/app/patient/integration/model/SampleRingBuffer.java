@@ -0,0 +1,109 @@
+package eu.credential.app.patient.integration.model;
+
+/**
+ * Fixed size buffer for continuous samples, e.g. heart rates or RR-intervals. Time stamps and
+ * values are kept in primitive arrays, which are allocated once, so streaming over hours does
+ * not create any objects. If the buffer is full, the oldest sample is overwritten.
+ * All methods are synchronized, since samples are written by the collection and read by the UI.
+ */
+public class SampleRingBuffer {
+
+    // unix time in milliseconds of every sample
+    private final long[] times;
+    private final float[] values;
+
+    // index of the next write
+    private int head;
+    private int size;
+    // number of samples ever added, never wraps in practice
+    private long totalCount;
+
+    public SampleRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.times = new long[capacity];
+        this.values = new float[capacity];
+        this.head = 0;
+        this.size = 0;
+        this.totalCount = 0;
+    }
+
+    /**
+     * Adds a sample, overwriting the oldest one if the buffer is full.
+     *
+     * @param time unix time in milliseconds
+     */
+    public synchronized void add(long time, float value) {
+        times[head] = time;
+        values[head] = value;
+        head = head + 1 == times.length ? 0 : head + 1;
+        if (size < times.length) size++;
+        totalCount++;
+    }
+
+    public int capacity() {
+        return times.length;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of samples added since creation or the last clear, including the
+     * overwritten ones. Readers can compare it to find out, whether new samples arrived.
+     */
+    public synchronized long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Returns the time of the newest sample.
+     *
+     * @return 0, if the buffer is empty
+     */
+    public synchronized long getLatestTime() {
+        return size == 0 ? 0 : times[index(size - 1)];
+    }
+
+    /**
+     * Returns the newest sample value.
+     *
+     * @return NaN, if the buffer is empty
+     */
+    public synchronized float getLatestValue() {
+        return size == 0 ? Float.NaN : values[index(size - 1)];
+    }
+
+    /**
+     * Copies the newest samples, oldest first, into the given arrays. At most as many samples as
+     * fit into the smaller array are copied.
+     *
+     * @return number of copied samples
+     */
+    public synchronized int copyLatest(long[] timesOut, float[] valuesOut) {
+        int count = Math.min(size, Math.min(timesOut.length, valuesOut.length));
+        int first = size - count;
+        for (int i = 0; i < count; i++) {
+            int index = index(first + i);
+            timesOut[i] = times[index];
+            valuesOut[i] = values[index];
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+        totalCount = 0;
+    }
+
+    /**
+     * Maps the position (0 = oldest) to the array index.
+     */
+    private int index(int position) {
+        int index = head - size + position;
+        return index < 0 ? index + times.length : index;
+    }
+}
@@ -1,18 +1,19 @@
 package eu.credential.app.patient.integration.model;
 
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
+import eu.credential.app.patient.integration.codec.InfluxLineEncoder;
+import eu.credential.app.patient.integration.codec.WeightFrameDecoder;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
 
@@ -21,24 +22,10 @@ import java.util.Locale;
  */
 public class WeightMeasurement extends Measurement{
 
-    // offsets in bytes
-    private int weightOffset;
-    private int timestampOffset;
-    private int userIdOffset;
-    private int bmiOffset;
-    private int heightOffset;
-
-    private Date receiveTime;
-
     public static final String UNIT_SCI_WEIGHT = "kg";
-    public static final int FACTOR_SCI_WEIGHT = 200;
     public static final String UNIT_SCI_HEIGHT = "m";
-    public static final int FACTOR_SCI_HEIGHT = 1000;
     public static final String UNIT_IMP_WEIGHT = "lb";
-    public static final int FACTOR_IMP_WEIGHT = 100;
     public static final String UNIT_IMP_HEIGHT = "in";
-    public static final int FACTOR_IMP_HEIGHT = 10;
-    public static final int FACTOR_BMI = 10;
 
     // flag positions
     private static final int FLAG_UNIT = 0;
@@ -46,16 +33,27 @@ public class WeightMeasurement extends Measurement{
     private static final int FLAG_USERID = 2;
     private static final int FLAG_BMI_HEIGHT = 3;
 
-    public WeightMeasurement(BluetoothGattCharacteristic characteristic) {
-        super(characteristic);
+    // decoded fields
+    private final long timestamp;
+    // raw weight (bits 0-15) and raw bmi (16-31)
+    private final int weightBmi;
+    // raw height (bits 0-15) and user id (16-23)
+    private final int heightUser;
 
-        // calculate the offsets depending on the flags
-        weightOffset = flagOffset + 1; // 16 bits for weight indication
-        timestampOffset = weightOffset + 2; // 56 bits for time date field
-        userIdOffset = isFlagSet(FLAG_TIMESTAMP) ? timestampOffset + 7 : timestampOffset;
-        bmiOffset = isFlagSet(FLAG_USERID) ? userIdOffset + 1 : userIdOffset;
-        heightOffset = isFlagSet(FLAG_BMI_HEIGHT) ? bmiOffset + 2 : bmiOffset;
-        this.receiveTime = Calendar.getInstance().getTime();
+    /**
+     * Decodes the given value of a weight measurement characteristic.
+     *
+     * @param value       characteristic value starting with the flags
+     * @param receiveTime unix time in milliseconds, when the value has been received
+     */
+    public WeightMeasurement(byte[] value, long receiveTime) {
+        super(WeightFrameDecoder.flags(value, 0), receiveTime);
+        this.timestamp = WeightFrameDecoder.timestamp(value, 0);
+        int bmi = WeightFrameDecoder.rawBmi(value, 0);
+        int height = WeightFrameDecoder.rawHeight(value, 0);
+        int userId = WeightFrameDecoder.userId(value, 0);
+        this.weightBmi = WeightFrameDecoder.rawWeight(value, 0) | (bmi & 0xFFFF) << 16;
+        this.heightUser = (height & 0xFFFF) | (userId & 0xFF) << 16;
     }
 
     /**
@@ -77,18 +75,17 @@ public class WeightMeasurement extends Measurement{
     }
 
     /**
-     * Returns the base time or null if not given.
+     * Returns the time stamp of the scale or the receive time, if not given.
      */
     public Date getBaseTime() {
-            return receiveTime;
-    }
-
-    public void setReceiveTime(Date receiveTime) {
-        this.receiveTime = receiveTime;
+        return new Date(getBaseTimeMillis());
     }
 
-    public Date getReceiveTime() {
-        return receiveTime;
+    /**
+     * Returns the time stamp of the scale or the receive time in unix milliseconds.
+     */
+    public long getBaseTimeMillis() {
+        return isFlagSet(FLAG_TIMESTAMP) ? timestamp : getReceiveTimeMillis();
     }
 
     /**
@@ -97,93 +94,80 @@ public class WeightMeasurement extends Measurement{
      * @return
      */
     public double getWeight() {
-        double baseVal = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, weightOffset);
-        double converted;
-        if (isFlagSet(FLAG_UNIT)) {
-            converted = baseVal / FACTOR_IMP_WEIGHT;
-        } else {
-            converted = baseVal / FACTOR_SCI_WEIGHT;
-        }
-        return converted;
+        int factor = isFlagSet(FLAG_UNIT) ? WeightFrameDecoder.FACTOR_IMP_WEIGHT
+                : WeightFrameDecoder.FACTOR_SCI_WEIGHT;
+        return getRawWeight() / (double) factor;
     }
 
     /**
-     * Returns the parsed weight in units.
+     * Returns the weight in the resolution units of the scale.
+     */
+    public int getRawWeight() {
+        return weightBmi & 0xFFFF;
+    }
+
+    /**
+     * Returns true, if the scale could not measure a weight.
      *
      * @return
      */
     public boolean weightFailed() {
-        int baseVal = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, weightOffset);
-        return baseVal == 0xFFFF;
+        return getRawWeight() == WeightFrameDecoder.WEIGHT_FAILED;
     }
 
     public int getUserId() {
-        if(isFlagSet(FLAG_USERID)) {
-            return characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, userIdOffset);
-        }
-        return -1;
+        return isFlagSet(FLAG_USERID) ? (heightUser >>> 16) & 0xFF : -1;
     }
 
     public double getBmi() {
-        if(isFlagSet(FLAG_BMI_HEIGHT)) {
-            int base = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, bmiOffset);
-            return base / 10;
+        if (!isFlagSet(FLAG_BMI_HEIGHT)) {
+            return -1;
         }
-        return -1;
+        return (weightBmi >>> 16) / (double) WeightFrameDecoder.FACTOR_BMI;
     }
 
     public double getHeight() {
-        if(!isFlagSet(FLAG_BMI_HEIGHT)) {
+        if (!isFlagSet(FLAG_BMI_HEIGHT)) {
             return -1;
         }
-
-        int base = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, heightOffset);
-        double converted;
-        if(isFlagSet(FLAG_UNIT)) {
-            converted = base / FACTOR_IMP_WEIGHT;
-        } else {
-            converted = base / FACTOR_SCI_HEIGHT;
-        }
-        return converted;
-
+        int factor = isFlagSet(FLAG_UNIT) ? WeightFrameDecoder.FACTOR_IMP_HEIGHT
+                : WeightFrameDecoder.FACTOR_SCI_HEIGHT;
+        return (heightUser & 0xFFFF) / (double) factor;
     }
 
-    public String toInfluxLine() {
-        StringBuilder builder = new StringBuilder();
+    @Override
+    public long getTagSignature() {
+        return (flags & (1 << FLAG_UNIT | 1 << FLAG_USERID | 1 << FLAG_BMI_HEIGHT))
+                | (heightUser & 0xFF0000);
+    }
 
+    @Override
+    public void writeTags(InfluxLineEncoder encoder) {
         // Name of the measurement
-        builder.append("Weight");
+        encoder.measurement("Weight");
 
         // tags
         if(isFlagSet(FLAG_BMI_HEIGHT)) {
-            builder.append(",height_unit=").append(getHeightUnit());
+            encoder.tag("height_unit", getHeightUnit());
         }
         if(isFlagSet(FLAG_USERID)) {
-            builder.append(",user_id=").append(getUserId());
+            encoder.tag("user_id", getUserId());
         }
-        builder.append(",weight_unit=").append(getWeightUnit());
-
-        // separator
-        builder.append(" ");
+        encoder.tag("weight_unit", getWeightUnit());
+    }
 
-        // measurements
-        builder.append("weight=").append(getWeight());
+    @Override
+    public void writeFields(InfluxLineEncoder encoder) {
+        encoder.field("weight", getWeight());
         if(isFlagSet(FLAG_BMI_HEIGHT)) {
-            builder.append(",height=").append(getHeight());
-            builder.append(",bmi=").append(getBmi());
-        }
-
-        if(isFlagSet(FLAG_TIMESTAMP)) {
-            // separator
-            builder.append(" ");
-
-            // time in unix format
-            builder.append(getBaseTime().getTime());
-            // by default, influx db wants the time in nano-seconds, not milliseconds
-            builder.append("000000");
+            encoder.field("height", getHeight());
+            encoder.field("bmi", getBmi());
         }
+    }
 
-        return builder.toString();
+    @Override
+    public long getInfluxTimeMillis() {
+        return isFlagSet(FLAG_TIMESTAMP) ? timestamp : InfluxLineEncoder.NO_TIME;
     }
 
     /**
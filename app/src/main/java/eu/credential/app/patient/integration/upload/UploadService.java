@@ -18,6 +18,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.cert.CertificateFactory;
@@ -48,6 +49,9 @@ public class UploadService extends IntentService {
     public static final String UPLOAD_EVENT = "UploadService.UPLOAD_EVENT";
     public static final String MESSAGE = "UploadService.MESSAGE";
     public static final String UPLOAD_CONTENT = "UploadService.UPLOAD_CONTENT";
+    // encoded lines (see InfluxLineEncoder) and the precision of their time stamps
+    public static final String UPLOAD_LINES = "UploadService.UPLOAD_LINES";
+    public static final String UPLOAD_PRECISION = "UploadService.UPLOAD_PRECISION";
 
     // variables used when handling a request
     private LocalBroadcastManager localBroadcastManager;
@@ -85,16 +89,21 @@ public class UploadService extends IntentService {
             return;
         }
 
-        // content to upload
-        String content = intent.getStringExtra(UPLOAD_CONTENT);
-        if (content == null) {
+        // content to upload, either already encoded lines or a string
+        byte[] contentBytes = intent.getByteArrayExtra(UPLOAD_LINES);
+        String precision = intent.getStringExtra(UPLOAD_PRECISION);
+        if (contentBytes == null) {
+            String content = intent.getStringExtra(UPLOAD_CONTENT);
+            if (content != null) contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        }
+        if (contentBytes == null) {
             broadcastMessage("Error: Nothing to upload.");
             return;
         }
 
         // synchronous upload
         try {
-            uploadContent(content);
+            uploadContent(contentBytes, precision);
             broadcastMessage("Upload successful.");
         } catch (IOException ex) {
             broadcastMessage("Error: " + ex.getMessage());
@@ -199,19 +208,17 @@ public class UploadService extends IntentService {
     /**
      * Blocking HTTP-Post action.
      *
-     * @param content
+     * @param contentBytes request body
+     * @param precision    time stamp precision parameter, null for the default (nanoseconds)
      * @throws IOException
      */
-    private void uploadContent(String content) throws IOException {
-        // Prepare request body
-        byte[] contentBytes = content.getBytes("UTF-8");
-
+    private void uploadContent(byte[] contentBytes, String precision) throws IOException {
         InputStream input = null;
         OutputStream output = null;
         HttpsURLConnection conn = null;
         try {
             // Init
-            URL url = new URL(NIFI_URL);
+            URL url = new URL(precision == null ? NIFI_URL : NIFI_URL + "?precision=" + precision);
             conn = (HttpsURLConnection) url.openConnection();
             if(this.sslContext != null) conn.setSSLSocketFactory(this.sslContext.getSocketFactory());
             conn.setReadTimeout(10000);
@@ -0,0 +1,242 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.util.Log;
+
+import eu.credential.app.patient.integration.bluetooth.GattClient;
+import eu.credential.app.patient.integration.codec.CgmFrameDecoder;
+import eu.credential.app.patient.integration.codec.CgmSessionFrameDecoder;
+import eu.credential.app.patient.integration.codec.RecordAccessControlPoint;
+import eu.credential.app.patient.integration.model.CgmMeasurement;
+import eu.credential.app.patient.integration.model.Measurement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handler for continuous glucose monitors. A sensor session lasts up to two weeks with a record
+ * every few minutes. On every connection the session start is read first, then only the records
+ * newer than the last received time offset are requested through the Record Access Control
+ * Point. Session start and time offset are kept in the CgmSessionStore, so they survive
+ * restarts. Records of the backfill are handed to the collector in batches.
+ */
+public class CgmHandler extends CollectionHandler {
+    private final static String TAG = CgmHandler.class.getSimpleName();
+
+    // gatt Attributes which will be contacted, the measurement and the service are defined by
+    // the profile
+    private final static UUID UUID_CGM_STATUS =
+            UUID.fromString("00002aa9-0000-1000-8000-00805f9b34fb");
+    private final static UUID UUID_CGM_SESSION_START_TIME =
+            UUID.fromString("00002aaa-0000-1000-8000-00805f9b34fb");
+    private final static UUID UUID_RECORD_ACCESS_CONTROL_POINT =
+            UUID.fromString("00002a52-0000-1000-8000-00805f9b34fb");
+
+    // records of the backfill are passed on in batches of this size
+    private final static int BATCH_SIZE = 64;
+
+    // session start in unix milliseconds, 0 if unknown
+    private volatile long sessionStart;
+    // highest time offset received in the current session, -1 if none
+    private volatile int lastTimeOffset;
+    // highest time offset of the batch, which is stored once the batch is passed on
+    private int batchTimeOffset;
+    // true while stored records are transferred
+    private volatile boolean backfilling;
+    // true, if the last status has reported a problem of the sensor
+    private volatile boolean alerting;
+
+    // records not yet passed to the collector
+    private final List<Measurement> batch;
+
+    public CgmHandler(DeviceProfile profile, String deviceAddress, GattClient gattClient,
+                      CollectorService collectorService) {
+        super(profile, deviceAddress, gattClient, collectorService);
+        CgmSessionStore sessions = collectorService.getCgmSessions();
+        this.sessionStart = sessions.getSessionStart(deviceAddress);
+        this.lastTimeOffset = sessions.getLastTimeOffset(deviceAddress);
+        this.batchTimeOffset = -1;
+        this.backfilling = false;
+        this.alerting = false;
+        this.batch = new ArrayList<>(BATCH_SIZE);
+    }
+
+    protected void connectedResultHook() {
+        // Connected Result
+    }
+
+    @Override
+    protected void descriptorWriteResultHook(UUID characteristicUuid) {
+
+    }
+
+    protected void disconnectedResultHook() {
+        backfilling = false;
+        flushBatch();
+    }
+
+    /**
+     * Reads the session, enables the measurement notifications and requests the missing records.
+     * The session start has to be known before the records are requested, the operations are
+     * therefore chained on each other.
+     */
+    protected void serviceDiscoveryResultHook() {
+        UUID service = profile.getServiceUuid();
+
+        CompletableFuture<Void> session = readSessionCharacteristic(UUID_CGM_SESSION_START_TIME)
+                .thenAccept(this::receiveSessionStart)
+                .thenCompose(ignored -> readSessionCharacteristic(UUID_CGM_STATUS))
+                .thenAccept(this::receiveStatus);
+        CompletableFuture<Boolean> measurement = succeeded(gattClient.enableNotification(
+                service, profile.getMeasurementUuid(), deviceAddress),
+                "enable CGM measurement");
+        CompletableFuture<Boolean> racp = succeeded(gattClient.enableIndication(
+                service, UUID_RECORD_ACCESS_CONTROL_POINT, deviceAddress), "enable RACP");
+
+        CompletableFuture.allOf(session, measurement, racp).thenRun(() -> {
+            notificationEnabled = measurement.join();
+            if (notificationEnabled && racp.join()) {
+                requestMissingRecords();
+            }
+        });
+    }
+
+    private void receiveSessionStart(byte[] start) {
+        if (start == null || !CgmSessionFrameDecoder.isValidSessionStart(start, 0, start.length)) {
+            return;
+        }
+        long newStart = CgmSessionFrameDecoder.sessionStart(start, 0);
+        if (newStart != sessionStart) {
+            // a new sensor has been started, its offsets begin at 0 again
+            Log.d(TAG, "New CGM session of " + deviceAddress + " started at " + newStart);
+            sessionStart = newStart;
+            lastTimeOffset = -1;
+            collectorService.getCgmSessions().startSession(deviceAddress, newStart);
+        }
+    }
+
+    private void receiveStatus(byte[] status) {
+        if (status == null || !CgmSessionFrameDecoder.isValidStatus(status, 0, status.length)) {
+            return;
+        }
+        int flags = CgmSessionFrameDecoder.status(status, 0);
+        alerting = flags != 0;
+        if (flags != 0) {
+            publishActionStatus("CGM status 0x" + Integer.toHexString(flags) + " at "
+                    + CgmSessionFrameDecoder.statusTimeOffset(status, 0) + " min.");
+        }
+    }
+
+    /**
+     * Sensors reporting a problem are connected before all others.
+     */
+    @Override
+    protected ConnectionScheduler.Priority getConnectionPriority() {
+        return alerting ? ConnectionScheduler.Priority.ALERT : super.getConnectionPriority();
+    }
+
+    /**
+     * Requests all records after the last received one, or all records of a new session. Without
+     * a session start the records cannot be dated, nothing is requested then.
+     */
+    private void requestMissingRecords() {
+        if (sessionStart == 0) {
+            Log.w(TAG, "Session start of " + deviceAddress + " unknown, no records requested.");
+            return;
+        }
+        int from = lastTimeOffset + 1;
+        byte[] request = from == 0 ? RecordAccessControlPoint.reportAllRecords()
+                : RecordAccessControlPoint.reportRecordsFrom(
+                RecordAccessControlPoint.FILTER_TIME_OFFSET, from);
+        backfilling = true;
+        beginBulkTransfer().thenCompose(ignored -> succeeded(
+                gattClient.writeRecordAccessControlPoint(profile.getServiceUuid(),
+                        UUID_RECORD_ACCESS_CONTROL_POINT, deviceAddress, request),
+                "request records")).thenAccept(sent -> {
+                    dataRequested = sent;
+                    if (!sent) {
+                        backfilling = false;
+                        endBulkTransfer();
+                    }
+                });
+    }
+
+    /**
+     * Reads a characteristic of the session.
+     *
+     * @return future of the value, which completes with null if not supported or not received
+     */
+    private CompletableFuture<byte[]> readSessionCharacteristic(UUID characteristicId) {
+        UUID service = profile.getServiceUuid();
+        if (!gattClient.supportsCharacteristic(deviceAddress, service, characteristicId)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return gattClient.readCharacteristic(service, characteristicId, deviceAddress)
+                .handleAsync((value, failure) -> {
+                    if (failure == null) return value;
+                    Log.w(TAG, "Could not read " + characteristicId + ": " + failure.getMessage());
+                    return null;
+                }, executor);
+    }
+
+    @Override
+    protected boolean isStreamed(UUID characteristicUuid) {
+        // one status message per record would flood the message queue during the backfill
+        return profile.getMeasurementUuid().equals(characteristicUuid);
+    }
+
+    /**
+     * Decodes all records of a notification. Live records are passed on at once, records of the
+     * backfill are collected into batches.
+     */
+    protected void dataResultHook(UUID uuid, byte[] value) {
+        this.dataReceived = true;
+
+        if (profile.getMeasurementUuid().equals(uuid)) {
+            receiveRecords(value);
+        } else if (UUID_RECORD_ACCESS_CONTROL_POINT.equals(uuid)
+                && RecordAccessControlPoint.isResponseCode(value, 0, value.length)) {
+            int response = RecordAccessControlPoint.responseCode(value, 0);
+            if (response != RecordAccessControlPoint.RESPONSE_SUCCESS
+                    && response != RecordAccessControlPoint.RESPONSE_NO_RECORDS_FOUND) {
+                Log.w(TAG, "Record request of " + deviceAddress + " failed with " + response);
+            }
+            backfilling = false;
+            flushBatch();
+            endBulkTransfer();
+        }
+    }
+
+    private void receiveRecords(byte[] value) {
+        long now = System.currentTimeMillis();
+        int end = value.length;
+        int offset = 0;
+        while (offset < end) {
+            if (!CgmFrameDecoder.isValidRecord(value, offset, end - offset)) {
+                Log.w(TAG, "Dropping truncated CGM record from " + deviceAddress);
+                break;
+            }
+            CgmMeasurement measurement = new CgmMeasurement(value, offset, sessionStart, now);
+            lastTimeOffset = Math.max(lastTimeOffset, measurement.getTimeOffset());
+            batchTimeOffset = Math.max(batchTimeOffset, measurement.getTimeOffset());
+            batch.add(measurement);
+            offset += CgmFrameDecoder.recordSize(value, offset);
+        }
+
+        if (!backfilling || batch.size() >= BATCH_SIZE) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Hands the collected records over to the collector and stores their time offset.
+     */
+    private void flushBatch() {
+        if (batch.isEmpty()) return;
+        collectorService.receiveMeasurements(batch, deviceAddress);
+        batch.clear();
+        collectorService.getCgmSessions().update(deviceAddress, batchTimeOffset);
+        batchTimeOffset = -1;
+    }
+}
@@ -0,0 +1,60 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the sensor session of every continuous glucose monitor, its start and the highest
+ * time offset received in it, so that a new connection after a restart only requests the newer
+ * records. Like the record watermarks, they are kept in shared preferences keyed by the device
+ * address.
+ */
+public class CgmSessionStore {
+
+    // name of the shared preferences file holding the sessions
+    public final static String PREFERENCES_NAME = "cgm_sessions";
+
+    private final static String KEY_SESSION_START = "/start";
+    private final static String KEY_TIME_OFFSET = "/offset";
+
+    private final SharedPreferences preferences;
+
+    public CgmSessionStore(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * Returns the start of the last session of the device in unix milliseconds.
+     *
+     * @return 0, if unknown
+     */
+    public synchronized long getSessionStart(String deviceAddress) {
+        return preferences.getLong(deviceAddress + KEY_SESSION_START, 0);
+    }
+
+    /**
+     * Returns the highest time offset received in the last session of the device.
+     *
+     * @return -1, if no record has been received yet
+     */
+    public synchronized int getLastTimeOffset(String deviceAddress) {
+        return preferences.getInt(deviceAddress + KEY_TIME_OFFSET, -1);
+    }
+
+    /**
+     * Remembers a new session of the device, whose records have not been received yet.
+     */
+    public synchronized void startSession(String deviceAddress, long sessionStart) {
+        preferences.edit()
+                .putLong(deviceAddress + KEY_SESSION_START, sessionStart)
+                .remove(deviceAddress + KEY_TIME_OFFSET)
+                .apply();
+    }
+
+    /**
+     * Raises the time offset of the session, lower offsets are ignored.
+     */
+    public synchronized void update(String deviceAddress, int timeOffset) {
+        if (timeOffset <= getLastTimeOffset(deviceAddress)) return;
+        preferences.edit().putInt(deviceAddress + KEY_TIME_OFFSET, timeOffset).apply();
+    }
+}
@@ -1,22 +1,29 @@
 package eu.credential.app.patient.orchestration.collection;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.content.Intent;
 import android.util.Log;
 
-import eu.credential.app.patient.integration.bluetooth.BleService;
+import eu.credential.app.patient.integration.bluetooth.GattClient;
+import eu.credential.app.patient.integration.bluetooth.GattEventListener;
+import eu.credential.app.patient.integration.bluetooth.NotificationRingBuffer;
+import eu.credential.app.patient.integration.bluetooth.ReconnectPolicy;
+import eu.credential.app.patient.integration.bluetooth.TransferStats;
 import eu.credential.app.patient.integration.model.DeviceInformation;
-
+import eu.credential.app.patient.integration.model.Measurement;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
  * Created by ogr on 27.06.2016.
  */
-public abstract class CollectionHandler {
+public abstract class CollectionHandler implements GattEventListener {
 
     private final static String TAG = CollectionHandler.class.getSimpleName();
 
@@ -29,15 +36,14 @@ public abstract class CollectionHandler {
         SYSTEM_ID("2a23"), REGULATORY_CERT_DATA("2a2a");
 
         InformationField(String id) {
-            this.id = id;
-            this.received = false;
+            this.uuid = UUID.fromString("0000"+ id +"-0000-1000-8000-00805f9b34fb");
         }
 
-        private final String id;
-        boolean received; // was it received?
+        // parsed once, since every notification is looked up
+        private final UUID uuid;
 
         public UUID getUUID() {
-            return UUID.fromString("0000"+ this.id +"-0000-1000-8000-00805f9b34fb");
+            return uuid;
         }
 
         public static InformationField find(UUID uuid) {
@@ -46,22 +52,19 @@ public abstract class CollectionHandler {
             }
             return null;
         }
-
-        public static boolean allReceived()  {
-            for(InformationField field : values()) {
-                if(!field.received) return false;
-            }
-            return true;
-        }
     }
 
     private final UUID UUID_DEVICE_INFORMATION =
             UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
 
     // environment, needed to operate
-    protected BleService bleService;
+    protected final DeviceProfile profile;
+    protected GattClient gattClient;
     protected CollectorService collectorService;
     protected String deviceAddress;
+    // runs the events of the device and the steps chained on the GATT operations one after the
+    // other, so the state of the handler is never touched by two threads at once
+    protected final SerialExecutor executor;
 
     // flags identifying the process' current state
     protected boolean done;
@@ -70,31 +73,42 @@ public abstract class CollectionHandler {
     protected boolean dataRequested;
     protected boolean dataReceived;
     protected boolean listening;
+    protected volatile boolean stopped;
+    // true while stored records are transferred, to notice interrupted transfers
+    private volatile boolean transferring;
+    private volatile boolean transferInterrupted;
 
     // general information read from the device
     protected DeviceInformation deviceInformation;
-
-    // Condition to signal, if a descriptor has been written
-    protected final BlockingQueue<BluetoothGattDescriptor> descriptorQueue;
-    private final BlockingQueue<BluetoothGattCharacteristic> informationQueue;
+    // fields of the device information received on this connection
+    private final Set<InformationField> receivedFields;
+    // value of the feature characteristic of the profile, null if unknown
+    protected volatile byte[] features;
 
     /**
      * Constructor with environmental parameters.
      *
+     * @param profile       profile of the device
      * @param deviceAddress device address the process listens on
-     * @param bleService    ble service the process should communicate with
+     * @param gattClient    GATT backend the process should communicate with
      */
-    public CollectionHandler(String deviceAddress, BleService bleService, CollectorService collectorService) {
+    public CollectionHandler(DeviceProfile profile, String deviceAddress, GattClient gattClient,
+                             CollectorService collectorService) {
         // init parameters
+        this.profile = profile;
         this.deviceAddress = deviceAddress;
-        this.bleService = bleService;
+        this.gattClient = gattClient;
         this.collectorService = collectorService;
+        this.executor = new SerialExecutor(collectorService.getWorkerPool());
         this.deviceInformation = new DeviceInformation();
-        this.informationQueue = new LinkedBlockingQueue<>();
-        this.descriptorQueue = new LinkedBlockingQueue<>();
+        this.receivedFields = Collections.synchronizedSet(EnumSet.noneOf(InformationField.class));
+        this.features = null;
 
         // init flags
         this.started = false;
+        this.stopped = false;
+        this.transferring = false;
+        this.transferInterrupted = false;
         this.done = false;
         this.listening = false;
         this.notificationEnabled = false;
@@ -104,53 +118,117 @@ public abstract class CollectionHandler {
     }
 
     /**
-     * Starts the first step of the collection process, which is done asynchronously.
+     * Starts the first step of the collection process, which is done asynchronously. The events
+     * of the device are delivered on the executor of the handler.
      */
     public void start() {
-        this.started = true;
-        requestConnection();
+        executor.execute(() -> {
+            this.started = true;
+            gattClient.setOverflowPolicy(deviceAddress, getOverflowPolicy());
+            gattClient.registerListener(deviceAddress, this, executor);
+            gattClient.setReconnectPolicy(deviceAddress, getReconnectPolicy());
+            requestConnection();
+        });
     }
 
     /**
-     * Initiates asynchronously the creation of a new connection.
+     * Queues the device at the connection scheduler, which starts the connection as soon as the
+     * device is due.
      */
     protected void requestConnection() {
-        bleService.startConnect(deviceAddress);
+        collectorService.getConnectionScheduler().request(deviceAddress, getConnectionPriority());
     }
 
-    public void stop() {
-        bleService.startDisconnect(deviceAddress);
+    /**
+     * Returns how the device is connected again after failures. Profiles override this, if
+     * their devices are not around most of the time.
+     */
+    protected ReconnectPolicy getReconnectPolicy() {
+        return ReconnectPolicy.DEFAULT;
     }
 
     /**
-     * Handles the result of an asynchronous action.
-     *
-     * @param intent
+     * Returns what is lost, if the handler falls behind the notifications of the device. Stored
+     * records must not be lost, the buffer grows for them instead. Streams only need the latest
+     * values by default, profiles, whose every notification counts, override this.
      */
-    public final void processResult(Intent intent) {
-        String action = intent.getAction();
+    protected NotificationRingBuffer.OverflowPolicy getOverflowPolicy() {
+        return profile.isStreaming() ? NotificationRingBuffer.OverflowPolicy.COALESCE
+                : NotificationRingBuffer.OverflowPolicy.GROW;
+    }
 
-        switch (action) {
-            case BleService.ACTION_GATT_CONNECTED:
-                processConnectedResult(intent);
-                break;
-            case BleService.ACTION_GATT_SERVICES_DISCOVERED:
-                processServiceDiscoveryResult(intent);
-                break;
-            case BleService.ACTION_DATA_WRITTEN:
-                publishActionStatus("Information written.");
-                break;
-            case BleService.ACTION_GATT_DISCONNECTED:
-                processDisconnectedResult(intent);
-                break;
-            case BleService.ACTION_DATA_AVAILABLE:
-                processDataResult(intent);
-                break;
-            case BleService.ACTION_DESCRIPTOR_WRITTEN:
-                processDescriptorWriteResult(intent);
-                break;
-            default:
-                break;
+    /**
+     * Returns the urgency of the next connection. Devices, whose record transfer has been
+     * interrupted, still hold data.
+     */
+    protected ConnectionScheduler.Priority getConnectionPriority() {
+        return transferInterrupted ? ConnectionScheduler.Priority.PENDING_DATA
+                : ConnectionScheduler.Priority.IDLE;
+    }
+
+    /**
+     * Disconnects from the device. The handler keeps listening until the connection is lost, so
+     * that it can pass on what it still holds.
+     */
+    public void stop() {
+        this.stopped = true;
+        executor.execute(() -> {
+            if (gattClient.isConnected(deviceAddress)) {
+                gattClient.startDisconnect(deviceAddress);
+            } else {
+                collectorService.getConnectionScheduler().cancel(deviceAddress);
+                gattClient.unregisterListener(deviceAddress, this);
+            }
+        });
+    }
+
+    @Override
+    public void onConnected(String deviceAddress) {
+        collectorService.getConnectionScheduler().onConnected(deviceAddress);
+        processConnectedResult();
+    }
+
+    @Override
+    public void onServicesDiscovered(String deviceAddress) {
+        processServiceDiscoveryResult();
+    }
+
+    @Override
+    public void onCharacteristicChanged(String deviceAddress, UUID characteristicUuid,
+                                        byte[] value) {
+        processDataResult(characteristicUuid, value);
+    }
+
+    @Override
+    public void onCharacteristicRead(String deviceAddress, UUID characteristicUuid,
+                                     byte[] value) {
+        processDataResult(characteristicUuid, value);
+    }
+
+    @Override
+    public void onCharacteristicWritten(String deviceAddress, UUID characteristicUuid,
+                                        byte[] value) {
+        publishActionStatus("Information written.");
+    }
+
+    @Override
+    public void onDescriptorWritten(String deviceAddress, UUID characteristicUuid,
+                                    byte[] value) {
+        // the write itself is confirmed through the future of enableNotification/-Indication
+        descriptorWriteResultHook(characteristicUuid);
+    }
+
+    @Override
+    public void onDisconnected(String deviceAddress) {
+        collectorService.getConnectionScheduler().onDisconnected(deviceAddress);
+        transferInterrupted = transferring;
+        transferring = false;
+        processDisconnectedResult();
+        if (stopped) {
+            gattClient.unregisterListener(deviceAddress, this);
+        } else {
+            // queue up again behind the devices waiting for their turn
+            requestConnection();
         }
     }
 
@@ -166,120 +244,177 @@ public abstract class CollectionHandler {
     }
 
     protected void publishConnectionEstablished() {
-        String deviceName = this.bleService.getDeviceName(deviceAddress);
+        String deviceName = this.gattClient.getDeviceName(deviceAddress);
         collectorService.broadcastConnectionEstablished(deviceAddress, deviceName);
     }
 
     protected void publishConnectionLost() {
-        String deviceName = this.bleService.getDeviceName(deviceAddress);
+        String deviceName = this.gattClient.getDeviceName(deviceAddress);
         collectorService.broadcastConnectionLost(deviceAddress, deviceName);
     }
 
-    private void processConnectedResult(Intent intent) {
+    private void processConnectedResult() {
         publishActionStatus("Connection established. Waiting for service readiness.");
         publishConnectionEstablished();
 
-        try {
-            Log.d(TAG, "Waiting 1000 before begin...");
-            Thread.sleep(1000);
-        } catch(InterruptedException ex) {
-            Log.e(TAG, "Sleeping interrupted.");
-        }
-        bleService.startDeviceServiceDiscovery(deviceAddress);
-        connectedResultHook(intent);
-    }
-
-    private void processDescriptorWriteResult(Intent intent) {
-        String uuid = intent.getStringExtra(BleService.EXTRA_DESCRIPTOR_UUID);
-        byte[] value = intent.getByteArrayExtra(BleService.EXTRA_DESCRIPTOR_VALUE);
-        int permissions = intent.getIntExtra(BleService.EXTRA_DESCRIPTOR_PERMISSIONS, 0);
-        BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(UUID.fromString(uuid), permissions);
-        this.descriptorQueue.offer(descriptor);
-
-        descriptorWriteResultHook(intent);
+        // the discovery settles on its own, no thread may wait here
+        gattClient.startDeviceServiceDiscovery(deviceAddress);
+        connectedResultHook();
     }
 
-    private void processDisconnectedResult(Intent intent) {
+    private void processDisconnectedResult() {
         publishActionStatus("Connection lost.");
         publishConnectionLost();
         this.listening = false;
         this.done = true;
-        disconnectedResultHook(intent);
+        disconnectedResultHook();
     }
 
     public String getDeviceAddress() {
         return deviceAddress;
     }
 
-    private void processServiceDiscoveryResult(Intent intent) {
+    public DeviceProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Decodes a value of the measurement characteristic of the profile.
+     *
+     * @return null, if the value is truncated
+     */
+    protected Measurement decodeMeasurement(byte[] value, long receiveTime) {
+        if (!profile.isValid(value)) {
+            Log.w(TAG, "Dropping truncated " + profile + " measurement from " + deviceAddress);
+            return null;
+        }
+        // decode once, the measurement does not keep the characteristic
+        return profile.decode(value, receiveTime);
+    }
+
+    private void processServiceDiscoveryResult() {
         Log.d(TAG, "Device Services successfully discovered.");
         publishActionStatus("Services discovered.");
         requestDeviceInformation();
     }
 
-    private void processDataResult(Intent intent) {
-        BluetoothGattCharacteristic characteristic = recreateCharacteristic(intent);
-        UUID uuid = characteristic.getUuid();
+    private void processDataResult(UUID uuid, byte[] value) {
         if(InformationField.find(uuid) != null) {
+            // the value is fed through the future of the read
             publishActionStatus("Device Information Part received.");
-            try {
-                informationQueue.put(characteristic);
-            } catch(InterruptedException ex) {
-                Log.e(TAG, "Filling the information queue was interrupted.");
-            }
+        } else if (uuid.equals(profile.getFeatureUuid())) {
+            // as well as the features
+            Log.d(TAG, "Features of " + deviceAddress + " received.");
         } else {
-            publishActionStatus("Data received.");
-            dataResultHook(intent);
+            // streams would flood the message queue with one message per notification
+            if (!isStreamed(uuid)) publishActionStatus("Data received.");
+            dataResultHook(uuid, value);
         }
     }
 
-    protected abstract void dataResultHook(Intent intent);
+    /**
+     * Returns true, if the characteristic sends a continuous stream of notifications.
+     */
+    protected boolean isStreamed(UUID characteristicUuid) {
+        return profile.isStreaming();
+    }
+
+    /**
+     * Logs a failed GATT operation and turns its future into a success flag, so that the
+     * following steps can be chained on it. The flag is handed over on the executor of the
+     * handler, so the chained steps run there as well.
+     *
+     * @param operation   future returned by the GattClient
+     * @param description what the operation does, for the log
+     */
+    protected CompletableFuture<Boolean> succeeded(CompletableFuture<byte[]> operation,
+                                                   String description) {
+        return operation.handleAsync((value, failure) -> {
+            if (failure != null) {
+                Log.e(TAG, "Could not " + description + " on " + deviceAddress + ": "
+                        + failure.getMessage());
+            }
+            return failure == null;
+        }, executor);
+    }
+
+    /**
+     * Prepares the connection for a transfer of stored records. The future does not fail, the
+     * records are requested with the current parameters, if the device refuses better ones.
+     */
+    protected CompletableFuture<Void> beginBulkTransfer() {
+        transferring = true;
+        return gattClient.beginBulkTransfer(deviceAddress)
+                .handleAsync((mtu, failure) -> null, executor);
+    }
+
+    /**
+     * Drops the connection back to low power, once the transfer of stored records has finished.
+     */
+    protected void endBulkTransfer() {
+        transferring = false;
+        transferInterrupted = false;
+        TransferStats stats = gattClient.endBulkTransfer(deviceAddress);
+        if (stats != null) publishActionStatus("Records transferred: " + stats);
+    }
+
+    /**
+     * Handles a notification, indication or read value of the profile's service.
+     */
+    protected abstract void dataResultHook(UUID characteristicUuid, byte[] value);
 
-    protected abstract void connectedResultHook(Intent intent);
+    protected abstract void connectedResultHook();
 
-    protected abstract void disconnectedResultHook(Intent intent);
+    protected abstract void disconnectedResultHook();
 
-    protected abstract void serviceDiscoveryResultHook(Intent intent);
+    /**
+     * Called when the device information is known, the handler sets up its characteristics.
+     */
+    protected abstract void serviceDiscoveryResultHook();
 
-    protected abstract void descriptorWriteResultHook(Intent intent);
+    protected abstract void descriptorWriteResultHook(UUID characteristicUuid);
 
     /**
      * Takes received device information and puts it into the belonging field
-     * @param characteristic
+     * @param field
+     * @param value read value of the field
      */
-    private void feedDeviceInformation(BluetoothGattCharacteristic characteristic) {
-        InformationField field = InformationField.find(characteristic.getUuid());
-        field.received = true;
+    private void feedDeviceInformation(InformationField field, byte[] value) {
+        receivedFields.add(field);
         switch(field) {
             case MANUFACTURER_NAME:
-                deviceInformation.setManufacturerName(characteristic.getStringValue(0));
+                deviceInformation.setManufacturerName(stringValue(value));
                 break;
             case MODEL_NUMBER:
-                deviceInformation.setModelNumber(characteristic.getStringValue(0));
+                deviceInformation.setModelNumber(stringValue(value));
                 break;
             case SERIAL_NUMBER:
-                deviceInformation.setSerialNumber(characteristic.getStringValue(0));
+                deviceInformation.setSerialNumber(stringValue(value));
                 break;
             case HARDWARE_REVISION:
-                deviceInformation.setHardwareRevision(characteristic.getStringValue(0));
+                deviceInformation.setHardwareRevision(stringValue(value));
                 break;
             case FIRMWARE_REVISION:
-                deviceInformation.setFirmwareRevision(characteristic.getStringValue(0));
+                deviceInformation.setFirmwareRevision(stringValue(value));
                 break;
             case SOFTWARE_REVISION:
-                deviceInformation.setSoftwareRevision(characteristic.getStringValue(0));
+                deviceInformation.setSoftwareRevision(stringValue(value));
                 break;
             case SYSTEM_ID:
-                deviceInformation.setSystemId(characteristic.getValue());
+                deviceInformation.setSystemId(value);
                 break;
             case REGULATORY_CERT_DATA:
-                deviceInformation.setRegulatoryCertData(characteristic.getValue());
+                deviceInformation.setRegulatoryCertData(value);
                 break;
             default:
                 break;
         }
     }
 
+    private static String stringValue(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
     /**
      * Builds a hex string from a given byte array. Looks at the end like a MAC address.
      *
@@ -296,58 +431,109 @@ public abstract class CollectionHandler {
     }
 
     /**
-     * Creates a GATT characteristic from given fields, since the object cannot be broadcast.
-     *
-     * @param intent
+     * Provides the device information and starts the collection. A device, which has been read
+     * before, is served from the cache at once and only its firmware revision is read again
+     * behind the operations of the collection. Unknown devices are read completely first.
      */
-    protected BluetoothGattCharacteristic recreateCharacteristic(Intent intent) {
-        byte[] data = intent.getByteArrayExtra(BleService.EXTRA_CHARACTERISTIC_VALUE);
-        String uuid = intent.getStringExtra(BleService.EXTRA_CHARACTERISTIC_UUID);
-        int properties = intent.getIntExtra(BleService.CHARACTERISTIC_PROPERTIES, 0);
-        int permissions = intent.getIntExtra(BleService.CHARACTERISTIC_PERMISSIONS, 0);
-        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
-                UUID.fromString(uuid), properties, permissions);
-        characteristic.setValue(data);
-        return characteristic;
+    protected void requestDeviceInformation() {
+        DeviceInformationCache cache = collectorService.getDeviceInformationCache();
+        DeviceInformation cached = cache.getInformation(deviceAddress);
+        UUID featureUuid = profile.getFeatureUuid();
+        if (cached != null && (featureUuid == null || !supportsFeatures()
+                || cache.getFeatures(deviceAddress, featureUuid) != null)) {
+            deviceInformation = cached;
+            if (featureUuid != null) features = cache.getFeatures(deviceAddress, featureUuid);
+            collectorService.receiveDeviceInformation(deviceInformation, deviceAddress);
+            startCollecting();
+            verifyFirmwareRevision(cached.getFirmwareRevision());
+        } else {
+            readDeviceInformation().whenComplete((ignored, failure) -> startCollecting());
+        }
+    }
+
+    private void startCollecting() {
+        gattClient.setCollecting(deviceAddress);
+        serviceDiscoveryResultHook();
+    }
+
+    private boolean supportsFeatures() {
+        return gattClient.supportsCharacteristic(
+                deviceAddress, profile.getServiceUuid(), profile.getFeatureUuid());
     }
 
     /**
-     * Requests the fields of the device Information of the device.
-     * They will be returned asynchronously.
+     * Reads the firmware revision and reads everything again, if it differs from the cached one.
      */
-    protected void requestDeviceInformation() {
-        DeviceInformationProcess runner = new DeviceInformationProcess();
-        Thread requester = new Thread(runner);
-        requester.start();
+    private void verifyFirmwareRevision(String cachedRevision) {
+        UUID characteristicId = InformationField.FIRMWARE_REVISION.getUUID();
+        if (!gattClient.supportsCharacteristic(
+                deviceAddress, UUID_DEVICE_INFORMATION, characteristicId)) {
+            return;
+        }
+        gattClient.readCharacteristic(UUID_DEVICE_INFORMATION, characteristicId, deviceAddress)
+                .thenAcceptAsync(value -> {
+                    if (value == null || stringValue(value).equals(cachedRevision)) return;
+                    Log.i(TAG, "Firmware of " + deviceAddress + " has changed, reading again.");
+                    collectorService.getDeviceInformationCache().invalidate(deviceAddress);
+                    readDeviceInformation();
+                }, executor);
     }
 
     /**
-     * Requests the device information fields one after the other.
+     * Requests the fields of the device Information and the features of the device. All reads
+     * are queued at once and answered one after the other, the collector is informed and the
+     * cache is filled when all of them completed.
+     *
+     * @return future, which completes when all reads have completed
      */
-    private class DeviceInformationProcess implements Runnable {
-        public void run() {
-            UUID serviceId = UUID_DEVICE_INFORMATION;
-            for(InformationField field : InformationField.values().clone()) {
-                UUID characteristicId = field.getUUID();
-                if(!bleService.supportsCharacteristic(deviceAddress, serviceId, characteristicId)) {
-                    continue; // Non-supported characteristics will be ignored
-                }
-
-                bleService.readCharacteristic(serviceId, characteristicId, deviceAddress);
-                // wait for the result
-                try {
-                    // info queue will be filled on each receive by the main thread.
-                    BluetoothGattCharacteristic result = informationQueue.take();
-                    if(result != null) feedDeviceInformation(result);
-                } catch (InterruptedException iex) {
-                    Log.e(TAG, "Device Information Process was interrupted");
-                }
+    private CompletableFuture<Void> readDeviceInformation() {
+        DeviceInformation information = new DeviceInformation();
+        deviceInformation = information;
+        receivedFields.clear();
+
+        UUID serviceId = UUID_DEVICE_INFORMATION;
+        List<CompletableFuture<?>> reads = new ArrayList<>();
+        for (InformationField field : InformationField.values()) {
+            UUID characteristicId = field.getUUID();
+            if (!gattClient.supportsCharacteristic(deviceAddress, serviceId, characteristicId)) {
+                continue; // Non-supported characteristics will be ignored
             }
-            // Inform the collector when everything is done
-            collectorService.receiveDeviceInformation(deviceInformation, deviceAddress);
-
-            serviceDiscoveryResultHook(null);
+            reads.add(gattClient.readCharacteristic(serviceId, characteristicId, deviceAddress)
+                    .handleAsync((value, failure) -> {
+                        if (failure != null) {
+                            Log.w(TAG, "Could not read " + field + ": " + failure.getMessage());
+                        } else if (value != null) {
+                            feedDeviceInformation(field, value);
+                        }
+                        return null;
+                    }, executor));
         }
+
+        UUID featureUuid = profile.getFeatureUuid();
+        CompletableFuture<byte[]> featureRead = featureUuid != null && supportsFeatures()
+                ? gattClient.readCharacteristic(profile.getServiceUuid(), featureUuid, deviceAddress)
+                .exceptionally(failure -> {
+                    Log.w(TAG, "Could not read features: " + failure.getMessage());
+                    return null;
+                })
+                : CompletableFuture.completedFuture(null);
+        reads.add(featureRead);
+
+        // Inform the collector when everything is done
+        CompletableFuture<Void> all =
+                CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0]));
+        return all.thenRunAsync(() -> {
+            byte[] value = featureRead.join();
+            if (value != null) features = value;
+            collectorService.receiveDeviceInformation(information, deviceAddress);
+
+            // remember only what has actually been received
+            DeviceInformationCache cache = collectorService.getDeviceInformationCache();
+            if (!receivedFields.isEmpty()) {
+                cache.putInformation(deviceAddress, information);
+                if (value != null) cache.putFeatures(deviceAddress, featureUuid, value);
+            }
+        }, executor);
     }
 
 }
@@ -0,0 +1,152 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads of the collection, owned by the CollectorService and shared by the serial executors of
+ * the collection handlers. The number of threads follows the number of collected devices, but
+ * never exceeds two per core, idle threads end after a minute. The queue needs no bound, since
+ * every serial executor queues at most one turn at a time. Measures, how long the tasks wait
+ * for a thread and how long they run.
+ */
+public class CollectionWorkerPool extends ThreadPoolExecutor {
+
+    public final static int MIN_THREADS = 2;
+    public final static int MAX_THREADS_PER_CORE = 2;
+    // time in s an idle thread is kept
+    private final static long KEEP_ALIVE = 60;
+
+    /**
+     * Task, which remembers when it has been queued.
+     */
+    private static class TimedTask implements Runnable {
+        final Runnable task;
+        final long queuedNanos;
+        long startNanos;
+
+        TimedTask(Runnable task) {
+            this.task = task;
+            this.queuedNanos = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private final int maxThreads;
+    private int deviceCount;
+
+    private long timedTasks;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long totalRunNanos;
+
+    public CollectionWorkerPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CollectionWorkerPool(int cores) {
+        super(MIN_THREADS, MIN_THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory());
+        this.maxThreads = Math.max(MIN_THREADS, cores * MAX_THREADS_PER_CORE);
+        this.deviceCount = 0;
+        allowCoreThreadTimeOut(true);
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "collection-worker-" + count.incrementAndGet());
+        }
+    }
+
+    /**
+     * Sizes the pool for the given number of collected devices.
+     */
+    public synchronized void setDeviceCount(int devices) {
+        this.deviceCount = devices;
+        int size = Math.max(MIN_THREADS, Math.min(devices, maxThreads));
+        // the core size must never exceed the maximum size, not even in between
+        if (size > getMaximumPoolSize()) {
+            setMaximumPoolSize(size);
+            setCorePoolSize(size);
+        } else {
+            setCorePoolSize(size);
+            setMaximumPoolSize(size);
+        }
+    }
+
+    public synchronized int getDeviceCount() {
+        return deviceCount;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new TimedTask(command));
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        super.beforeExecute(thread, runnable);
+        if (!(runnable instanceof TimedTask)) return;
+        TimedTask task = (TimedTask) runnable;
+        task.startNanos = System.nanoTime();
+        long wait = task.startNanos - task.queuedNanos;
+        synchronized (this) {
+            totalWaitNanos += wait;
+            if (wait > maxWaitNanos) maxWaitNanos = wait;
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable runnable, Throwable failure) {
+        super.afterExecute(runnable, failure);
+        if (!(runnable instanceof TimedTask)) return;
+        long run = System.nanoTime() - ((TimedTask) runnable).startNanos;
+        synchronized (this) {
+            timedTasks++;
+            totalRunNanos += run;
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * Returns the average time in us a task has waited for a thread.
+     */
+    public synchronized long getAverageWaitMicros() {
+        return timedTasks > 0 ? totalWaitNanos / timedTasks / 1000 : 0;
+    }
+
+    public synchronized long getMaxWaitMicros() {
+        return maxWaitNanos / 1000;
+    }
+
+    /**
+     * Returns the average time in us a task has run.
+     */
+    public synchronized long getAverageRunMicros() {
+        return timedTasks > 0 ? totalRunNanos / timedTasks / 1000 : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getPoolSize() + "/" + getMaximumPoolSize() + " threads for " + deviceCount
+                + " devices, " + getActiveCount() + " active, " + getQueueDepth() + " queued, "
+                + timedTasks + " tasks, wait avg " + getAverageWaitMicros() + " us / max "
+                + getMaxWaitMicros() + " us, run avg " + getAverageRunMicros() + " us";
+    }
+}
@@ -2,26 +2,32 @@ package eu.credential.app.patient.orchestration.collection;
 
 import android.app.Service;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import eu.credential.app.patient.integration.bluetooth.BleBroadcastReceiver;
 import eu.credential.app.patient.integration.bluetooth.BleService;
 import eu.credential.app.patient.integration.bluetooth.BleServiceConnection;
+import eu.credential.app.patient.integration.bluetooth.GattClient;
 import eu.credential.app.patient.integration.model.DeviceInformation;
 import eu.credential.app.patient.integration.model.Measurement;
+import eu.credential.app.patient.integration.model.SampleRingBuffer;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -44,8 +50,13 @@ public class CollectorService extends Service {
             "CollectorService.ACTION_DEVICE_CONNECTED";
     public final static String ACTION_DEVICE_DISCONNECTED=
             "CollectorService.ACTION_DEVICE_DISCONNECTED";
+    public final static String ACTION_SAMPLES_COLLECTED =
+            "CollectorService.ACTION_SAMPLES_COLLECTED";
 
-    public enum Type {GLUCOSE_COLLECTION, WEIGHT_COLLECTION}
+    // samples kept per device and channel, about two hours of a 1 Hz stream
+    public final static int SAMPLE_BUFFER_CAPACITY = 8192;
+    // minimum time between two ACTION_SAMPLES_COLLECTED broadcasts
+    private final static long SAMPLE_BROADCAST_INTERVAL = 1000;
 
     // name of device address field
     public final static String DEVICE_ADDRESS = "CollectorService.DEVICE_ADDRESS";
@@ -63,19 +74,39 @@ public class CollectorService extends Service {
 
     // message container where all received health data is stored
     private Map<Integer, Measurement> measurementMap;
-    private int counter;
+    private volatile int counter;
     private Map<String, DeviceInformation> deviceInformationMap;
-
-    // broadcast receiver for incoming device data
-    private BleBroadcastReceiver bleBroadcastReceiver;
+    // device information of known devices, survives restarts
+    private DeviceInformationCache deviceInformationCache;
+    // highest sequence number of the stored records received from every device
+    private RecordWatermarkStore recordWatermarks;
+    // session start and last time offset of every CGM
+    private CgmSessionStore cgmSessions;
+
+    // continuous samples by device address and channel
+    private final Map<String, SampleRingBuffer> sampleBuffers;
+    // devices with samples, which have not been broadcast yet
+    private final Set<String> pendingSampleDevices;
+    private Handler sampleBroadcastHandler;
+    private long lastSampleBroadcast;
+
+    // threads shared by the collection handlers, each handler runs its device events on them
+    // one after the other through its own serial executor
+    private final CollectionWorkerPool workerPool;
+
+    // grants the devices their connection attempts
+    private final ConnectionScheduler connectionScheduler;
 
     // service connection stuff
     private BleServiceConnection bleServiceConnection;
-    private BleService bleService;
+    private GattClient gattClient;
 
     // List of collection handlers, which manage device specific collection processes
     private Map<String, CollectionHandler> collectionHandlers;
 
+    // supported kinds of devices
+    private final DeviceProfileRegistry profileRegistry;
+
     // Listener for getting information about changed devices to listen
     private CollectorServicePreferenceListener preferenceListener;
     private SharedPreferences preferences;
@@ -88,12 +119,43 @@ public class CollectorService extends Service {
         // initialize the data collection
         this.measurementMap = Collections.synchronizedMap(new TreeMap<Integer, Measurement>());
         this.counter = 0;
-        this.bleService = null;
+        this.gattClient = null;
         this.collectionHandlers = Collections.synchronizedMap(new HashMap<String, CollectionHandler>());
         this.deviceInformationMap = Collections.synchronizedMap(new HashMap<String, DeviceInformation>());
+        this.profileRegistry = DeviceProfileRegistry.createDefault();
+        this.sampleBuffers = Collections.synchronizedMap(new HashMap<String, SampleRingBuffer>());
+        this.pendingSampleDevices = new HashSet<>();
+        this.lastSampleBroadcast = 0;
+
+        // the handlers get their device events on these threads instead of the main thread
+        this.workerPool = new CollectionWorkerPool();
+
+        // the gatt client may change, so it is looked up on every attempt
+        this.connectionScheduler = new ConnectionScheduler(new ConnectionScheduler.Connector() {
+            @Override
+            public boolean connect(String deviceAddress) {
+                GattClient client = gattClient;
+                return client != null && client.startConnect(deviceAddress);
+            }
+
+            @Override
+            public void cancel(String deviceAddress) {
+                GattClient client = gattClient;
+                if (client != null) client.cancelConnect(deviceAddress);
+            }
+
+            @Override
+            public boolean isBackground(String deviceAddress) {
+                GattClient client = gattClient;
+                return client != null && client.isConnectingInBackground(deviceAddress);
+            }
 
-        // create the broadcast receiver (needs to get registered in onCreate)
-        this.bleBroadcastReceiver = new BleBroadcastReceiver(this);
+            @Override
+            public long getRetryDelay(String deviceAddress) {
+                GattClient client = gattClient;
+                return client != null ? client.getReconnectDelay(deviceAddress) : 0;
+            }
+        });
 
         // create the ble service connection (this only holds callbacks)
         this.bleServiceConnection = new BleServiceConnection(this);
@@ -112,10 +174,8 @@ public class CollectorService extends Service {
 
     @Override
     public void onCreate() {
-        // Register the broadcast-receiver
         this.localBroadcastManager = LocalBroadcastManager.getInstance(this);
-        IntentFilter filter = bleBroadcastReceiver.getIntentFilter();
-        localBroadcastManager.registerReceiver(this.bleBroadcastReceiver, filter);
+        this.sampleBroadcastHandler = new Handler(Looper.getMainLooper());
 
         // Register the BLE service and start it
         Intent bleServiceIntent = new Intent(this, BleService.class);
@@ -123,6 +183,12 @@ public class CollectorService extends Service {
 
         // Listen for change of settings
         this.preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        this.deviceInformationCache = new DeviceInformationCache(getSharedPreferences(
+                DeviceInformationCache.PREFERENCES_NAME, MODE_PRIVATE));
+        this.recordWatermarks = new RecordWatermarkStore(getSharedPreferences(
+                RecordWatermarkStore.PREFERENCES_NAME, MODE_PRIVATE));
+        this.cgmSessions = new CgmSessionStore(getSharedPreferences(
+                CgmSessionStore.PREFERENCES_NAME, MODE_PRIVATE));
         this.preferenceListener = new CollectorServicePreferenceListener(this);
         preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
         // preference listener does not get triggered on startup, but we do this later,
@@ -131,14 +197,23 @@ public class CollectorService extends Service {
 
     @Override
     public void onDestroy() {
-        // Unregister the broadcast receiver
-        this.localBroadcastManager.unregisterReceiver(this.bleBroadcastReceiver);
-
         // Unregister the ble service
         unbindService(bleServiceConnection);
 
         // Unregister preference listener
         preferences.unregisterOnSharedPreferenceChangeListener(preferenceListener);
+        preferenceListener.close();
+
+        // Drop pending sample broadcasts
+        sampleBroadcastHandler.removeCallbacks(sampleBroadcast);
+
+        // Drop pending device events
+        Log.i(TAG, "Worker pool: " + workerPool);
+        workerPool.shutdownNow();
+
+        // Drop pending connection attempts
+        Log.i(TAG, "Connection scheduler: " + connectionScheduler);
+        connectionScheduler.shutdown();
     }
 
     /**
@@ -169,6 +244,41 @@ public class CollectorService extends Service {
         return this.deviceInformationMap;
     }
 
+    /**
+     * Returns the shared executor, on which the collection handlers run their serial executors.
+     */
+    public CollectionWorkerPool getWorkerPool() {
+        return this.workerPool;
+    }
+
+    /**
+     * Returns the persistent cache of the device information of known devices.
+     */
+    public DeviceInformationCache getDeviceInformationCache() {
+        return this.deviceInformationCache;
+    }
+
+    /**
+     * Returns the persistent sequence number watermarks of the stored records of the devices.
+     */
+    public RecordWatermarkStore getRecordWatermarks() {
+        return this.recordWatermarks;
+    }
+
+    /**
+     * Returns the persistent sensor sessions of the CGMs.
+     */
+    public CgmSessionStore getCgmSessions() {
+        return this.cgmSessions;
+    }
+
+    /**
+     * Returns the scheduler, through which the collection handlers connect their devices.
+     */
+    public ConnectionScheduler getConnectionScheduler() {
+        return this.connectionScheduler;
+    }
+
     /**
      * Creates a simple broadcast message without further context.
      */
@@ -225,15 +335,88 @@ public class CollectorService extends Service {
     public void receiveMeasurement(Measurement measurement, String deviceAdress) {
         Log.d(TAG, "Received measurement from " + deviceAdress + ": \"" + measurement.toString() + "\"");
 
-        // Take first the counter and then increment
-        Integer id = this.counter;
-        measurementMap.put(id, measurement);
-        this.counter++;
+        // Take first the counter and then increment, the handlers store in parallel
+        synchronized (measurementMap) {
+            Integer id = this.counter;
+            measurementMap.put(id, measurement);
+            this.counter++;
+        }
 
         // broadcast the new status update
         broadcastMeasurementCollected();
     }
 
+    /**
+     * Stores a batch of measurements of a device with a single broadcast, e.g. the samples of a
+     * continuous measurement. The list may be reused by the caller afterwards.
+     *
+     * @param measurements
+     */
+    public void receiveMeasurements(List<? extends Measurement> measurements, String deviceAdress) {
+        if (measurements.isEmpty()) return;
+        Log.d(TAG, "Received " + measurements.size() + " measurements from " + deviceAdress);
+
+        synchronized (measurementMap) {
+            for (Measurement measurement : measurements) {
+                measurementMap.put(this.counter, measurement);
+                this.counter++;
+            }
+        }
+
+        // broadcast the new status update once for the whole batch
+        broadcastMeasurementCollected();
+    }
+
+    /**
+     * Returns the sample buffer of the given device and channel, which is created on first use.
+     * The buffer survives reconnects of the device.
+     *
+     * @param channel name of the sampled value, e.g. HeartRateHandler.CHANNEL_HEART_RATE
+     */
+    public SampleRingBuffer getSampleBuffer(String deviceAddress, String channel) {
+        String key = deviceAddress + "/" + channel;
+        synchronized (sampleBuffers) {
+            SampleRingBuffer buffer = sampleBuffers.get(key);
+            if (buffer == null) {
+                buffer = new SampleRingBuffer(SAMPLE_BUFFER_CAPACITY);
+                sampleBuffers.put(key, buffer);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Announces new samples in the buffers of a device. Streaming devices call this on every
+     * notification, so the broadcasts are coalesced to at most one per interval, which names all
+     * devices with new samples since the last one.
+     */
+    public void receiveSamples(String deviceAddress) {
+        synchronized (pendingSampleDevices) {
+            boolean scheduled = !pendingSampleDevices.isEmpty();
+            pendingSampleDevices.add(deviceAddress);
+            if (scheduled) return;
+        }
+        long wait = lastSampleBroadcast + SAMPLE_BROADCAST_INTERVAL - System.currentTimeMillis();
+        sampleBroadcastHandler.postDelayed(sampleBroadcast, Math.max(0, wait));
+    }
+
+    private final Runnable sampleBroadcast = this::broadcastSamplesCollected;
+
+    /**
+     * Sends the coalesced broadcast about new samples.
+     */
+    private void broadcastSamplesCollected() {
+        String[] addresses;
+        synchronized (pendingSampleDevices) {
+            addresses = pendingSampleDevices.toArray(new String[pendingSampleDevices.size()]);
+            pendingSampleDevices.clear();
+        }
+        lastSampleBroadcast = System.currentTimeMillis();
+        Intent intent = new Intent(ACTION_SAMPLES_COLLECTED);
+        intent.putExtra(DEVICE_ADDRESS, addresses);
+        localBroadcastManager.sendBroadcast(intent);
+    }
+
     /**
      * Function to store new information by devices
      *
@@ -257,28 +440,58 @@ public class CollectorService extends Service {
     public void setBleService(BleService bleService) {
         // accepts nulls
         if (bleService == null) {
-            this.bleService = null;
+            setGattClient(null);
             return;
         }
 
         // take only initialized services
         if (bleService.isProperlyInitialized()) {
-            this.bleService = bleService;
-            // do a collector startup
-            this.preferenceListener.trigger(this.preferences);
+            setGattClient(bleService);
         } else {
-            this.bleService = null;
+            setGattClient(null);
             Log.e(TAG, "BLE service not correctly initialized.");
         }
     }
 
     /**
-     * Returns the current Ble service
+     * Registers the GATT backend the handlers talk to, for example a ReplayGattClient in place
+     * of the BleService, and starts the collection of the configured devices.
+     *
+     * @param gattClient can be null
+     */
+    public void setGattClient(GattClient gattClient) {
+        this.gattClient = gattClient;
+        // do a collector startup
+        if (gattClient != null) this.preferenceListener.trigger(this.preferences);
+    }
+
+    /**
+     * Collects the devices of a simulated backend instead of the configured devices, so that the
+     * collection can be load tested without hardware, e.g. with the SimulatedGattClient of the
+     * debug build. The running collections are stopped, including those of the configured
+     * devices, which the new backend starts.
+     *
+     * @param deviceServices service the collection looks for by device address
+     */
+    public void startSimulation(GattClient simulator, Map<String, UUID> deviceServices) {
+        setGattClient(simulator);
+        for (String deviceAddress : getCollectionSituation().keySet()) {
+            stopCollection(deviceAddress);
+        }
+        for (Map.Entry<String, UUID> device : deviceServices.entrySet()) {
+            DeviceProfile profile = profileRegistry.findByService(device.getValue());
+            if (profile != null) startCollection(device.getKey(), profile);
+        }
+        Log.i(TAG, "Simulation started: " + simulator);
+    }
+
+    /**
+     * Returns the current GATT backend
      *
-     * @return null, if no ble service registered
+     * @return null, if no backend registered
      */
-    public BleService getBleService() {
-        return this.bleService;
+    public GattClient getGattClient() {
+        return this.gattClient;
     }
 
     public Queue<String> getMessageQueue() {
@@ -308,62 +521,65 @@ public class CollectorService extends Service {
         return super.onUnbind(intent);
     }
 
+    /**
+     * Returns the registry of all supported device profiles.
+     */
+    public DeviceProfileRegistry getProfileRegistry() {
+        return profileRegistry;
+    }
+
     /**
      * Initializes a new connection handler and starts it (if not already running). Other
-     * collection handlers with same address but different type will be stopped.
+     * collection handlers with same address but different profile will be stopped.
      *
      * @param deviceAddress
-     * @param wantedType
+     * @param wantedProfile
      */
-    public void startCollection(String deviceAddress, Type wantedType) {
-        // Start the collection handler
-        CollectionHandler handler;
-        switch (wantedType) {
-            case WEIGHT_COLLECTION:
-                handler = new WeightHandler(deviceAddress, this.bleService, this);
-                break;
-            case GLUCOSE_COLLECTION:
-                handler = new GlucoseHandler(deviceAddress, this.bleService, this);
-                break;
-            default:
-                handler = null;
-                break;
+    public void startCollection(String deviceAddress, DeviceProfile wantedProfile) {
+        DeviceProfile currentProfile = getCollectionState(deviceAddress);
+
+        if (currentProfile != wantedProfile) {
+            if (currentProfile != null) stopCollection(deviceAddress);
+            // start normally
+            CollectionHandler handler =
+                    wantedProfile.createHandler(deviceAddress, this.gattClient, this);
+            this.collectionHandlers.put(deviceAddress, handler);
+            workerPool.setDeviceCount(collectionHandlers.size());
+            handler.start();
         }
+    }
 
-        if (handler != null) {
-            Type currentType = getCollectionState(deviceAddress);
-
-            if (currentType != wantedType) {
-                if (currentType != null) stopCollection(deviceAddress);
-                // start normally
-                this.collectionHandlers.put(deviceAddress, handler);
-                handler.start();
-            }
-
-        }
+    /**
+     * The device has been seen advertising, it is in range. Its recent failures are forgotten
+     * and, if it waits for its retry delay, it is connected at once.
+     */
+    public void onDeviceAdvertising(String deviceAddress) {
+        GattClient client = gattClient;
+        if (client != null) client.onAdvertising(deviceAddress);
+        connectionScheduler.onAdvertising(deviceAddress);
     }
 
     @Deprecated
     public void startGlucoseCollection(String deviceAddress) {
-        startCollection(deviceAddress, Type.GLUCOSE_COLLECTION);
+        startCollection(deviceAddress, profileRegistry.findByName(DeviceProfileRegistry.GLUCOSE));
     }
 
     @Deprecated
     public void startWeightCollection(String deviceAddress) {
-        startCollection(deviceAddress, Type.WEIGHT_COLLECTION);
+        startCollection(deviceAddress, profileRegistry.findByName(DeviceProfileRegistry.WEIGHT));
     }
 
     /**
-     * Returns a Map with all currently collected device addresses and their collection type.
+     * Returns a Map with all currently collected device addresses and their profile.
      *
      * @return
      */
-    public Map<String, Type> getCollectionSituation() {
-        Map<String, Type> result = new HashMap<>();
-        for (CollectionHandler handler : this.collectionHandlers.values()) {
-            Type state = handler instanceof GlucoseHandler ?
-                    Type.GLUCOSE_COLLECTION : Type.WEIGHT_COLLECTION;
-            result.put(handler.getDeviceAddress(), state);
+    public Map<String, DeviceProfile> getCollectionSituation() {
+        Map<String, DeviceProfile> result = new HashMap<>();
+        synchronized (this.collectionHandlers) {
+            for (CollectionHandler handler : this.collectionHandlers.values()) {
+                result.put(handler.getDeviceAddress(), handler.getProfile());
+            }
         }
         return result;
     }
@@ -382,16 +598,12 @@ public class CollectorService extends Service {
      * Gives information whether there is a collector listening on the given device address.
      *
      * @param deviceAddress
-     * @return Type of the collection.
+     * @return profile of the collected device, null if there is no collector.
      */
     @Nullable
-    public Type getCollectionState(String deviceAddress) {
+    public DeviceProfile getCollectionState(String deviceAddress) {
         CollectionHandler handler = this.collectionHandlers.get(deviceAddress);
-        if (handler != null) {
-            return handler instanceof WeightHandler ?
-                    Type.WEIGHT_COLLECTION : Type.GLUCOSE_COLLECTION;
-        }
-        return null;
+        return handler != null ? handler.getProfile() : null;
     }
 
     /**
@@ -401,24 +613,11 @@ public class CollectorService extends Service {
      */
     private void unregisterCollector(String deviceAddress) {
         this.collectionHandlers.remove(deviceAddress);
+        workerPool.setDeviceCount(collectionHandlers.size());
         broadcastDeviceMessage("Collector handler for " + deviceAddress + " unregistered.");
         Intent intent = new Intent(COLLECTOR_STOPPED);
         intent.putExtra(DEVICE_ADDR, deviceAddress);
         localBroadcastManager.sendBroadcast(intent);
     }
 
-    /**
-     * This method passes the device event to the corresponding collection handler.
-     *
-     * @param deviceAddress
-     */
-    public void forwardResultToCollector(String deviceAddress, Intent intent) {
-        CollectionHandler handler = collectionHandlers.get(deviceAddress);
-        if (handler == null) {
-            Log.e(TAG, "Collection handler for address " + deviceAddress + " not found.");
-        }
-        Log.d(TAG, "Received result for " + deviceAddress + ", sending to " + handler.getClass().getSimpleName());
-        handler.processResult(intent);
-    }
-
-}
\ No newline at end of file
+}
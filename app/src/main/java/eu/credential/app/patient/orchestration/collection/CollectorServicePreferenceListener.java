@@ -6,33 +6,42 @@ import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.support.annotation.Nullable;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import eu.credential.app.patient.integration.bluetooth.DeviceScanner;
+import eu.credential.app.patient.integration.bluetooth.ScanCache;
+
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 /**
  * This Listener starts and stops collector handlers depending on the preferences made by the user.
+ * The entered device names are looked up among the bonded devices, or, if scan discovery is
+ * enabled, among the devices advertising the services of the profiles first.
  */
 public class CollectorServicePreferenceListener
-        implements SharedPreferences.OnSharedPreferenceChangeListener {
+        implements SharedPreferences.OnSharedPreferenceChangeListener, DeviceScanner.Listener {
 
     private static final String TAG = CollectorServicePreferenceListener.class.getSimpleName();
 
-    // variables used for getting preferences concerning device names
-    private static final String GLUCOSE_DEVICE_NAMES = "pref_glucose_device_names";
-    private static final String WEIGHT_DEVICE_NAMES = "pref_weight_device_names";
-
     // used for propagating status information
     public static final String SETTINGS_EVENT = "PreferenceListener.SETTINGS_EVENT";
     public static final String MESSAGE = "PreferenceListener.MESSAGE";
     private LocalBroadcastManager localBroadcastManager;
 
+    // key of the preference, which enables the discovery of advertising devices
+    public static final String PREF_SCAN_DISCOVERY = "pref_scan_discovery";
+
     private BluetoothAdapter btAdapter;
+    // finds devices, which are not bonded, null without bluetooth
+    private DeviceScanner deviceScanner;
 
     // binding of the controlled collector service
     private CollectorService collectorService;
@@ -67,14 +76,53 @@ public class CollectorServicePreferenceListener
             broadcastMessage("Error: Missing Bluetooth adapter");
             return;
         }
+        deviceScanner = new DeviceScanner(collectorService, btAdapter, this);
+    }
+
+    /**
+     * Stops the scan discovery.
+     */
+    public void close() {
+        if (deviceScanner != null) deviceScanner.stop();
+    }
+
+    /**
+     * @return null, if there is no bluetooth adapter
+     */
+    public DeviceScanner getDeviceScanner() {
+        return deviceScanner;
+    }
+
+    /**
+     * Starts or stops the scan for the services of all profiles, as the preference says.
+     */
+    private void updateScanning(SharedPreferences sharedPref) {
+        if (deviceScanner == null) return;
+        if (!sharedPref.getBoolean(PREF_SCAN_DISCOVERY, false)) {
+            deviceScanner.stop();
+            return;
+        }
+        List<UUID> serviceUuids = new ArrayList<>();
+        for (DeviceProfile profile : collectorService.getProfileRegistry().getProfiles()) {
+            serviceUuids.add(profile.getServiceUuid());
+        }
+        if (!deviceScanner.start(serviceUuids)) {
+            broadcastMessage("Error: Scan discovery not possible, using paired devices only.");
+        }
+    }
+
+    private boolean isScanning() {
+        return deviceScanner != null && deviceScanner.isScanning();
     }
 
     /**
      * Starts the preference changed procedure for all device types.
      */
     public void trigger(SharedPreferences sharedPref) {
-        onSharedPreferenceChanged(sharedPref, GLUCOSE_DEVICE_NAMES);
-        onSharedPreferenceChanged(sharedPref, WEIGHT_DEVICE_NAMES);
+        updateScanning(sharedPref);
+        for (DeviceProfile profile : collectorService.getProfileRegistry().getProfiles()) {
+            onSharedPreferenceChanged(sharedPref, profile.getPreferenceKey());
+        }
     }
 
     /**
@@ -84,7 +132,15 @@ public class CollectorServicePreferenceListener
      */
     public void onSharedPreferenceChanged(SharedPreferences sharedPref, String key) {
 
-        if (!GLUCOSE_DEVICE_NAMES.equals(key) && !WEIGHT_DEVICE_NAMES.equals(key)) {
+        // the discovery mode changes how all device names are looked up
+        if (PREF_SCAN_DISCOVERY.equals(key)) {
+            if (collectorService.getGattClient() != null) trigger(sharedPref);
+            return;
+        }
+
+        // only the device name preferences of the profiles are of interest
+        DeviceProfile wantedProfile = collectorService.getProfileRegistry().findByPreferenceKey(key);
+        if (wantedProfile == null) {
             return;
         }
 
@@ -92,56 +148,60 @@ public class CollectorServicePreferenceListener
         String input = sharedPref.getString(key, "");
         Set<String> deviceNames = parseDeviceNames(input);
 
-        // try to get the corresponding bluetooth devices from the pairing list
-        Set<BluetoothDevice> wantedDevices = findDevicesByName(deviceNames);
-        Set<String> wantedAddresses = collectDeviceAddresses(wantedDevices);
+        // try to get the corresponding bluetooth devices from the advertisers or the pairing list
+        Set<String> wantedAddresses = findDeviceAddresses(deviceNames, wantedProfile);
 
         // start the wanted collector handlers and stops non-wanted
-        CollectorService.Type wantedType = translateKeyToCollectionType(key);
-        if (wantedType == null) {
-            Log.e(TAG, "No corresponding collector type for " + key + " found.");
-            return;
-        }
-        updateDeviceCollection(wantedAddresses, wantedType);
+        updateDeviceCollection(wantedAddresses, wantedProfile);
         Log.d(TAG, "Collector for " + key + " successfully updated.");
     }
 
     /**
      * Starts wanted collectors and the stops non-wanted ones in the collector service.
      *
-     * @param wantedType
+     * @param wantedProfile
      * @param wantedAddresses
      */
     private void updateDeviceCollection(Set<String> wantedAddresses,
-                                        CollectorService.Type wantedType) {
-        Map<String, CollectorService.Type> situation = collectorService.getCollectionSituation();
+                                        DeviceProfile wantedProfile) {
+        Map<String, DeviceProfile> situation = collectorService.getCollectionSituation();
 
         // Stop unwanted services of the given type
         for(String runningAddress :  situation.keySet()) {
-            if(!wantedAddresses.contains(runningAddress) && (wantedType == situation.get(runningAddress))) {
+            if(!wantedAddresses.contains(runningAddress) && (wantedProfile == situation.get(runningAddress))) {
                 collectorService.stopCollection(runningAddress);
             }
         }
 
         // Call a start command for all wanted devices
         for(String wantedAddress : wantedAddresses) {
-            collectorService.startCollection(wantedAddress, wantedType);
+            collectorService.startCollection(wantedAddress, wantedProfile);
         }
     }
 
     /**
-     * Checks the pairing status of the diabetes device and starts a le scan for it.
+     * Looks up the addresses of the named devices, among the present advertisers of the profile
+     * first, if scan discovery is enabled, and among the paired devices.
      */
-    private Set<BluetoothDevice> findDevicesByName(Set<String> deviceNames) {
-        Set<BluetoothDevice> result = new LinkedHashSet<>();
+    private Set<String> findDeviceAddresses(Set<String> deviceNames, DeviceProfile profile) {
+        Set<String> result = new HashSet<>();
+        Set<BluetoothDevice> pairedDevices = null;
 
         for (String deviceName : deviceNames) {
-            BluetoothDevice device = findDeviceByName(deviceName);
+            String address = isScanning() ? findAdvertiserByName(deviceName, profile) : null;
+            if (address == null) {
+                // the pairing list is only fetched, if an advertiser is missing
+                if (pairedDevices == null) pairedDevices = getPairedDevices();
+                BluetoothDevice device = findDeviceByName(deviceName, pairedDevices);
+                if (device != null) address = device.getAddress();
+            }
 
-            if (device != null) {
+            if (address != null) {
                 broadcastMessage("Device \"" + deviceName + "\" found.");
-                broadcastMessage("Device address " + device.getAddress() + " for collection.");
-                result.add(device);
+                broadcastMessage("Device address " + address + " for collection.");
+                result.add(address);
+            } else if (isScanning()) {
+                broadcastMessage("Device \"" + deviceName + "\" not found yet, waiting for it.");
             } else {
                 broadcastMessage("Error: Device \"" + deviceName + "\" not paired.");
             }
@@ -151,52 +211,83 @@ public class CollectorServicePreferenceListener
     }
 
     /**
-     * Returns for the given settings id the corresponding collection type.
-     *
-     * @param key
-     * @return null, if no corresponding.
+     * Searches the present advertisers of the profile's service for the device, the strongest
+     * signal first. Devices, which have stopped advertising meanwhile, e.g. meters after their
+     * measurement, are found as well, so that their collection is kept.
      */
-    @Nullable
-    private CollectorService.Type translateKeyToCollectionType(String key) {
-        if (WEIGHT_DEVICE_NAMES.equals(key)) {
-            return CollectorService.Type.WEIGHT_COLLECTION;
-        } else if (GLUCOSE_DEVICE_NAMES.equals(key)) {
-            return CollectorService.Type.GLUCOSE_COLLECTION;
-        } else {
-            return null;
+    private String findAdvertiserByName(String deviceName, DeviceProfile profile) {
+        String address = findByName(deviceName, profile, deviceScanner.getPresentDevices());
+        if (address != null) return address;
+        return findByName(deviceName, profile, deviceScanner.getCache().getEntries());
+    }
+
+    private static String findByName(String deviceName, DeviceProfile profile,
+                                     List<ScanCache.Entry> entries) {
+        for (ScanCache.Entry entry : entries) {
+            if (advertises(entry, profile) && entry.getName().startsWith(deviceName)) {
+                return entry.getAddress();
+            }
         }
+        return null;
     }
 
     /**
-     * Collects all hardware addresses from the given set of bluetooth device handles.
-     *
-     * @param devices
-     * @return
+     * Returns true, if the device may belong to the profile. Advertisements without services
+     * have been let through by the filter on another packet, so they may belong to any profile.
      */
-    private Set<String> collectDeviceAddresses(Set<BluetoothDevice> devices) {
-        HashSet<String> result = new HashSet<>();
-        for (BluetoothDevice device : devices) {
-            result.add(device.getAddress());
-        }
-        return result;
+    private static boolean advertises(ScanCache.Entry entry, DeviceProfile profile) {
+        return entry.getServiceUuids().isEmpty()
+                || entry.getServiceUuids().contains(profile.getServiceUuid());
+    }
+
+    private Set<BluetoothDevice> getPairedDevices() {
+        Set<BluetoothDevice> pairedDevices = btAdapter.getBondedDevices();
+        Log.d(TAG, "Currently " + pairedDevices.size() + " paired devices");
+        return pairedDevices;
     }
 
     /**
      * Searches the list of paired devices for the diabetes device.
      */
-    private BluetoothDevice findDeviceByName(String deviceName) {
-        Set<BluetoothDevice> pairedDevices = btAdapter.getBondedDevices();
-
+    private BluetoothDevice findDeviceByName(String deviceName,
+                                             Set<BluetoothDevice> pairedDevices) {
         // check if the device is in the list of paired devices
-        Log.d(TAG, "Currently " + pairedDevices.size() + " paired devices");
         for (BluetoothDevice device : pairedDevices) {
-            if (device.getName().startsWith(deviceName)) {
+            String name = device.getName();
+            if (name != null && name.startsWith(deviceName)) {
                 return device;
             }
         }
         return null;
     }
 
+    /**
+     * Starts the collection of an advertiser, which has just appeared, if its name has been
+     * entered for one of the profiles it advertises. A running collection is told, that the
+     * device is in range.
+     */
+    @Override
+    public void onDeviceFound(ScanCache.Entry entry) {
+        // handlers can only be started, once the ble service is bound
+        if (collectorService.getGattClient() == null) return;
+
+        SharedPreferences sharedPref =
+                PreferenceManager.getDefaultSharedPreferences(collectorService);
+        for (DeviceProfile profile : collectorService.getProfileRegistry().getProfiles()) {
+            if (!advertises(entry, profile)) continue;
+            String input = sharedPref.getString(profile.getPreferenceKey(), "");
+            for (String deviceName : parseDeviceNames(input)) {
+                if (entry.getName().startsWith(deviceName)) {
+                    broadcastMessage("Device \"" + deviceName + "\" advertising at "
+                            + entry.getAddress());
+                    collectorService.onDeviceAdvertising(entry.getAddress());
+                    collectorService.startCollection(entry.getAddress(), profile);
+                    return;
+                }
+            }
+        }
+    }
+
     /**
      * Splits a list of space separated device names and puts them in a set.
      * @param input
@@ -0,0 +1,363 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides, which device may connect next. The Android stack only copes with a few connection
+ * attempts and GATT clients at the same time, so the number of pending connection attempts and
+ * of connected sessions is capped. Waiting devices are served by priority, devices of the same
+ * priority in turn. An attempt, which does not succeed in time, is cancelled and queued again at
+ * the end, so that a device out of range does not block the others. Attempts, which wait in the
+ * background until the device advertises, hold no attempt slot and have no time limit, since
+ * the occasional devices are mostly out of range. Devices, which have failed recently, only
+ * join the queue after the retry delay their connector asks for, unless they are seen
+ * advertising.
+ */
+public class ConnectionScheduler {
+    private final static String TAG = ConnectionScheduler.class.getSimpleName();
+
+    /**
+     * Urgency of a connection, the most urgent first.
+     */
+    public enum Priority {
+        // the device has reported a problem, e.g. a sensor failure
+        ALERT,
+        // the device still holds data, e.g. an interrupted record transfer
+        PENDING_DATA,
+        // nothing known about the device
+        IDLE
+    }
+
+    /**
+     * Starts and cancels connection attempts.
+     */
+    public interface Connector {
+        /**
+         * @return false, if the attempt could not be started
+         */
+        boolean connect(String deviceAddress);
+
+        void cancel(String deviceAddress);
+
+        /**
+         * Returns true, if the started attempt waits in the background for the device.
+         */
+        boolean isBackground(String deviceAddress);
+
+        /**
+         * Returns the time in ms the device should wait before its next attempt.
+         */
+        long getRetryDelay(String deviceAddress);
+    }
+
+    public final static int DEFAULT_MAX_CONNECTING = 2;
+    public final static int DEFAULT_MAX_SESSIONS = 5;
+    public final static long DEFAULT_CONNECT_TIMEOUT = 30000;
+
+    private static class Request {
+        final String deviceAddress;
+        final Priority priority;
+        final long queueTime;
+
+        Request(String deviceAddress, Priority priority) {
+            this.deviceAddress = deviceAddress;
+            this.priority = priority;
+            this.queueTime = System.currentTimeMillis();
+        }
+    }
+
+    private final Connector connector;
+    private final int maxConnecting;
+    private final int maxSessions;
+    private final long connectTimeout;
+    private final ScheduledExecutorService timer;
+
+    // waiting devices per priority, in the order they will be served
+    private final Map<Priority, ArrayDeque<Request>> queues;
+    private final Map<String, Request> queued;
+    // pending attempts with their timeouts
+    private final Map<String, ScheduledFuture<?>> connecting;
+    // pending attempts waiting in the background, without timeout
+    private final Set<String> background;
+    private final Set<String> sessions;
+    // devices waiting for their retry delay, before they join the queue
+    private final Map<String, ScheduledFuture<?>> delayed;
+    private final Map<String, Priority> delayedPriorities;
+
+    // statistics of the granted attempts
+    private long grantCount;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long timeoutCount;
+
+    public ConnectionScheduler(Connector connector) {
+        this(connector, DEFAULT_MAX_CONNECTING, DEFAULT_MAX_SESSIONS, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    /**
+     * @param maxConnecting  number of connection attempts at the same time
+     * @param maxSessions    number of connected devices and attempts at the same time
+     * @param connectTimeout time in ms, after which an attempt is given up
+     */
+    public ConnectionScheduler(Connector connector, int maxConnecting, int maxSessions,
+                               long connectTimeout) {
+        this.connector = connector;
+        this.maxConnecting = maxConnecting;
+        this.maxSessions = maxSessions;
+        this.connectTimeout = connectTimeout;
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.queues = new EnumMap<>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+        }
+        this.queued = new HashMap<>();
+        this.connecting = new HashMap<>();
+        this.background = new HashSet<>();
+        this.sessions = new HashSet<>();
+        this.delayed = new HashMap<>();
+        this.delayedPriorities = new HashMap<>();
+    }
+
+    /**
+     * Queues the device for a connection, after its retry delay if it has failed recently. A
+     * device, which is already waiting, is moved up, if the new priority is more urgent.
+     * Connecting or connected devices are left alone.
+     */
+    public synchronized void request(String deviceAddress, Priority priority) {
+        if (connecting.containsKey(deviceAddress) || sessions.contains(deviceAddress)) return;
+        if (background.contains(deviceAddress)) return;
+        if (delayed.containsKey(deviceAddress)) return;
+
+        long delay = connector.getRetryDelay(deviceAddress);
+        if (delay > 0 && !queued.containsKey(deviceAddress)) {
+            requestLater(deviceAddress, priority, delay);
+            return;
+        }
+        enqueue(deviceAddress, priority);
+    }
+
+    private void requestLater(String deviceAddress, Priority priority, long delay) {
+        Log.d(TAG, "Retrying " + deviceAddress + " in " + delay + " ms");
+        delayedPriorities.put(deviceAddress, priority);
+        delayed.put(deviceAddress, timer.schedule(() -> {
+            synchronized (this) {
+                if (delayed.remove(deviceAddress) == null) return;
+                enqueue(deviceAddress, delayedPriorities.remove(deviceAddress));
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * The device has been seen advertising, so it is in range. A device waiting for its retry
+     * delay joins the queue at once, other devices are left alone.
+     */
+    public synchronized void onAdvertising(String deviceAddress) {
+        ScheduledFuture<?> retry = delayed.remove(deviceAddress);
+        if (retry == null) return;
+        retry.cancel(false);
+        Log.d(TAG, "Device " + deviceAddress + " advertising, retrying now.");
+        enqueue(deviceAddress, delayedPriorities.remove(deviceAddress));
+    }
+
+    private void enqueue(String deviceAddress, Priority priority) {
+        Request waiting = queued.get(deviceAddress);
+        if (waiting != null) {
+            if (waiting.priority.compareTo(priority) <= 0) return;
+            queues.get(waiting.priority).remove(waiting);
+        }
+        Request request = new Request(deviceAddress, priority);
+        queues.get(priority).add(request);
+        queued.put(deviceAddress, request);
+        grantNext();
+    }
+
+    /**
+     * Removes the device from the queue and cancels its pending attempt.
+     */
+    public synchronized void cancel(String deviceAddress) {
+        Request waiting = queued.remove(deviceAddress);
+        if (waiting != null) queues.get(waiting.priority).remove(waiting);
+        cancelRetry(deviceAddress);
+
+        ScheduledFuture<?> timeout = connecting.remove(deviceAddress);
+        if (timeout != null) {
+            timeout.cancel(false);
+            connector.cancel(deviceAddress);
+        } else if (background.remove(deviceAddress)) {
+            connector.cancel(deviceAddress);
+        }
+        sessions.remove(deviceAddress);
+        grantNext();
+    }
+
+    /**
+     * The attempt has succeeded, the device now holds a session slot.
+     */
+    public synchronized void onConnected(String deviceAddress) {
+        ScheduledFuture<?> timeout = connecting.remove(deviceAddress);
+        if (timeout != null) {
+            timeout.cancel(false);
+        } else if (!background.remove(deviceAddress)) {
+            // the stack reconnects devices on its own
+            Request waiting = queued.remove(deviceAddress);
+            if (waiting != null) queues.get(waiting.priority).remove(waiting);
+            cancelRetry(deviceAddress);
+        }
+        sessions.add(deviceAddress);
+        grantNext();
+    }
+
+    private void cancelRetry(String deviceAddress) {
+        ScheduledFuture<?> retry = delayed.remove(deviceAddress);
+        if (retry != null) retry.cancel(false);
+        delayedPriorities.remove(deviceAddress);
+    }
+
+    /**
+     * The session has ended, its slot is given to the next device.
+     */
+    public synchronized void onDisconnected(String deviceAddress) {
+        ScheduledFuture<?> timeout = connecting.remove(deviceAddress);
+        if (timeout != null) timeout.cancel(false);
+        background.remove(deviceAddress);
+        sessions.remove(deviceAddress);
+        grantNext();
+    }
+
+    private synchronized void onConnectTimeout(String deviceAddress) {
+        if (connecting.remove(deviceAddress) == null) return;
+        Log.i(TAG, "Connection attempt to " + deviceAddress + " timed out, trying others first.");
+        timeoutCount++;
+        connector.cancel(deviceAddress);
+
+        // go to the end of the queue, even if the queue is empty
+        long delay = connector.getRetryDelay(deviceAddress);
+        if (delay > 0) {
+            requestLater(deviceAddress, Priority.IDLE, delay);
+        } else {
+            enqueue(deviceAddress, Priority.IDLE);
+        }
+        grantNext();
+    }
+
+    /**
+     * Starts attempts for the most urgent devices, as long as there are free slots. Must be
+     * called with the lock held.
+     */
+    private void grantNext() {
+        while (connecting.size() < maxConnecting
+                && connecting.size() + sessions.size() < maxSessions) {
+            Request request = pollNext();
+            if (request == null) return;
+
+            long wait = System.currentTimeMillis() - request.queueTime;
+            grantCount++;
+            totalWaitMillis += wait;
+            maxWaitMillis = Math.max(maxWaitMillis, wait);
+            Log.d(TAG, "Connecting " + request.deviceAddress + " (" + request.priority
+                    + ") after " + wait + " ms, " + queued.size() + " waiting");
+
+            if (connector.connect(request.deviceAddress)) {
+                String deviceAddress = request.deviceAddress;
+                if (connector.isBackground(deviceAddress)) {
+                    // the stack waits for the device, the slot is free for the next one
+                    background.add(deviceAddress);
+                    continue;
+                }
+                connecting.put(deviceAddress, timer.schedule(
+                        () -> onConnectTimeout(deviceAddress),
+                        connectTimeout, TimeUnit.MILLISECONDS));
+            } else {
+                Log.w(TAG, "Connection attempt to " + request.deviceAddress + " not started.");
+                // e.g. the device fails too often, it is tried again after its delay
+                long delay = connector.getRetryDelay(request.deviceAddress);
+                if (delay > 0) requestLater(request.deviceAddress, request.priority, delay);
+            }
+        }
+    }
+
+    private Request pollNext() {
+        for (Priority priority : Priority.values()) {
+            Request request = queues.get(priority).poll();
+            if (request != null) {
+                queued.remove(request.deviceAddress);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of devices waiting for an attempt.
+     */
+    public synchronized int getQueueDepth() {
+        return queued.size();
+    }
+
+    /**
+     * Returns the number of devices waiting for their retry delay.
+     */
+    public synchronized int getDelayedCount() {
+        return delayed.size();
+    }
+
+    public synchronized int getConnectingCount() {
+        return connecting.size();
+    }
+
+    /**
+     * Returns the number of attempts waiting in the background.
+     */
+    public synchronized int getBackgroundCount() {
+        return background.size();
+    }
+
+    public synchronized int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the average time in ms the granted devices have waited in the queue.
+     */
+    public synchronized long getAverageWaitMillis() {
+        return grantCount > 0 ? totalWaitMillis / grantCount : 0;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * Cancels all pending timeouts, the scheduler cannot be used anymore.
+     */
+    public synchronized void shutdown() {
+        timer.shutdownNow();
+        connecting.clear();
+        background.clear();
+        delayed.clear();
+        delayedPriorities.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return queued.size() + " waiting, " + delayed.size() + " delayed, "
+                + connecting.size() + " connecting, " + background.size() + " in background, "
+                + sessions.size() + " connected, wait avg " + getAverageWaitMillis()
+                + " ms / max " + maxWaitMillis + " ms, " + timeoutCount + " timeouts";
+    }
+}
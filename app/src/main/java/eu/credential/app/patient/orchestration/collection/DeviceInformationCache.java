@@ -0,0 +1,202 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import eu.credential.app.patient.integration.model.DeviceInformation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers the device information and the feature characteristics of every device across
+ * reconnects, so that they need not be read again on every connection. Each device is stored as
+ * one JSON string keyed by its address. The features are dropped, when the firmware revision of
+ * the device changes.
+ */
+public class DeviceInformationCache {
+    private final static String TAG = DeviceInformationCache.class.getSimpleName();
+
+    // name of the shared preferences file holding the cache
+    public final static String PREFERENCES_NAME = "device_information_cache";
+
+    private final static String KEY_MANUFACTURER_NAME = "manufacturerName";
+    private final static String KEY_MODEL_NUMBER = "modelNumber";
+    private final static String KEY_SERIAL_NUMBER = "serialNumber";
+    private final static String KEY_HARDWARE_REVISION = "hardwareRevision";
+    private final static String KEY_FIRMWARE_REVISION = "firmwareRevision";
+    private final static String KEY_SOFTWARE_REVISION = "softwareRevision";
+    private final static String KEY_SYSTEM_ID = "systemId";
+    private final static String KEY_REGULATORY_CERT_DATA = "regulatoryCertData";
+    private final static String KEY_FEATURES = "features";
+
+    private final SharedPreferences preferences;
+
+    // parsed entries, so that the JSON is read once per device
+    private final Map<String, Entry> entries;
+
+    private static class Entry {
+        DeviceInformation information;
+        final Map<UUID, byte[]> features = new HashMap<>();
+    }
+
+    public DeviceInformationCache(SharedPreferences preferences) {
+        this.preferences = preferences;
+        this.entries = new HashMap<>();
+    }
+
+    /**
+     * Returns the cached device information.
+     *
+     * @return null, if the device has not been read yet
+     */
+    public synchronized DeviceInformation getInformation(String deviceAddress) {
+        Entry entry = load(deviceAddress);
+        return entry != null ? entry.information : null;
+    }
+
+    /**
+     * Returns the cached value of a feature characteristic.
+     *
+     * @return null, if the feature has not been read yet
+     */
+    public synchronized byte[] getFeatures(String deviceAddress, UUID featureUuid) {
+        Entry entry = load(deviceAddress);
+        return entry != null ? entry.features.get(featureUuid) : null;
+    }
+
+    /**
+     * Stores the information read from the device. The cached features are dropped, if the
+     * firmware revision differs from the cached one.
+     */
+    public synchronized void putInformation(String deviceAddress, DeviceInformation information) {
+        Entry entry = load(deviceAddress);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(deviceAddress, entry);
+        } else if (entry.information != null && !entry.information.getFirmwareRevision()
+                .equals(information.getFirmwareRevision())) {
+            Log.i(TAG, "Firmware of " + deviceAddress + " has changed, dropping its features.");
+            entry.features.clear();
+        }
+        entry.information = information;
+        store(deviceAddress, entry);
+    }
+
+    /**
+     * Stores the value of a feature characteristic. Features are only kept together with the
+     * device information.
+     */
+    public synchronized void putFeatures(String deviceAddress, UUID featureUuid, byte[] value) {
+        Entry entry = load(deviceAddress);
+        if (entry == null || entry.information == null) return;
+        entry.features.put(featureUuid, value.clone());
+        store(deviceAddress, entry);
+    }
+
+    /**
+     * Forgets everything about the device, so that it is read again on the next connection.
+     */
+    public synchronized void invalidate(String deviceAddress) {
+        entries.remove(deviceAddress);
+        preferences.edit().remove(deviceAddress).apply();
+    }
+
+    private Entry load(String deviceAddress) {
+        Entry entry = entries.get(deviceAddress);
+        if (entry != null) return entry;
+
+        String json = preferences.getString(deviceAddress, null);
+        if (json == null) return null;
+        try {
+            entry = fromJson(new JSONObject(json));
+        } catch (JSONException ex) {
+            Log.w(TAG, "Dropping unreadable cache entry of " + deviceAddress);
+            preferences.edit().remove(deviceAddress).apply();
+            return null;
+        }
+        entries.put(deviceAddress, entry);
+        return entry;
+    }
+
+    private void store(String deviceAddress, Entry entry) {
+        try {
+            preferences.edit().putString(deviceAddress, toJson(entry).toString()).apply();
+        } catch (JSONException ex) {
+            Log.w(TAG, "Could not store cache entry of " + deviceAddress);
+        }
+    }
+
+    private static JSONObject toJson(Entry entry) throws JSONException {
+        DeviceInformation information = entry.information;
+        JSONObject json = new JSONObject();
+        json.put(KEY_MANUFACTURER_NAME, information.getManufacturerName());
+        json.put(KEY_MODEL_NUMBER, information.getModelNumber());
+        json.put(KEY_SERIAL_NUMBER, information.getSerialNumber());
+        json.put(KEY_HARDWARE_REVISION, information.getHardwareRevision());
+        json.put(KEY_FIRMWARE_REVISION, information.getFirmwareRevision());
+        json.put(KEY_SOFTWARE_REVISION, information.getSoftwareRevision());
+        json.put(KEY_SYSTEM_ID, toHex(information.getSystemId()));
+        json.put(KEY_REGULATORY_CERT_DATA, toHex(information.getRegulatoryCertData()));
+
+        JSONObject features = new JSONObject();
+        for (Map.Entry<UUID, byte[]> feature : entry.features.entrySet()) {
+            features.put(feature.getKey().toString(), toHex(feature.getValue()));
+        }
+        json.put(KEY_FEATURES, features);
+        return json;
+    }
+
+    private static Entry fromJson(JSONObject json) throws JSONException {
+        DeviceInformation information = new DeviceInformation();
+        information.setManufacturerName(json.getString(KEY_MANUFACTURER_NAME));
+        information.setModelNumber(json.getString(KEY_MODEL_NUMBER));
+        information.setSerialNumber(json.getString(KEY_SERIAL_NUMBER));
+        information.setHardwareRevision(json.getString(KEY_HARDWARE_REVISION));
+        information.setFirmwareRevision(json.getString(KEY_FIRMWARE_REVISION));
+        information.setSoftwareRevision(json.getString(KEY_SOFTWARE_REVISION));
+        information.setSystemId(fromHex(json.getString(KEY_SYSTEM_ID)));
+        information.setRegulatoryCertData(fromHex(json.getString(KEY_REGULATORY_CERT_DATA)));
+
+        Entry entry = new Entry();
+        entry.information = information;
+        JSONObject features = json.optJSONObject(KEY_FEATURES);
+        if (features != null) {
+            Iterator<String> keys = features.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                try {
+                    entry.features.put(UUID.fromString(key), fromHex(features.getString(key)));
+                } catch (IllegalArgumentException ex) {
+                    throw new JSONException("Invalid feature " + key);
+                }
+            }
+        }
+        return entry;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte element : bytes) {
+            builder.append(String.format("%02x", element));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] fromHex(String hex) throws JSONException {
+        if (hex.length() % 2 != 0) throw new JSONException("Odd hex string " + hex);
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) throw new JSONException("Invalid hex string " + hex);
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
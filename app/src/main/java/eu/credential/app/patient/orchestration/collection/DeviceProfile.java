@@ -0,0 +1,135 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import eu.credential.app.patient.integration.bluetooth.GattClient;
+import eu.credential.app.patient.integration.model.Measurement;
+
+import java.util.UUID;
+
+/**
+ * Describes a kind of health device the collector can listen to: the GATT service which
+ * identifies it, the characteristic its measurements arrive on, how these are decoded, which
+ * handler runs the collection and under which preference key the user enters the device names.
+ * Profiles are looked up in the DeviceProfileRegistry.
+ */
+public final class DeviceProfile {
+
+    /**
+     * Creates the collection handler for a device of this profile.
+     */
+    public interface HandlerFactory {
+        CollectionHandler create(DeviceProfile profile, String deviceAddress,
+                                 GattClient gattClient, CollectorService collectorService);
+    }
+
+    /**
+     * Checks, if a characteristic value is long enough for the fields its flags announce.
+     */
+    public interface FrameValidator {
+        boolean isValid(byte[] data, int offset, int length);
+    }
+
+    /**
+     * Decodes a valid characteristic value into a measurement.
+     */
+    public interface MeasurementDecoder {
+        Measurement decode(byte[] value, long receiveTime);
+    }
+
+    private final String name;
+    private final UUID serviceUuid;
+    private final UUID measurementUuid;
+    private final String preferenceKey;
+    private final HandlerFactory handlerFactory;
+    private final FrameValidator validator;
+    private final MeasurementDecoder decoder;
+    private final UUID featureUuid;
+
+    /**
+     * @param name            unique name, used in logs and messages
+     * @param serviceUuid     GATT service of the profile
+     * @param measurementUuid characteristic the measurements are sent on
+     * @param preferenceKey   key of the preference holding the device names
+     * @param decoder         null for streaming profiles, which write into sample buffers
+     *                        instead of creating measurements
+     */
+    public DeviceProfile(String name, UUID serviceUuid, UUID measurementUuid,
+                         String preferenceKey, HandlerFactory handlerFactory,
+                         FrameValidator validator, MeasurementDecoder decoder) {
+        this(name, serviceUuid, measurementUuid, preferenceKey, handlerFactory, validator,
+                decoder, null);
+    }
+
+    /**
+     * @param featureUuid feature characteristic of the service, which is read once and cached
+     *                    together with the device information
+     */
+    public DeviceProfile(String name, UUID serviceUuid, UUID measurementUuid,
+                         String preferenceKey, HandlerFactory handlerFactory,
+                         FrameValidator validator, MeasurementDecoder decoder, UUID featureUuid) {
+        this.name = name;
+        this.serviceUuid = serviceUuid;
+        this.measurementUuid = measurementUuid;
+        this.preferenceKey = preferenceKey;
+        this.handlerFactory = handlerFactory;
+        this.validator = validator;
+        this.decoder = decoder;
+        this.featureUuid = featureUuid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public UUID getServiceUuid() {
+        return serviceUuid;
+    }
+
+    public UUID getMeasurementUuid() {
+        return measurementUuid;
+    }
+
+    public String getPreferenceKey() {
+        return preferenceKey;
+    }
+
+    /**
+     * @return null, if the profile has no feature characteristic
+     */
+    public UUID getFeatureUuid() {
+        return featureUuid;
+    }
+
+    public CollectionHandler createHandler(String deviceAddress, GattClient gattClient,
+                                           CollectorService collectorService) {
+        return handlerFactory.create(this, deviceAddress, gattClient, collectorService);
+    }
+
+    public boolean isValid(byte[] value) {
+        return value != null && validator.isValid(value, 0, value.length);
+    }
+
+    /**
+     * Returns true, if the devices send a continuous stream of samples instead of single
+     * measurements.
+     */
+    public boolean isStreaming() {
+        return decoder == null;
+    }
+
+    /**
+     * Decodes the measurement, which has to be checked with isValid before.
+     *
+     * @throws UnsupportedOperationException for streaming profiles
+     */
+    public Measurement decode(byte[] value, long receiveTime) {
+        if (decoder == null) {
+            throw new UnsupportedOperationException("Profile " + name + " has no measurements.");
+        }
+        return decoder.decode(value, receiveTime);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,138 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.support.annotation.Nullable;
+
+import eu.credential.app.patient.integration.codec.CgmFrameDecoder;
+import eu.credential.app.patient.integration.codec.GlucoseFrameDecoder;
+import eu.credential.app.patient.integration.codec.HeartRateFrameDecoder;
+import eu.credential.app.patient.integration.codec.PlxSpotCheckFrameDecoder;
+import eu.credential.app.patient.integration.codec.WeightFrameDecoder;
+import eu.credential.app.patient.integration.model.CgmMeasurement;
+import eu.credential.app.patient.integration.model.GlucoseMeasurement;
+import eu.credential.app.patient.integration.model.PlxMeasurement;
+import eu.credential.app.patient.integration.model.WeightMeasurement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Registry of all device profiles the collector supports. Profiles are indexed by name, service,
+ * measurement characteristic and preference key, so the orchestration code finds them without
+ * knowing the concrete profiles or handler classes.
+ */
+public class DeviceProfileRegistry {
+
+    public static final String GLUCOSE = "glucose";
+    public static final String WEIGHT = "weight";
+    public static final String HEART_RATE = "heart_rate";
+    public static final String PULSE_OXIMETER = "pulse_oximeter";
+    public static final String CGM = "cgm";
+
+    private final List<DeviceProfile> profiles;
+    private final Map<String, DeviceProfile> byName;
+    private final Map<UUID, DeviceProfile> byService;
+    private final Map<UUID, DeviceProfile> byMeasurement;
+    private final Map<String, DeviceProfile> byPreferenceKey;
+
+    public DeviceProfileRegistry() {
+        this.profiles = new ArrayList<>();
+        this.byName = new HashMap<>();
+        this.byService = new HashMap<>();
+        this.byMeasurement = new HashMap<>();
+        this.byPreferenceKey = new HashMap<>();
+    }
+
+    /**
+     * Creates a registry with all profiles shipped with the app.
+     */
+    public static DeviceProfileRegistry createDefault() {
+        DeviceProfileRegistry registry = new DeviceProfileRegistry();
+        registry.register(new DeviceProfile(GLUCOSE,
+                UUID.fromString("00001808-0000-1000-8000-00805f9b34fb"),
+                UUID.fromString("00002a18-0000-1000-8000-00805f9b34fb"),
+                "pref_glucose_device_names",
+                GlucoseHandler::new,
+                GlucoseFrameDecoder::isValid,
+                GlucoseMeasurement::new,
+                UUID.fromString("00002a51-0000-1000-8000-00805f9b34fb")));
+        registry.register(new DeviceProfile(WEIGHT,
+                UUID.fromString("0000181d-0000-1000-8000-00805f9b34fb"),
+                UUID.fromString("00002a9d-0000-1000-8000-00805f9b34fb"),
+                "pref_weight_device_names",
+                WeightHandler::new,
+                WeightFrameDecoder::isValid,
+                WeightMeasurement::new,
+                UUID.fromString("00002a9e-0000-1000-8000-00805f9b34fb")));
+        registry.register(new DeviceProfile(HEART_RATE,
+                UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"),
+                UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb"),
+                "pref_heart_rate_device_names",
+                HeartRateHandler::new,
+                HeartRateFrameDecoder::isValid,
+                null));
+        registry.register(new DeviceProfile(PULSE_OXIMETER,
+                UUID.fromString("00001822-0000-1000-8000-00805f9b34fb"),
+                UUID.fromString("00002a5e-0000-1000-8000-00805f9b34fb"),
+                "pref_pulse_oximeter_device_names",
+                PlxHandler::new,
+                PlxSpotCheckFrameDecoder::isValid,
+                PlxMeasurement::fromSpotCheck));
+        registry.register(new DeviceProfile(CGM,
+                UUID.fromString("0000181f-0000-1000-8000-00805f9b34fb"),
+                UUID.fromString("00002aa7-0000-1000-8000-00805f9b34fb"),
+                "pref_cgm_device_names",
+                CgmHandler::new,
+                CgmFrameDecoder::isValid,
+                (value, receiveTime) -> new CgmMeasurement(value, 0, 0, receiveTime)));
+        return registry;
+    }
+
+    /**
+     * Adds a profile to the registry.
+     *
+     * @throws IllegalArgumentException if name, service or preference key are already taken
+     */
+    public void register(DeviceProfile profile) {
+        if (byName.containsKey(profile.getName())
+                || byService.containsKey(profile.getServiceUuid())
+                || byPreferenceKey.containsKey(profile.getPreferenceKey())) {
+            throw new IllegalArgumentException("Profile " + profile + " clashes with a registered one.");
+        }
+        profiles.add(profile);
+        byName.put(profile.getName(), profile);
+        byService.put(profile.getServiceUuid(), profile);
+        byMeasurement.put(profile.getMeasurementUuid(), profile);
+        byPreferenceKey.put(profile.getPreferenceKey(), profile);
+    }
+
+    /**
+     * Returns all profiles in registration order.
+     */
+    public List<DeviceProfile> getProfiles() {
+        return Collections.unmodifiableList(profiles);
+    }
+
+    @Nullable
+    public DeviceProfile findByName(String name) {
+        return byName.get(name);
+    }
+
+    @Nullable
+    public DeviceProfile findByService(UUID serviceUuid) {
+        return byService.get(serviceUuid);
+    }
+
+    @Nullable
+    public DeviceProfile findByMeasurement(UUID measurementUuid) {
+        return byMeasurement.get(measurementUuid);
+    }
+
+    @Nullable
+    public DeviceProfile findByPreferenceKey(String key) {
+        return byPreferenceKey.get(key);
+    }
+}
@@ -0,0 +1,138 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.util.Log;
+
+import eu.credential.app.patient.integration.model.GlucoseContext;
+import eu.credential.app.patient.integration.model.GlucoseMeasurement;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Joins glucose measurements with their context characteristic by sequence number, while the
+ * frames arrive. Measurements without announced context are passed on directly, the others wait
+ * until the context with the same sequence number arrives. Devices send the context right after
+ * its measurement, so only few entries are pending even during a bulk download of all records.
+ * The buffer is bounded nevertheless: if it is full or an entry waited too long, the measurement
+ * is passed on without context. Contexts without waiting measurement are dropped.
+ * Not thread-safe, all frames of a device are handled on the same thread.
+ */
+public class GlucoseContextJoin {
+    private final static String TAG = GlucoseContextJoin.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 16;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final int capacity;
+    private final long timeoutMillis;
+    private final Consumer<GlucoseMeasurement> consumer;
+
+    // pending measurements in arrival order, keyed by sequence number
+    private final LinkedHashMap<Integer, Pending> pending;
+
+    private static class Pending {
+        final GlucoseMeasurement measurement;
+        final long arrival;
+
+        Pending(GlucoseMeasurement measurement, long arrival) {
+            this.measurement = measurement;
+            this.arrival = arrival;
+        }
+    }
+
+    /**
+     * @param consumer receives every measurement exactly once, with or without context
+     */
+    public GlucoseContextJoin(Consumer<GlucoseMeasurement> consumer) {
+        this(DEFAULT_CAPACITY, DEFAULT_TIMEOUT_MILLIS, consumer);
+    }
+
+    public GlucoseContextJoin(int capacity, long timeoutMillis,
+                              Consumer<GlucoseMeasurement> consumer) {
+        this.capacity = capacity;
+        this.timeoutMillis = timeoutMillis;
+        this.consumer = consumer;
+        this.pending = new LinkedHashMap<Integer, Pending>(capacity * 2) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Pending> eldest) {
+                if (size() <= GlucoseContextJoin.this.capacity) return false;
+                Log.w(TAG, "Join buffer full, passing on measurement "
+                        + eldest.getKey() + " without context.");
+                GlucoseContextJoin.this.consumer.accept(eldest.getValue().measurement);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Offers a new measurement, which is passed on at once, if the device sends no context.
+     *
+     * @param now current time in milliseconds
+     */
+    public void offerMeasurement(GlucoseMeasurement measurement, long now) {
+        evictExpired(now);
+        if (!measurement.isContextFollowing()) {
+            consumer.accept(measurement);
+            return;
+        }
+
+        // a repeated sequence number replaces the old one, which is passed on first
+        Pending previous = pending.remove(measurement.getSequenceNumber());
+        if (previous != null) consumer.accept(previous.measurement);
+        pending.put(measurement.getSequenceNumber(), new Pending(measurement, now));
+    }
+
+    /**
+     * Offers a new context, which is attached to the pending measurement with the same sequence
+     * number.
+     *
+     * @param now current time in milliseconds
+     * @return false, if there was no such measurement
+     */
+    public boolean offerContext(GlucoseContext context, long now) {
+        Pending match = pending.remove(context.getSequenceNumber());
+        evictExpired(now);
+        if (match == null) {
+            Log.w(TAG, "Dropping context " + context.getSequenceNumber()
+                    + " without measurement.");
+            return false;
+        }
+        consumer.accept(match.measurement.withContext(context));
+        return true;
+    }
+
+    /**
+     * Passes on all measurements, which waited longer than the timeout.
+     *
+     * @param now current time in milliseconds
+     */
+    public void evictExpired(long now) {
+        // entries are ordered by arrival, so stop at the first young one
+        Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Pending entry = iterator.next();
+            if (now - entry.arrival < timeoutMillis) break;
+            iterator.remove();
+            consumer.accept(entry.measurement);
+        }
+    }
+
+    /**
+     * Passes on all pending measurements without context, e.g. when the transfer is finished or
+     * the connection has been lost.
+     */
+    public void flush() {
+        Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Pending entry = iterator.next();
+            iterator.remove();
+            consumer.accept(entry.measurement);
+        }
+    }
+
+    public int size() {
+        return pending.size();
+    }
+}
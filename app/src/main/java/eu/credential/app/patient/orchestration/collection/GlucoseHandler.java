@@ -1,15 +1,18 @@
 package eu.credential.app.patient.orchestration.collection;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.content.Intent;
 import android.util.Log;
 
-import eu.credential.app.patient.integration.bluetooth.BleService;
+import eu.credential.app.patient.integration.bluetooth.GattClient;
+import eu.credential.app.patient.integration.bluetooth.ReconnectPolicy;
+import eu.credential.app.patient.integration.codec.GlucoseContextFrameDecoder;
+import eu.credential.app.patient.integration.codec.RecordAccessControlPoint;
+import eu.credential.app.patient.integration.model.GlucoseContext;
 import eu.credential.app.patient.integration.model.GlucoseMeasurement;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class ressembles a handler, for getting device data.
@@ -18,17 +21,13 @@ import java.util.concurrent.TimeUnit;
 public class GlucoseHandler extends CollectionHandler {
     private final static String TAG = GlucoseHandler.class.getSimpleName();
 
-    // gatt Attributes which will be contacted
-    private final static UUID UUID_GLUCOSE_MEASUREMENT =
-            UUID.fromString("00002a18-0000-1000-8000-00805f9b34fb");
+    // gatt Attributes which will be contacted, the measurement and the service are defined by
+    // the profile
     private final static UUID UUID_GLUCOSE_MEASUREMENT_CONTEXT =
             UUID.fromString("00002a34-0000-1000-8000-00805f9b34fb");
 
     private final static UUID UUID_RECORD_ACCESS_CONTROL_POINT =
             UUID.fromString("00002a52-0000-1000-8000-00805f9b34fb");
-    // gatt ServiceID
-    private final static UUID UUID_GLUCOSE_SERVICE =
-            UUID.fromString("00001808-0000-1000-8000-00805f9b34fb");
 
     // states, if notifications have been enabled
     private boolean glucMeasEnabled;
@@ -36,14 +35,53 @@ public class GlucoseHandler extends CollectionHandler {
     // states, if indidcation have been enabled
     private boolean racpEnabled;
 
-    public GlucoseHandler(String deviceAddress, BleService bleService, CollectorService collectorService) {
-        super(deviceAddress, bleService, collectorService);
+    // joins measurements with their context by sequence number
+    private final GlucoseContextJoin contextJoin;
+
+    // records of a download are passed on in batches of at most this size
+    private final static int MAX_BATCH_SIZE = 512;
+    // the download progress is reported every this many records
+    private final static int PROGRESS_STEP = 50;
+
+    // highest sequence number received before the download, -1 if none
+    private volatile int watermark;
+    // true, if the sequence filter is used for the download
+    private volatile boolean filtered;
+    // true, once a record at or above the watermark has arrived, the device still holds the
+    // last known record then
+    private boolean watermarkFound;
+    // true from the record request until the final response
+    private volatile boolean downloading;
+    // number of records the device has announced, -1 if unknown
+    private int expectedRecords;
+    private int receivedRecords;
+    private volatile int highestSequence;
+    // records of the download not yet passed to the collector
+    private List<GlucoseMeasurement> batch;
+
+    public GlucoseHandler(DeviceProfile profile, String deviceAddress, GattClient gattClient,
+                          CollectorService collectorService) {
+        super(profile, deviceAddress, gattClient, collectorService);
+        this.contextJoin = new GlucoseContextJoin(this::deliverMeasurement);
+        this.watermark = -1;
+        this.downloading = false;
+        this.expectedRecords = -1;
+        this.batch = new ArrayList<>();
         this.glucMeasCtxEnabled = false;
         this.glucMeasEnabled = false;
         this.racpEnabled = false;
     }
 
-    protected void connectedResultHook(Intent intent) {
+    /**
+     * Glucose meters only advertise for a while after a measurement, they are waited for in the
+     * background.
+     */
+    @Override
+    protected ReconnectPolicy getReconnectPolicy() {
+        return ReconnectPolicy.OCCASIONAL;
+    }
+
+    protected void connectedResultHook() {
         this.glucMeasCtxEnabled = false;
         this.glucMeasEnabled = false;
         this.racpEnabled = false;
@@ -52,118 +90,257 @@ public class GlucoseHandler extends CollectionHandler {
     /**
      * Losing the connection to a device is the endpoint for the process, since there is no
      * possibility get any data.
-     *
-     * @param intent
      */
-    protected void disconnectedResultHook(Intent intent) {
-        //
+    protected void disconnectedResultHook() {
+        // no context will follow anymore
+        contextJoin.flush();
+        // keep what has been downloaded, the next download continues after it
+        finishDownload();
     }
 
     /**
-     * Enables the notification for glucose data and requests a record receive.
-     *
-     * @param intent
+     * Enables the notification for glucose data and requests a record receive. All descriptor
+     * writes are queued at once, the records are requested as soon as the measurement and the
+     * RACP are enabled. The context is optional, measurements without it are passed on alone.
      */
-    protected void serviceDiscoveryResultHook(Intent intent) {
-        Runnable runnable = () -> {
+    protected void serviceDiscoveryResultHook() {
+        UUID service = profile.getServiceUuid();
+        CompletableFuture<Boolean> context = succeeded(gattClient.enableNotification(
+                service, UUID_GLUCOSE_MEASUREMENT_CONTEXT, deviceAddress),
+                "enable notification for glucose context");
+        CompletableFuture<Boolean> measurement = succeeded(gattClient.enableNotification(
+                service, profile.getMeasurementUuid(), deviceAddress),
+                "enable notification for glucose");
+        CompletableFuture<Boolean> racp = succeeded(gattClient.enableIndication(
+                service, UUID_RECORD_ACCESS_CONTROL_POINT, deviceAddress),
+                "enable indication for RACP");
 
-            glucMeasCtxEnabled = enableGlucoseMeasurementNotification();
-            glucMeasEnabled = enableGlucoseNotification();
-            racpEnabled = enableRACPIndication();
+        CompletableFuture.allOf(context, measurement, racp).thenRun(() -> {
+            glucMeasCtxEnabled = context.join();
+            glucMeasEnabled = measurement.join();
+            racpEnabled = racp.join();
+            notificationEnabled = glucMeasEnabled;
 
-            if (glucMeasCtxEnabled && (glucMeasEnabled && racpEnabled)) {
+            if (glucMeasEnabled && racpEnabled) {
                 requestRecordReceive();
             }
-
-        };
-        Thread thread = new Thread(runnable);
-        thread.start();
+        });
     }
 
     /**
      * Contacts the Record Access Control Point of the device in order to get notifications about
-     * glucose data.
+     * glucose data. Only the records from the highest sequence number received so far on are
+     * requested. The last known record is included, if the device does not hold it anymore, its
+     * memory has been cleared or it has been replaced, and all records are requested instead.
+     * Their number is asked for first, so that nothing is requested, if there are no new
+     * records, and the progress of the download can be reported.
      */
     private void requestRecordReceive() {
-        dataRequested = bleService.requestAllRecords(
-                UUID_GLUCOSE_SERVICE, UUID_RECORD_ACCESS_CONTROL_POINT, deviceAddress);
-        if (!dataRequested) {
-            Log.e(TAG, "Could not request records (request not sent).");
+        RecordWatermarkStore watermarks = collectorService.getRecordWatermarks();
+        watermark = watermarks.getHighestSequence(deviceAddress);
+        if (watermark >= RecordWatermarkStore.MAX_SEQUENCE_NUMBER) {
+            // the sequence numbers of the device start again at 0
+            watermarks.invalidate(deviceAddress);
+            watermark = -1;
         }
+        filtered = watermark >= 0;
+        highestSequence = watermark;
+        beginBulkTransfer().thenRun(this::requestNumberOfRecords);
     }
 
     /**
-     * Interprets data received from the health device and makes it human-readable.
-     *
-     * @param intent
+     * Asks for the number of records from the watermark on, or of all records.
      */
-    protected void dataResultHook(Intent intent) {
-        this.dataReceived = true;
-        BluetoothGattCharacteristic characteristic = recreateCharacteristic(intent);
-        GlucoseMeasurement measurement = null;
-        if (UUID_GLUCOSE_MEASUREMENT.equals(characteristic.getUuid())) {
-            measurement = new GlucoseMeasurement(characteristic);
-            collectorService.receiveMeasurement(measurement, deviceAddress);
-        }
+    private void requestNumberOfRecords() {
+        watermarkFound = false;
+        byte[] request = filtered ? RecordAccessControlPoint.reportNumberOfRecordsFrom(
+                RecordAccessControlPoint.FILTER_SEQUENCE_NUMBER, watermark)
+                : RecordAccessControlPoint.reportNumberOfRecords();
+        succeeded(gattClient.writeRecordAccessControlPoint(profile.getServiceUuid(),
+                UUID_RECORD_ACCESS_CONTROL_POINT, deviceAddress, request),
+                "request number of records").thenAccept(sent -> {
+                    // the records are requested without knowing their number
+                    if (!sent) requestRecords();
+                });
     }
 
-    @Override
-    protected void descriptorWriteResultHook(Intent intent) {
-
+    /**
+     * Requests the stored records from the watermark on, or all of them.
+     */
+    private void requestRecords() {
+        byte[] request = filtered ? RecordAccessControlPoint.reportRecordsFrom(
+                RecordAccessControlPoint.FILTER_SEQUENCE_NUMBER, watermark)
+                : RecordAccessControlPoint.reportAllRecords();
+        downloading = true;
+        succeeded(gattClient.writeRecordAccessControlPoint(profile.getServiceUuid(),
+                UUID_RECORD_ACCESS_CONTROL_POINT, deviceAddress, request), "request records")
+                .thenAccept(sent -> {
+                    dataRequested = sent;
+                    if (!sent) {
+                        downloading = false;
+                        endBulkTransfer();
+                    }
+                });
     }
 
-    private boolean enableGlucoseNotification() {
-        boolean result = false;
-        boolean sendingOk = bleService.enableNotification(
-                UUID_GLUCOSE_SERVICE, UUID_GLUCOSE_MEASUREMENT, deviceAddress);
+    /**
+     * Handles the indications of the Record Access Control Point.
+     */
+    private void receiveRacpResponse(byte[] value) {
+        if (RecordAccessControlPoint.isNumberOfRecords(value, 0, value.length)) {
+            expectedRecords = RecordAccessControlPoint.numberOfRecords(value, 0);
+            if (filtered && expectedRecords == 0) {
+                restartUnfiltered();
+                return;
+            }
+            if (expectedRecords == 0) {
+                publishActionStatus("No new records.");
+                endBulkTransfer();
+                return;
+            }
+            publishActionStatus("Downloading " + expectedRecords + " records.");
+            batch = new ArrayList<>(Math.min(expectedRecords, MAX_BATCH_SIZE));
+            requestRecords();
+            return;
+        }
+        if (!RecordAccessControlPoint.isResponseCode(value, 0, value.length)) return;
+
+        int response = RecordAccessControlPoint.responseCode(value, 0);
+        if (RecordAccessControlPoint.requestOpCode(value, 0)
+                == RecordAccessControlPoint.OP_REPORT_NUMBER_OF_RECORDS) {
+            // the device cannot count, the records are requested right away
+            requestRecords();
+            return;
+        }
+        if (filtered && (response == RecordAccessControlPoint.RESPONSE_OPERATOR_NOT_SUPPORTED
+                || response == RecordAccessControlPoint.RESPONSE_OPERAND_NOT_SUPPORTED)) {
+            // the device cannot filter, the known records are dropped on arrival instead
+            Log.i(TAG, deviceAddress + " does not filter by sequence number.");
+            filtered = false;
+            requestRecords();
+            return;
+        }
+        if (response != RecordAccessControlPoint.RESPONSE_SUCCESS
+                && response != RecordAccessControlPoint.RESPONSE_NO_RECORDS_FOUND) {
+            Log.w(TAG, "Record request of " + deviceAddress + " failed with " + response);
+        }
 
-        if (sendingOk) {
-            try {
-                BluetoothGattDescriptor temp = descriptorQueue.poll(10, TimeUnit.SECONDS);
-                result = temp != null;
-            } catch (InterruptedException ex) {
-                Log.e(TAG, "Could not enable notification for glucose (interrupted).");
+        // the response ends the transfer, every context has been sent before
+        contextJoin.flush();
+        if (filtered && !watermarkFound) {
+            if (highestSequence == watermark) {
+                restartUnfiltered();
+                return;
             }
-        } else {
-            Log.e(TAG, "Could not enable notification for glucose (returned false).");
+            // the newer records have been passed on, they give the new watermark
+            Log.i(TAG, deviceAddress + " does not hold record " + watermark
+                    + " anymore, continuing after record " + highestSequence + ".");
         }
-        return result;
+        finishDownload();
+        endBulkTransfer();
     }
 
-    private boolean enableGlucoseMeasurementNotification() {
-        boolean result = false;
-        boolean sendingOk = bleService.enableNotification(
-                UUID_GLUCOSE_SERVICE, UUID_GLUCOSE_MEASUREMENT_CONTEXT, deviceAddress);
+    /**
+     * Forgets the watermark and requests all records, if the device does not hold the last
+     * known record anymore.
+     */
+    private void restartUnfiltered() {
+        Log.i(TAG, deviceAddress + " does not hold record " + watermark
+                + " anymore, downloading all records.");
+        finishDownload();
+        collectorService.getRecordWatermarks().invalidate(deviceAddress);
+        watermark = -1;
+        highestSequence = -1;
+        filtered = false;
+        requestNumberOfRecords();
+    }
 
-        if (sendingOk) {
-            try {
-                BluetoothGattDescriptor temp = descriptorQueue.poll(10, TimeUnit.SECONDS);
-                result = temp != null;
-            } catch (InterruptedException ex) {
-                Log.e(TAG, "Could not enable notification for glucose measurement (interrupted).");
-            }
-        } else {
-            Log.e(TAG, "Could not enable notification for glucose measurement (returned false).");
+    /**
+     * Passes a joined measurement on. Records of a download are collected into batches, known
+     * records are dropped. Live measurements raise the watermark as well, so that they are not
+     * downloaded again.
+     */
+    private void deliverMeasurement(GlucoseMeasurement measurement) {
+        int sequence = measurement.getSequenceNumber();
+        if (!downloading) {
+            collectorService.receiveMeasurement(measurement, deviceAddress);
+            receiveLiveSequence(sequence);
+            return;
+        }
+        if (sequence >= watermark && !watermarkFound) {
+            watermarkFound = true;
+            // the announced number includes the last known record, if the device still holds it
+            if (filtered && sequence == watermark && expectedRecords > 0) expectedRecords--;
+        }
+        if (sequence <= watermark) return;
+
+        highestSequence = Math.max(highestSequence, sequence);
+        batch.add(measurement);
+        receivedRecords++;
+        if (batch.size() >= MAX_BATCH_SIZE) flushBatch();
+        if (expectedRecords > 0 && receivedRecords % PROGRESS_STEP == 0) {
+            publishActionStatus("Records received: " + receivedRecords + " of "
+                    + expectedRecords);
         }
-        return result;
     }
 
-    private boolean enableRACPIndication() {
-        boolean sendingOk = bleService.enableIndication(
-                UUID_GLUCOSE_SERVICE, UUID_RECORD_ACCESS_CONTROL_POINT, deviceAddress);
-        boolean result = false;
+    /**
+     * Raises the watermark to the sequence number of a live measurement. A lower number than the
+     * watermark means, that the numbering of the device has started again.
+     */
+    private void receiveLiveSequence(int sequence) {
+        RecordWatermarkStore watermarks = collectorService.getRecordWatermarks();
+        if (sequence < watermarks.getHighestSequence(deviceAddress)) {
+            Log.i(TAG, "Sequence numbers of " + deviceAddress + " started again at " + sequence);
+            watermarks.invalidate(deviceAddress);
+        }
+        watermarks.update(deviceAddress, sequence);
+    }
+
+    private void flushBatch() {
+        collectorService.receiveMeasurements(batch, deviceAddress);
+        batch.clear();
+        collectorService.getRecordWatermarks().update(deviceAddress, highestSequence);
+    }
+
+    /**
+     * Passes on the rest of the download and raises the watermark.
+     */
+    private void finishDownload() {
+        if (!downloading) return;
+        downloading = false;
+        flushBatch();
+        if (receivedRecords > 0) {
+            publishActionStatus("Records received: " + receivedRecords);
+        }
+        expectedRecords = -1;
+        receivedRecords = 0;
+    }
 
-        if (sendingOk) {
-            try {
-                BluetoothGattDescriptor temp = descriptorQueue.poll(10, TimeUnit.SECONDS);
-                result = temp != null;
-            } catch (InterruptedException ex) {
-                Log.e(TAG, "Could not enable notification for RACP (interrupted).");
+    /**
+     * Interprets data received from the health device and makes it human-readable.
+     */
+    protected void dataResultHook(UUID uuid, byte[] value) {
+        this.dataReceived = true;
+        long now = System.currentTimeMillis();
+        if (profile.getMeasurementUuid().equals(uuid)) {
+            GlucoseMeasurement measurement = (GlucoseMeasurement) decodeMeasurement(value, now);
+            if (measurement != null) {
+                contextJoin.offerMeasurement(measurement, now);
+            }
+        } else if (UUID_GLUCOSE_MEASUREMENT_CONTEXT.equals(uuid)) {
+            if (!GlucoseContextFrameDecoder.isValid(value, 0, value.length)) {
+                Log.w(TAG, "Dropping truncated glucose context from " + deviceAddress);
+                return;
             }
-        } else {
-            Log.e(TAG, "Could not enable notification for RACP (returned false).");
+            contextJoin.offerContext(new GlucoseContext(value), now);
+        } else if (UUID_RECORD_ACCESS_CONTROL_POINT.equals(uuid)) {
+            receiveRacpResponse(value);
         }
-        return result;
     }
-}
 
+    @Override
+    protected void descriptorWriteResultHook(UUID characteristicUuid) {
+
+    }
+}
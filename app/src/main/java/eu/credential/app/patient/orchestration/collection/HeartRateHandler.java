@@ -0,0 +1,102 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.util.Log;
+
+import eu.credential.app.patient.integration.bluetooth.GattClient;
+import eu.credential.app.patient.integration.bluetooth.NotificationRingBuffer;
+import eu.credential.app.patient.integration.codec.HeartRateFrameDecoder;
+import eu.credential.app.patient.integration.model.SampleRingBuffer;
+
+import java.util.UUID;
+
+/**
+ * Handler for continuous heart rate sensors. Unlike glucose meters and scales, these send a
+ * notification every second as long as they are connected, so the values are not turned into
+ * measurements, but streamed into the sample buffers of the device.
+ */
+public class HeartRateHandler extends CollectionHandler {
+    private final static String TAG = HeartRateHandler.class.getSimpleName();
+
+    // names of the sample buffers
+    public final static String CHANNEL_HEART_RATE = "heart_rate";
+    public final static String CHANNEL_RR_INTERVAL = "rr_interval";
+
+    // beats per minute
+    private final SampleRingBuffer heartRates;
+    // RR-intervals in milliseconds
+    private final SampleRingBuffer rrIntervals;
+
+    public HeartRateHandler(DeviceProfile profile, String deviceAddress, GattClient gattClient,
+                            CollectorService collectorService) {
+        super(profile, deviceAddress, gattClient, collectorService);
+        this.heartRates = collectorService.getSampleBuffer(deviceAddress, CHANNEL_HEART_RATE);
+        this.rrIntervals = collectorService.getSampleBuffer(deviceAddress, CHANNEL_RR_INTERVAL);
+    }
+
+    /**
+     * Every notification carries the RR-intervals since the previous one, a coalesced
+     * notification would leave gaps in the intervals.
+     */
+    @Override
+    protected NotificationRingBuffer.OverflowPolicy getOverflowPolicy() {
+        return NotificationRingBuffer.OverflowPolicy.GROW;
+    }
+
+    protected void connectedResultHook() {
+        // Connected Result
+    }
+
+    @Override
+    protected void descriptorWriteResultHook(UUID characteristicUuid) {
+
+    }
+
+    protected void disconnectedResultHook() {
+        //
+    }
+
+    /**
+     * Enables the notification for heart rate data.
+     */
+    protected void serviceDiscoveryResultHook() {
+        succeeded(gattClient.enableNotification(
+                profile.getServiceUuid(), profile.getMeasurementUuid(), deviceAddress),
+                "enable notification for heart rate")
+                .thenAccept(enabled -> notificationEnabled = enabled);
+    }
+
+    /**
+     * Writes the heart rate and the RR-intervals of a notification into the sample buffers.
+     */
+    protected void dataResultHook(UUID uuid, byte[] value) {
+        this.dataReceived = true;
+        if (!profile.getMeasurementUuid().equals(uuid)) return;
+
+        if (!profile.isValid(value)) {
+            Log.w(TAG, "Dropping truncated heart rate measurement from " + deviceAddress);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (HeartRateFrameDecoder.hasSensorContact(value, 0)) {
+            heartRates.add(now, HeartRateFrameDecoder.heartRate(value, 0));
+        }
+
+        // the intervals end with the last beat before the notification, so their times are
+        // reconstructed backwards from now
+        int count = HeartRateFrameDecoder.rrCount(value, 0, value.length);
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += HeartRateFrameDecoder.rrInterval(value, 0, i);
+        }
+        long end = now - total * 1000 / HeartRateFrameDecoder.RR_INTERVALS_PER_SECOND;
+        for (int i = 0; i < count; i++) {
+            int interval = HeartRateFrameDecoder.rrInterval(value, 0, i);
+            float millis = interval * 1000f / HeartRateFrameDecoder.RR_INTERVALS_PER_SECOND;
+            end += Math.round(millis);
+            rrIntervals.add(end, millis);
+        }
+
+        collectorService.receiveSamples(deviceAddress);
+    }
+}
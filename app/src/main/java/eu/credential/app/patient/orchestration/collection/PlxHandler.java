@@ -0,0 +1,176 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import eu.credential.app.patient.integration.bluetooth.GattClient;
+import eu.credential.app.patient.integration.codec.PlxContinuousFrameDecoder;
+import eu.credential.app.patient.integration.model.Measurement;
+import eu.credential.app.patient.integration.model.PlxMeasurement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Handler for pulse oximeters. Stored spot-checks are requested through the Record Access
+ * Control Point like glucose records, while the continuous measurement arrives several times a
+ * second. Both are handed to the collector in batches, a download is passed on at the latest
+ * with the response of the control point.
+ */
+public class PlxHandler extends CollectionHandler {
+    private final static String TAG = PlxHandler.class.getSimpleName();
+
+    // gatt Attributes which will be contacted, the spot-check measurement and the service are
+    // defined by the profile
+    private final static UUID UUID_PLX_CONTINUOUS_MEASUREMENT =
+            UUID.fromString("00002a5f-0000-1000-8000-00805f9b34fb");
+    private final static UUID UUID_RECORD_ACCESS_CONTROL_POINT =
+            UUID.fromString("00002a52-0000-1000-8000-00805f9b34fb");
+
+    // measurements are passed on, if this many are collected or the oldest one is older
+    private final static int BATCH_SIZE = 32;
+    private final static long BATCH_DELAY = 1000;
+
+    // measurements not yet passed to the collector
+    private final List<Measurement> batch;
+    private long batchStart;
+    // counts the batches passed on, so a late timeout does not cut the next batch short
+    private int batchNumber;
+    // passes the batch on after the delay, if it has not filled up until then
+    private final Handler timer;
+    private Runnable flushTimeout;
+
+    public PlxHandler(DeviceProfile profile, String deviceAddress, GattClient gattClient,
+                      CollectorService collectorService) {
+        super(profile, deviceAddress, gattClient, collectorService);
+        this.batch = new ArrayList<>(BATCH_SIZE);
+        this.timer = new Handler(Looper.getMainLooper());
+    }
+
+    protected void connectedResultHook() {
+        // Connected Result
+    }
+
+    @Override
+    protected void descriptorWriteResultHook(UUID characteristicUuid) {
+
+    }
+
+    protected void disconnectedResultHook() {
+        flushBatch();
+    }
+
+    /**
+     * Enables the spot-check and continuous measurements, which the device supports, and
+     * requests the stored spot-checks.
+     */
+    protected void serviceDiscoveryResultHook() {
+        UUID service = profile.getServiceUuid();
+        UUID spotCheck = profile.getMeasurementUuid();
+        UUID continuous = UUID_PLX_CONTINUOUS_MEASUREMENT;
+        UUID racp = UUID_RECORD_ACCESS_CONTROL_POINT;
+
+        if (gattClient.supportsCharacteristic(deviceAddress, service, continuous)) {
+            succeeded(gattClient.enableNotification(service, continuous, deviceAddress),
+                    "enable continuous measurement")
+                    .thenAccept(enabled -> notificationEnabled = enabled);
+        }
+        if (gattClient.supportsCharacteristic(deviceAddress, service, spotCheck)
+                && gattClient.supportsCharacteristic(deviceAddress, service, racp)) {
+            CompletableFuture<Boolean> spotCheckEnabled = succeeded(
+                    gattClient.enableIndication(service, spotCheck, deviceAddress),
+                    "enable spot-check");
+            CompletableFuture<Boolean> racpEnabled = succeeded(
+                    gattClient.enableIndication(service, racp, deviceAddress), "enable RACP");
+            spotCheckEnabled.thenAcceptBoth(racpEnabled, (spotCheckOk, racpOk) -> {
+                if (spotCheckOk && racpOk) requestRecordReceive();
+            });
+        }
+    }
+
+    /**
+     * Contacts the Record Access Control Point of the device in order to get the stored
+     * spot-check measurements.
+     */
+    private void requestRecordReceive() {
+        beginBulkTransfer().thenCompose(ignored -> succeeded(gattClient.requestAllRecords(
+                profile.getServiceUuid(), UUID_RECORD_ACCESS_CONTROL_POINT, deviceAddress),
+                "request records")).thenAccept(sent -> {
+                    dataRequested = sent;
+                    if (!sent) endBulkTransfer();
+                });
+    }
+
+    @Override
+    protected boolean isStreamed(UUID characteristicUuid) {
+        return UUID_PLX_CONTINUOUS_MEASUREMENT.equals(characteristicUuid);
+    }
+
+    /**
+     * Collects continuous samples and spot-checks into batches.
+     */
+    protected void dataResultHook(UUID uuid, byte[] value) {
+        this.dataReceived = true;
+        long now = System.currentTimeMillis();
+        if (UUID_PLX_CONTINUOUS_MEASUREMENT.equals(uuid)) {
+            if (!PlxContinuousFrameDecoder.isValid(value, 0, value.length)) {
+                Log.w(TAG, "Dropping truncated continuous measurement from " + deviceAddress);
+                return;
+            }
+            addToBatch(PlxMeasurement.fromContinuous(value, now), now);
+        } else if (profile.getMeasurementUuid().equals(uuid)) {
+            Measurement measurement = decodeMeasurement(value, now);
+            if (measurement != null) addToBatch(measurement, now);
+        } else if (UUID_RECORD_ACCESS_CONTROL_POINT.equals(uuid)) {
+            // the response ends the transfer of the stored spot-checks
+            flushBatch();
+            endBulkTransfer();
+        }
+    }
+
+    private void addToBatch(Measurement measurement, long now) {
+        if (batch.isEmpty()) {
+            batchStart = now;
+            int number = batchNumber;
+            flushTimeout = () -> flushAfterDelay(number);
+            timer.postDelayed(flushTimeout, BATCH_DELAY);
+        }
+        batch.add(measurement);
+        if (batch.size() >= BATCH_SIZE || now - batchStart >= BATCH_DELAY) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Runs on the main thread, when the delay of a batch has passed, and passes the batch on
+     * the executor of the handler.
+     */
+    private void flushAfterDelay(int number) {
+        try {
+            executor.execute(() -> {
+                // the batch may have been passed on meanwhile
+                if (number == batchNumber) flushBatch();
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(TAG, "Batch of " + deviceAddress + " not passed on, collector shut down.");
+        }
+    }
+
+    /**
+     * Hands the collected measurements over to the collector.
+     */
+    private void flushBatch() {
+        if (flushTimeout != null) {
+            timer.removeCallbacks(flushTimeout);
+            flushTimeout = null;
+        }
+        if (batch.isEmpty()) return;
+        collectorService.receiveMeasurements(batch, deviceAddress);
+        batch.clear();
+        batchNumber++;
+    }
+}
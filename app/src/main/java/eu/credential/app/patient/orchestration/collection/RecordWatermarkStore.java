@@ -0,0 +1,63 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the highest sequence number of the stored records received from every device, so
+ * that later connections only request the newer records through the Record Access Control
+ * Point. The watermarks survive restarts, they are kept in shared preferences keyed by the
+ * device address.
+ */
+public class RecordWatermarkStore {
+
+    // name of the shared preferences file holding the watermarks
+    public final static String PREFERENCES_NAME = "record_watermarks";
+
+    // sequence numbers are 16 bit, a device has to wrap around after this one
+    public final static int MAX_SEQUENCE_NUMBER = 0xFFFF;
+
+    private final SharedPreferences preferences;
+
+    // watermarks read or written so far
+    private final Map<String, Integer> watermarks;
+
+    public RecordWatermarkStore(SharedPreferences preferences) {
+        this.preferences = preferences;
+        this.watermarks = new HashMap<>();
+    }
+
+    /**
+     * Returns the highest sequence number received from the device.
+     *
+     * @return -1, if no record has been received yet
+     */
+    public synchronized int getHighestSequence(String deviceAddress) {
+        Integer watermark = watermarks.get(deviceAddress);
+        if (watermark == null) {
+            watermark = preferences.getInt(deviceAddress, -1);
+            watermarks.put(deviceAddress, watermark);
+        }
+        return watermark;
+    }
+
+    /**
+     * Raises the watermark of the device, lower sequence numbers are ignored.
+     */
+    public synchronized void update(String deviceAddress, int sequenceNumber) {
+        if (sequenceNumber <= getHighestSequence(deviceAddress)) return;
+        watermarks.put(deviceAddress, sequenceNumber);
+        preferences.edit().putInt(deviceAddress, sequenceNumber).apply();
+    }
+
+    /**
+     * Forgets the watermark, so that all records are requested again, e.g. after the memory of
+     * the device has been cleared.
+     */
+    public synchronized void invalidate(String deviceAddress) {
+        watermarks.remove(deviceAddress);
+        preferences.edit().remove(deviceAddress).apply();
+    }
+}
@@ -0,0 +1,90 @@
+package eu.credential.app.patient.orchestration.collection;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs its tasks one after the other and in order on a shared executor, without a thread of its
+ * own. Every collection handler has one, so the state of a handler is only touched by one task
+ * at a time and needs no locks, while the handlers of different devices run in parallel on the
+ * shared threads. A task happens-before the next one, even if they run on different threads.
+ */
+public class SerialExecutor implements Executor {
+    private final static String TAG = SerialExecutor.class.getSimpleName();
+
+    // tasks run in one turn, before the thread is handed to the other devices
+    private final static int MAX_TASKS_PER_TURN = 32;
+
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks;
+    // true while a turn is queued at or running on the shared executor
+    private boolean scheduled;
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+        this.tasks = new ArrayDeque<>();
+        this.scheduled = false;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the shared executor has been shut down
+     */
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.add(task);
+        if (!scheduled) schedule();
+    }
+
+    private void schedule() {
+        scheduled = true;
+        try {
+            executor.execute(this::runTurn);
+        } catch (RejectedExecutionException ex) {
+            // nothing will run anymore
+            tasks.clear();
+            scheduled = false;
+            throw ex;
+        }
+    }
+
+    private void runTurn() {
+        for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                // a failing task must not stall the following ones
+                Log.e(TAG, "Task failed.", ex);
+            }
+        }
+        // more tasks are waiting, they are queued behind the other devices
+        synchronized (this) {
+            if (tasks.isEmpty()) {
+                scheduled = false;
+            } else {
+                try {
+                    schedule();
+                } catch (RejectedExecutionException ex) {
+                    // shut down meanwhile
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting for their turn.
+     */
+    public synchronized int getQueueDepth() {
+        return tasks.size();
+    }
+}
@@ -1,10 +1,8 @@
 package eu.credential.app.patient.orchestration.collection;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.content.Intent;
-
-import eu.credential.app.patient.integration.bluetooth.BleService;
-import eu.credential.app.patient.integration.model.WeightMeasurement;
+import eu.credential.app.patient.integration.bluetooth.GattClient;
+import eu.credential.app.patient.integration.bluetooth.ReconnectPolicy;
+import eu.credential.app.patient.integration.model.Measurement;
 
 import java.util.UUID;
 
@@ -15,60 +13,58 @@ import java.util.UUID;
 public class WeightHandler extends CollectionHandler {
     private final static String TAG = WeightHandler.class.getSimpleName();
 
-    // gatt Attributes which will be contacted
-    private final static UUID UUID_WEIGHT_MEASUREMENT =
-            UUID.fromString("00002a9d-0000-1000-8000-00805f9b34fb");
-    // only for reading features
-    private final static UUID UUID_WEIGHT_SCALE_FEATURE =
-            UUID.fromString("00002a9e-0000-1000-8000-00805f9b34fb");
-    // gatt ServiceID
-    private final static UUID UUID_WEIGHT_SCALE_SERVICE =
-            UUID.fromString("0000181d-0000-1000-8000-00805f9b34fb");
+    public WeightHandler(DeviceProfile profile, String deviceAddress, GattClient gattClient,
+                         CollectorService collectorService) {
+        super(profile, deviceAddress, gattClient, collectorService);
+    }
 
-    public WeightHandler(String deviceAddress, BleService bleService, CollectorService collectorService) {
-        super(deviceAddress, bleService, collectorService);
+    /**
+     * Scales only advertise for a while after a measurement, they are waited for in the
+     * background.
+     */
+    @Override
+    protected ReconnectPolicy getReconnectPolicy() {
+        return ReconnectPolicy.OCCASIONAL;
     }
 
-    protected void connectedResultHook(Intent intent) {
+    protected void connectedResultHook() {
         // Connected Result
     }
 
     @Override
-    protected void descriptorWriteResultHook(Intent intent) {
+    protected void descriptorWriteResultHook(UUID characteristicUuid) {
 
     }
 
-    protected void disconnectedResultHook(Intent intent) {
+    protected void disconnectedResultHook() {
         //
     }
 
     /**
      * Enables the notification for glucose data and requests a record receive.
-     *
-     * @param intent
      */
-    protected void serviceDiscoveryResultHook(Intent intent) {
+    protected void serviceDiscoveryResultHook() {
         enableWeightIndication();
     }
 
     /**
      * Interprets data received from the health device and makes it human-readable.
-     *
-     * @param intent
      */
-    protected void dataResultHook(Intent intent) {
+    protected void dataResultHook(UUID uuid, byte[] value) {
         this.dataReceived = true;
-        BluetoothGattCharacteristic characteristic = recreateCharacteristic(intent);
-        String collectedData = "";
-        if (UUID_WEIGHT_MEASUREMENT.equals(characteristic.getUuid())) {
-            WeightMeasurement measurement = new WeightMeasurement(characteristic);
-            collectorService.receiveMeasurement(measurement, deviceAddress);
+        if (profile.getMeasurementUuid().equals(uuid)) {
+            Measurement measurement = decodeMeasurement(value, System.currentTimeMillis());
+            if (measurement != null) {
+                collectorService.receiveMeasurement(measurement, deviceAddress);
+            }
         }
     }
 
     private void enableWeightIndication() {
-        bleService.enableIndication(UUID_WEIGHT_SCALE_SERVICE, UUID_WEIGHT_MEASUREMENT, deviceAddress);
-        notificationEnabled = true;
+        succeeded(gattClient.enableIndication(
+                profile.getServiceUuid(), profile.getMeasurementUuid(), deviceAddress),
+                "enable indication for weight")
+                .thenAccept(enabled -> notificationEnabled = enabled);
     }
 }
 
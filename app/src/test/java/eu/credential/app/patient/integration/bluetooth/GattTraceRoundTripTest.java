@@ -0,0 +1,264 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks, that the GattTraceReader reads back what the GattTraceRecorder has written, and that
+ * it rejects corrupt traces with an IOException.
+ */
+public class GattTraceRoundTripTest {
+
+    private final static String METER = "00:11:22:33:44:55";
+    private final static String SCALE = "66:77:88:99:AA:BB";
+    private final static UUID GLUCOSE = UUID.fromString("00002a18-0000-1000-8000-00805f9b34fb");
+    private final static UUID CUSTOM = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+    // base UUID layout, but with the upper 16 bits set, does not fit into the short form
+    private final static UUID LONG_BASE =
+            UUID.fromString("12342a18-0000-1000-8000-00805f9b34fb");
+
+    private static List<GattTraceEvent> roundTrip(ByteArrayOutputStream out) throws IOException {
+        try (GattTraceReader reader =
+                     new GattTraceReader(new ByteArrayInputStream(out.toByteArray()))) {
+            return reader.readAll();
+        }
+    }
+
+    /**
+     * Starts a hand written trace with the header.
+     */
+    private static DataOutputStream header(ByteArrayOutputStream bytes) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(GattTraceRecorder.MAGIC);
+        out.writeByte(GattTraceRecorder.VERSION);
+        return out;
+    }
+
+    private static void assertEvent(GattTraceEvent event, GattTraceEvent.Type type,
+                                    String deviceAddress, UUID uuid, byte[] value) {
+        assertEquals(type, event.getType());
+        assertEquals(deviceAddress, event.getDeviceAddress());
+        assertEquals(uuid, event.getCharacteristicUuid());
+        assertArrayEquals(value, event.getValue());
+    }
+
+    private static void assertCorrupt(byte[] trace) {
+        try (GattTraceReader reader = new GattTraceReader(new ByteArrayInputStream(trace))) {
+            reader.readAll();
+            fail("Corrupt trace accepted");
+        } catch (IOException expected) {
+            // rejected
+        }
+    }
+
+    @Test
+    public void readsBackAllEventTypes() throws IOException {
+        byte[] notification = {0x1F, 0x01, 0x00, (byte) 0xE4, 0x07};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTraceRecorder recorder = new GattTraceRecorder(out);
+        recorder.onConnected(METER);
+        recorder.onServicesDiscovered(METER);
+        recorder.onDescriptorWritten(METER, GLUCOSE, new byte[]{1, 0});
+        recorder.onCharacteristicChanged(METER, GLUCOSE, notification);
+        recorder.onCharacteristicRead(METER, CUSTOM, new byte[]{42});
+        recorder.onCharacteristicWritten(METER, CUSTOM, new byte[]{1, 1});
+        recorder.onDisconnected(METER);
+        recorder.close();
+        assertEquals(7, recorder.getEventCount());
+
+        List<GattTraceEvent> events = roundTrip(out);
+        assertEquals(7, events.size());
+        assertEvent(events.get(0), GattTraceEvent.Type.CONNECTED, METER, null, null);
+        assertEvent(events.get(1), GattTraceEvent.Type.SERVICES_DISCOVERED, METER, null, null);
+        assertEvent(events.get(2), GattTraceEvent.Type.DESCRIPTOR_WRITTEN, METER, GLUCOSE,
+                new byte[]{1, 0});
+        assertEvent(events.get(3), GattTraceEvent.Type.CHARACTERISTIC_CHANGED, METER, GLUCOSE,
+                notification);
+        assertEvent(events.get(4), GattTraceEvent.Type.CHARACTERISTIC_READ, METER, CUSTOM,
+                new byte[]{42});
+        assertEvent(events.get(5), GattTraceEvent.Type.CHARACTERISTIC_WRITTEN, METER, CUSTOM,
+                new byte[]{1, 1});
+        assertEvent(events.get(6), GattTraceEvent.Type.DISCONNECTED, METER, null, null);
+        for (int i = 1; i < events.size(); i++) {
+            assertTrue(events.get(i).getTimeMicros() >= events.get(i - 1).getTimeMicros());
+        }
+    }
+
+    @Test
+    public void keepsShortAndFullUuids() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTraceRecorder recorder = new GattTraceRecorder(out);
+        recorder.onCharacteristicChanged(METER, GLUCOSE, new byte[]{1});
+        recorder.onCharacteristicChanged(METER, CUSTOM, new byte[]{2});
+        recorder.onCharacteristicChanged(METER, LONG_BASE, new byte[]{3});
+        recorder.close();
+
+        List<GattTraceEvent> events = roundTrip(out);
+        assertEquals(GLUCOSE, events.get(0).getCharacteristicUuid());
+        assertEquals(CUSTOM, events.get(1).getCharacteristicUuid());
+        assertEquals(LONG_BASE, events.get(2).getCharacteristicUuid());
+    }
+
+    @Test
+    public void storesShortUuidsInTwoBytes() throws IOException {
+        ByteArrayOutputStream shortTrace = new ByteArrayOutputStream();
+        DataOutputStream out = header(shortTrace);
+        out.writeByte(GattTraceEvent.Type.CHARACTERISTIC_CHANGED.ordinal());
+        GattTraceRecorder.writeVarLong(out, 0);
+        GattTraceRecorder.writeVarLong(out, 0);
+        out.writeUTF(METER);
+        out.writeByte(GattTraceRecorder.UUID_SHORT);
+        out.writeShort(0x2a18);
+        GattTraceRecorder.writeVarLong(out, 0);
+
+        List<GattTraceEvent> events = roundTrip(shortTrace);
+        assertEquals(GLUCOSE, events.get(0).getCharacteristicUuid());
+    }
+
+    @Test
+    public void writesEveryAddressOnce() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTraceRecorder recorder = new GattTraceRecorder(out);
+        for (int i = 0; i < 10; i++) {
+            recorder.onCharacteristicChanged(METER, GLUCOSE, new byte[]{(byte) i});
+            recorder.onCharacteristicChanged(SCALE, CUSTOM, new byte[]{(byte) i});
+        }
+        recorder.close();
+
+        String trace = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        assertEquals(trace.indexOf(METER), trace.lastIndexOf(METER));
+        assertEquals(trace.indexOf(SCALE), trace.lastIndexOf(SCALE));
+
+        List<GattTraceEvent> events = roundTrip(out);
+        assertEquals(20, events.size());
+        for (int i = 0; i < 20; i++) {
+            GattTraceEvent event = events.get(i);
+            assertEquals(i % 2 == 0 ? METER : SCALE, event.getDeviceAddress());
+            assertEquals(i / 2, event.getValue()[0]);
+        }
+    }
+
+    @Test
+    public void keepsEmptyAndLongValues() throws IOException {
+        byte[] longValue = new byte[NotificationRingBuffer.MAX_VALUE_LENGTH];
+        for (int i = 0; i < longValue.length; i++) {
+            longValue[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTraceRecorder recorder = new GattTraceRecorder(out);
+        recorder.onCharacteristicChanged(METER, GLUCOSE, new byte[0]);
+        recorder.onCharacteristicRead(METER, GLUCOSE, null);
+        recorder.onCharacteristicChanged(METER, GLUCOSE, longValue);
+        recorder.close();
+
+        List<GattTraceEvent> events = roundTrip(out);
+        assertArrayEquals(new byte[0], events.get(0).getValue());
+        // a missing value is stored as empty one
+        assertArrayEquals(new byte[0], events.get(1).getValue());
+        assertArrayEquals(longValue, events.get(2).getValue());
+    }
+
+    @Test
+    public void addsUpVarintTimeDeltas() throws IOException {
+        long[] deltas = {0, 1, 127, 128, 16383, 16384, 1L << 35, Long.MAX_VALUE >> 8};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = header(bytes);
+        for (int i = 0; i < deltas.length; i++) {
+            out.writeByte(GattTraceEvent.Type.CONNECTED.ordinal());
+            GattTraceRecorder.writeVarLong(out, deltas[i]);
+            GattTraceRecorder.writeVarLong(out, 0);
+            if (i == 0) out.writeUTF(METER);
+        }
+
+        List<GattTraceEvent> events = roundTrip(bytes);
+        assertEquals(deltas.length, events.size());
+        long time = 0;
+        for (int i = 0; i < deltas.length; i++) {
+            time += deltas[i];
+            assertEquals(time, events.get(i).getTimeMicros());
+        }
+    }
+
+    @Test
+    public void returnsNullAtTheEnd() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GattTraceRecorder(out).close();
+        try (GattTraceReader reader =
+                     new GattTraceReader(new ByteArrayInputStream(out.toByteArray()))) {
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void rejectsNegativeDeviceIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = header(bytes);
+        out.writeByte(GattTraceEvent.Type.CONNECTED.ordinal());
+        GattTraceRecorder.writeVarLong(out, 0);
+        GattTraceRecorder.writeVarLong(out, -1);
+        assertCorrupt(bytes.toByteArray());
+    }
+
+    @Test
+    public void rejectsUnknownDeviceIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = header(bytes);
+        out.writeByte(GattTraceEvent.Type.CONNECTED.ordinal());
+        GattTraceRecorder.writeVarLong(out, 0);
+        GattTraceRecorder.writeVarLong(out, 1);
+        assertCorrupt(bytes.toByteArray());
+    }
+
+    @Test
+    public void rejectsNegativeValueLength() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = header(bytes);
+        out.writeByte(GattTraceEvent.Type.CHARACTERISTIC_CHANGED.ordinal());
+        GattTraceRecorder.writeVarLong(out, 0);
+        GattTraceRecorder.writeVarLong(out, 0);
+        out.writeUTF(METER);
+        out.writeByte(GattTraceRecorder.UUID_SHORT);
+        out.writeShort(0x2a18);
+        GattTraceRecorder.writeVarLong(out, -1);
+        assertCorrupt(bytes.toByteArray());
+    }
+
+    @Test
+    public void rejectsUnknownEventType() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        header(bytes).writeByte(GattTraceEvent.Type.values().length);
+        assertCorrupt(bytes.toByteArray());
+    }
+
+    @Test
+    public void rejectsTruncatedEvent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTraceRecorder recorder = new GattTraceRecorder(out);
+        recorder.onCharacteristicChanged(METER, CUSTOM, new byte[]{1, 2, 3, 4});
+        recorder.close();
+        byte[] trace = out.toByteArray();
+        for (int length = 6; length < trace.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(trace, 0, truncated, 0, length);
+            assertCorrupt(truncated);
+        }
+    }
+
+    @Test
+    public void rejectsForeignStream() {
+        assertCorrupt("not a trace".getBytes(StandardCharsets.US_ASCII));
+    }
+}
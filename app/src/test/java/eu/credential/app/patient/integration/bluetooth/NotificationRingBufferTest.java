@@ -0,0 +1,132 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the overflow policies and the drain protocol of the notification buffer.
+ */
+public class NotificationRingBufferTest {
+
+    private final static UUID FIRST = UUID.fromString("00002a18-0000-1000-8000-00805f9b34fb");
+    private final static UUID SECOND = UUID.fromString("00002a34-0000-1000-8000-00805f9b34fb");
+
+    private static List<Integer> drainFirstBytes(NotificationRingBuffer buffer) {
+        List<Integer> drained = new ArrayList<>();
+        buffer.drain((uuid, value) -> drained.add((int) value[0]));
+        return drained;
+    }
+
+    @Test
+    public void startsOneDrainUntilEmpty() {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(4, NotificationRingBuffer.OverflowPolicy.DROP_OLDEST);
+
+        assertTrue(buffer.offer(FIRST, new byte[]{1}));
+        assertFalse(buffer.offer(FIRST, new byte[]{2}));
+        assertEquals(2, drainFirstBytes(buffer).size());
+        assertTrue(buffer.offer(FIRST, new byte[]{3}));
+    }
+
+    @Test
+    public void restartsDrainAfterFailingConsumer() {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(4, NotificationRingBuffer.OverflowPolicy.DROP_OLDEST);
+        assertTrue(buffer.offer(FIRST, new byte[]{1}));
+        buffer.offer(FIRST, new byte[]{2});
+
+        try {
+            buffer.drain((uuid, value) -> {
+                throw new IllegalStateException("listener failed");
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+            // the first notification is lost with the failing call
+        }
+
+        assertTrue(buffer.offer(FIRST, new byte[]{3}));
+        assertEquals(2, (int) drainFirstBytes(buffer).get(0));
+        assertEquals(0, buffer.getSize());
+    }
+
+    @Test
+    public void dropsOldest() {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(3, NotificationRingBuffer.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) buffer.offer(FIRST, new byte[]{(byte) i});
+
+        assertEquals(2, buffer.getDrops());
+        assertEquals(Arrays.asList(2, 3, 4), drainFirstBytes(buffer));
+    }
+
+    @Test
+    public void coalescesSameCharacteristic() {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(2, NotificationRingBuffer.OverflowPolicy.COALESCE);
+        buffer.offer(FIRST, new byte[]{1});
+        buffer.offer(SECOND, new byte[]{2});
+        buffer.offer(FIRST, new byte[]{3, 4});
+
+        assertEquals(1, buffer.getCoalesced());
+        assertEquals(0, buffer.getDrops());
+        List<byte[]> drained = new ArrayList<>();
+        buffer.drain((uuid, value) -> drained.add(value));
+        assertArrayEquals(new byte[]{3, 4}, drained.get(0));
+        assertArrayEquals(new byte[]{2}, drained.get(1));
+    }
+
+    @Test
+    public void growsWithoutLoss() {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(NotificationRingBuffer.OverflowPolicy.GROW);
+        // wrap the ring before it grows
+        buffer.offer(FIRST, new byte[]{0});
+        drainFirstBytes(buffer);
+        for (int i = 0; i < 100; i++) buffer.offer(FIRST, new byte[]{(byte) i});
+
+        assertEquals(0, buffer.getDrops());
+        assertEquals(128, buffer.getCapacity());
+        List<Integer> drained = drainFirstBytes(buffer);
+        assertEquals(100, drained.size());
+        for (int i = 0; i < 100; i++) assertEquals(i, (int) drained.get(i));
+    }
+
+    @Test
+    public void dropsOldestBeyondMaximumCapacity() {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(NotificationRingBuffer.OverflowPolicy.GROW);
+        int count = NotificationRingBuffer.MAX_CAPACITY + 10;
+        for (int i = 0; i < count; i++) buffer.offer(FIRST, new byte[]{(byte) i});
+
+        assertEquals(NotificationRingBuffer.MAX_CAPACITY, buffer.getCapacity());
+        assertEquals(10, buffer.getDrops());
+    }
+
+    @Test
+    public void keepsValuesOfDifferentLengths() {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(1, NotificationRingBuffer.OverflowPolicy.DROP_OLDEST);
+        List<byte[]> drained = new ArrayList<>();
+
+        buffer.offer(FIRST, new byte[]{1, 2, 3});
+        buffer.drain((uuid, value) -> drained.add(value));
+        buffer.offer(FIRST, new byte[]{4});
+        buffer.drain((uuid, value) -> drained.add(value));
+        buffer.offer(FIRST, new byte[600]);
+        buffer.drain((uuid, value) -> drained.add(value));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, drained.get(0));
+        assertArrayEquals(new byte[]{4}, drained.get(1));
+        assertEquals(NotificationRingBuffer.MAX_VALUE_LENGTH, drained.get(2).length);
+    }
+}
@@ -0,0 +1,246 @@
+package eu.credential.app.patient.integration.bluetooth;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Plays recorded traces at speed 0 and checks what the listeners and the operations get.
+ */
+public class ReplayGattClientTest {
+
+    private final static String METER = "00:11:22:33:44:55";
+    private final static String SCALE = "66:77:88:99:AA:BB";
+    private final static UUID GLUCOSE = UUID.fromString("00002a18-0000-1000-8000-00805f9b34fb");
+    private final static UUID FEATURE = UUID.fromString("00002a51-0000-1000-8000-00805f9b34fb");
+    private final static UUID RACP = UUID.fromString("00002a52-0000-1000-8000-00805f9b34fb");
+    private final static long TIMEOUT = 5;
+
+    /**
+     * Keeps the received events in the form of the trace.
+     */
+    private static class EventLog implements GattEventListener {
+        final List<GattTraceEvent> events = new CopyOnWriteArrayList<>();
+
+        private void add(GattTraceEvent.Type type, String deviceAddress, UUID uuid,
+                         byte[] value) {
+            events.add(new GattTraceEvent(type, 0, deviceAddress, uuid, value));
+        }
+
+        @Override
+        public void onConnected(String deviceAddress) {
+            add(GattTraceEvent.Type.CONNECTED, deviceAddress, null, null);
+        }
+
+        @Override
+        public void onDisconnected(String deviceAddress) {
+            add(GattTraceEvent.Type.DISCONNECTED, deviceAddress, null, null);
+        }
+
+        @Override
+        public void onServicesDiscovered(String deviceAddress) {
+            add(GattTraceEvent.Type.SERVICES_DISCOVERED, deviceAddress, null, null);
+        }
+
+        @Override
+        public void onCharacteristicChanged(String deviceAddress, UUID characteristicUuid,
+                                            byte[] value) {
+            add(GattTraceEvent.Type.CHARACTERISTIC_CHANGED, deviceAddress, characteristicUuid,
+                    value);
+        }
+
+        @Override
+        public void onCharacteristicRead(String deviceAddress, UUID characteristicUuid,
+                                         byte[] value) {
+            add(GattTraceEvent.Type.CHARACTERISTIC_READ, deviceAddress, characteristicUuid,
+                    value);
+        }
+
+        @Override
+        public void onCharacteristicWritten(String deviceAddress, UUID characteristicUuid,
+                                            byte[] value) {
+            add(GattTraceEvent.Type.CHARACTERISTIC_WRITTEN, deviceAddress, characteristicUuid,
+                    value);
+        }
+
+        @Override
+        public void onDescriptorWritten(String deviceAddress, UUID characteristicUuid,
+                                        byte[] value) {
+            add(GattTraceEvent.Type.DESCRIPTOR_WRITTEN, deviceAddress, characteristicUuid,
+                    value);
+        }
+    }
+
+    /**
+     * Records a meter, which connects, reads its features, enables indications, sends three
+     * records and stays connected, and a scale in between.
+     */
+    private static byte[] recordSession() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTraceRecorder recorder = new GattTraceRecorder(out);
+        recorder.onConnected(METER);
+        recorder.onServicesDiscovered(METER);
+        recorder.onCharacteristicRead(METER, FEATURE, new byte[]{0x03, 0x00});
+        recorder.onDescriptorWritten(METER, GLUCOSE, new byte[]{1, 0});
+        recorder.onConnected(SCALE);
+        recorder.onCharacteristicWritten(METER, RACP, new byte[]{1, 1});
+        for (int i = 0; i < 3; i++) {
+            recorder.onCharacteristicChanged(METER, GLUCOSE, new byte[]{0, (byte) i, 0});
+        }
+        recorder.onDisconnected(SCALE);
+        recorder.close();
+        return out.toByteArray();
+    }
+
+    private static ReplayGattClient replay(byte[] trace) throws IOException {
+        return ReplayGattClient.fromTrace(new ByteArrayInputStream(trace), 0);
+    }
+
+    private static void awaitFinished(ReplayGattClient client) throws InterruptedException {
+        assertTrue("Replay did not finish", client.awaitFinished(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void deliversTheEventsOfTheDeviceInOrder() throws Exception {
+        ReplayGattClient client = replay(recordSession());
+        EventLog log = new EventLog();
+        client.registerListener(METER, log, Runnable::run);
+        client.start();
+        awaitFinished(client);
+
+        assertEquals(10, client.getReplayedEvents());
+        List<GattTraceEvent> events = log.events;
+        assertEquals(8, events.size());
+        assertEquals(GattTraceEvent.Type.CONNECTED, events.get(0).getType());
+        assertEquals(GattTraceEvent.Type.SERVICES_DISCOVERED, events.get(1).getType());
+        assertEquals(GattTraceEvent.Type.CHARACTERISTIC_READ, events.get(2).getType());
+        assertArrayEquals(new byte[]{0x03, 0x00}, events.get(2).getValue());
+        assertEquals(GattTraceEvent.Type.DESCRIPTOR_WRITTEN, events.get(3).getType());
+        assertEquals(GattTraceEvent.Type.CHARACTERISTIC_WRITTEN, events.get(4).getType());
+        for (int i = 0; i < 3; i++) {
+            GattTraceEvent event = events.get(5 + i);
+            assertEquals(GattTraceEvent.Type.CHARACTERISTIC_CHANGED, event.getType());
+            assertEquals(METER, event.getDeviceAddress());
+            assertEquals(GLUCOSE, event.getCharacteristicUuid());
+            assertEquals(i, event.getValue()[1]);
+        }
+        assertTrue(client.isConnected(METER));
+        assertFalse(client.isConnected(SCALE));
+    }
+
+    @Test
+    public void completesOperationWithTheLaterResult() throws Exception {
+        ReplayGattClient client = replay(recordSession());
+        List<CompletableFuture<byte[]>> reads = new CopyOnWriteArrayList<>();
+        // requested on the replay thread, before the result is replayed
+        client.registerListener(METER, new EventLog() {
+            @Override
+            public void onServicesDiscovered(String deviceAddress) {
+                reads.add(client.readCharacteristic(null, FEATURE, deviceAddress));
+            }
+        }, Runnable::run);
+        client.start();
+        awaitFinished(client);
+
+        assertEquals(1, reads.size());
+        assertArrayEquals(new byte[]{0x03, 0x00}, reads.get(0).get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(1, client.getCompletedOperations());
+    }
+
+    @Test
+    public void completesOperationWithTheEarlierResult() throws Exception {
+        ReplayGattClient client = replay(recordSession());
+        client.start();
+        awaitFinished(client);
+
+        // the results have been replayed before anyone asked for them
+        assertArrayEquals(new byte[]{0x03, 0x00}, client.readCharacteristic(null, FEATURE,
+                METER).get(TIMEOUT, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{1, 0}, client.enableIndication(null, GLUCOSE,
+                METER).get(TIMEOUT, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{1, 1}, client.writeRecordAccessControlPoint(null, RACP,
+                METER, new byte[]{1, 1}).get(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failsCharacteristicNotInTrace() throws Exception {
+        ReplayGattClient client = replay(recordSession());
+        client.start();
+        awaitFinished(client);
+
+        UUID unknown = UUID.fromString("00002a9d-0000-1000-8000-00805f9b34fb");
+        assertFalse(client.supportsCharacteristic(METER, null, unknown));
+        assertGattFailure(client.readCharacteristic(null, unknown, METER),
+                GattException.STATUS_NOT_SENT);
+    }
+
+    @Test
+    public void failsPendingOperationAtTheEnd() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTraceRecorder recorder = new GattTraceRecorder(out);
+        recorder.onConnected(METER);
+        recorder.onCharacteristicChanged(METER, FEATURE, new byte[]{1});
+        recorder.close();
+        ReplayGattClient client = replay(out.toByteArray());
+        List<CompletableFuture<byte[]>> reads = new CopyOnWriteArrayList<>();
+        client.registerListener(METER, new EventLog() {
+            @Override
+            public void onConnected(String deviceAddress) {
+                reads.add(client.readCharacteristic(null, FEATURE, deviceAddress));
+            }
+        }, Runnable::run);
+        client.start();
+        awaitFinished(client);
+
+        // the trace holds no read result, the read waits until the trace has ended
+        assertEquals(1, reads.size());
+        assertGattFailure(reads.get(0), GattException.STATUS_DISCONNECTED);
+    }
+
+    @Test
+    public void skipsEventsAfterRequestedDisconnect() throws Exception {
+        ReplayGattClient client = replay(recordSession());
+        EventLog log = new EventLog() {
+            @Override
+            public void onDescriptorWritten(String deviceAddress, UUID characteristicUuid,
+                                            byte[] value) {
+                super.onDescriptorWritten(deviceAddress, characteristicUuid, value);
+                client.startDisconnect(deviceAddress);
+            }
+        };
+        client.registerListener(METER, log, Runnable::run);
+        client.start();
+        awaitFinished(client);
+
+        List<GattTraceEvent> events = log.events;
+        assertEquals(5, events.size());
+        assertEquals(GattTraceEvent.Type.DESCRIPTOR_WRITTEN, events.get(3).getType());
+        assertEquals(GattTraceEvent.Type.DISCONNECTED, events.get(4).getType());
+        assertFalse(client.isConnected(METER));
+    }
+
+    private static void assertGattFailure(CompletableFuture<byte[]> future, int status)
+            throws Exception {
+        try {
+            future.get(TIMEOUT, TimeUnit.SECONDS);
+            fail("Operation did not fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof GattException);
+            assertEquals(status, ((GattException) ex.getCause()).getStatus());
+        }
+    }
+}
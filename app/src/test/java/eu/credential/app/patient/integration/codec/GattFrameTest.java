@@ -0,0 +1,80 @@
+package eu.credential.app.patient.integration.codec;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the little endian readers and the date_time reader against Calendar.
+ */
+public class GattFrameTest {
+
+    private final static TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    @Test
+    public void readsUnsignedIntegers() {
+        byte[] data = {(byte) 0xFF, 0x34, 0x12, (byte) 0xFE, (byte) 0xFF, (byte) 0x80};
+
+        assertEquals(0xFF, GattFrame.uint8(data, 0));
+        assertEquals(0x1234, GattFrame.uint16(data, 1));
+        assertEquals(0xFFFE12, GattFrame.uint24(data, 2));
+        assertEquals(0x80FFFE12L, GattFrame.uint32(data, 2));
+    }
+
+    @Test
+    public void readsSignedIntegers() {
+        byte[] data = {(byte) 0xFF, (byte) 0xFE, (byte) 0xFF, 0x7F};
+
+        assertEquals(-1, GattFrame.sint8(data, 0));
+        assertEquals(127, GattFrame.sint8(data, 3));
+        assertEquals(-2, GattFrame.sint16(data, 1));
+        assertEquals(0x7FFF, GattFrame.sint16(data, 2));
+    }
+
+    @Test
+    public void readsDateTimeInGivenZone() {
+        // 2017-03-26 02:30:45
+        byte[] data = {0, (byte) 0xE1, 0x07, 3, 26, 2, 30, 45};
+
+        assertEquals(utc(2017, 3, 26, 2, 30, 45), GattFrame.dateTime(data, 1, UTC));
+
+        TimeZone berlin = TimeZone.getTimeZone("Europe/Berlin");
+        byte[] winter = {(byte) 0xE1, 0x07, 1, 15, 12, 0, 0};
+        assertEquals(utc(2017, 1, 15, 11, 0, 0), GattFrame.dateTime(winter, 0, berlin));
+        byte[] summer = {(byte) 0xE1, 0x07, 7, 15, 12, 0, 0};
+        assertEquals(utc(2017, 7, 15, 10, 0, 0), GattFrame.dateTime(summer, 0, berlin));
+    }
+
+    @Test
+    public void readsUnknownDateTimeAsZero() {
+        assertEquals(0, GattFrame.dateTime(new byte[]{0, 0, 5, 1, 0, 0, 0}, 0, UTC));
+        assertEquals(0, GattFrame.dateTime(new byte[]{(byte) 0xE1, 0x07, 0, 1, 0, 0, 0}, 0, UTC));
+        assertEquals(0, GattFrame.dateTime(new byte[]{(byte) 0xE1, 0x07, 5, 0, 0, 0, 0}, 0, UTC));
+    }
+
+    @Test
+    public void countsDaysLikeCalendar() {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(1582, Calendar.OCTOBER, 15);
+        for (int day = 0; day < 200000; day++) {
+            int year = calendar.get(Calendar.YEAR);
+            int month = calendar.get(Calendar.MONTH) + 1;
+            int dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
+            assertEquals(year + "-" + month + "-" + dayOfMonth,
+                    calendar.getTimeInMillis() / (24 * 60 * 60 * 1000L),
+                    GattFrame.daysFromCivil(year, month, dayOfMonth));
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    private static long utc(int year, int month, int day, int hour, int minute, int second) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+}
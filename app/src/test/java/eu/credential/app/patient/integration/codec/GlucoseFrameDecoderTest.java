@@ -0,0 +1,110 @@
+package eu.credential.app.patient.integration.codec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the glucose decoder for every combination of the optional fields.
+ */
+public class GlucoseFrameDecoderTest {
+
+    // 2017-05-04 13:14:15
+    private final static byte[] DATE_TIME = {(byte) 0xE1, 0x07, 5, 4, 13, 14, 15};
+    // 95e-5 kg/L
+    private final static int CONCENTRATION = 0xB05F;
+    // capillary plasma (2) from the earlobe (3)
+    private final static int TYPE_LOCATION = 0x32;
+
+    /**
+     * Builds a frame with the fields the flags announce: sequence number 0x1234, time offset -30,
+     * concentration 95e-5, type 2, location 3 and sensor status 0x0123.
+     */
+    private static byte[] frame(int flags) {
+        byte[] data = new byte[17];
+        int length = 0;
+        data[length++] = (byte) flags;
+        data[length++] = 0x34;
+        data[length++] = 0x12;
+        System.arraycopy(DATE_TIME, 0, data, length, DATE_TIME.length);
+        length += DATE_TIME.length;
+        if ((flags & GlucoseFrameDecoder.FLAG_TIME_OFFSET) != 0) {
+            data[length++] = (byte) 0xE2;
+            data[length++] = (byte) 0xFF;
+        }
+        if ((flags & GlucoseFrameDecoder.FLAG_CONCENTRATION) != 0) {
+            data[length++] = (byte) CONCENTRATION;
+            data[length++] = (byte) (CONCENTRATION >> 8);
+            data[length++] = TYPE_LOCATION;
+        }
+        if ((flags & GlucoseFrameDecoder.FLAG_SENSOR_STATUS) != 0) {
+            data[length++] = 0x23;
+            data[length++] = 0x01;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(data, 0, result, 0, length);
+        return result;
+    }
+
+    @Test
+    public void decodesAllFlagCombinations() {
+        for (int flags = 0; flags < 32; flags++) {
+            byte[] data = frame(flags);
+            String message = "flags " + flags;
+
+            assertTrue(message, GlucoseFrameDecoder.isValid(data, 0, data.length));
+            assertEquals(message, flags, GlucoseFrameDecoder.flags(data, 0));
+            assertEquals(message, 0x1234, GlucoseFrameDecoder.sequenceNumber(data, 0));
+            assertEquals(message, GattFrame.dateTime(DATE_TIME, 0),
+                    GlucoseFrameDecoder.baseTime(data, 0));
+
+            boolean timeOffset = (flags & GlucoseFrameDecoder.FLAG_TIME_OFFSET) != 0;
+            assertEquals(message, timeOffset ? -30 : 0, GlucoseFrameDecoder.timeOffset(data, 0));
+
+            if ((flags & GlucoseFrameDecoder.FLAG_CONCENTRATION) != 0) {
+                assertEquals(message, 0.00095f, GlucoseFrameDecoder.concentration(data, 0), 0);
+                assertEquals(message, CONCENTRATION,
+                        GlucoseFrameDecoder.rawConcentration(data, 0));
+                assertEquals(message, 2, GlucoseFrameDecoder.type(data, 0));
+                assertEquals(message, 3, GlucoseFrameDecoder.sampleLocation(data, 0));
+            } else {
+                assertEquals(message, 0, GlucoseFrameDecoder.concentration(data, 0), 0);
+                assertEquals(message, Ieee11073Float.SFLOAT_NRES,
+                        GlucoseFrameDecoder.rawConcentration(data, 0));
+                assertEquals(message, 0, GlucoseFrameDecoder.type(data, 0));
+                assertEquals(message, 0, GlucoseFrameDecoder.sampleLocation(data, 0));
+            }
+
+            boolean status = (flags & GlucoseFrameDecoder.FLAG_SENSOR_STATUS) != 0;
+            assertEquals(message, status ? 0x0123 : 0, GlucoseFrameDecoder.sensorStatus(data, 0));
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFrames() {
+        for (int flags = 0; flags < 32; flags++) {
+            byte[] data = frame(flags);
+            for (int length = 0; length < data.length; length++) {
+                assertFalse("flags " + flags + ", length " + length,
+                        GlucoseFrameDecoder.isValid(data, 0, length));
+            }
+        }
+    }
+
+    @Test
+    public void decodesAtOffset() {
+        byte[] data = frame(GlucoseFrameDecoder.FLAG_TIME_OFFSET
+                | GlucoseFrameDecoder.FLAG_CONCENTRATION | GlucoseFrameDecoder.FLAG_SENSOR_STATUS);
+        byte[] buffer = new byte[data.length + 5];
+        System.arraycopy(data, 0, buffer, 3, data.length);
+
+        assertTrue(GlucoseFrameDecoder.isValid(buffer, 3, data.length));
+        assertEquals(0x1234, GlucoseFrameDecoder.sequenceNumber(buffer, 3));
+        assertEquals(-30, GlucoseFrameDecoder.timeOffset(buffer, 3));
+        assertEquals(CONCENTRATION, GlucoseFrameDecoder.rawConcentration(buffer, 3));
+        assertEquals(3, GlucoseFrameDecoder.sampleLocation(buffer, 3));
+        assertEquals(0x0123, GlucoseFrameDecoder.sensorStatus(buffer, 3));
+    }
+}
@@ -0,0 +1,88 @@
+package eu.credential.app.patient.integration.codec;
+
+/**
+ * Compares the SFLOAT decoding of the codec with the formula of
+ * BluetoothGattCharacteristic.getFloatValue(FORMAT_SFLOAT, offset), which is copied here, since
+ * the framework class is not available on the JVM. Run it with
+ * {@code java -cp <test and main classes> eu.credential.app.patient.integration.codec
+ * .Ieee11073FloatBenchmark [rounds]}, it prints the time per decoded value of both.
+ */
+public class Ieee11073FloatBenchmark {
+
+    // values decoded per measured pass, a glucose download of one meter
+    private final static int VALUES = 1 << 16;
+    private final static int WARMUP_ROUNDS = 20;
+
+    /**
+     * Decodes the raw SFLOAT like the framework does, through Math.pow and without special
+     * values.
+     */
+    static float frameworkSfloat(int raw) {
+        int mantissa = unsignedToSigned(raw & 0x0FFF, 12);
+        int exponent = unsignedToSigned((raw >> 12) & 0x0F, 4);
+        return (float) (mantissa * Math.pow(10, exponent));
+    }
+
+    private static int unsignedToSigned(int unsigned, int size) {
+        if ((unsigned & (1 << size - 1)) != 0) {
+            unsigned = -1 * ((1 << size - 1) - (unsigned & ((1 << size - 1) - 1)));
+        }
+        return unsigned;
+    }
+
+    /**
+     * Builds a little endian buffer with every 16 bit value.
+     */
+    private static byte[] frames() {
+        byte[] data = new byte[VALUES * 2];
+        for (int i = 0; i < VALUES; i++) {
+            data[i * 2] = (byte) i;
+            data[i * 2 + 1] = (byte) (i >> 8);
+        }
+        return data;
+    }
+
+    private static float decodeCodec(byte[] data) {
+        float sum = 0;
+        for (int i = 0; i < VALUES; i++) sum += Ieee11073Float.readSfloat(data, i * 2);
+        return sum;
+    }
+
+    private static float decodeFramework(byte[] data) {
+        float sum = 0;
+        for (int i = 0; i < VALUES; i++) {
+            sum += frameworkSfloat((data[i * 2] & 0xFF) | (data[i * 2 + 1] & 0xFF) << 8);
+        }
+        return sum;
+    }
+
+    /**
+     * @return time in ns per decoded value
+     */
+    private static double measure(byte[] data, boolean codec, int rounds) {
+        float sink = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            sink += codec ? decodeCodec(data) : decodeFramework(data);
+        }
+        long time = System.nanoTime() - start;
+        // keeps the loop from being removed
+        if (sink == 42) System.out.print("");
+        return time / (double) rounds / VALUES;
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        byte[] data = frames();
+
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            measure(data, true, 10);
+            measure(data, false, 10);
+        }
+        double codec = measure(data, true, rounds);
+        double framework = measure(data, false, rounds);
+        System.out.printf("codec     %.2f ns/value%n", codec);
+        System.out.printf("framework %.2f ns/value%n", framework);
+        System.out.printf("speedup   %.1fx%n", framework / codec);
+    }
+}
@@ -0,0 +1,223 @@
+package eu.credential.app.patient.integration.codec;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the SFLOAT and FLOAT decoding and encoding, including the reserved values. The exact
+ * decimal output is compared to BigDecimal for every SFLOAT.
+ */
+public class Ieee11073FloatTest {
+
+    @Test
+    public void decodesSfloat() {
+        // 95e-5
+        assertEquals(0.00095f, Ieee11073Float.decodeSfloat(0xB05F), 0);
+        // -1e3
+        assertEquals(-1000f, Ieee11073Float.decodeSfloat(0x3FFF), 0);
+        // 2045e7, largest value
+        assertEquals(2045e7f, Ieee11073Float.decodeSfloat(0x77FD), 0);
+        // -2045e-8, smallest value
+        assertEquals(-2045e-8f, Ieee11073Float.decodeSfloat(0x8803), 0);
+        assertEquals(0f, Ieee11073Float.decodeSfloat(0), 0);
+        // only the lower 16 bits count
+        assertEquals(0.00095f, Ieee11073Float.decodeSfloat(0x7FFFB05F), 0);
+    }
+
+    @Test
+    public void decodesSfloatSpecialValues() {
+        assertTrue(Float.isNaN(Ieee11073Float.decodeSfloat(Ieee11073Float.SFLOAT_NAN)));
+        assertTrue(Float.isNaN(Ieee11073Float.decodeSfloat(Ieee11073Float.SFLOAT_NRES)));
+        assertTrue(Float.isNaN(Ieee11073Float.decodeSfloat(Ieee11073Float.SFLOAT_RESERVED)));
+        assertEquals(Float.POSITIVE_INFINITY,
+                Ieee11073Float.decodeSfloat(Ieee11073Float.SFLOAT_POSITIVE_INFINITY), 0);
+        assertEquals(Float.NEGATIVE_INFINITY,
+                Ieee11073Float.decodeSfloat(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY), 0);
+
+        for (int raw = 0x07FE; raw <= 0x0802; raw++) {
+            assertTrue(Ieee11073Float.isSfloatSpecial(raw));
+        }
+        assertFalse(Ieee11073Float.isSfloatSpecial(0x07FD));
+        assertFalse(Ieee11073Float.isSfloatSpecial(0x0803));
+        // the reserved mantissas are only special with exponent 0
+        assertFalse(Ieee11073Float.isSfloatSpecial(0x17FF));
+        assertEquals(2047e1f, Ieee11073Float.decodeSfloat(0x17FF), 0);
+    }
+
+    @Test
+    public void decodesFloat() {
+        // 12345e-2
+        assertEquals(123.45f, Ieee11073Float.decodeFloat(0xFE003039), 0);
+        // -1e-7
+        assertEquals(-1e-7f, Ieee11073Float.decodeFloat(0xF9FFFFFF), 0);
+        assertEquals(8388605e2f, Ieee11073Float.decodeFloat(0x027FFFFD), 0);
+    }
+
+    @Test
+    public void decodesFloatSpecialValues() {
+        assertTrue(Float.isNaN(Ieee11073Float.decodeFloat(Ieee11073Float.FLOAT_NAN)));
+        assertTrue(Float.isNaN(Ieee11073Float.decodeFloat(Ieee11073Float.FLOAT_NRES)));
+        assertTrue(Float.isNaN(Ieee11073Float.decodeFloat(Ieee11073Float.FLOAT_RESERVED)));
+        assertEquals(Float.POSITIVE_INFINITY,
+                Ieee11073Float.decodeFloat(Ieee11073Float.FLOAT_POSITIVE_INFINITY), 0);
+        assertEquals(Float.NEGATIVE_INFINITY,
+                Ieee11073Float.decodeFloat(Ieee11073Float.FLOAT_NEGATIVE_INFINITY), 0);
+        assertFalse(Ieee11073Float.isFloatSpecial(0x017FFFFF));
+    }
+
+    @Test
+    public void readsLittleEndian() {
+        byte[] data = {0x00, 0x5F, (byte) 0xB0, 0x39, 0x30, 0x00, (byte) 0xFE};
+
+        assertEquals(0.00095f, Ieee11073Float.readSfloat(data, 1), 0);
+        assertEquals(123.45f, Ieee11073Float.readFloat(data, 3), 0);
+    }
+
+    @Test
+    public void matchesFrameworkFormulaForEverySfloat() {
+        for (int raw = 0; raw <= 0xFFFF; raw++) {
+            if (Ieee11073Float.isSfloatSpecial(raw)) continue;
+            assertEquals(Integer.toHexString(raw), Ieee11073FloatBenchmark.frameworkSfloat(raw),
+                    Ieee11073Float.decodeSfloat(raw), 0);
+        }
+    }
+
+    @Test
+    public void appendsEverySfloatExactly() {
+        StringBuilder builder = new StringBuilder();
+        for (int raw = 0; raw <= 0xFFFF; raw++) {
+            if (Ieee11073Float.isSfloatSpecial(raw)) continue;
+            builder.setLength(0);
+            assertEquals(Integer.toHexString(raw), decimal(Ieee11073Float.sfloatMantissa(raw),
+                    Ieee11073Float.sfloatExponent(raw)),
+                    Ieee11073Float.appendSfloat(builder, raw).toString());
+        }
+    }
+
+    @Test
+    public void appendsSfloat() {
+        assertEquals("0.00095", append(0xB05F, true));
+        assertEquals("-0.00095", append(0xBFA1, true));
+        assertEquals("20450000000", append(0x77FD, true));
+        assertEquals("-0.00002045", append(0x8803, true));
+        assertEquals("12.3", append(0xF07B, true));
+        assertEquals("0", append(0xB000, true));
+        // appends to the given content
+        assertEquals("mg=0.00095", Ieee11073Float.appendSfloat(
+                new StringBuilder("mg="), 0xB05F).toString());
+    }
+
+    @Test
+    public void appendsSfloatSpecialValues() {
+        assertEquals("NaN", append(Ieee11073Float.SFLOAT_NAN, true));
+        assertEquals("NRes", append(Ieee11073Float.SFLOAT_NRES, true));
+        assertEquals("Reserved", append(Ieee11073Float.SFLOAT_RESERVED, true));
+        assertEquals("+INF", append(Ieee11073Float.SFLOAT_POSITIVE_INFINITY, true));
+        assertEquals("-INF", append(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY, true));
+    }
+
+    @Test
+    public void appendsFloat() {
+        assertEquals("123.45", append(0xFE003039, false));
+        assertEquals("-0.0000001", append(0xF9FFFFFF, false));
+        assertEquals("838860500", append(0x027FFFFD, false));
+        assertEquals("-8388605", append(0x00800003, false));
+        for (int exponent = -128; exponent <= 127; exponent++) {
+            int raw = Ieee11073Float.encodeFloat(-1234567, exponent);
+            assertEquals(decimal(-1234567, exponent), append(raw, false));
+        }
+    }
+
+    @Test
+    public void appendsFloatSpecialValues() {
+        assertEquals("NaN", append(Ieee11073Float.FLOAT_NAN, false));
+        assertEquals("NRes", append(Ieee11073Float.FLOAT_NRES, false));
+        assertEquals("Reserved", append(Ieee11073Float.FLOAT_RESERVED, false));
+        assertEquals("+INF", append(Ieee11073Float.FLOAT_POSITIVE_INFINITY, false));
+        assertEquals("-INF", append(Ieee11073Float.FLOAT_NEGATIVE_INFINITY, false));
+    }
+
+    @Test
+    public void encodesMantissaAndExponent() {
+        assertEquals(0xB05F, Ieee11073Float.encodeSfloat(95, -5));
+        assertEquals(0x8803, Ieee11073Float.encodeSfloat(-2045, -8));
+        assertEquals(0xFE003039, Ieee11073Float.encodeFloat(12345, -2));
+        assertEquals(0x00800003, Ieee11073Float.encodeFloat(-8388605, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSpecialSfloatMantissa() {
+        Ieee11073Float.encodeSfloat(2046, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSfloatExponent() {
+        Ieee11073Float.encodeSfloat(1, 8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSpecialFloatMantissa() {
+        Ieee11073Float.encodeFloat(-8388606, 0);
+    }
+
+    @Test
+    public void roundsEncodedSfloat() {
+        assertEquals(Ieee11073Float.encodeSfloat(123, -1), Ieee11073Float.encodeSfloat(12.34, 1));
+        assertEquals(Ieee11073Float.encodeSfloat(124, -1), Ieee11073Float.encodeSfloat(12.36, 1));
+        // half up
+        assertEquals(Ieee11073Float.encodeSfloat(3, 0), Ieee11073Float.encodeSfloat(2.5, 0));
+        assertEquals(Ieee11073Float.encodeSfloat(-2, 0), Ieee11073Float.encodeSfloat(-2.5, 0));
+        // digits are dropped until the mantissa fits
+        assertEquals(Ieee11073Float.encodeSfloat(1235, -1),
+                Ieee11073Float.encodeSfloat(123.456, 3));
+        assertEquals(Ieee11073Float.encodeSfloat(205, 2), Ieee11073Float.encodeSfloat(20455.0, 0));
+        assertEquals(Ieee11073Float.encodeSfloat(-2045, 0),
+                Ieee11073Float.encodeSfloat(-2045.0, 0));
+        // the exponent is limited to -8
+        assertEquals(Ieee11073Float.encodeSfloat(1, -8), Ieee11073Float.encodeSfloat(1e-8, 12));
+    }
+
+    @Test
+    public void encodesSfloatSpecialValues() {
+        assertEquals(Ieee11073Float.SFLOAT_NAN, Ieee11073Float.encodeSfloat(Double.NaN, 2));
+        assertEquals(Ieee11073Float.SFLOAT_POSITIVE_INFINITY,
+                Ieee11073Float.encodeSfloat(Double.POSITIVE_INFINITY, 2));
+        assertEquals(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY,
+                Ieee11073Float.encodeSfloat(Double.NEGATIVE_INFINITY, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooBigSfloat() {
+        Ieee11073Float.encodeSfloat(2.1e10, 0);
+    }
+
+    @Test
+    public void encodesEveryDecodedSfloat() {
+        for (int raw = 0; raw <= 0xFFFF; raw++) {
+            if (Ieee11073Float.isSfloatSpecial(raw)) continue;
+            int mantissa = Ieee11073Float.sfloatMantissa(raw);
+            int exponent = Ieee11073Float.sfloatExponent(raw);
+            // the reserved mantissas are never produced, not even with another exponent
+            if (Math.abs(mantissa) > Ieee11073Float.SFLOAT_MAX_MANTISSA) continue;
+            double value = new BigDecimal(mantissa).scaleByPowerOfTen(exponent).doubleValue();
+            assertEquals(Integer.toHexString(raw), raw & 0xFFFF,
+                    Ieee11073Float.encodeSfloat(value, -exponent));
+        }
+    }
+
+    private static String append(int raw, boolean sfloat) {
+        StringBuilder builder = new StringBuilder();
+        if (sfloat) return Ieee11073Float.appendSfloat(builder, raw).toString();
+        return Ieee11073Float.appendFloat(builder, raw).toString();
+    }
+
+    private static String decimal(int mantissa, int exponent) {
+        if (mantissa == 0) return "0";
+        return new BigDecimal(mantissa).scaleByPowerOfTen(exponent).toPlainString();
+    }
+}
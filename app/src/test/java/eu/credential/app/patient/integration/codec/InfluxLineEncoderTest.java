@@ -0,0 +1,47 @@
+package eu.credential.app.patient.integration.codec;
+
+import eu.credential.app.patient.integration.model.WeightMeasurement;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks, that single lines and lines of the cached series come out the same.
+ */
+public class InfluxLineEncoderTest {
+
+    // 75 kg with time stamp, user 7, BMI 23.1 and height 1.8 m
+    private final static byte[] WEIGHT = {0x0E, (byte) 0x98, 0x3A,
+            (byte) 0xE1, 0x07, 5, 4, 13, 14, 15, 7, (byte) 231, 0, 0x08, 0x07};
+
+    @Test
+    public void encodesSingleLineLikeSeries() {
+        WeightMeasurement measurement = new WeightMeasurement(WEIGHT, 0);
+        InfluxLineEncoder encoder =
+                new InfluxLineEncoder(InfluxLineEncoder.Precision.MILLISECONDS);
+        encoder.append("scale", measurement);
+
+        String line = InfluxLineEncoder.encodeLine(measurement,
+                InfluxLineEncoder.Precision.MILLISECONDS);
+
+        assertEquals(encoder.toString(), line);
+        assertEquals(String.valueOf(WeightFrameDecoder.timestamp(WEIGHT, 0)),
+                line.substring(line.lastIndexOf(' ') + 1));
+    }
+
+    @Test
+    public void reusesCachedTagSet() {
+        WeightMeasurement measurement = new WeightMeasurement(WEIGHT, 0);
+        InfluxLineEncoder encoder =
+                new InfluxLineEncoder(InfluxLineEncoder.Precision.SECONDS, 16);
+        encoder.append("scale", measurement);
+        encoder.append("scale", measurement);
+        encoder.append(measurement);
+
+        String line = InfluxLineEncoder.encodeLine(measurement,
+                InfluxLineEncoder.Precision.SECONDS);
+        assertEquals(3, encoder.getLineCount());
+        assertEquals(line + "\n" + line + "\n" + line, encoder.toString());
+    }
+}
@@ -0,0 +1,109 @@
+package eu.credential.app.patient.integration.codec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the weight decoder for every combination of the optional fields.
+ */
+public class WeightFrameDecoderTest {
+
+    // 2017-05-04 13:14:15
+    private final static byte[] DATE_TIME = {(byte) 0xE1, 0x07, 5, 4, 13, 14, 15};
+
+    /**
+     * Builds a frame with the fields the flags announce: weight 15000, user 7, BMI 231,
+     * height 1800.
+     */
+    private static byte[] frame(int flags) {
+        byte[] data = new byte[15];
+        int length = 0;
+        data[length++] = (byte) flags;
+        data[length++] = (byte) 0x98;
+        data[length++] = 0x3A;
+        if ((flags & WeightFrameDecoder.FLAG_TIMESTAMP) != 0) {
+            System.arraycopy(DATE_TIME, 0, data, length, DATE_TIME.length);
+            length += DATE_TIME.length;
+        }
+        if ((flags & WeightFrameDecoder.FLAG_USER_ID) != 0) data[length++] = 7;
+        if ((flags & WeightFrameDecoder.FLAG_BMI_HEIGHT) != 0) {
+            data[length++] = (byte) 231;
+            data[length++] = 0;
+            data[length++] = 0x08;
+            data[length++] = 0x07;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(data, 0, result, 0, length);
+        return result;
+    }
+
+    @Test
+    public void decodesAllFlagCombinations() {
+        for (int flags = 0; flags < 16; flags++) {
+            byte[] data = frame(flags);
+            boolean imperial = (flags & WeightFrameDecoder.FLAG_UNIT_IMPERIAL) != 0;
+            String message = "flags " + flags;
+
+            assertTrue(message, WeightFrameDecoder.isValid(data, 0, data.length));
+            assertEquals(message, flags, WeightFrameDecoder.flags(data, 0));
+            assertEquals(message, 15000, WeightFrameDecoder.rawWeight(data, 0));
+            assertEquals(message, imperial ? 150.0 : 75.0, WeightFrameDecoder.weight(data, 0), 0);
+
+            if ((flags & WeightFrameDecoder.FLAG_TIMESTAMP) != 0) {
+                assertEquals(message, GattFrame.dateTime(DATE_TIME, 0),
+                        WeightFrameDecoder.timestamp(data, 0));
+            } else {
+                assertEquals(message, 0, WeightFrameDecoder.timestamp(data, 0));
+            }
+
+            boolean user = (flags & WeightFrameDecoder.FLAG_USER_ID) != 0;
+            assertEquals(message, user ? 7 : -1, WeightFrameDecoder.userId(data, 0));
+
+            if ((flags & WeightFrameDecoder.FLAG_BMI_HEIGHT) != 0) {
+                assertEquals(message, 231, WeightFrameDecoder.rawBmi(data, 0));
+                assertEquals(message, 23.1, WeightFrameDecoder.bmi(data, 0), 1e-9);
+                assertEquals(message, 1800, WeightFrameDecoder.rawHeight(data, 0));
+                assertEquals(message, imperial ? 180.0 : 1.8,
+                        WeightFrameDecoder.height(data, 0), 1e-9);
+            } else {
+                assertEquals(message, -1, WeightFrameDecoder.rawBmi(data, 0));
+                assertEquals(message, -1, WeightFrameDecoder.bmi(data, 0), 0);
+                assertEquals(message, -1, WeightFrameDecoder.rawHeight(data, 0));
+                assertEquals(message, -1, WeightFrameDecoder.height(data, 0), 0);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFrames() {
+        for (int flags = 0; flags < 16; flags++) {
+            byte[] data = frame(flags);
+            for (int length = 0; length < data.length; length++) {
+                assertFalse("flags " + flags + ", length " + length,
+                        WeightFrameDecoder.isValid(data, 0, length));
+            }
+        }
+    }
+
+    @Test
+    public void decodesAtOffset() {
+        byte[] data = frame(WeightFrameDecoder.FLAG_USER_ID | WeightFrameDecoder.FLAG_BMI_HEIGHT);
+        byte[] buffer = new byte[data.length + 5];
+        System.arraycopy(data, 0, buffer, 3, data.length);
+
+        assertTrue(WeightFrameDecoder.isValid(buffer, 3, data.length));
+        assertEquals(15000, WeightFrameDecoder.rawWeight(buffer, 3));
+        assertEquals(7, WeightFrameDecoder.userId(buffer, 3));
+        assertEquals(1800, WeightFrameDecoder.rawHeight(buffer, 3));
+    }
+
+    @Test
+    public void keepsFailedMeasurement() {
+        byte[] data = {0, (byte) 0xFF, (byte) 0xFF};
+
+        assertEquals(WeightFrameDecoder.WEIGHT_FAILED, WeightFrameDecoder.rawWeight(data, 0));
+    }
+}